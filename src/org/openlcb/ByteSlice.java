@@ -0,0 +1,204 @@
+package org.openlcb;
+
+import java.nio.ByteBuffer;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Immutable view of a range of bytes, used for datagram payloads.
+ * <p>
+ * A payload is built once, typically by the frame reassembly in the CAN message builder, and
+ * then handed through the message, the datagram service and the memory configuration service
+ * without being copied again; {@link #slice} shares the bytes as well. The backing array must
+ * not be modified after it was wrapped.
+ * <p>
+ * Bytes are read as unsigned values (0..255), the same convention as the {@code int[]}
+ * payloads used elsewhere in the library. {@link #fromInts} and {@link #toIntArray} convert to
+ * and from those.
+ */
+@Immutable
+@ThreadSafe
+public final class ByteSlice {
+    /// Payload with no bytes.
+    public final static ByteSlice EMPTY = new ByteSlice(new byte[0], 0, 0);
+
+    private final byte[] array;
+    private final int offset;
+    private final int length;
+
+    private ByteSlice(byte[] array, int offset, int length) {
+        this.array = array;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Wraps an array without copying. The caller must not modify the array afterwards.
+     * @param array bytes to wrap
+     * @return a slice covering the whole array.
+     */
+    public static ByteSlice wrap(byte[] array) {
+        return new ByteSlice(array, 0, array.length);
+    }
+
+    /**
+     * Wraps a range of an array without copying. The caller must not modify the range
+     * afterwards.
+     * @param array  backing array
+     * @param offset index of the first byte
+     * @param length number of bytes
+     * @return a slice covering the given range.
+     */
+    public static ByteSlice wrap(byte[] array, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > array.length) {
+            throw new IndexOutOfBoundsException("offset " + offset + " length " + length +
+                    " array length " + array.length);
+        }
+        return new ByteSlice(array, offset, length);
+    }
+
+    /// @return a slice holding a copy of the given bytes.
+    public static ByteSlice copyOf(byte[] array) {
+        return new ByteSlice(array.clone(), 0, array.length);
+    }
+
+    /**
+     * @param data one byte per entry; only the low 8 bits are used.
+     * @return a slice holding the given bytes.
+     */
+    public static ByteSlice fromInts(int[] data) {
+        if (data == null || data.length == 0) return EMPTY;
+        byte[] b = new byte[data.length];
+        for (int i = 0; i < data.length; ++i) {
+            b[i] = (byte) data[i];
+        }
+        return new ByteSlice(b, 0, b.length);
+    }
+
+    /// @return the number of bytes.
+    public int length() {
+        return length;
+    }
+
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    /**
+     * @param index position in this slice
+     * @return the byte at the given position as unsigned value 0..255.
+     */
+    public int get(int index) {
+        return array[checkIndex(index)] & 0xFF;
+    }
+
+    /// @return the byte at the given position as signed value.
+    public byte getByte(int index) {
+        return array[checkIndex(index)];
+    }
+
+    /// @return the unsigned 16-bit big-endian value at the given position.
+    public int getUint16(int index) {
+        return (get(index) << 8) | get(index + 1);
+    }
+
+    /// @return the unsigned 32-bit big-endian value at the given position.
+    public long getUint32(int index) {
+        return ((long) getUint16(index) << 16) | getUint16(index + 2);
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + " length " + length);
+        }
+        return offset + index;
+    }
+
+    /**
+     * Returns part of this slice, sharing the bytes.
+     * @param from first index, inclusive
+     * @param to   last index, exclusive
+     * @return the sub-slice.
+     */
+    public ByteSlice slice(int from, int to) {
+        if (from < 0 || to > length || from > to) {
+            throw new IndexOutOfBoundsException("from " + from + " to " + to + " length " +
+                    length);
+        }
+        if (from == 0 && to == length) return this;
+        return new ByteSlice(array, offset + from, to - from);
+    }
+
+    /// @return the bytes from the given index to the end, sharing the bytes.
+    public ByteSlice slice(int from) {
+        return slice(from, length);
+    }
+
+    /**
+     * Copies bytes out of this slice.
+     * @param from   first index in this slice
+     * @param dst    destination array
+     * @param dstOfs first index in the destination
+     * @param count  number of bytes to copy
+     */
+    public void copyTo(int from, byte[] dst, int dstOfs, int count) {
+        if (from < 0 || count < 0 || from + count > length) {
+            throw new IndexOutOfBoundsException("from " + from + " count " + count + " length "
+                    + length);
+        }
+        System.arraycopy(array, offset + from, dst, dstOfs, count);
+    }
+
+    /// @return a copy of the bytes.
+    public byte[] toByteArray() {
+        byte[] b = new byte[length];
+        System.arraycopy(array, offset, b, 0, length);
+        return b;
+    }
+
+    /// @return a copy of the bytes, one unsigned byte per entry.
+    public int[] toIntArray() {
+        int[] r = new int[length];
+        for (int i = 0; i < length; ++i) {
+            r[i] = array[offset + i] & 0xFF;
+        }
+        return r;
+    }
+
+    /// @return a read-only buffer over the bytes, without copying.
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(array, offset, length).slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ByteSlice)) return false;
+        ByteSlice s = (ByteSlice) o;
+        if (s.length != length) return false;
+        for (int i = 0; i < length; ++i) {
+            if (array[offset + i] != s.array[s.offset + i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 1;
+        for (int i = 0; i < length; ++i) {
+            h = 31 * h + array[offset + i];
+        }
+        return h;
+    }
+
+    /// @return the bytes in hex, separated by dots, e.g. "20.41.00".
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder(length * 3);
+        for (int i = 0; i < length; ++i) {
+            if (i > 0) b.append('.');
+            b.append(Utilities.toHexPair(array[offset + i] & 0xFF));
+        }
+        return b.toString();
+    }
+}
@@ -0,0 +1,184 @@
+package org.openlcb;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Timer service for the events of the fast clocks.
+ * <p>
+ * Tasks are scheduled at a deadline on the {@link System#nanoTime} scale and kept in a heap; the
+ * thread sleeps until the earliest deadline and runs the task. A clock computes each deadline
+ * from its anchor, not from the time the previous event fired, so the lateness of one event does
+ * not carry over to the next ones. The thread runs only clock events, so they are not delayed by
+ * the protocol timeouts on the other timers of the interface. Any number of clocks can share one
+ * scheduler; see {@link OlcbInterface#getClockScheduler}.
+ * <p>
+ * The scheduler measures how late each task starts compared to its deadline. Like with any
+ * shared timer, the tasks must not block.
+ */
+public class ClockScheduler extends TimerWorker {
+    /**
+     * Handle of a scheduled task.
+     */
+    public final class Task {
+        private final Runnable runnable;
+        private final long deadlineNanos;
+        private final long seq;
+        // The following are guarded by the scheduler's lock.
+        private boolean cancelled = false;
+        private boolean expired = false;
+
+        private Task(Runnable runnable, long deadlineNanos, long seq) {
+            this.runnable = runnable;
+            this.deadlineNanos = deadlineNanos;
+            this.seq = seq;
+        }
+
+        /// @return when the task is due, on the {@link System#nanoTime} scale.
+        public long getDeadlineNanos() {
+            return deadlineNanos;
+        }
+
+        /**
+         * Cancels the task.
+         * @return true if the task will not run due to this call; false if it has already run
+         * (or started running) or was cancelled before.
+         */
+        public boolean cancel() {
+            lock.lock();
+            try {
+                if (cancelled || expired) return false;
+                cancelled = true;
+                queue.remove(this);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /// How late the tasks started.
+    public static class Jitter {
+        private final long count;
+        private final double meanMicros;
+        private final long maxMicros;
+        private final long p99Micros;
+
+        Jitter(long count, double meanMicros, long maxMicros, long p99Micros) {
+            this.count = count;
+            this.meanMicros = meanMicros;
+            this.maxMicros = maxMicros;
+            this.p99Micros = p99Micros;
+        }
+
+        /// @return the number of tasks measured.
+        public long getCount() { return count; }
+        public double getMeanMicros() { return meanMicros; }
+        public long getMaxMicros() { return maxMicros; }
+        /**
+         * @return the lateness that 99% of the tasks stayed under, rounded up to a power of two
+         * microseconds but not above the maximum.
+         */
+        public long getP99Micros() { return p99Micros; }
+
+        @Override
+        public String toString() {
+            return String.format("%d tasks, mean %.0f us, p99 %d us, max %d us", count,
+                    meanMicros, p99Micros, maxMicros);
+        }
+    }
+
+    // The following are guarded by lock.
+    private final PriorityQueue<Task> queue = new PriorityQueue<>(16, new Comparator<Task>() {
+        @Override
+        public int compare(Task a, Task b) {
+            // Deadlines may wrap around; compared by difference like System.nanoTime requires.
+            long d = a.deadlineNanos - b.deadlineNanos;
+            if (d != 0) return d < 0 ? -1 : 1;
+            return Long.compare(a.seq, b.seq);
+        }
+    });
+    private long nextSeq = 0;
+    /// How late the tasks started.
+    private final DurationHistogram lateness = new DurationHistogram();
+
+    /// @param name name of the scheduler thread.
+    public ClockScheduler(String name) {
+        super(name);
+    }
+
+    /**
+     * Schedules a task to run once at a given time.
+     * @param task          what to run on the scheduler thread.
+     * @param deadlineNanos when to run, on the {@link System#nanoTime} scale.
+     * @return handle to cancel the task, or null if the scheduler is stopped.
+     */
+    public Task scheduleAt(Runnable task, long deadlineNanos) {
+        lock.lock();
+        try {
+            if (stopped) return null;
+            Task t = new Task(task, deadlineNanos, nextSeq++);
+            queue.add(t);
+            if (queue.peek() == t) wakeup.signalAll();
+            startWorkerLocked();
+            return t;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Schedules a task to run once after a delay.
+     * @param task      what to run on the scheduler thread.
+     * @param delayMsec delay before running.
+     * @return handle to cancel the task, or null if the scheduler is stopped.
+     */
+    public Task schedule(Runnable task, long delayMsec) {
+        return scheduleAt(task, System.nanoTime() + Math.max(0, delayMsec) * 1000000);
+    }
+
+    @Override
+    void runWorker() {
+        while (true) {
+            Task t;
+            lock.lock();
+            try {
+                while (true) {
+                    if (stopped) return;
+                    t = queue.peek();
+                    long waitNanos = t == null ? NO_DEADLINE : t.deadlineNanos - System
+                            .nanoTime();
+                    if (waitNanos <= 0) break;
+                    awaitWakeup(waitNanos);
+                }
+                queue.poll();
+                t.expired = true;
+            } finally {
+                lock.unlock();
+            }
+            lateness.record(System.nanoTime() - t.deadlineNanos);
+            runTask(t.runnable);
+        }
+    }
+
+    @Override
+    void clearLocked() {
+        queue.clear();
+    }
+
+    @Override
+    int pendingLocked() {
+        return queue.size();
+    }
+
+    /// @return how late the tasks started since the scheduler was created or the last reset.
+    public Jitter getJitter() {
+        return new Jitter(lateness.getCount(), lateness.getMeanNanos() / 1e3, lateness
+                .getMaxNanos() / 1000, lateness.getPercentileMicros(99));
+    }
+
+    /// Clears the lateness statistics.
+    public void resetJitter() {
+        lateness.reset();
+    }
+}
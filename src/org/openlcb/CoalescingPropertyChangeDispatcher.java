@@ -0,0 +1,225 @@
+package org.openlcb;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Opt-in dispatcher that decouples property change listeners from the thread firing the
+ * notifications.
+ * <p>
+ * Listeners are wrapped with {@link #wrap} before registering them with a property change
+ * source. Notifications arriving at the wrapper are queued instead of delivered; repeated
+ * notifications of the same property from the same source within one frame window are coalesced
+ * into a single event, carrying the old value of the first and the new value of the last
+ * notification. At the end of the window all queued events are delivered in arrival order on the
+ * executor given at construction, for example {@code java.awt.EventQueue::invokeLater} for
+ * Swing listeners. The network threads thus only pay for a hash map update per notification.
+ */
+public class CoalescingPropertyChangeDispatcher {
+    private final static Logger logger = Logger.getLogger(
+            CoalescingPropertyChangeDispatcher.class.getName());
+
+    /// Identifies what notifications can be coalesced with each other.
+    private static class Key {
+        final Object source;
+        final String property;
+        final Forwarder target;
+
+        Key(Object source, String property, Forwarder target) {
+            this.source = source;
+            this.property = property;
+            this.target = target;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return source == k.source && target == k.target && (property == null ? k.property ==
+                    null : property.equals(k.property));
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(source) * 31 + System.identityHashCode(target) + (
+                    property == null ? 0 : property.hashCode());
+        }
+    }
+
+    /// A queued notification, possibly standing for several coalesced ones.
+    private static class Pending {
+        final PropertyChangeListener target;
+        final PropertyChangeEvent first;
+        PropertyChangeEvent last;
+
+        Pending(PropertyChangeListener target, PropertyChangeEvent first) {
+            this.target = target;
+            this.first = first;
+            this.last = first;
+        }
+
+        PropertyChangeEvent getEvent() {
+            if (first == last) return first;
+            PropertyChangeEvent e = new PropertyChangeEvent(last.getSource(), last
+                    .getPropertyName(), first.getOldValue(), last.getNewValue());
+            e.setPropagationId(last.getPropagationId());
+            return e;
+        }
+    }
+
+    /// The listener registered with the sources in place of the actual listener.
+    private class Forwarder implements PropertyChangeListener {
+        final PropertyChangeListener target;
+
+        Forwarder(PropertyChangeListener target) {
+            this.target = target;
+        }
+
+        @Override
+        public void propertyChange(PropertyChangeEvent evt) {
+            enqueue(this, evt);
+        }
+    }
+
+    private final Executor executor;
+    private final long windowMsec;
+    private final Timer timer;
+    private final boolean ownTimer;
+    // Guarded by this.
+    private Map<Key, Pending> pending = new LinkedHashMap<>();
+    private TimerTask flushTask = null;
+    /// Events handed to the executor but not delivered yet.
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong receivedCount = new AtomicLong();
+    private final AtomicLong deliveredCount = new AtomicLong();
+
+    /**
+     * Creates a dispatcher with its own timer thread.
+     * @param executor   where to invoke the listeners.
+     * @param windowMsec how long to collect notifications before delivering them.
+     */
+    public CoalescingPropertyChangeDispatcher(Executor executor, long windowMsec) {
+        this(executor, windowMsec, null);
+    }
+
+    /**
+     * @param executor   where to invoke the listeners.
+     * @param windowMsec how long to collect notifications before delivering them.
+     * @param timer      timer to use for the frame windows, e.g. {@link OlcbInterface#getTimer}.
+     *                   If null, the dispatcher creates its own timer.
+     */
+    public CoalescingPropertyChangeDispatcher(Executor executor, long windowMsec, Timer timer) {
+        this.executor = executor;
+        this.windowMsec = windowMsec;
+        if (timer == null) {
+            this.timer = new Timer("OpenLCB Property Change Dispatcher", true);
+            ownTimer = true;
+        } else {
+            this.timer = timer;
+            ownTimer = false;
+        }
+    }
+
+    /**
+     * Wraps a listener to be called via this dispatcher. Register the returned object with the
+     * property change sources, and use it also for removing the registration.
+     * @param target the listener to invoke on the executor.
+     * @return listener object to register with the sources.
+     */
+    public PropertyChangeListener wrap(PropertyChangeListener target) {
+        return new Forwarder(target);
+    }
+
+    private synchronized void enqueue(Forwarder f, PropertyChangeEvent evt) {
+        receivedCount.incrementAndGet();
+        Key k = new Key(evt.getSource(), evt.getPropertyName(), f);
+        Pending p = pending.get(k);
+        if (p == null) {
+            pending.put(k, new Pending(f.target, evt));
+        } else {
+            p.last = evt;
+        }
+        if (flushTask == null) {
+            flushTask = new TimerTask() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            };
+            timer.schedule(flushTask, windowMsec);
+        }
+    }
+
+    /**
+     * Hands all queued notifications to the executor without waiting for the end of the
+     * current frame window.
+     */
+    public void flush() {
+        final List<Pending> batch;
+        synchronized (this) {
+            if (flushTask != null) {
+                flushTask.cancel();
+                flushTask = null;
+            }
+            if (pending.isEmpty()) return;
+            batch = new ArrayList<>(pending.values());
+            pending = new LinkedHashMap<>();
+            inFlight.addAndGet(batch.size());
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Pending p : batch) {
+                    try {
+                        p.target.propertyChange(p.getEvent());
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING, "Exception in property change listener", e);
+                    }
+                    inFlight.decrementAndGet();
+                    deliveredCount.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the number of events that are waiting for the frame window to end or for the
+     * executor to run them.
+     */
+    public int getQueueDepth() {
+        synchronized (this) {
+            return pending.size() + inFlight.get();
+        }
+    }
+
+    /// @return the number of notifications received from the sources.
+    public long getReceivedCount() {
+        return receivedCount.get();
+    }
+
+    /// @return the number of events delivered to the listeners, after coalescing.
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+
+    /**
+     * Delivers the outstanding notifications and stops the dispatcher's own timer (if any).
+     */
+    public void dispose() {
+        flush();
+        if (ownTimer) {
+            timer.cancel();
+        }
+    }
+}
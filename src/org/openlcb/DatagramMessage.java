@@ -7,6 +7,9 @@ import net.jcip.annotations.ThreadSafe;
 
 /**
  * Datagram message implementation
+ * <p>
+ * The payload is kept as a {@link ByteSlice}, which is passed along without copying. The
+ * {@code int[]} view returned by {@link #getData()} is created on first use.
  *
  * @author  Bob Jacobsen   Copyright 2009
  * @version $Revision$
@@ -16,16 +19,21 @@ import net.jcip.annotations.ThreadSafe;
 public class DatagramMessage extends AddressedMessage {
     
     public DatagramMessage(NodeID source, NodeID dest, int[] dataIn) {
-        super(source, dest);
-        this.data = new int[dataIn.length];
-        System.arraycopy(dataIn, 0, this.data, 0, dataIn.length);
+        this(source, dest, ByteSlice.fromInts(dataIn));
     }
     
     public DatagramMessage(NodeID source, NodeID dest, byte[] dataIn) {
+        this(source, dest, ByteSlice.copyOf(dataIn));
+    }
+
+    /**
+     * @param source    sender of the datagram
+     * @param dest      recipient of the datagram
+     * @param payload   datagram contents; shared, not copied.
+     */
+    public DatagramMessage(NodeID source, NodeID dest, ByteSlice payload) {
         super(source, dest);
-        this.data = new int[dataIn.length];
-        for (int i = 0; i<dataIn.length; i++)
-            this.data[i] = dataIn[i]&0xFF;
+        this.payload = payload;
     }
 
     /**
@@ -38,8 +46,11 @@ public class DatagramMessage extends AddressedMessage {
         super(source, dest);
     }
     
+    /// int[] view of the payload. Subclasses may also fill it in instead of the payload.
     @SuppressWarnings("JCIP_FIELD_ISNT_FINAL_IN_IMMUTABLE_CLASS")
-    protected int[] data;
+    protected volatile int[] data;
+    @SuppressWarnings("JCIP_FIELD_ISNT_FINAL_IN_IMMUTABLE_CLASS")
+    private volatile ByteSlice payload;
     
      /**
       * To be equal, messages have to have the
@@ -51,14 +62,8 @@ public class DatagramMessage extends AddressedMessage {
         if (! (o instanceof DatagramMessage))
             return false;
         DatagramMessage msg = (DatagramMessage) o;
-        if (this.getData().length != msg.getData().length)
+        if (!getPayload().equals(msg.getPayload()))
             return false;
-        int n = this.getData().length;
-        int[] d1 = this.getData();
-        int[] d2 = msg.getData();
-        for (int i = 0; i<n; i++) {
-            if (d1[i]!= d2[i]) return false;
-        }
         return super.equals(o);
      }
      
@@ -77,8 +82,25 @@ public class DatagramMessage extends AddressedMessage {
         decoder.handleDatagram(this, sender);
     }
 
+    /// @return the payload, one unsigned byte per entry. Do not modify.
     public int[] getData() {
-        return data;
+        int[] d = data;
+        if (d == null) {
+            // Benign race: every thread computes the same contents.
+            d = payload.toIntArray();
+            data = d;
+        }
+        return d;
+    }
+
+    /// @return the payload, without copying.
+    public ByteSlice getPayload() {
+        ByteSlice p = payload;
+        if (p == null) {
+            p = ByteSlice.fromInts(data);
+            payload = p;
+        }
+        return p;
     }
     
     @Override
@@ -88,13 +110,11 @@ public class DatagramMessage extends AddressedMessage {
     public String toString() {
         StringBuilder value = new StringBuilder(super.toString());
         value.append(" Datagram: ");
-        int n = getData().length;
-        value.append("("+n+") ");
-        boolean first = true;
-        for (int i = 0; i<n; i++) {
-            if (!first) value.append(".");
-            value.append(Integer.toHexString((int)(data[i]&0xFF)).toUpperCase());
-            first = false;
+        ByteSlice p = getPayload();
+        value.append("("+p.length()+") ");
+        for (int i = 0; i<p.length(); i++) {
+            if (i > 0) value.append(".");
+            value.append(Integer.toHexString(p.get(i)).toUpperCase());
         }
         return new String(value);   
     }
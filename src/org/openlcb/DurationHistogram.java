@@ -0,0 +1,78 @@
+package org.openlcb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects durations, such as round trips or the lateness of timer tasks, into a histogram
+ * with power-of-two microsecond buckets, with the count, sum and maximum. Recording is
+ * lock-free and allocates nothing, so it can be called on the hot paths of the stack.
+ */
+public class DurationHistogram {
+    // Bucket i counts durations below 2^i microseconds.
+    private static final int BUCKETS = 32;
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    /// @param nanos the duration to add.
+    public void record(long nanos) {
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+        long usec = nanos / 1000;
+        int b = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(usec));
+        buckets.incrementAndGet(b);
+    }
+
+    /// @return the number of durations recorded.
+    public long getCount() {
+        return count.get();
+    }
+
+    /// @return the mean of the durations in nanoseconds, or 0 if none were recorded.
+    public double getMeanNanos() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) totalNanos.get() / n;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * @param percent which percentile, 1..100
+     * @return the duration that the given percent of the recorded ones stayed under, rounded up
+     * to a power of two microseconds but not above the maximum; 0 if none were recorded.
+     */
+    public long getPercentileMicros(int percent) {
+        // Counted from the buckets, so that a concurrent record() cannot make the scan miss.
+        long[] c = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            c[i] = buckets.get(i);
+            n += c[i];
+        }
+        if (n == 0) return 0;
+        long limit = (n * percent + 99) / 100;
+        long seen = 0;
+        int b = 0;
+        for (; b < BUCKETS - 1; ++b) {
+            seen += c[b];
+            if (seen >= limit) break;
+        }
+        return Math.min(1L << b, maxNanos.get() / 1000);
+    }
+
+    /// Clears the recorded durations.
+    public void reset() {
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+        for (int i = 0; i < BUCKETS; ++i) {
+            buckets.set(i, 0);
+        }
+    }
+}
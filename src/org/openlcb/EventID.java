@@ -48,6 +48,19 @@ public class EventID {
         System.arraycopy(data, 0, this.contents, 0, BYTECOUNT);
     }
     
+    /**
+     * Creates an EventID from its 64-bit numeric representation.
+     * @param value event ID as a number, most significant byte first (see {@link #toLong()}).
+     */
+    @CheckReturnValue
+    public EventID(long value) {
+        this.contents = new byte[BYTECOUNT];
+        for (int i = BYTECOUNT - 1; i >= 0; --i) {
+            this.contents[i] = (byte) (value & 0xff);
+            value >>>= 8;
+        }
+    }
+
     byte[] contents;
     
     @CheckReturnValue
@@ -0,0 +1,430 @@
+package org.openlcb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads the same firmware image into many nodes, several at a time.
+ * <p>
+ * Every target gets its own {@link LoaderClient} on the given interface; at most
+ * {@link #setMaxConcurrent} of them run at the same time, the other targets wait in line. All
+ * loads read the image from one shared array, which is copied once when the orchestrator is
+ * created. The image data of all running loads together can be limited to a number of bytes
+ * per second with {@link #setMaxBytesPerSecond}, so that a large update leaves room for the
+ * normal traffic on the bus.
+ * <p>
+ * A load that fails goes to the end of the line and is tried again, up to
+ * {@link #setMaxAttempts} times in total. Progress of each node and the end result are reported
+ * to the {@link Listener}; {@link #getReport} gives the totals and the throughput.
+ * <p>
+ * The loads share the memory configuration service of the interface, so nodes that only take
+ * the image in datagrams get their write requests one after the other; nodes with stream
+ * support transfer in parallel.
+ */
+public class FirmwareUpdateOrchestrator {
+    private final static Logger logger = Logger.getLogger(FirmwareUpdateOrchestrator.class
+            .getName());
+
+    /// What happens with one target.
+    public enum State { QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED }
+
+    /// Receives the progress of the update. Called on the threads of the interface.
+    public interface Listener {
+        /**
+         * @param node    target node
+         * @param percent how much of the image the current attempt has sent
+         */
+        default void onProgress(NodeID node, float percent) {}
+
+        /// Called when a target succeeded, or failed for the last time.
+        default void onNodeDone(NodeStatus status) {}
+
+        /// Called once, when all targets are done.
+        default void onAllDone(Report report) {}
+    }
+
+    /// Snapshot of the state of one target.
+    public static class NodeStatus {
+        private final NodeID node;
+        private final State state;
+        private final int attempts;
+        private final float percent;
+        private final int errorCode;
+        private final String errorString;
+        private final long elapsedMsec;
+
+        NodeStatus(Session s, long now) {
+            node = s.node;
+            state = s.state;
+            attempts = s.attempts;
+            percent = s.percent;
+            errorCode = s.errorCode;
+            errorString = s.errorString;
+            long end = s.endMsec != 0 ? s.endMsec : now;
+            elapsedMsec = s.startMsec != 0 ? end - s.startMsec : 0;
+        }
+
+        public NodeID getNodeID() { return node; }
+        public State getState() { return state; }
+        /// @return number of loads started for this node so far.
+        public int getAttempts() { return attempts; }
+        /// @return progress of the current or last attempt, 0..100.
+        public float getPercent() { return percent; }
+        /// @return the error code of the last failed attempt, 0 if none failed.
+        public int getErrorCode() { return errorCode; }
+        public String getErrorString() { return errorString; }
+        /// @return time from the start of the first attempt to the end of the last one.
+        public long getElapsedMsec() { return elapsedMsec; }
+
+        @Override
+        public String toString() {
+            String s = node + " " + state + " " + String.format("%.0f%%", percent) + " attempts " +
+                    attempts;
+            if (errorCode != 0) s += " error 0x" + Integer.toHexString(errorCode) + " " +
+                    errorString;
+            return s;
+        }
+    }
+
+    /// Totals of an update.
+    public static class Report {
+        private final int targets;
+        private final int succeeded;
+        private final int failed;
+        private final int retries;
+        private final long bytesSent;
+        private final long elapsedMsec;
+        private final List<NodeStatus> nodes;
+
+        Report(int targets, int succeeded, int failed, int retries, long bytesSent, long
+                elapsedMsec, List<NodeStatus> nodes) {
+            this.targets = targets;
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.retries = retries;
+            this.bytesSent = bytesSent;
+            this.elapsedMsec = elapsedMsec;
+            this.nodes = nodes;
+        }
+
+        public int getTargetCount() { return targets; }
+        public int getSucceededCount() { return succeeded; }
+        public int getFailedCount() { return failed; }
+        /// @return number of loads that were started again after a failure.
+        public int getRetryCount() { return retries; }
+        /// @return image bytes sent, including those of failed attempts.
+        public long getBytesSent() { return bytesSent; }
+        public long getElapsedMsec() { return elapsedMsec; }
+        /// @return image bytes sent per second over the whole update.
+        public double getBytesPerSecond() {
+            return elapsedMsec > 0 ? bytesSent * 1000.0 / elapsedMsec : 0;
+        }
+        /// @return the state of each target, in the order they were given.
+        public List<NodeStatus> getNodes() { return nodes; }
+
+        @Override
+        public String toString() {
+            return String.format("%d/%d nodes updated, %d failed, %d retries, %d bytes in %.1f " +
+                    "sec, %.0f bytes/sec", succeeded, targets, failed, retries, bytesSent,
+                    elapsedMsec / 1000.0, getBytesPerSecond());
+        }
+    }
+
+    private final OlcbInterface iface;
+    private final int space;
+    private final long address;
+    private final byte[] image;
+    private int maxConcurrent = 8;
+    private int maxAttempts = 3;
+    private long maxBytesPerSecond = 0;
+    private Listener listener = new Listener() {};
+
+    // The following are guarded by this.
+    private final Map<NodeID, Session> sessions = new LinkedHashMap<>();
+    private final ArrayDeque<Session> waiting = new ArrayDeque<>();
+    private int running = 0;
+    private int retries = 0;
+    private long bytesSent = 0;
+    private long startMsec = 0;
+    private long endMsec = 0;
+    private boolean started = false;
+    private boolean finished = false;
+    private boolean reported = false;
+    private LoaderClient.Pacer pacer = null;
+
+    /**
+     * @param iface   interface to the bus of the targets
+     * @param space   memory space of the firmware, usually 0xEF
+     * @param address where the image goes in the space
+     * @param image   the firmware; copied.
+     */
+    public FirmwareUpdateOrchestrator(OlcbInterface iface, int space, long address, byte[] image) {
+        this.iface = iface;
+        this.space = space;
+        this.address = address;
+        this.image = image.clone();
+    }
+
+    /// @param n how many targets are loaded at the same time. Default is 8.
+    public synchronized void setMaxConcurrent(int n) {
+        maxConcurrent = Math.max(1, n);
+    }
+
+    /// @param n how many times a target is tried before giving up. Default is 3.
+    public synchronized void setMaxAttempts(int n) {
+        maxAttempts = Math.max(1, n);
+    }
+
+    /// @param rate limit of the image data of all loads together; 0 (default) for no limit.
+    public synchronized void setMaxBytesPerSecond(long rate) {
+        maxBytesPerSecond = Math.max(0, rate);
+    }
+
+    public synchronized void setListener(Listener l) {
+        listener = l != null ? l : new Listener() {};
+    }
+
+    /// One target.
+    private class Session extends LoaderClient.LoaderStatusReporter {
+        final NodeID node;
+        State state = State.QUEUED;
+        int attempts = 0;
+        float percent = 0;
+        int errorCode = 0;
+        String errorString = "";
+        long startMsec = 0;
+        long endMsec = 0;
+        LoaderClient client = null;
+
+        Session(NodeID node) {
+            this.node = node;
+        }
+
+        @Override
+        public void onProgress(float p) {
+            Listener l;
+            synchronized (FirmwareUpdateOrchestrator.this) {
+                if (state != State.RUNNING || client == null) return;
+                if (p > percent) {
+                    bytesSent += Math.round((p - percent) * image.length / 100.0);
+                }
+                percent = p;
+                l = listener;
+            }
+            l.onProgress(node, p);
+        }
+
+        @Override
+        public void onDone(int code, String message) {
+            loadDone(this, code, message);
+        }
+    }
+
+    /**
+     * Starts loading the image into the given nodes. May be called once.
+     * @param targets nodes to update; duplicates are loaded once.
+     */
+    public void start(Collection<NodeID> targets) {
+        synchronized (this) {
+            if (started) throw new IllegalStateException("Firmware update already started");
+            started = true;
+            startMsec = System.currentTimeMillis();
+            for (NodeID n : targets) {
+                if (sessions.containsKey(n)) continue;
+                Session s = new Session(n);
+                sessions.put(n, s);
+                waiting.add(s);
+            }
+            if (maxBytesPerSecond > 0) {
+                pacer = new RatePacer(maxBytesPerSecond);
+            }
+        }
+        startWaiting();
+        checkFinished();
+    }
+
+    /// Starts loads until the limit of concurrent loads is reached.
+    private void startWaiting() {
+        while (true) {
+            Session s;
+            LoaderClient client;
+            synchronized (this) {
+                if (finished || running >= maxConcurrent || waiting.isEmpty()) return;
+                s = waiting.poll();
+                ++running;
+                ++s.attempts;
+                if (s.attempts > 1) ++retries;
+                s.state = State.RUNNING;
+                s.percent = 0;
+                if (s.startMsec == 0) s.startMsec = System.currentTimeMillis();
+                client = new LoaderClient(iface.getOutputConnection(), iface
+                        .getMemoryConfigurationService(), iface.getDatagramService(), iface
+                        .getWheelTimer());
+                client.setPacer(pacer);
+                s.client = client;
+            }
+            iface.registerMessageListener(client);
+            client.doLoad(iface.getNodeId(), s.node, space, address, image, s);
+        }
+    }
+
+    private void loadDone(Session s, int code, String message) {
+        LoaderClient client;
+        Listener l;
+        NodeStatus status = null;
+        synchronized (this) {
+            client = s.client;
+            // The loader may report more than once, e.g. when the unfreeze fails as well.
+            if (s.state != State.RUNNING || client == null) return;
+            s.client = null;
+            --running;
+            if (code == 0) {
+                s.state = State.SUCCEEDED;
+                s.percent = 100;
+            } else {
+                s.errorCode = code;
+                s.errorString = message;
+                if (s.attempts < maxAttempts && !finished) {
+                    logger.log(Level.INFO, "Firmware update of {0} failed, will try again: {1}",
+                            new Object[]{s.node, message});
+                    s.state = State.QUEUED;
+                    waiting.add(s);
+                } else {
+                    s.state = State.FAILED;
+                }
+            }
+            if (s.state != State.QUEUED) {
+                s.endMsec = System.currentTimeMillis();
+                status = new NodeStatus(s, s.endMsec);
+            }
+            l = listener;
+        }
+        iface.unRegisterMessageListener(client);
+        client.dispose();
+        if (status != null) l.onNodeDone(status);
+        startWaiting();
+        checkFinished();
+    }
+
+    private void checkFinished() {
+        Listener l;
+        Report r;
+        synchronized (this) {
+            if (finished || running > 0 || !waiting.isEmpty()) return;
+            finished = true;
+            endMsec = System.currentTimeMillis();
+            l = listener;
+            r = getReport();
+        }
+        logger.log(Level.INFO, "Firmware update done: {0}", r);
+        try {
+            l.onAllDone(r);
+        } finally {
+            synchronized (this) {
+                reported = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Stops the update. Loads that are running are finished, the waiting ones are not started.
+     */
+    public void cancel() {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (Session s : waiting) {
+                s.state = State.CANCELLED;
+                s.endMsec = now;
+            }
+            waiting.clear();
+        }
+        checkFinished();
+    }
+
+    /**
+     * Waits for the update to finish and the listener to be told.
+     * @param timeout how long to wait
+     * @param unit    unit of timeout
+     * @return true if finished, false if timed out.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean awaitCompletion(long timeout, TimeUnit unit) throws
+            InterruptedException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (!reported) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) return false;
+            wait(left);
+        }
+        return true;
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /// @return the state of each target, in the order they were given.
+    public synchronized List<NodeStatus> getStatus() {
+        long now = System.currentTimeMillis();
+        List<NodeStatus> l = new ArrayList<>(sessions.size());
+        for (Session s : sessions.values()) {
+            l.add(new NodeStatus(s, now));
+        }
+        return Collections.unmodifiableList(l);
+    }
+
+    /// @return the totals so far, or of the whole update when it is finished.
+    public synchronized Report getReport() {
+        int succeeded = 0;
+        int failed = 0;
+        for (Session s : sessions.values()) {
+            if (s.state == State.SUCCEEDED) ++succeeded;
+            if (s.state == State.FAILED) ++failed;
+        }
+        long end = finished ? endMsec : System.currentTimeMillis();
+        return new Report(sessions.size(), succeeded, failed, retries, bytesSent, startMsec != 0
+                ? end - startMsec : 0, getStatus());
+    }
+
+    /**
+     * Token bucket shared by all loads. Lets bursts of up to a quarter second of data through,
+     * and delays the chunks beyond that on the timer of the interface.
+     */
+    private class RatePacer implements LoaderClient.Pacer {
+        private final long rate;
+        private final long burst;
+        private double available;
+        private long lastMsec = System.currentTimeMillis();
+
+        RatePacer(long rate) {
+            this.rate = rate;
+            this.burst = Math.max(1, rate / 4);
+            available = burst;
+        }
+
+        @Override
+        public void acquire(int bytes, Runnable proceed) {
+            long delay;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                available = Math.min(burst, available + (now - lastMsec) * rate / 1000.0);
+                lastMsec = now;
+                // Goes into debt; the following chunks wait until it is paid back.
+                available -= bytes;
+                delay = available >= 0 ? 0 : (long) Math.ceil(-available * 1000.0 / rate);
+            }
+            if (delay == 0 || iface.getWheelTimer().schedule(proceed, delay) == null) {
+                proceed.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package org.openlcb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Timer service for the protocol timeouts and retries of the stack.
+ * <p>
+ * Timeouts are kept in a hashed wheel: a ring of buckets, each holding a doubly linked list of
+ * the timeouts that expire at a given tick modulo the ring size. Scheduling and cancelling are
+ * O(1) regardless of how many timeouts are pending, and a cancelled timeout is unlinked right
+ * away, so it does not stay on the heap until its deadline like a cancelled
+ * {@link java.util.TimerTask} does. The price is resolution: a timeout fires at the first tick
+ * boundary after its deadline, never earlier.
+ * <p>
+ * One instance is owned by each {@link OlcbInterface} (see {@link OlcbInterface#getWheelTimer})
+ * and shared by all its components, so the whole interface runs on a single timer thread.
+ * Components created without an interface use {@link #getDefault}. Like with any shared timer,
+ * the tasks must not block.
+ */
+public class HashedWheelTimer extends TimerWorker {
+    /// Default resolution of the timer.
+    public final static long DEFAULT_TICK_MSEC = 10;
+    /// Default number of buckets; one turn of the wheel is about 5 seconds.
+    public final static int DEFAULT_WHEEL_SIZE = 512;
+
+    private static HashedWheelTimer defaultTimer = null;
+
+    /**
+     * Receives statistics from the timer thread after every tick. Must not block.
+     */
+    public interface Metrics {
+        /**
+         * @param lagMicros how late the tick was processed compared to its nominal time.
+         * @param expired   number of timeouts that fired in this tick.
+         * @param pending   number of timeouts still waiting.
+         */
+        void tickCompleted(long lagMicros, int expired, int pending);
+    }
+
+    /**
+     * Handle of a scheduled task.
+     */
+    public final class Timeout {
+        private final Runnable task;
+        // The following are guarded by the timer's lock.
+        private Timeout prev;
+        private Timeout next;
+        private int bucket = -1;
+        private long remainingRounds;
+        private boolean cancelled = false;
+        private boolean expired = false;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Cancels the timeout.
+         * @return true if the task will not run due to this call; false if it has already run
+         * (or started running) or was cancelled before.
+         */
+        public boolean cancel() {
+            lock.lock();
+            try {
+                if (cancelled || expired) return false;
+                cancelled = true;
+                unlink(this);
+                ++cancelledCount;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public boolean isCancelled() {
+            lock.lock();
+            try {
+                return cancelled;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /// @return true if the task has run or is running.
+        public boolean isExpired() {
+            lock.lock();
+            try {
+                return expired;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    // All following fields are guarded by lock.
+    /// Head of the list of each bucket.
+    private final Timeout[] heads;
+    private final long startNanos;
+    /// Number of ticks processed so far.
+    private long currentTick = 0;
+    private int pending = 0;
+    private long scheduledCount = 0;
+    private long expiredCount = 0;
+    private long cancelledCount = 0;
+    private volatile Metrics metrics = null;
+
+    /**
+     * Creates a timer with the default resolution.
+     * @param name name of the timer thread.
+     */
+    public HashedWheelTimer(String name) {
+        this(name, DEFAULT_TICK_MSEC, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param name      name of the timer thread.
+     * @param tickMsec  resolution of the timer.
+     * @param wheelSize number of buckets; rounded up to a power of two.
+     */
+    public HashedWheelTimer(String name, long tickMsec, int wheelSize) {
+        super(name);
+        if (tickMsec <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("Invalid timer parameters: " + tickMsec + " " +
+                    wheelSize);
+        }
+        tickNanos = tickMsec * 1000000;
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) size <<= 1;
+        mask = size - 1;
+        heads = new Timeout[size];
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * @return a process-wide timer used by components that were not given one. It is never
+     * stopped.
+     */
+    public static synchronized HashedWheelTimer getDefault() {
+        if (defaultTimer == null) {
+            defaultTimer = new HashedWheelTimer("OpenLCB Default Timer");
+        }
+        return defaultTimer;
+    }
+
+    /**
+     * Schedules a task to run once.
+     * @param task      what to run on the timer thread.
+     * @param delayMsec minimum delay before running.
+     * @return handle to cancel the task, or null if the timer is stopped.
+     */
+    public Timeout schedule(Runnable task, long delayMsec) {
+        Timeout t = new Timeout(task);
+        lock.lock();
+        try {
+            if (stopped) return null;
+            long now = System.nanoTime() - startNanos;
+            if (pending == 0) {
+                // The wheel does not turn while idle; skips the ticks that passed meanwhile.
+                currentTick = Math.max(currentTick, now / tickNanos);
+                wakeup.signalAll();
+            }
+            long deadline = now + Math.max(0, delayMsec) * 1000000;
+            long tick = Math.max((deadline + tickNanos - 1) / tickNanos, currentTick + 1);
+            t.remainingRounds = (tick - currentTick - 1) / heads.length;
+            t.bucket = (int) (tick & mask);
+            t.next = heads[t.bucket];
+            if (t.next != null) t.next.prev = t;
+            heads[t.bucket] = t;
+            ++pending;
+            ++scheduledCount;
+            startWorkerLocked();
+        } finally {
+            lock.unlock();
+        }
+        return t;
+    }
+
+    /// Removes a timeout from its bucket. Lock held.
+    private void unlink(Timeout t) {
+        if (t.bucket < 0) return;
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        } else {
+            heads[t.bucket] = t.next;
+        }
+        if (t.next != null) t.next.prev = t.prev;
+        t.prev = t.next = null;
+        t.bucket = -1;
+        --pending;
+    }
+
+    @Override
+    void runWorker() {
+        List<Timeout> due = new ArrayList<>();
+        while (true) {
+            long lag;
+            lock.lock();
+            try {
+                long tickTime;
+                while (true) {
+                    if (stopped) return;
+                    tickTime = (currentTick + 1) * tickNanos;
+                    long waitNanos = tickTime - (System.nanoTime() - startNanos);
+                    if (pending > 0 && waitNanos <= 0) break;
+                    // When idle, schedule() wakes us up.
+                    awaitWakeup(pending == 0 ? NO_DEADLINE : waitNanos);
+                }
+                lag = System.nanoTime() - startNanos - tickTime;
+                ++currentTick;
+                int b = (int) (currentTick & mask);
+                Timeout t = heads[b];
+                while (t != null) {
+                    Timeout n = t.next;
+                    if (t.remainingRounds > 0) {
+                        --t.remainingRounds;
+                    } else {
+                        unlink(t);
+                        t.expired = true;
+                        due.add(t);
+                    }
+                    t = n;
+                }
+                // Runs the earliest scheduled first.
+                Collections.reverse(due);
+                expiredCount += due.size();
+            } finally {
+                lock.unlock();
+            }
+            for (Timeout t : due) {
+                runTask(t.task);
+            }
+            Metrics m = metrics;
+            if (m != null) {
+                m.tickCompleted(lag / 1000, due.size(), getPendingCount());
+            }
+            due.clear();
+        }
+    }
+
+    /**
+     * Stops the timer thread. Pending timeouts are discarded and later schedule calls are
+     * ignored. The default timer is never stopped.
+     */
+    @Override
+    public void stop() {
+        synchronized (HashedWheelTimer.class) {
+            if (this == defaultTimer) return;
+        }
+        super.stop();
+    }
+
+    @Override
+    void clearLocked() {
+        for (int i = 0; i < heads.length; ++i) {
+            heads[i] = null;
+        }
+        pending = 0;
+    }
+
+    @Override
+    int pendingLocked() {
+        return pending;
+    }
+
+    /// @param m receives statistics after every tick; null to disable.
+    public void setMetrics(Metrics m) {
+        metrics = m;
+    }
+
+    /// @return the number of timeouts scheduled since creation.
+    public long getScheduledCount() {
+        lock.lock();
+        try {
+            return scheduledCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /// @return the number of timeouts that fired since creation.
+    public long getExpiredCount() {
+        lock.lock();
+        try {
+            return expiredCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /// @return the number of timeouts cancelled since creation.
+    public long getCancelledCount() {
+        lock.lock();
+        try {
+            return cancelledCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /// @return the resolution of the timer in msec.
+    public long getTickMsec() {
+        return tickNanos / 1000000;
+    }
+}
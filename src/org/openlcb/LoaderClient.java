@@ -1,12 +1,15 @@
 package org.openlcb;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.logging.Logger;
 import org.openlcb.implementations.DatagramService;
 import org.openlcb.implementations.MemoryConfigurationService;
 import org.openlcb.implementations.MemoryConfigurationService.McsWriteHandler;
 import org.openlcb.implementations.MemoryConfigurationService.McsWriteStreamMemo;
+import org.openlcb.implementations.StreamSender;
 
 import static org.openlcb.ProtocolIdentification.Protocol;
 
@@ -25,6 +28,12 @@ public class LoaderClient extends MessageDecoder {
     private static final int FREEZE_REBOOT_TIMEOUT_MSEC = 60000;
     private static final int STREAM_INIT_TIMEOUT_MSEC = 10000;
     private static final int STREAM_DATA_PROCEED_TIMEOUT_MSEC = 120000;
+    /// Largest write that fits in a datagram with a separate space byte.
+    private static final int DG_MAX_WRITE = 64;
+    /// Datagram writes handed to the memory config service before the first one completed.
+    private static final int DG_WINDOW = 8;
+    /// Times a chunk is sent again after a failure.
+    private static final int DG_MAX_TRIES = 3;
 
     enum State { IDLE, ABORT, FREEZE, INITCOMPL, PIP, PIPREPLY, SETUPSTREAM, STREAM, STREAMDATA, DG, UNFREEEZE, SUCCESS, FAIL };
 
@@ -50,13 +59,53 @@ public class LoaderClient extends MessageDecoder {
         public abstract void onDone(int errorCode, String errorString);
     }
 
+    /**
+     * Limits how fast the image goes out, for example when many loads share one bus. Asked
+     * before each chunk of the image is sent.
+     */
+    public interface Pacer {
+        /**
+         * @param bytes   size of the next chunk
+         * @param proceed sends the chunk; to be run when the chunk may go out, possibly right
+         *                away on the calling thread.
+         */
+        void acquire(int bytes, Runnable proceed);
+    }
+
+    private volatile Pacer pacer = null;
+
+    /**
+     * @param p paces the image data of the following loads; null to send as fast as the target
+     *          accepts it.
+     */
+    public void setPacer(Pacer p) {
+        pacer = p;
+    }
+
+    private void paced(int bytes, Runnable r) {
+        Pacer p = pacer;
+        if (p == null) {
+            r.run();
+        } else {
+            p.acquire(bytes, r);
+        }
+    }
+
     public LoaderClient( Connection _connection, MemoryConfigurationService _mcs, DatagramService _dcs ) {
+        this(_connection, _mcs, _dcs, HashedWheelTimer.getDefault());
+    }
+
+    /**
+     * @param _connection where to send messages
+     * @param _mcs        memory configuration service of the interface
+     * @param _dcs        datagram service of the interface
+     * @param _timer      timer for the protocol timeouts, usually {@link OlcbInterface#getWheelTimer}
+     */
+    public LoaderClient( Connection _connection, MemoryConfigurationService _mcs, DatagramService _dcs, HashedWheelTimer _timer ) {
         connection = _connection;
         dcs = _dcs;
         mcs = _mcs;
-        if(timer == null) {
-           timer = new Timer("OpenLCB LoaderClient Timeout Timer");
-        }
+        timer = _timer;
     }
 
     /* Protocol:
@@ -100,7 +149,9 @@ public class LoaderClient extends MessageDecoder {
     }
 
     private void sendFreeze() {
-        state = State.FREEZE;
+        // The target may answer before sendData returns.
+        state = State.INITCOMPL;
+        startTimeout(FREEZE_REBOOT_TIMEOUT_MSEC);
         dcs.sendData(
             new DatagramService.DatagramServiceTransmitMemo(dest, new int[]{0x20, 0xA1, space}) {
                 // Ignores both success and failure callback, because the state machine will
@@ -113,19 +164,17 @@ public class LoaderClient extends MessageDecoder {
                 public void handleFailure(int errorCode) {
                 }
             });
-        state = State.INITCOMPL;
-        startTimeout(FREEZE_REBOOT_TIMEOUT_MSEC);
     }
 
-    private static Timer timer;
-    private TimerTask task = null;
+    private HashedWheelTimer timer;
+    private HashedWheelTimer.Timeout task = null;
     private void startTimeout(int period_msec) {
-        task = new TimerTask(){
+        if (timer == null) return; // disposed
+        task = timer.schedule(new Runnable(){
             public void run(){
                 timerExpired();
             }
-        };
-        timer.schedule(task, period_msec);
+        }, period_msec);
     }
     private void endTimeout() {
         if (task != null) task.cancel();
@@ -171,8 +220,8 @@ public class LoaderClient extends MessageDecoder {
     private void sendPipRequest() {
         state = State.PIPREPLY;
         Message msg = new ProtocolIdentificationRequestMessage(src, dest);
-        connection.put(msg, this);
         startTimeout(PIP_TIMEOUT_MSEC);
+        connection.put(msg, this);
     }
     @Override
     public void handleProtocolIdentificationReply(ProtocolIdentificationReplyMessage msg, Connection sender){
@@ -195,8 +244,18 @@ public class LoaderClient extends MessageDecoder {
 
     private int bufferSize;      // chunk size
     private int nextIndex;
-    private int errorCounter;
+    // Datagram writes; guarded by this.
+    private int dgInFlight;
+    private int dgConfirmed;
+    private boolean dgIssuing;
+    /// Offset and size of the confirmed chunks.
+    private final TreeMap<Integer, Integer> dgDone = new TreeMap<>();
+    /// Offset of the failed chunk that is written again before any later one, or -1.
+    private int dgRetry;
+    private boolean dgRetrySent;
+    private final Map<Integer, Integer> dgErrors = new HashMap<>();
     private byte destStreamID;
+    private StreamSender streamSender;
 
     // ============================= STREAMS ==============================================
     private void setupStream() {
@@ -223,8 +282,8 @@ public class LoaderClient extends MessageDecoder {
                                       // System.out.println("lSend Stream ");
         // @todo the destStreamID is probably bogus at this point. Check why it is needed here.
         StreamInitiateRequestMessage m = new StreamInitiateRequestMessage(src, dest, bufferSize, SRC_STREAM_ID, destStreamID);
-        connection.put(m, this);
         startTimeout(STREAM_INIT_TIMEOUT_MSEC);
+        connection.put(m, this);
     }
 
     @Override
@@ -235,33 +294,35 @@ public class LoaderClient extends MessageDecoder {
             endTimeout();
             this.bufferSize = msg.getBufferSize();
             this.destStreamID = msg.getDestinationStreamID();
-            // init transfer
-            nextIndex = 0;
-            // send data
+            // send data; the sender goes on without waiting as long as buffers are granted
             state=State.STREAMDATA;
-            sendStreamNext();
-        }
-    }
-    private void sendStreamNext() {
-        int size = Math.min(bufferSize, content.length-nextIndex);
-        int[] data = new int[size];
-        // copy the needed data
-        for (int i=0; i<size; i++) data[i] = content[nextIndex+i];
-                                         // System.out.println("\nsendStreamNext: "+data);
-        Message m = new StreamDataSendMessage(src, dest, destStreamID, data);
-        connection.put(m, this);
-        // are we done?
-        nextIndex = nextIndex+size;
-        feedback.onProgress(100.0F * (float)nextIndex / (float)content.length);
-        if (nextIndex < content.length) {
+            streamSender = new StreamSender(src, dest, SRC_STREAM_ID, ByteSlice.wrap(content),
+                    connection, this) {
+                @Override
+                protected void beforeChunk(int size, final Runnable send) {
+                    paced(size, new Runnable() {
+                        @Override
+                        public void run() {
+                            if (state == State.STREAMDATA) send.run();
+                        }
+                    });
+                }
+
+                @Override
+                protected void onProgress(int sentCount) {
+                    feedback.onProgress(100.0F * (float)sentCount / (float)content.length);
+                }
+
+                @Override
+                protected void onComplete() {
+                    endTimeout();
+                    state = State.SUCCESS;
+                    sendUnfreeze();
+                }
+            };
             startTimeout(STREAM_DATA_PROCEED_TIMEOUT_MSEC);
-            return; // wait for Data Proceed message
+            streamSender.start(bufferSize, destStreamID);
         }
-        // yes, say we're done
-        m = new StreamDataCompleteMessage(src, dest, SRC_STREAM_ID, destStreamID);
-        connection.put(m, this);
-        sendUnfreeze();
-        state = State.SUCCESS;
     }
 
     @Override
@@ -269,35 +330,101 @@ public class LoaderClient extends MessageDecoder {
                                       // System.out.println("handleStreamDataProceed");
         if (state == State.STREAMDATA && isReply(msg)) {
             endTimeout();
-            sendStreamNext();
+            startTimeout(STREAM_DATA_PROCEED_TIMEOUT_MSEC);
+            streamSender.proceed();
         }
     }
 
 
     // ============================= DATAGRAMS ==============================================
+    // Up to DG_WINDOW writes are handed to the memory configuration service at a time. It sends
+    // them in order, each one as soon as the target accepted the previous datagram; a target
+    // that announces a write reply does not hold up the next write while it programs its flash.
+    // When a chunk fails, the service does not send the writes queued behind it, and the
+    // loader goes back to that chunk: it waits until the writes already sent are answered,
+    // sends the failed chunk alone, and pipelines again from there once it is confirmed. The
+    // target thus sees the writes in address order, and the chunks after the failed one are
+    // written again.
     private void sendDGs() {
                                        //System.out.println("\nlsendDGs: ");
-        nextIndex = 0;
-        bufferSize = 64;
-        errorCounter = 0;
+        synchronized (this) {
+            nextIndex = 0;
+            bufferSize = DG_MAX_WRITE;
+            dgInFlight = 0;
+            dgConfirmed = 0;
+            dgIssuing = false;
+            dgDone.clear();
+            dgRetry = -1;
+            dgRetrySent = false;
+            dgErrors.clear();
+        }
+        if (content.length == 0) {
+            state = State.SUCCESS;
+            sendUnfreeze();
+            return;
+        }
         sendDGNext();
     }
 
+    private int dgChunkSize(int offset) {
+        return Math.min(bufferSize, content.length - offset);
+    }
+
     private void sendDGNext() {
-        final int size = Math.min(bufferSize, content.length-nextIndex);
+        final int offset;
+        synchronized (this) {
+            if (state != State.DG || dgIssuing || dgInFlight >= DG_WINDOW) return;
+            if (dgRetry >= 0) {
+                // The failed chunk goes alone, after everything sent before it is answered.
+                if (dgRetrySent || dgInFlight > 0) return;
+                offset = dgRetry;
+                dgRetrySent = true;
+            } else if (nextIndex < content.length) {
+                offset = nextIndex;
+                nextIndex += dgChunkSize(offset);
+            } else {
+                return;
+            }
+            dgIssuing = true;
+            ++dgInFlight;
+        }
+        final int size = dgChunkSize(offset);
+        paced(size, new Runnable() {
+            @Override
+            public void run() {
+                sendDGChunk(offset, size);
+            }
+        });
+    }
+
+    private void sendDGChunk(final int offset, final int size) {
                                     //System.out.println("lsendDGNext Enter: "+state);
-                                    //System.out.println("content.length: "+content.length);
-                                    //System.out.println("nextIndex: "+nextIndex);
-                                    //System.out.println("lbufferSize: "+bufferSize);
-                                    //System.out.println("lsize: "+size);
+        synchronized (this) {
+            dgIssuing = false;
+            if (state != State.DG) return;
+        }
         byte[] data = new byte[size];
         // copy the needed data
-        System.arraycopy(content, nextIndex, data, 0, size);
+        System.arraycopy(content, offset, data, 0, size);
 
-        mcs.requestWrite(dest, space, nextIndex, data, new McsWriteHandler() {
+        mcs.requestPipelinedWrite(dest, space, address + offset, data, new McsWriteHandler() {
             @Override
             public void handleFailure(int errorCode) {
-                if (++errorCounter > 3) {
+                boolean giveUp = false;
+                synchronized (LoaderClient.this) {
+                    --dgInFlight;
+                    if (state != State.DG) return;
+                    // A chunk after the one being retried, including the ones the service
+                    // cancelled, is written again anyway.
+                    if (dgRetry < 0 || offset <= dgRetry) {
+                        Integer n = dgErrors.get(offset);
+                        n = n == null ? 1 : n + 1;
+                        dgErrors.put(offset, n);
+                        giveUp = n > DG_MAX_TRIES;
+                        rewindDG(offset);
+                    }
+                }
+                if (giveUp) {
                     failWith(errorCode, "Repeated errors writing to firmware space.");
                 } else {
                     sendDGNext();
@@ -306,17 +433,46 @@ public class LoaderClient extends MessageDecoder {
 
             @Override
             public void handleSuccess() {
-                nextIndex += size;
-                errorCounter = 0;
-                float p = 100.0F * nextIndex / content.length;
-                feedback.onProgress(p);
-                if(nextIndex<content.length) sendDGNext();
-                else {
-                    state = State.SUCCESS;
+                boolean done;
+                synchronized (LoaderClient.this) {
+                    --dgInFlight;
+                    if (state != State.DG) return;
+                    if (dgRetry >= 0 && offset > dgRetry) {
+                        // Sent before the failed chunk is written again, so it is stale.
+                        done = false;
+                    } else {
+                        if (offset == dgRetry) {
+                            dgRetry = -1;
+                            dgRetrySent = false;
+                        }
+                        dgErrors.remove(offset);
+                        if (dgDone.put(offset, size) == null) dgConfirmed += size;
+                        float p = 100.0F * dgConfirmed / content.length;
+                        feedback.onProgress(p);
+                        done = dgConfirmed >= content.length;
+                        if (done) state = State.SUCCESS;
+                    }
+                }
+                if (done) {
                     sendUnfreeze();
+                } else {
+                    sendDGNext();
                 }
             }
         });
+        sendDGNext();
+    }
+
+    /// Goes back to the chunk at offset: it and everything after it is written again. Lock held.
+    private void rewindDG(int offset) {
+        SortedMap<Integer, Integer> later = dgDone.tailMap(offset);
+        for (int size : later.values()) {
+            dgConfirmed -= size;
+        }
+        later.clear();
+        dgRetry = offset;
+        dgRetrySent = false;
+        nextIndex = offset + dgChunkSize(offset);
     }
 
     private void sendUnfreeze() {
@@ -365,9 +521,7 @@ public class LoaderClient extends MessageDecoder {
      * clean up local storage
      */
     public void dispose(){
-       if(timer!=null) {
-          timer.cancel();
-          timer = null;
-       }
+       if (task != null) task.cancel();
+       timer = null;
     }
 }
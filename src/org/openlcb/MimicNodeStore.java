@@ -1,12 +1,13 @@
 package org.openlcb;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Collection;
-
+import java.util.Collections;
+import java.util.List;
 import java.util.Queue;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,6 +17,10 @@ import javax.annotation.Nullable;
  * Store containing mimic proxies for nodes on external connections
  * <p>
  * Provides a Connection for incoming Messages.
+ * <p>
+ * The store is safe to use from multiple threads: lookups do not take any locks, and
+ * {@link #getNodeMemos} returns an immutable snapshot that the UI can iterate while messages
+ * keep arriving.
  *
  * @author  Bob Jacobsen   Copyright 2011
  * @version $Revision$
@@ -27,40 +32,110 @@ public class MimicNodeStore extends AbstractConnection {
     private final static Logger logger = Logger.getLogger(MimicNodeStore.class.getName());
 
     public MimicNodeStore(Connection connection, NodeID node) {
+        this(connection, node, HashedWheelTimer.getDefault());
+    }
+
+    /**
+     * @param connection where to send the requests to the nodes.
+     * @param node       our node ID.
+     * @param timer      timer for the timeouts and retries, usually the one of the interface.
+     */
+    public MimicNodeStore(Connection connection, NodeID node, HashedWheelTimer timer) {
         this.connection = connection;
         this.node = node;
-        if(timer == null) {
-           timer = new Timer("OpenLCB Mimic Node Store Timer");
-        }
+        this.timer = timer;
     }
 
     public void dispose(){
-       // cancel the timer.
-       if(timer != null ) {
-          timer.cancel();
-          timer=null;
-       }
+        // stops scheduling timeouts; the timer itself belongs to the interface.
+        disposed = true;
     }
 
-    void scheduleTask(TimerTask t,int delay){
-       if(timer == null) {
-          return; // attempt to schedule after dispose.
+    /**
+     * Runs a task on the timer thread.
+     * @param t     task
+     * @param delay msec to wait
+     * @return handle to cancel the task, or null if the store is disposed.
+     */
+    HashedWheelTimer.Timeout scheduleTask(Runnable t, int delay){
+       if(disposed) {
+          return null; // attempt to schedule after dispose.
        }
-       timer.schedule(t,delay);
+       return timer.schedule(t,delay);
     }
     
     Connection connection;
     NodeID node;
-    private static Timer timer;
+    private final HashedWheelTimer timer;
+    private volatile boolean disposed = false;
+    private volatile NodeDiscoveryScheduler discoveryScheduler = null;
+    private volatile NodeIdentityCache identityCache = null;
+
+    /**
+     * Attaches a persistent cache that pre-fills new node memos and records the data received
+     * from the nodes. Called by the cache's constructor.
+     * @param c cache, or null to detach.
+     */
+    void setIdentityCache(NodeIdentityCache c) {
+        identityCache = c;
+    }
+
+    /**
+     * Routes all future SNIP and PIP fetches via a scheduler. Called by the scheduler's
+     * constructor.
+     * @param s scheduler, or null to let every node fetch immediately.
+     */
+    void setDiscoveryScheduler(NodeDiscoveryScheduler s) {
+        discoveryScheduler = s;
+    }
+
+    /// @return the discovery scheduler attached to this store, or null if there is none.
+    public NodeDiscoveryScheduler getDiscoveryScheduler() {
+        return discoveryScheduler;
+    }
     
+    /**
+     * @return an immutable snapshot of all known nodes. The snapshot is shared between callers
+     * and only rebuilt after the set of nodes changed.
+     */
     public Collection<NodeMemo> getNodeMemos() {
-        return map.values();
-    } 
-    
+        Snapshot s = snapshot;
+        long v = version.get();
+        if (s != null && s.version == v) {
+            return s.memos;
+        }
+        s = new Snapshot(v, Collections.unmodifiableList(new ArrayList<>(map.values())));
+        snapshot = s;
+        return s.memos;
+    }
+
+    /// @return the number of known nodes.
+    public int size() {
+        return map.size();
+    }
+
     public void put(Message msg, Connection sender) {
-        NodeMemo memo = addNode(msg.getSourceNodeID());
+        NodeID src = msg.getSourceNodeID();
+        if (src == null) return;
+        NodeMemo memo = addNode(src);
         // check for necessary updates in specific node
-        memo.put(msg, sender);
+        if (isHandledByMemo(msg)) {
+            memo.put(msg, sender);
+        }
+    }
+
+    /**
+     * Fast path for the dispatch thread: the node memos only care about a few message types,
+     * everything else needs no decoding.
+     * @param msg incoming message
+     * @return true if the NodeMemo has a handler for this message.
+     */
+    static boolean isHandledByMemo(Message msg) {
+        return msg instanceof SimpleNodeIdentInfoReplyMessage
+                || msg instanceof ProtocolIdentificationReplyMessage
+                || msg instanceof InitializationCompleteMessage
+                || msg instanceof VerifiedNodeIDNumberMessage
+                || msg instanceof OptionalIntRejectedMessage;
     }
 
     /**
@@ -68,6 +143,7 @@ public class MimicNodeStore extends AbstractConnection {
      */
     public void refresh() {
         map.clear();
+        version.incrementAndGet();
         pcs.firePropertyChange(CLEAR_ALL_NODES, null, null);
         connection.put(new VerifyNodeIDNumberMessage(node), this);
     }
@@ -75,9 +151,17 @@ public class MimicNodeStore extends AbstractConnection {
     public NodeMemo addNode(NodeID id) {
         NodeMemo memo = map.get(id);
         if (memo == null) {
-            memo = new NodeMemo(id);
-            map.put(id, memo);
-            pcs.firePropertyChange(ADD_PROP_NODE, null, memo);
+            NodeMemo newMemo = new NodeMemo(id);
+            NodeIdentityCache cache = identityCache;
+            if (cache != null) {
+                cache.prefill(newMemo, node);
+            }
+            memo = map.putIfAbsent(id, newMemo);
+            if (memo == null) {
+                memo = newMemo;
+                version.incrementAndGet();
+                pcs.firePropertyChange(ADD_PROP_NODE, null, memo);
+            }
         }
         return memo;
     }
@@ -115,7 +199,21 @@ public class MimicNodeStore extends AbstractConnection {
         }
     }
     
-    HashMap<NodeID, NodeMemo> map = new java.util.HashMap<NodeID, NodeMemo>();
+    final ConcurrentHashMap<NodeID, NodeMemo> map = new ConcurrentHashMap<>();
+    /// Incremented every time the set of nodes changes.
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot snapshot = null;
+
+    /// Immutable list of the nodes at a given version of the map.
+    private static class Snapshot {
+        final long version;
+        final List<NodeMemo> memos;
+
+        Snapshot(long version, List<NodeMemo> memos) {
+            this.version = version;
+            this.memos = memos;
+        }
+    }
 
     java.beans.PropertyChangeSupport pcs = new java.beans.PropertyChangeSupport(this);
     public synchronized void addPropertyChangeListener(java.beans.PropertyChangeListener l) {pcs.addPropertyChangeListener(l);}
@@ -134,7 +232,7 @@ public class MimicNodeStore extends AbstractConnection {
 
         Queue<Interaction> pendingInteractions = new ConcurrentLinkedDeque<>();
         Interaction currentInteraction = null;
-        private TimerTask currentTask;
+        private HashedWheelTimer.Timeout currentTask;
 
         public synchronized void startInteraction(final Interaction request) {
             if (currentInteraction == null) {
@@ -144,20 +242,33 @@ public class MimicNodeStore extends AbstractConnection {
             }
         }
 
+        /**
+         * Starts a SNIP or PIP fetch, via the discovery scheduler if there is one.
+         * @param request   the fetch
+         * @param frameCost expected number of frames the fetch causes on the bus
+         */
+        void startDiscovery(Interaction request, int frameCost) {
+            NodeDiscoveryScheduler scheduler = discoveryScheduler;
+            if (scheduler == null) {
+                startInteraction(request);
+            } else {
+                scheduler.submit(this, request, frameCost);
+            }
+        }
+
         private synchronized void doStart(final Interaction request) {
             if (request == null) {
                 return;
             }
             currentInteraction = request;
             request.sendRequest(connection);
-            currentTask = new TimerTask() {
+            currentTask = scheduleTask(new Runnable() {
                 @Override
                 public void run() {
                     request.onTimeout();
                     tryCompleteInteraction(request);
                 }
-            };
-            scheduleTask(currentTask, request.deadlineMsec);
+            }, request.deadlineMsec);
         }
 
         public synchronized void tryCompleteInteraction(@Nullable Interaction request) {
@@ -176,9 +287,13 @@ public class MimicNodeStore extends AbstractConnection {
             synchronized (request) {
                 request.isComplete = true;
             }
-            currentTask.cancel();
+            if (currentTask != null) currentTask.cancel();
             currentInteraction = null;
             currentTask = null;
+            NodeDiscoveryScheduler scheduler = discoveryScheduler;
+            if (scheduler != null) {
+                scheduler.finished(request);
+            }
             if (pendingInteractions.isEmpty()) {
                 return;
             }
@@ -186,104 +301,152 @@ public class MimicNodeStore extends AbstractConnection {
             doStart(currentInteraction);
         }
 
-        ProtocolIdentification pIdent = null;
+        volatile ProtocolIdentification pIdent = null;
         Interaction pipInteraction = null;
         public void handleProtocolIdentificationReply(ProtocolIdentificationReplyMessage msg, Connection sender){
             // accept assumes from mimic'd node
             pIdent = new ProtocolIdentification(node, msg);
+            updateCache();
             pcs.firePropertyChange(UPDATE_PROP_PROTOCOL, null, pIdent);
             tryCompleteInteraction(pipInteraction);
             pipInteraction = null;
         }  
         public ProtocolIdentification getProtocolIdentification() {
+            ProtocolIdentification p = pIdent;
+            if (p != null) return p;
+            return loadProtocolIdentification();
+        }
+
+        private synchronized ProtocolIdentification loadProtocolIdentification() {
             if (pIdent == null) {
                 if (id == null) {
                     throw new AssertionError("MimicNodeStore id == null");
                 }
                 pIdent = new ProtocolIdentification(node, id);
-                pipInteraction = new Interaction() {
-                    int numTriesLeft = 3;
+                startPipFetch();
+            }
+            return pIdent;
+        }
 
-                    @Override
-                    void sendRequest(Connection downstream) {
-                        pIdent.start(downstream);
-                    }
+        /// Sends a PIP request to the node (with retries). Must be called with the lock held.
+        private void startPipFetch() {
+            pipInteraction = new Interaction() {
+                int numTriesLeft = 3;
 
-                    @Override
-                    NodeID dstNode() {
-                        return node;
-                    }
+                @Override
+                void sendRequest(Connection downstream) {
+                    pIdent.start(downstream);
+                }
 
-                    @Override
-                    void onTimeout() {
-                        synchronized (this) {
-                            if (isComplete) return;
-                        }
-                        final Interaction request = this;
-                        if (--numTriesLeft > 0) {
-                            scheduleTask(new TimerTask() {
-                                @Override
-                                public void run() {
-                                    startInteraction(request);
-                                }
-                            }, 200);
-                        }
+                @Override
+                NodeID dstNode() {
+                    return node;
+                }
+
+                @Override
+                void onTimeout() {
+                    synchronized (this) {
+                        if (isComplete) return;
                     }
-                };
-                startInteraction(pipInteraction);
-            }
-            return pIdent;
+                    final Interaction request = this;
+                    if (--numTriesLeft > 0) {
+                        scheduleTask(new Runnable() {
+                            @Override
+                            public void run() {
+                                startDiscovery(request, NodeDiscoveryScheduler
+                                        .PIP_FRAME_COST);
+                            }
+                        }, 200);
+                    }
+                }
+            };
+            startDiscovery(pipInteraction, NodeDiscoveryScheduler.PIP_FRAME_COST);
         }
 
-        SimpleNodeIdent pSimpleNode = null;
+        volatile SimpleNodeIdent pSimpleNode = null;
         Interaction snipInteraction = null;
+        /// True if the data was loaded from the cache and not yet confirmed.
+        private volatile boolean stale = false;
+        /// True if a re-fetch of stale data is in progress. Guarded by this.
+        private boolean revalidating = false;
+        /// Collects the replies of a re-fetch while the cached data stays in pSimpleNode.
+        private volatile SimpleNodeIdent snipUpdate = null;
         public void handleSimpleNodeIdentInfoReply(SimpleNodeIdentInfoReplyMessage msg, Connection sender){
             // accept assumes from mimic'd node
-            if (pSimpleNode == null) 
+            SimpleNodeIdent update = snipUpdate;
+            if (update != null) {
+                update.addMsg(msg);
+                if (!update.contentComplete()) return;
+                synchronized (this) {
+                    if (snipUpdate != update) return;
+                    snipUpdate = null;
+                    pSimpleNode = update;
+                }
+            } else if (pSimpleNode == null)
                 pSimpleNode = new SimpleNodeIdent(msg);
             else
                 pSimpleNode.addMsg(msg);
             if (pSimpleNode.contentComplete()) {
                 tryCompleteInteraction(snipInteraction);
                 snipInteraction = null;
+                synchronized (this) {
+                    stale = false;
+                    revalidating = false;
+                }
+                updateCache();
             }
             pcs.firePropertyChange(UPDATE_PROP_SIMPLE_NODE_IDENT, null, pSimpleNode);
         }  
         public SimpleNodeIdent getSimpleNodeIdent() {
+            SimpleNodeIdent p = pSimpleNode;
+            if (p != null) return p;
+            return loadSimpleNodeIdent();
+        }
+
+        private synchronized SimpleNodeIdent loadSimpleNodeIdent() {
             if (pSimpleNode == null) {
                 pSimpleNode = new SimpleNodeIdent(node, id);
-                snipInteraction = new Interaction() {
-                    int numTriesLeft = 3;
+                startSnipFetch(pSimpleNode);
+            }
+            return pSimpleNode;
+        }
 
-                    @Override
-                    void sendRequest(Connection downstream) {
-                        pSimpleNode.start(downstream);
-                    }
+        /**
+         * Sends a SNIP request to the node (with retries). Must be called with the lock held.
+         * @param target collects the replies.
+         */
+        private void startSnipFetch(final SimpleNodeIdent target) {
+            snipInteraction = new Interaction() {
+                int numTriesLeft = 3;
 
-                    @Override
-                    NodeID dstNode() {
-                        return node;
-                    }
+                @Override
+                void sendRequest(Connection downstream) {
+                    target.start(downstream);
+                }
+
+                @Override
+                NodeID dstNode() {
+                    return node;
+                }
 
-                    @Override
-                    void onTimeout() {
-                        synchronized (this) {
-                            if (isComplete) return;
-                        }
-                        final Interaction request = this;
-                        if (--numTriesLeft > 0) {
-                            scheduleTask(new TimerTask() {
-                                @Override
-                                public void run() {
-                                    startInteraction(request);
-                                }
-                            }, 200);
-                        }
+                @Override
+                void onTimeout() {
+                    synchronized (this) {
+                        if (isComplete) return;
                     }
-                };
-                startInteraction(snipInteraction);
-            }
-            return pSimpleNode;
+                    final Interaction request = this;
+                    if (--numTriesLeft > 0) {
+                        scheduleTask(new Runnable() {
+                            @Override
+                            public void run() {
+                                startDiscovery(request, NodeDiscoveryScheduler
+                                        .SNIP_FRAME_COST);
+                            }
+                        }, 200);
+                    }
+                }
+            };
+            startDiscovery(snipInteraction, NodeDiscoveryScheduler.SNIP_FRAME_COST);
         }
 
         public void handleOptionalIntRejected(OptionalIntRejectedMessage msg, Connection sender){
@@ -310,6 +473,57 @@ public class MimicNodeStore extends AbstractConnection {
             }
         }
 
+        /// Tells the persistent cache (if any) about new data from the node.
+        private void updateCache() {
+            NodeIdentityCache cache = identityCache;
+            if (cache != null) {
+                cache.update(id, pSimpleNode, pIdent);
+            }
+        }
+
+        /**
+         * Pre-fills this memo with remembered data. The memo is marked stale until the node
+         * answers a new request.
+         */
+        synchronized void setCached(SimpleNodeIdent snip, ProtocolIdentification pip) {
+            if (pSimpleNode == null) pSimpleNode = snip;
+            if (pIdent == null) pIdent = pip;
+            stale = true;
+        }
+
+        /**
+         * @return true if the data of this memo comes from the persistent cache and was not yet
+         * confirmed by the node.
+         */
+        public boolean isStale() {
+            return stale;
+        }
+
+        /**
+         * Re-fetches the cached data in the background, keeping it visible meanwhile. The SNIP
+         * replies are collected in a separate object, which replaces the cached one once it is
+         * complete.
+         */
+        private synchronized void revalidate() {
+            if (!stale || revalidating) return;
+            revalidating = true;
+            if (pSimpleNode != null) {
+                snipUpdate = new SimpleNodeIdent(node, id);
+                startSnipFetch(snipUpdate);
+            }
+            if (pIdent != null) {
+                startPipFetch();
+            }
+        }
+
+        @Override
+        public void handleVerifiedNodeIDNumber(VerifiedNodeIDNumberMessage msg, Connection
+                sender) {
+            if (msg.getSourceNodeID().equals(id)) {
+                revalidate();
+            }
+        }
+
         @Override
         public void handleInitializationComplete(InitializationCompleteMessage msg, Connection sender) {
             if (!msg.getSourceNodeID().equals(id)) {
@@ -335,6 +549,7 @@ public class MimicNodeStore extends AbstractConnection {
             fakeInteraction.deadlineMsec = timeoutMsec;
             startInteraction(fakeInteraction);
             if (pSimpleNode != null) {
+                snipUpdate = null;
                 pSimpleNode = null;
                 getSimpleNodeIdent();
             }
@@ -0,0 +1,259 @@
+package org.openlcb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Paces the Simple Node Ident and Protocol Identification fetches of a {@link MimicNodeStore}.
+ * <p>
+ * Without a scheduler every node memo starts its fetches as soon as the node appears, which
+ * after a {@link MimicNodeStore#refresh} means hundreds of nodes being queried at the same time
+ * and replies getting lost. Once a scheduler is attached to the store, fetches are queued here
+ * and released with at most a given number in flight, and at a rate that keeps the expected
+ * reply traffic within a target share of the bus bandwidth. Fetches for nodes that the UI is
+ * currently showing (see {@link #setVisibleNodes} and {@link #prioritize}) jump the queue.
+ * <p>
+ * When the queue drains, the duration of the discovery round is recorded and a
+ * {@link #DISCOVERY_COMPLETE} property change is fired.
+ */
+public class NodeDiscoveryScheduler {
+    /// Fired when all queued fetches are done. The new value is the round's duration in msec.
+    public static final String DISCOVERY_COMPLETE = "DiscoveryComplete";
+    /// How many frames per second fit on a 125 kbps CAN bus (approximately).
+    public static final int FULL_BUS_FRAMES_PER_SECOND = 800;
+    /// Expected number of frames a Simple Node Ident fetch causes (request and reply).
+    static final int SNIP_FRAME_COST = 10;
+    /// Expected number of frames a Protocol Identification fetch causes.
+    static final int PIP_FRAME_COST = 2;
+
+    /// One queued fetch.
+    private static class Job {
+        final MimicNodeStore.NodeMemo memo;
+        final Interaction interaction;
+        final int frameCost;
+
+        Job(MimicNodeStore.NodeMemo memo, Interaction interaction, int frameCost) {
+            this.memo = memo;
+            this.interaction = interaction;
+            this.frameCost = frameCost;
+        }
+    }
+
+    private final MimicNodeStore store;
+    // All following fields are guarded by this.
+    private int maxConcurrent = 4;
+    private double busShare = 0.25;
+    private final ArrayDeque<Job> urgent = new ArrayDeque<>();
+    private final ArrayDeque<Job> queue = new ArrayDeque<>();
+    private final Map<Interaction, Job> active = new IdentityHashMap<>();
+    /// Interactions in the urgent or normal queue.
+    private final Set<Interaction> queued = Collections.newSetFromMap(new IdentityHashMap<>());
+    private Set<NodeID> visible = Collections.emptySet();
+    /// Frame budget of the token bucket.
+    private double tokens;
+    private long lastRefillNanos;
+    private boolean pumpScheduled = false;
+    /// Start of the current discovery round, or -1 if idle.
+    private long roundStartNanos = -1;
+    private long lastRoundMsec = -1;
+    private long completedFetches = 0;
+
+    java.beans.PropertyChangeSupport pcs = new java.beans.PropertyChangeSupport(this);
+    public synchronized void addPropertyChangeListener(java.beans.PropertyChangeListener l) {pcs.addPropertyChangeListener(l);}
+    public synchronized void removePropertyChangeListener(java.beans.PropertyChangeListener l) {pcs.removePropertyChangeListener(l);}
+
+    /**
+     * Creates the scheduler and attaches it to a node store.
+     * @param store the fetches of the nodes in this store will be routed via this scheduler.
+     */
+    public NodeDiscoveryScheduler(MimicNodeStore store) {
+        this.store = store;
+        lastRefillNanos = System.nanoTime();
+        tokens = getBurstFrames();
+        store.setDiscoveryScheduler(this);
+    }
+
+    /**
+     * @param n how many fetches may be outstanding at the same time, at least 1.
+     */
+    public void setMaxConcurrent(int n) {
+        synchronized (this) {
+            maxConcurrent = Math.max(1, n);
+            schedulePump(0);
+        }
+    }
+
+    /**
+     * @param share fraction of the bus bandwidth the discovery replies may use, between 0
+     *              (exclusive) and 1 (inclusive).
+     */
+    public void setBusShare(double share) {
+        if (share <= 0 || share > 1) {
+            throw new IllegalArgumentException("Invalid bus share: " + share);
+        }
+        synchronized (this) {
+            busShare = share;
+            schedulePump(0);
+        }
+    }
+
+    /**
+     * Declares which nodes the UI is currently showing. Their fetches are performed before
+     * everybody else's.
+     * @param nodes the visible nodes; replaces the previous set.
+     */
+    public void setVisibleNodes(Collection<NodeID> nodes) {
+        synchronized (this) {
+            visible = new HashSet<>(nodes);
+            promote(visible);
+            schedulePump(0);
+        }
+    }
+
+    /**
+     * Moves all queued fetches of a node to the front of the queue.
+     * @param node node the user is interested in.
+     */
+    public void prioritize(NodeID node) {
+        synchronized (this) {
+            promote(Collections.singleton(node));
+            schedulePump(0);
+        }
+    }
+
+    /// Moves the normal queue entries of the given nodes to the urgent queue. Lock held.
+    private void promote(Set<NodeID> nodes) {
+        for (Iterator<Job> it = queue.iterator(); it.hasNext(); ) {
+            Job j = it.next();
+            if (nodes.contains(j.memo.getNodeID())) {
+                it.remove();
+                urgent.add(j);
+            }
+        }
+    }
+
+    /**
+     * Called by the node memos instead of starting the interaction directly.
+     */
+    void submit(MimicNodeStore.NodeMemo memo, Interaction interaction, int frameCost) {
+        synchronized (this) {
+            if (active.containsKey(interaction) || !queued.add(interaction)) return;
+            if (roundStartNanos < 0) {
+                roundStartNanos = System.nanoTime();
+            }
+            Job j = new Job(memo, interaction, frameCost);
+            if (visible.contains(memo.getNodeID())) {
+                urgent.add(j);
+            } else {
+                queue.add(j);
+            }
+            schedulePump(0);
+        }
+    }
+
+    /**
+     * Called by the node memos when an interaction is completed or abandoned after timeout.
+     */
+    void finished(Interaction interaction) {
+        Long roundMsec = null;
+        synchronized (this) {
+            if (active.remove(interaction) == null) return;
+            ++completedFetches;
+            if (active.isEmpty() && urgent.isEmpty() && queue.isEmpty() && roundStartNanos >= 0) {
+                lastRoundMsec = (System.nanoTime() - roundStartNanos) / 1000000;
+                roundStartNanos = -1;
+                roundMsec = lastRoundMsec;
+            }
+            schedulePump(0);
+        }
+        if (roundMsec != null) {
+            pcs.firePropertyChange(DISCOVERY_COMPLETE, null, roundMsec);
+        }
+    }
+
+    private double getBurstFrames() {
+        return SNIP_FRAME_COST * 2;
+    }
+
+    /**
+     * Arranges for {@link #pump} to run on the timer thread. The memos call into the scheduler
+     * with their own lock held, so starting other memos' interactions from those calls could
+     * deadlock; the timer thread holds no locks. Must be called with the lock held.
+     * @param delayMsec when to run.
+     */
+    private void schedulePump(long delayMsec) {
+        if (pumpScheduled) return;
+        pumpScheduled = store.scheduleTask(new Runnable() {
+            @Override
+            public void run() {
+                pump();
+            }
+        }, (int) delayMsec) != null;
+    }
+
+    /// Starts as many queued fetches as the limits allow.
+    private void pump() {
+        List<Job> toStart = new ArrayList<>();
+        synchronized (this) {
+            pumpScheduled = false;
+            long now = System.nanoTime();
+            double rate = FULL_BUS_FRAMES_PER_SECOND * busShare;
+            tokens = Math.min(getBurstFrames(), tokens + (now - lastRefillNanos) * rate / 1e9);
+            lastRefillNanos = now;
+            while (active.size() < maxConcurrent) {
+                Job j = urgent.isEmpty() ? queue.peek() : urgent.peek();
+                if (j == null) break;
+                if (tokens < j.frameCost) {
+                    // Comes back when there is enough budget.
+                    schedulePump((long) Math.ceil((j.frameCost - tokens) * 1000 / rate));
+                    break;
+                }
+                if (urgent.isEmpty()) {
+                    queue.poll();
+                } else {
+                    urgent.poll();
+                }
+                queued.remove(j.interaction);
+                tokens -= j.frameCost;
+                active.put(j.interaction, j);
+                toStart.add(j);
+            }
+        }
+        for (Job j : toStart) {
+            j.memo.startInteraction(j.interaction);
+        }
+    }
+
+    /// @return the number of fetches waiting to be started.
+    public synchronized int getPendingCount() {
+        return urgent.size() + queue.size();
+    }
+
+    /// @return the number of fetches that are started and not yet completed.
+    public synchronized int getActiveCount() {
+        return active.size();
+    }
+
+    /// @return the number of fetches completed (or given up) so far.
+    public synchronized long getCompletedCount() {
+        return completedFetches;
+    }
+
+    /// @return true if there is no fetch queued or outstanding.
+    public synchronized boolean isIdle() {
+        return roundStartNanos < 0;
+    }
+
+    /// @return how long the last completed discovery round took in msec, or -1 if none.
+    public synchronized long getLastDiscoveryMsec() {
+        return lastRoundMsec;
+    }
+}
@@ -67,12 +67,10 @@ public class NodeID {
     
     @CheckReturnValue
     public int hashCode() {
-        return contents[0]
-            +contents[1]<<5
-            +contents[2]<<10
-            +contents[3]<<15
-            +contents[4]<<20
-            +contents[5]<<25;
+        // Node IDs of a layout usually differ only in the low bytes; folds the manufacturer
+        // prefix onto them so that hash tables spread evenly.
+        long v = toLong();
+        return (int) (v ^ (v >>> 24));
     } 
 
     public long toLong() {
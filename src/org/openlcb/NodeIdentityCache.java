@@ -0,0 +1,263 @@
+package org.openlcb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Disk-backed cache of the Simple Node Ident and Protocol Identification data of the nodes
+ * seen by a {@link MimicNodeStore}, so that a tool can show the network tree right at startup
+ * instead of waiting for every node to be rediscovered.
+ * <p>
+ * When attached, the cache adds all remembered nodes to the store. Their node memos return the
+ * cached data and report {@link MimicNodeStore.NodeMemo#isStale}; the data is re-fetched in the
+ * background when the node shows up on the network with an Initialization Complete or Verified
+ * Node ID message. Every complete reply received by the store updates the cache, which is
+ * written to disk on a background thread at most once per {@link #WRITE_INTERVAL_MSEC}.
+ * <p>
+ * File format: an 8-byte header, an int count, then per node: long node ID, long protocol bits
+ * (-1 if unknown), int length and the raw SNIP payload.
+ */
+public class NodeIdentityCache {
+    private final static Logger logger = Logger.getLogger(NodeIdentityCache.class.getName());
+    private final static byte[] HEADER = "OLCBNID1".getBytes(StandardCharsets.US_ASCII);
+    /// Minimum time between two writes of the file.
+    public final static long WRITE_INTERVAL_MSEC = 1000;
+    /// Marks an unknown protocol value in the file.
+    private final static long NO_PIP = -1;
+
+    /// What we know about one node.
+    static class Entry {
+        final byte[] snip;
+        final long pip;
+
+        Entry(byte[] snip, long pip) {
+            this.snip = snip;
+            this.pip = pip;
+        }
+    }
+
+    private final MimicNodeStore store;
+    private final File file;
+    private final ExecutorService ioThread;
+    // Guarded by this.
+    private final Map<NodeID, Entry> entries = new HashMap<>();
+    private boolean dirty = false;
+    private boolean writeQueued = false;
+    private long lastWriteMsec = 0;
+
+    /**
+     * Loads the cache file and attaches the cache to a node store. The remembered nodes appear
+     * in the store immediately, marked as stale.
+     * @param store node store to back
+     * @param file  cache file; will be created if it does not exist.
+     */
+    public NodeIdentityCache(MimicNodeStore store, File file) {
+        this.store = store;
+        this.file = file;
+        ThreadPoolExecutor tpe = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new
+                LinkedBlockingQueue<Runnable>(), new OlcbThreadFactory());
+        tpe.allowCoreThreadTimeOut(true);
+        ioThread = tpe;
+        load();
+        List<NodeID> nodes;
+        synchronized (this) {
+            nodes = new ArrayList<>(entries.keySet());
+        }
+        store.setIdentityCache(this);
+        for (NodeID n : nodes) {
+            store.addNode(n);
+        }
+    }
+
+    /// @return how many nodes the cache knows about.
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Fills a freshly created node memo from the cache.
+     * @param memo memo to fill
+     * @param self node ID of the store, for the requests of later re-fetches.
+     */
+    void prefill(MimicNodeStore.NodeMemo memo, NodeID self) {
+        Entry e;
+        synchronized (this) {
+            e = entries.get(memo.getNodeID());
+        }
+        if (e == null) return;
+        SimpleNodeIdent snip = e.snip == null ? null : new SimpleNodeIdent(self, memo.getNodeID
+                (), e.snip);
+        ProtocolIdentification pip = e.pip == NO_PIP ? null : new ProtocolIdentification(self,
+                memo.getNodeID(), e.pip);
+        memo.setCached(snip, pip);
+    }
+
+    /**
+     * Records new data received from a node.
+     * @param node the node
+     * @param snip complete SNIP payload, or null if not known
+     * @param pip  protocol identification, or null if not known
+     */
+    void update(NodeID node, SimpleNodeIdent snip, ProtocolIdentification pip) {
+        synchronized (this) {
+            Entry old = entries.get(node);
+            byte[] snipBytes = snip != null && snip.contentComplete() ? snip.getContents() : (old
+                    != null ? old.snip : null);
+            long pipValue = pip != null && pip.getValue() != 0 ? pip.getValue() : (old != null ?
+                    old.pip : NO_PIP);
+            if (old != null && Arrays.equals(old.snip, snipBytes) && old.pip == pipValue) {
+                return;
+            }
+            entries.put(node, new Entry(snipBytes, pipValue));
+            dirty = true;
+            if (writeQueued) return;
+            writeQueued = true;
+        }
+        ioThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeDelayed();
+            }
+        });
+    }
+
+    private void load() {
+        if (!file.exists()) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new
+                FileInputStream(file)))) {
+            byte[] h = new byte[HEADER.length];
+            in.readFully(h);
+            if (!Arrays.equals(h, HEADER)) {
+                logger.warning("Ignoring node identity cache with unknown format: " + file);
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                byte[] id = new byte[6];
+                in.readFully(id);
+                long pip = in.readLong();
+                int len = in.readInt();
+                byte[] snip = null;
+                if (len >= 0) {
+                    if (len > SimpleNodeIdent.MAX_REPLY_LENGTH) {
+                        throw new IOException("Invalid SNIP length " + len);
+                    }
+                    snip = new byte[len];
+                    in.readFully(snip);
+                }
+                synchronized (this) {
+                    entries.put(new NodeID(id), new Entry(snip, pip));
+                }
+            }
+        } catch (EOFException e) {
+            logger.warning("Node identity cache is truncated: " + file);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read node identity cache " + file, e);
+        }
+    }
+
+    /// Called on the I/O thread. Waits out the write interval, then writes the file.
+    private void writeDelayed() {
+        long wait;
+        synchronized (this) {
+            wait = lastWriteMsec + WRITE_INTERVAL_MSEC - System.currentTimeMillis();
+        }
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                // Shutting down; write right away.
+            }
+        }
+        write();
+    }
+
+    /// Called on the I/O thread. Writes all entries to a new file and replaces the old one.
+    private void write() {
+        Map<NodeID, Entry> copy;
+        synchronized (this) {
+            writeQueued = false;
+            if (!dirty) return;
+            dirty = false;
+            lastWriteMsec = System.currentTimeMillis();
+            copy = new HashMap<>(entries);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new
+                    FileOutputStream(tmp)))) {
+                out.write(HEADER);
+                out.writeInt(copy.size());
+                for (Map.Entry<NodeID, Entry> e : copy.entrySet()) {
+                    out.write(e.getKey().getContents());
+                    out.writeLong(e.getValue().pip);
+                    byte[] snip = e.getValue().snip;
+                    if (snip == null) {
+                        out.writeInt(-1);
+                    } else {
+                        out.writeInt(snip.length);
+                        out.write(snip);
+                    }
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to write node identity cache " + file, e);
+            synchronized (this) {
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Blocks until all pending writes are done, without waiting for the write interval.
+     */
+    public void flush() {
+        try {
+            ioThread.submit(new Runnable() {
+                @Override
+                public void run() {
+                    write();
+                }
+            }).get();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to flush node identity cache", e);
+        }
+    }
+
+    /**
+     * Writes out any pending changes and detaches the cache from the store.
+     */
+    public void close() {
+        store.setIdentityCache(null);
+        ioThread.shutdownNow();
+        try {
+            ioThread.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        write();
+    }
+}
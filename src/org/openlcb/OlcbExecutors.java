@@ -0,0 +1,168 @@
+package org.openlcb;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides what kind of threads the library runs on.
+ * <p>
+ * All threads the library creates on its own (the default thread pools of {@link OlcbInterface}
+ * and {@link org.openlcb.can.CanInterface} via {@link OlcbThreadFactory}, the timer thread, the
+ * I/O and input threads) are obtained from the current {@link Provider}. Two providers are
+ * built in: {@link #PLATFORM}, the classic one-OS-thread-per-thread model, and
+ * {@link #getVirtual()}, which uses the virtual threads of JDK 21 and later. Virtual threads
+ * make it possible to run hundreds of interfaces in one JVM, e.g. in a simulator.
+ * <p>
+ * The library is compiled for older JVMs, so virtual threads are looked up by reflection. The
+ * provider is selected by the system property {@value #MODE_PROPERTY} ({@code platform} or
+ * {@code virtual}) or by calling {@link #setProvider} before creating the interfaces. If virtual
+ * threads are requested but the JVM does not have them, the platform provider is used.
+ * <p>
+ * Virtual threads are always daemon threads.
+ */
+public class OlcbExecutors {
+    private final static Logger logger = Logger.getLogger(OlcbExecutors.class.getName());
+    /// System property selecting the thread provider.
+    public final static String MODE_PROPERTY = "org.openlcb.threads";
+
+    /**
+     * Creates the threads of the library.
+     */
+    public interface Provider {
+        /**
+         * @param r      thread body
+         * @param name   thread name
+         * @param daemon whether the thread should not keep the JVM alive. Ignored by providers
+         *               that only have daemon threads.
+         * @return a new, not started thread.
+         */
+        Thread newThread(Runnable r, String name, boolean daemon);
+
+        /// @return a short name for logging, e.g. "platform".
+        String getName();
+    }
+
+    /// Provider creating ordinary (platform) threads.
+    public final static Provider PLATFORM = new Provider() {
+        @Override
+        public Thread newThread(Runnable r, String name, boolean daemon) {
+            Thread t = new Thread(r, name);
+            t.setDaemon(daemon);
+            return t;
+        }
+
+        @Override
+        public String getName() {
+            return "platform";
+        }
+    };
+
+    /// Provider creating virtual threads; null if the JVM does not support them.
+    private final static Provider VIRTUAL = createVirtual();
+
+    private static volatile Provider provider = selectDefault();
+
+    private OlcbExecutors() {}
+
+    private static Provider createVirtual() {
+        try {
+            final Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            final Method setName = builderClass.getMethod("name", String.class);
+            final Method unstarted = builderClass.getMethod("unstarted", Runnable.class);
+            Provider p = new Provider() {
+                @Override
+                public Thread newThread(Runnable r, String name, boolean daemon) {
+                    try {
+                        Object builder = setName.invoke(ofVirtual.invoke(null), name);
+                        return (Thread) unstarted.invoke(builder, r);
+                    } catch (ReflectiveOperationException e) {
+                        throw new IllegalStateException("Cannot create virtual thread", e);
+                    }
+                }
+
+                @Override
+                public String getName() {
+                    return "virtual";
+                }
+            };
+            // On JDK 19 and 20 virtual threads are a preview feature and this throws unless
+            // enabled.
+            p.newThread(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, "probe", true);
+            return p;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.log(Level.FINE, "Virtual threads are not available", e);
+            return null;
+        }
+    }
+
+    private static Provider selectDefault() {
+        String mode = System.getProperty(MODE_PROPERTY, "platform");
+        if ("virtual".equalsIgnoreCase(mode)) {
+            if (VIRTUAL != null) return VIRTUAL;
+            logger.warning("Virtual threads requested but not supported by this JVM; using " +
+                    "platform threads.");
+        } else if (!"platform".equalsIgnoreCase(mode)) {
+            logger.warning("Unknown value for " + MODE_PROPERTY + ": " + mode);
+        }
+        return PLATFORM;
+    }
+
+    /// @return true if the JVM supports virtual threads.
+    public static boolean isVirtualThreadAvailable() {
+        return VIRTUAL != null;
+    }
+
+    /// @return the virtual thread provider, or {@link #PLATFORM} if the JVM has no virtual threads.
+    public static Provider getVirtual() {
+        return VIRTUAL != null ? VIRTUAL : PLATFORM;
+    }
+
+    /// @return the provider currently used for new threads.
+    public static Provider getProvider() {
+        return provider;
+    }
+
+    /**
+     * Changes the provider for the threads created from now on. Existing threads and thread
+     * pools are not affected.
+     * @param p new provider, e.g. {@link #getVirtual()}.
+     */
+    public static void setProvider(Provider p) {
+        if (p == null) throw new NullPointerException("provider");
+        provider = p;
+    }
+
+    /**
+     * Creates a thread using the current provider.
+     * @param r      thread body
+     * @param name   thread name
+     * @param daemon whether the thread should not keep the JVM alive (platform threads only).
+     * @return the new thread, not started.
+     */
+    public static Thread newThread(Runnable r, String name, boolean daemon) {
+        return provider.newThread(r, name, daemon);
+    }
+
+    /**
+     * Creates a thread pool of the kind the interfaces use by default. The pool threads time out
+     * when idle.
+     * @param threads     maximum number of threads
+     * @param timeoutSec  allowed idle time of a thread
+     * @return the new pool.
+     */
+    public static ThreadPoolExecutor newThreadPool(int threads, long timeoutSec) {
+        ThreadPoolExecutor tpe = new ThreadPoolExecutor(threads, threads, timeoutSec, TimeUnit
+                .SECONDS, new LinkedBlockingQueue<Runnable>(), new OlcbThreadFactory());
+        tpe.allowCoreThreadTimeOut(true);
+        return tpe;
+    }
+}
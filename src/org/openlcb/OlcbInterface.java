@@ -1,19 +1,24 @@
 package org.openlcb;
 
 import org.openlcb.cdi.impl.ConfigRepresentation;
+import org.openlcb.cdi.impl.EventFieldIndex;
 import org.openlcb.implementations.DatagramMeteringBuffer;
 import org.openlcb.implementations.DatagramService;
 import org.openlcb.implementations.EventTable;
+import org.openlcb.implementations.IdentifyEventsResponder;
 import org.openlcb.implementations.MemoryConfigurationService;
+import org.openlcb.messages.TractionControlRequestMessage;
 import org.openlcb.protocols.VerifyNodeIdHandler;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Timer;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -27,7 +32,9 @@ import java.util.logging.Logger;
  */
 public class OlcbInterface {
     private final static Logger log = Logger.getLogger(OlcbInterface.class.getName());
-    private final Timer timer = new Timer();
+    private Timer timer = null;
+    private final HashedWheelTimer wheelTimer = new HashedWheelTimer("OpenLCB Interface Wheel Timer");
+    private ClockScheduler clockScheduler = null;
 
     /// Object for sending messages to the network.
     protected final Connection internalOutputConnection;
@@ -60,7 +67,10 @@ public class OlcbInterface {
     // Event Table is a helper for user interfaces to register and retrieve user names for
     // events. By default this is null, initialized lazily when needed only.
     private EventTable eventTable = null;
-
+    // Responds to Identify Events messages on behalf of all local producers and consumers.
+    // Initialized lazily when the first producer or consumer registers.
+    private IdentifyEventsResponder identifyEventsResponder = null;
+    private EventFieldIndex eventFieldIndex = null;
 
     private ThreadPoolExecutor threadPool = null;
     final static int minThreads = 10;
@@ -122,10 +132,10 @@ public class OlcbInterface {
         this.outputConnection = this.queuedOutputConnection;
         inputConnection = new MessageDispatcher();
 
-        nodeStore = new MimicNodeStore(getOutputConnection(), nodeId);
-        dmb = new DatagramMeteringBuffer(getOutputConnection(),threadPool);
+        nodeStore = new MimicNodeStore(getOutputConnection(), nodeId, wheelTimer);
+        dmb = new DatagramMeteringBuffer(getOutputConnection(),threadPool,wheelTimer);
         dcs = new DatagramService(nodeId, dmb);
-        mcs = new MemoryConfigurationService(nodeId, dcs);
+        mcs = new MemoryConfigurationService(nodeId, dcs, wheelTimer);
         inputConnection.registerMessageListener(nodeStore);
         inputConnection.registerMessageListener(dmb.connectionForRepliesFromDownstream());
         inputConnection.registerMessageListener(dcs);
@@ -170,10 +180,35 @@ public class OlcbInterface {
     /**
      * @return a shared Timer thread to be used by all components in this interface. Tasks scheduled on this timer are not allowed to block (as it's a shared timer thread).
      */
-    public Timer getTimer() {
+    public synchronized Timer getTimer() {
+        if (timer == null) {
+            // Created on demand, so that interfaces that never use it do not own a thread.
+            timer = new Timer("OpenLCB Interface Timer");
+        }
         return timer;
     }
 
+    /**
+     * @return the timer service used for the protocol timeouts and retries of all components in
+     * this interface. Same rules apply as for {@link #getTimer}; in addition the tasks fire with
+     * a resolution of {@link HashedWheelTimer#DEFAULT_TICK_MSEC}.
+     */
+    public HashedWheelTimer getWheelTimer() {
+        return wheelTimer;
+    }
+
+    /**
+     * @return the scheduler of the fast clock events of this interface. Same rules apply as for
+     * {@link #getTimer}.
+     */
+    public synchronized ClockScheduler getClockScheduler() {
+        if (clockScheduler == null) {
+            // Created on demand, so that interfaces without clocks do not own a thread.
+            clockScheduler = new ClockScheduler("OpenLCB Clock Scheduler");
+        }
+        return clockScheduler;
+    }
+
     /**
      * Accessor for the outside interface for arriving inbound messages.
      *
@@ -192,6 +227,17 @@ public class OlcbInterface {
         return outputConnection;
     }
 
+    /**
+     * Accessor for messages that must not wait behind the queued traffic, such as an emergency
+     * stop. A message put here goes to the front of the output queue, ahead of the messages
+     * that were put to {@link #getOutputConnection} but not yet sent. An Emergency Stop drops
+     * the queued Set Speed commands to the same train.
+     * @return the connection through which to send urgent messages to the bus.
+     */
+    public Connection getPriorityOutputConnection() {
+        return queuedOutputConnection.priorityConnection;
+    }
+
     public NodeID getNodeId() {
         return nodeId;
     }
@@ -223,6 +269,34 @@ public class OlcbInterface {
         }
         return eventTable;
     }
+
+    /**
+     * @return the shared responder for Identify Events messages addressed to this node.
+     * Producers and consumers register with it to declare their events.
+     */
+    public synchronized IdentifyEventsResponder getIdentifyEventsResponder() {
+        if (identifyEventsResponder == null) {
+            identifyEventsResponder = new IdentifyEventsResponder(this);
+        }
+        return identifyEventsResponder;
+    }
+
+    /**
+     * Enables the layout-wide index of event ID configuration fields. Once enabled, every node
+     * configuration returned by {@link #getConfigForNode} is indexed, and the fields are
+     * registered in the event table.
+     * @return the event field index of this interface.
+     */
+    public synchronized EventFieldIndex getEventFieldIndex() {
+        if (eventFieldIndex == null) {
+            eventFieldIndex = new EventFieldIndex(getEventTable());
+            for (ConfigRepresentation rep : nodeConfigs.values()) {
+                eventFieldIndex.addNode(rep);
+            }
+        }
+        return eventFieldIndex;
+    }
+
     /**
      * Creates a new or returns a cached CDI representation for the given node.
      * @param remoteNode    target node (on the network)
@@ -234,6 +308,9 @@ public class OlcbInterface {
         }
         ConfigRepresentation rep = new ConfigRepresentation(this, remoteNode);
         nodeConfigs.put(remoteNode, rep);
+        if (eventFieldIndex != null) {
+            eventFieldIndex.addNode(rep);
+        }
         return rep;
     }
 
@@ -351,8 +428,21 @@ public class OlcbInterface {
      * cleanup local resources
      */
     public void dispose(){
+        synchronized (this) {
+            if (identifyEventsResponder != null) {
+                identifyEventsResponder.dispose();
+            }
+        }
         // shut down shared timer's thread.
-        timer.cancel();
+        synchronized (this) {
+            if (timer != null) {
+                timer.cancel();
+            }
+            if (clockScheduler != null) {
+                clockScheduler.stop();
+            }
+        }
+        wheelTimer.stop();
         // shut down the thread pool
         if(threadPool != null && !(threadPool.isShutdown())) {
            // modified from the javadoc for ExecutorService 
@@ -386,14 +476,58 @@ public class OlcbInterface {
      */
     private class QueuedOutputConnection implements Connection {
         private final Connection realOutput;
-        private final BlockingQueue<QEntry> outputQueue = new
-                LinkedBlockingQueue<>();
+        private final BlockingDeque<QEntry> outputQueue = new
+                LinkedBlockingDeque<>();
         private int pendingCount = 0;
+        /**
+         * Puts the messages to the front of the queue. The queued messages that an urgent one
+         * makes stale are dropped, so they cannot undo it by going out after it.
+         */
+        private final Connection priorityConnection = new Connection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+                int dropped = 0;
+                for (Iterator<QEntry> it = outputQueue.iterator(); it.hasNext(); ) {
+                    if (isSupersededBy(it.next().message, msg)) {
+                        it.remove();
+                        ++dropped;
+                    }
+                }
+                synchronized(QueuedOutputConnection.this) {
+                    pendingCount += 1 - dropped;
+                }
+                outputQueue.addFirst(new QEntry(msg, sender));
+            }
+
+            @Override
+            public void registerStartNotification(ConnectionListener c) {
+                QueuedOutputConnection.this.registerStartNotification(c);
+            }
+        };
 
         QueuedOutputConnection(Connection realOutput) {
             this.realOutput = realOutput;
         }
 
+        /**
+         * @return true if a queued message must not be sent after an urgent one: a Set Speed
+         * would release the train from an Emergency Stop.
+         */
+        private boolean isSupersededBy(Message queued, Message urgent) {
+            if (!(queued instanceof TractionControlRequestMessage) || !(urgent instanceof
+                    TractionControlRequestMessage)) {
+                return false;
+            }
+            TractionControlRequestMessage q = (TractionControlRequestMessage) queued;
+            TractionControlRequestMessage u = (TractionControlRequestMessage) urgent;
+            byte[] qp = q.getPayload();
+            byte[] up = u.getPayload();
+            return qp.length > 0 && up.length > 0 && (up[0] & 0x7f) ==
+                    TractionControlRequestMessage.CMD_ESTOP && (qp[0] & 0x7f) ==
+                    TractionControlRequestMessage.CMD_SET_SPEED && u.getDestNodeID().equals(q
+                    .getDestNodeID());
+        }
+
         @Override
         public void put(Message msg, Connection sender) {
             synchronized(this) {
@@ -3,7 +3,8 @@ package org.openlcb;
 import java.util.concurrent.ThreadFactory;
 
 /**
- * Thread factory used by thread pools created by OLCB objects. 
+ * Thread factory used by thread pools created by OLCB objects. The threads come from the
+ * {@link OlcbExecutors#getProvider() current thread provider}.
  *
  * @author Paul Bender Copyright (C) 2018 
  */
@@ -22,8 +23,7 @@ public class OlcbThreadFactory implements ThreadFactory{
 
     @Override
     public Thread newThread(Runnable r){
-       Thread t = new Thread(r, name + factoryNumber + "-Thread-" + (count++));
-       return t;
+       return OlcbExecutors.newThread(r, name + factoryNumber + "-Thread-" + (count++), false);
     }
 
 }
@@ -80,6 +80,18 @@ public class ProtocolIdentification {
         value = 0;
     }
 
+    /**
+     * Restores a previously received reply, e.g. from a cache.
+     * @param source our node, for sending requests later
+     * @param dest   the node described
+     * @param value  the protocol bits
+     */
+    ProtocolIdentification(NodeID source, NodeID dest, long value) {
+        this.source = source;
+        this.dest = dest;
+        this.value = value;
+    }
+
     void start(Connection connection) {
         if (dest == null) {
             throw new AssertionError("PIP dest==null");
@@ -30,9 +30,26 @@ public class SimpleNodeIdent {
         this.dest = dest;
     }
 
+    /**
+     * Restores a previously received ident, e.g. from a cache.
+     * @param source   our node, for sending requests later
+     * @param dest     the node described
+     * @param contents the concatenated payload of the reply messages
+     */
+    SimpleNodeIdent(NodeID source, NodeID dest, byte[] contents) {
+        this(source, dest);
+        next = Math.min(contents.length, MAX_REPLY_LENGTH);
+        System.arraycopy(contents, 0, bytes, 0, next);
+    }
+
     NodeID source;
     NodeID dest;
-    
+
+    /// @return the payload received so far, e.g. for caching.
+    byte[] getContents() {
+        return java.util.Arrays.copyOf(bytes, next);
+    }
+
     void start(Connection connection) {
         next = 0;
         connection.put(new SimpleNodeIdentInfoRequestMessage(source, dest), null);
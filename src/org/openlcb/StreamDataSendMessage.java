@@ -3,9 +3,13 @@ package org.openlcb;
 // For annotations
 import net.jcip.annotations.*; 
 import edu.umd.cs.findbugs.annotations.*; 
+import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 
 /**
  * Stream Data Send message implementation
+ * <p>
+ * The data is kept as a {@link ByteSlice}, so a sender can hand out parts of its buffer without
+ * copying them. The {@code int[]} view returned by {@link #getData()} is created on first use.
  *
  * @author  Bob Jacobsen   Copyright 2009
  * @version $Revision$
@@ -16,15 +20,42 @@ public class StreamDataSendMessage extends AddressedMessage {
 
     public StreamDataSendMessage(NodeID source, NodeID dest, byte destStreamID, int[]
             data) {
+        this(source, dest, destStreamID, ByteSlice.fromInts(data));
+    }
+
+    /**
+     * @param source       sender of the data
+     * @param dest         receiver of the stream
+     * @param destStreamID stream ID assigned by the receiver
+     * @param payload      stream data; shared, not copied.
+     */
+    public StreamDataSendMessage(NodeID source, NodeID dest, byte destStreamID, ByteSlice
+            payload) {
         super(source, dest);
-        this.data = data;
+        this.payload = payload;
         this.destStreamID = destStreamID;
     }
-        
-    int[] data;
+
+    @SuppressWarnings("JCIP_FIELD_ISNT_FINAL_IN_IMMUTABLE_CLASS")
+    private volatile int[] data;
+    private final ByteSlice payload;
     byte destStreamID;
     public byte getDestinationStreamID() { return destStreamID; }
-    public int[] getData() { return data; }
+
+    /// @return the data, one unsigned byte per entry. Do not modify.
+    public int[] getData() {
+        int[] d = data;
+        if (d == null) {
+            // Benign race: every thread computes the same contents.
+            d = payload.toIntArray();
+            data = d;
+        }
+        return d;
+    }
+
+    /// @return the data, without copying.
+    public ByteSlice getPayload() { return payload; }
+
     /**
      * Implement message-type-specific
      * processing when this message
@@ -40,8 +71,7 @@ public class StreamDataSendMessage extends AddressedMessage {
     public boolean equals(Object o) {
         if (!super.equals(o)) return false;
         StreamDataSendMessage p = (StreamDataSendMessage) o;
-        if (data.length != p.data.length) return false;
-        // should also check data length
+        if (!payload.equals(p.payload)) return false;
         if (destStreamID != p.destStreamID) return false;
         return super.equals(o);
     } 
@@ -50,15 +80,15 @@ public class StreamDataSendMessage extends AddressedMessage {
         StringBuilder value = new StringBuilder(super.toString());
         value.append(" Stream with dst ID " + Integer.toString(destStreamID & 0xff) + ": ");
         
-        int n = data.length;
+        int n = payload.length();
         if(n>16) n=16;
         boolean first = true;
         for (int i = 0; i<n; i++) {
             if (!first) value.append(".");
-            value.append(Integer.toHexString((int)(data[i]&0xFF)).toUpperCase());
+            value.append(Integer.toHexString(payload.get(i)).toUpperCase());
             first = false;
         }
-        if(data.length>16) value.append(" ...");
+        if(payload.length()>16) value.append(" ...");
         return new String(value);
     }
 
@@ -0,0 +1,114 @@
+package org.openlcb;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread and lifecycle of the timer services of the stack, {@link HashedWheelTimer} and
+ * {@link ClockScheduler}.
+ * <p>
+ * The worker thread is started by the first schedule call and exits when the timer is stopped.
+ * The subclass keeps its pending tasks guarded by {@link #lock}, and its worker loop waits on
+ * {@link #wakeup} until the next task is due.
+ */
+abstract class TimerWorker {
+    private final static Logger logger = Logger.getLogger(TimerWorker.class.getName());
+    /// Passed to {@link #awaitWakeup} to wait until signalled.
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private final String name;
+    final ReentrantLock lock = new ReentrantLock();
+    /// Signalled when the worker may need to wake up earlier.
+    final Condition wakeup = lock.newCondition();
+    // The following are guarded by lock.
+    private Thread worker = null;
+    boolean stopped = false;
+
+    /// @param name name of the timer thread.
+    TimerWorker(String name) {
+        this.name = name;
+    }
+
+    /// Runs on the worker thread; returns when the timer is stopped.
+    abstract void runWorker();
+
+    /// Discards the pending tasks. Lock held.
+    abstract void clearLocked();
+
+    /// @return the number of pending tasks. Lock held.
+    abstract int pendingLocked();
+
+    /// Starts the worker thread if it is not running yet. Lock held.
+    void startWorkerLocked() {
+        if (worker != null) return;
+        worker = OlcbExecutors.newThread(new Runnable() {
+            @Override
+            public void run() {
+                runWorker();
+            }
+        }, name, true);
+        worker.start();
+    }
+
+    /**
+     * Waits for a signal on {@link #wakeup}, or until a timeout. Lock held. The caller checks
+     * the stopped flag when this returns.
+     * @param nanos how long to wait at most, or {@link #NO_DEADLINE}.
+     */
+    void awaitWakeup(long nanos) {
+        try {
+            if (nanos == NO_DEADLINE) {
+                wakeup.await();
+            } else {
+                wakeup.awaitNanos(nanos);
+            }
+        } catch (InterruptedException e) {
+            // Checked via the stopped flag.
+        }
+    }
+
+    /// Runs a task on the worker thread; an exception does not stop the timer.
+    void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Exception in task of " + name, e);
+        }
+    }
+
+    /**
+     * Stops the timer thread. Pending tasks are discarded and later schedule calls are
+     * ignored.
+     */
+    public void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            clearLocked();
+            wakeup.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isStopped() {
+        lock.lock();
+        try {
+            return stopped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /// @return the number of tasks waiting to run.
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return pendingLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -6,6 +6,7 @@ import org.openlcb.NodeID;
  * Maintains a 2-way map between nodes and CAN node ID aliases.
  *<p>
  * Input is CAN frames, looking for VerifyNodeID frames.
+ * The map is safe to use from multiple threads.
  * 
  * @author  Bob Jacobsen   Copyright 2010
  * @version $Revision$
@@ -17,7 +18,7 @@ public class AliasMap {
     java.util.HashMap<NodeID, Integer> iMap = new java.util.HashMap<NodeID, Integer>();
     java.util.HashMap<Integer, NodeID> nMap = new java.util.HashMap<Integer, NodeID>();
     
-    public void processFrame(OpenLcbCanFrame f) {
+    public synchronized void processFrame(OpenLcbCanFrame f) {
         // check type
         if (f.isInitializationComplete() || f.isVerifiedNID() || f.isAliasMapDefinition()) {
             Integer alias = Integer.valueOf(f.getSourceAlias());
@@ -29,24 +30,28 @@ public class AliasMap {
         }
     }
     
-    public void insert(int alias, NodeID nid) {
+    public synchronized void insert(int alias, NodeID nid) {
         nMap.put(alias, nid);
         iMap.put(nid, alias);
     }
     
-    public void remove(int alias) {
+    public synchronized void remove(int alias) {
         NodeID nid = getNodeID(alias);
         if (nid == null) return;
         nMap.remove(alias);
         iMap.remove(nid);
     }
     
-    public NodeID getNodeID(int alias) {
+    public synchronized NodeID getNodeID(int alias) {
         NodeID retVal = nMap.get(Integer.valueOf(alias));
         if (retVal != null) return retVal;
         else return new NodeID();
     }
-    public int getAlias(NodeID nid) {
+    /// @return true if the alias is known to be in use.
+    public synchronized boolean hasAlias(int alias) {
+        return nMap.containsKey(alias);
+    }
+    public synchronized int getAlias(NodeID nid) {
         Integer r = iMap.get(nid);
         if (r == null) return -1;
         else return r.intValue();
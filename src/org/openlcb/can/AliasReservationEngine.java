@@ -0,0 +1,150 @@
+package org.openlcb.can;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openlcb.HashedWheelTimer;
+
+/**
+ * Reserves the aliases of many local nodes on one CAN link at the same time.
+ * <p>
+ * Alias reservation takes at least 200 msec per alias: the check frames (CID) go out, then the
+ * node has to wait for objections before it may send Reserve ID (RID). Done one alias after the
+ * other, bringing up a large number of nodes takes minutes. This engine collects all
+ * {@link NIDaAlgorithm}s that are ready to check an alias into a batch, sends the CID frames of
+ * the whole batch back to back, and uses a single 200 msec window for the batch. At the end of
+ * the window every alias that saw no collision gets its RID frame, and the nodes are told in
+ * the same order. An alias that collides is dropped from its batch, and its node joins the next
+ * batch with the next alias of its sequence, without holding up the others.
+ * <p>
+ * One engine is used per CAN link; {@link CanInterface} creates one for its own node and its
+ * virtual nodes.
+ */
+public class AliasReservationEngine {
+    private final static Logger logger = Logger.getLogger(AliasReservationEngine.class.getName());
+    /// How long a node has to wait for objections after sending its check frames.
+    public final static long CHECK_WINDOW_MSEC = 200;
+
+    private final CanFrameListener output;
+    private final HashedWheelTimer timer;
+    // The following are guarded by this.
+    private List<NIDaAlgorithm> pending = new ArrayList<>();
+    private boolean flushScheduled = false;
+    private long batchCount = 0;
+    private long reservedCount = 0;
+    private long retryCount = 0;
+
+    /**
+     * @param output where the CID and RID frames go; the CAN link.
+     * @param timer  timer for the check windows.
+     */
+    public AliasReservationEngine(CanFrameListener output, HashedWheelTimer timer) {
+        this.output = output;
+        this.timer = timer;
+    }
+
+    /// A node waiting for the end of the check window, and the attempt it is waiting for.
+    private static class Check {
+        final NIDaAlgorithm alg;
+        final int attempt;
+
+        Check(NIDaAlgorithm alg, int attempt) {
+            this.alg = alg;
+            this.attempt = attempt;
+        }
+    }
+
+    /**
+     * Adds a node to the next batch. Called by {@link NIDaAlgorithm#start} when the algorithm
+     * uses this engine.
+     */
+    void enqueue(NIDaAlgorithm alg) {
+        synchronized (this) {
+            pending.add(alg);
+            if (flushScheduled) return;
+            flushScheduled = true;
+        }
+        // The next tick of the timer collects everything enqueued until then.
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                sendChecks();
+            }
+        }, 0);
+    }
+
+    /// Called by {@link NIDaAlgorithm} when its alias collided and it has to start over.
+    void retry(NIDaAlgorithm alg) {
+        synchronized (this) {
+            ++retryCount;
+        }
+        enqueue(alg);
+    }
+
+    private void sendChecks() {
+        List<NIDaAlgorithm> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new ArrayList<>();
+            flushScheduled = false;
+            ++batchCount;
+        }
+        List<OpenLcbCanFrame> frames = new ArrayList<>(batch.size() * 4);
+        final List<Check> checks = new ArrayList<>(batch.size());
+        for (NIDaAlgorithm alg : batch) {
+            int attempt = alg.checkFrames(frames);
+            if (attempt >= 0) {
+                checks.add(new Check(alg, attempt));
+            }
+        }
+        if (checks.isEmpty()) return;
+        for (OpenLcbCanFrame f : frames) {
+            output.send(f);
+        }
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                sendReserves(checks);
+            }
+        }, CHECK_WINDOW_MSEC);
+    }
+
+    private void sendReserves(List<Check> checks) {
+        List<OpenLcbCanFrame> frames = new ArrayList<>(checks.size());
+        List<Runnable> callbacks = new ArrayList<>(checks.size());
+        for (Check c : checks) {
+            Runnable r = c.alg.reserveFrame(c.attempt, frames);
+            if (r != null) callbacks.add(r);
+        }
+        for (OpenLcbCanFrame f : frames) {
+            output.send(f);
+        }
+        synchronized (this) {
+            reservedCount += frames.size();
+        }
+        // After all RIDs are out, so that the nodes' first frames follow the reservation.
+        for (Runnable r : callbacks) {
+            try {
+                r.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Exception in alias reservation callback", e);
+            }
+        }
+    }
+
+    /// @return number of check windows started so far.
+    public synchronized long getBatchCount() {
+        return batchCount;
+    }
+
+    /// @return number of aliases reserved so far.
+    public synchronized long getReservedCount() {
+        return reservedCount;
+    }
+
+    /// @return number of times a node had to start over because of a collision.
+    public synchronized long getRetryCount() {
+        return retryCount;
+    }
+}
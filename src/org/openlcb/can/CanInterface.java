@@ -1,22 +1,36 @@
 package org.openlcb.can;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.Semaphore;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import org.openlcb.AddressedMessage;
 import org.openlcb.Connection;
 import org.openlcb.Connection.ConnectionListener;
 import org.openlcb.Message;
+import org.openlcb.MessageDecoder;
 import org.openlcb.NodeID;
+import org.openlcb.VerifyNodeIDNumberMessage;
 import org.openlcb.OlcbInterface;
 import java.util.logging.Logger;
 
 /**
  * CanInterface collects all objects necessary to operate a standards-compliant node that connects
  * via CAN-bus.
+ * <p>
+ * Besides its own node, the interface can host any number of {@link VirtualNode}s (see
+ * {@link #addVirtualNode}), e.g. simulated nodes or the locomotives of a command station. They
+ * share the CAN link and the whole message stack; incoming addressed messages are routed to
+ * them by alias lookup.
+ * <p>
+ * The aliases of all local nodes are defended: a check frame (CID) for one of them is answered
+ * with Reserve ID, and any other frame using one of them means a different node took the alias.
+ * The local node then gives the alias up (AMR) and reserves a new one, holding its outgoing
+ * messages until that is done. The message-level interface keeps running throughout.
  *
  * Created by bracz on 12/27/15.
  */
@@ -40,6 +54,38 @@ public class CanInterface {
     private final List<ConnectionListener> listeners = new ArrayList<>();
     private final NodeID nodeId;
     private final NIDaAlgorithm aliasWatcher;
+    /// Reserves the aliases of our node and the virtual nodes, batched.
+    private final AliasReservationEngine reservationEngine;
+    /// Hosted virtual nodes by node ID.
+    private final Map<NodeID, VirtualNode> virtualNodes = new ConcurrentHashMap<>();
+    /// Hosted virtual nodes with a reserved alias, by alias.
+    private final Map<Integer, VirtualNode> virtualByAlias = new ConcurrentHashMap<>();
+    /// Aliases held by the local reservations, ours and the virtual nodes'.
+    private final Map<Integer, NIDaAlgorithm> localAliases = new ConcurrentHashMap<>();
+    private final NIDaAlgorithm.AliasClaims aliasClaims = new NIDaAlgorithm.AliasClaims() {
+        @Override
+        public boolean claim(int alias, NIDaAlgorithm owner) {
+            if (aliasMap.hasAlias(alias) && !aliasMap.getNodeID(alias).equals(owner
+                    .getNodeID())) {
+                // Known to be in use on the bus.
+                return false;
+            }
+            NIDaAlgorithm old = localAliases.putIfAbsent(alias, owner);
+            return old == null || old == owner;
+        }
+
+        @Override
+        public void release(int alias, NIDaAlgorithm owner) {
+            localAliases.remove(alias, owner);
+        }
+    };
+    /// Outgoing messages of local nodes that are reserving a new alias after a conflict, by
+    /// source node. Guarded by itself.
+    private final Map<NodeID, List<Message>> heldOutput = new HashMap<>();
+    private volatile boolean holdingOutput = false;
+    private long aliasConflictCount = 0;
+    /// Answers Verify Node ID for the virtual nodes; registered with the first virtual node.
+    private MessageDecoder virtualVerifyHandler = null;
 
     protected boolean initialized = false;
 
@@ -50,11 +96,7 @@ public class CanInterface {
 
     public CanInterface(NodeID interfaceId, CanFrameListener frameOutput) {
         this(interfaceId,frameOutput,
-                          new ThreadPoolExecutor(minThreads,maxThreads,
-                          threadTimeout,TimeUnit.SECONDS,
-                          new LinkedBlockingQueue<Runnable>(),
-                          new org.openlcb.OlcbThreadFactory()));
-        threadPool.allowCoreThreadTimeOut(true);
+             org.openlcb.OlcbExecutors.newThreadPool(maxThreads, threadTimeout));
     }
 
     public CanInterface(NodeID interfaceId, CanFrameListener frameOutput, ThreadPoolExecutor tpe ) {
@@ -69,7 +111,10 @@ public class CanInterface {
         // Creates CAN-level OpenLCB objects.
         aliasMap = new AliasMap();
         messageBuilder = new MessageBuilder(aliasMap);
-        aliasWatcher = new NIDaAlgorithm(interfaceId, frameOutput);
+        reservationEngine = new AliasReservationEngine(frameOutput, olcbInterface.getWheelTimer());
+        aliasWatcher = new NIDaAlgorithm(interfaceId, frameOutput, olcbInterface.getWheelTimer());
+        aliasWatcher.setAliasClaims(aliasClaims);
+        aliasWatcher.setReservationEngine(reservationEngine);
 
         this.frameInput = new FrameParser();
         threadPool.execute(new Runnable() {
@@ -93,24 +138,21 @@ public class CanInterface {
         l.connectionActive(frameRenderer);
     }
 
+    /**
+     * Starts the alias reservation of the interface's own node. Does not block; the start
+     * listeners are called once the node is up.
+     */
     public void initialize() {
-        // Do initialization tasks here.
-        final Semaphore sema = new Semaphore(1, true);
-        sema.acquireUninterruptibly();
-
         aliasWatcher.start(new Runnable() {
             @Override
             public void run() {
-                sema.release();
+                aliasReserved();
             }
         });
-        // Waits for alias allocation to complete.
-        try {
-            sema.acquire();
-        } catch (InterruptedException e) {
-            // if the thread was interrupted, we are trying to terminate.
-            return;
-        }
+    }
+
+    /// Called on the timer thread when our alias is reserved.
+    private void aliasReserved() {
         // Acquires everybody else's alias.
         OpenLcbCanFrame ameFrame = new OpenLcbCanFrame(0);
         ameFrame.setAME(aliasWatcher.getNIDa(), null);
@@ -118,12 +160,16 @@ public class CanInterface {
         OpenLcbCanFrame gReqFrame = new OpenLcbCanFrame(aliasWatcher.getNIDa());
         gReqFrame.setVerifyNID(null);
         frameOutput.send(gReqFrame);
-        try {
-            Thread.sleep(200);
-        } catch(InterruptedException e) {
-            // if the thread was interrupted, we are trying to terminate.
-            return;
-        }
+        // Gives the other nodes time to answer before we start talking.
+        olcbInterface.getWheelTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                initializationComplete();
+            }
+        }, 200);
+    }
+
+    private void initializationComplete() {
         // Stores local node alias.
         aliasMap.insert(aliasWatcher.getNIDa(), nodeId);
         /// TODO(balazs.racz): If the alias changes, we need to update the local alias map.
@@ -140,19 +186,223 @@ public class CanInterface {
         }
     }
 
+    /// @return the alias of the interface's own node. Changes after an alias conflict.
+    public int getAlias() {
+        return aliasWatcher.getNIDa();
+    }
+
     public OlcbInterface getInterface() {
         return olcbInterface;
     }
 
+    /**
+     * Adds a virtual node to this interface. Its alias reservation starts right away, batched
+     * with any other reservations in progress.
+     * @param id      node ID of the virtual node; must not be hosted yet.
+     * @param handler receives all addressed messages for the virtual node.
+     * @return the virtual node.
+     */
+    public VirtualNode addVirtualNode(NodeID id, Connection handler) {
+        if (id.equals(nodeId)) {
+            throw new IllegalArgumentException("Node ID of the interface itself: " + id);
+        }
+        NIDaAlgorithm reservation = new NIDaAlgorithm(id, frameOutput, olcbInterface
+                .getWheelTimer());
+        reservation.setAliasClaims(aliasClaims);
+        reservation.setReservationEngine(reservationEngine);
+        final VirtualNode vn = new VirtualNode(this, id, handler, reservation);
+        if (virtualNodes.putIfAbsent(id, vn) != null) {
+            throw new IllegalArgumentException("Node is already hosted: " + id);
+        }
+        synchronized (this) {
+            if (virtualVerifyHandler == null) {
+                virtualVerifyHandler = new MessageDecoder() {
+                    @Override
+                    public void handleVerifyNodeIDNumber(VerifyNodeIDNumberMessage msg,
+                                                         Connection sender) {
+                        if (msg.getContent() != null) {
+                            VirtualNode n = virtualNodes.get(msg.getContent());
+                            if (n != null && n.isReserved()) n.sendVerified();
+                            return;
+                        }
+                        for (VirtualNode n : virtualNodes.values()) {
+                            if (n.isReserved()) n.sendVerified();
+                        }
+                    }
+                };
+                olcbInterface.registerMessageListener(virtualVerifyHandler);
+            }
+        }
+        reservation.start(new Runnable() {
+            @Override
+            public void run() {
+                virtualNodeReserved(vn);
+            }
+        });
+        return vn;
+    }
+
+    /// Called on the timer thread when the alias of a virtual node is reserved.
+    private void virtualNodeReserved(VirtualNode vn) {
+        int alias = vn.reservation.getNIDa();
+        if (virtualNodes.get(vn.getNodeID()) != vn) return; // removed meanwhile
+        aliasMap.insert(alias, vn.getNodeID());
+        virtualByAlias.put(alias, vn);
+        OpenLcbCanFrame amd = new OpenLcbCanFrame(alias);
+        amd.setAMD(alias, vn.getNodeID());
+        frameOutput.send(amd);
+        vn.reserved(alias);
+    }
+
+    /// Called by {@link VirtualNode#remove}.
+    void removeVirtualNode(VirtualNode vn) {
+        if (!virtualNodes.remove(vn.getNodeID(), vn)) return;
+        int alias = vn.removed();
+        vn.reservation.dispose();
+        if (alias >= 0) {
+            virtualByAlias.remove(alias, vn);
+            aliasMap.remove(alias);
+            OpenLcbCanFrame amr = new OpenLcbCanFrame(alias);
+            amr.setAMR(alias, vn.getNodeID());
+            frameOutput.send(amr);
+        }
+    }
+
+    /// @return the engine reserving the aliases on this interface.
+    public AliasReservationEngine getReservationEngine() {
+        return reservationEngine;
+    }
+
+    /// @return the number of hosted virtual nodes.
+    public int getVirtualNodeCount() {
+        return virtualNodes.size();
+    }
+
+    /// @return the hosted virtual node with the given ID, or null.
+    public VirtualNode getVirtualNode(NodeID id) {
+        return virtualNodes.get(id);
+    }
+
+    /// @return the number of alias conflicts detected after reservation.
+    public synchronized long getAliasConflictCount() {
+        return aliasConflictCount;
+    }
+
+    /**
+     * Another node sent a frame with the alias of a local node. Gives the alias up and starts
+     * reserving a new one.
+     * @param owner reservation of the local node
+     * @param alias the alias in conflict
+     */
+    private void aliasConflict(final NIDaAlgorithm owner, int alias) {
+        final NodeID id = owner.getNodeID();
+        logger.warning("Alias conflict detected for " + id + " alias 0x" + Integer
+                .toHexString(alias) + "; reserving a new alias.");
+        synchronized (this) {
+            ++aliasConflictCount;
+        }
+        synchronized (heldOutput) {
+            if (!heldOutput.containsKey(id)) {
+                heldOutput.put(id, new ArrayList<Message>());
+            }
+            holdingOutput = true;
+        }
+        final VirtualNode vn = owner == aliasWatcher ? null : virtualNodes.get(id);
+        if (vn != null) {
+            vn.aliasLost();
+            virtualByAlias.remove(alias, vn);
+        }
+        if (aliasMap.hasAlias(alias) && aliasMap.getNodeID(alias).equals(id)) {
+            aliasMap.remove(alias);
+        }
+        OpenLcbCanFrame amr = new OpenLcbCanFrame(alias);
+        amr.setAMR(alias, id);
+        frameOutput.send(amr);
+        owner.restart(new Runnable() {
+            @Override
+            public void run() {
+                aliasRecovered(owner, vn);
+            }
+        });
+    }
+
+    /// Called on the timer thread when a new alias is reserved after a conflict.
+    private void aliasRecovered(NIDaAlgorithm owner, VirtualNode vn) {
+        NodeID id = owner.getNodeID();
+        int alias = owner.getNIDa();
+        if (vn != null && virtualNodes.get(id) != vn) return; // removed meanwhile
+        aliasMap.insert(alias, id);
+        if (vn != null) {
+            virtualByAlias.put(alias, vn);
+            vn.aliasChanged(alias);
+        }
+        OpenLcbCanFrame amd = new OpenLcbCanFrame(alias);
+        amd.setAMD(alias, id);
+        frameOutput.send(amd);
+        // Sends what was held in the meantime. Messages coming in while we do this are added to
+        // the held list, so the order is kept.
+        while (true) {
+            List<Message> l;
+            synchronized (heldOutput) {
+                l = heldOutput.get(id);
+                if (l == null) return;
+                if (l.isEmpty()) {
+                    heldOutput.remove(id);
+                    holdingOutput = !heldOutput.isEmpty();
+                    return;
+                }
+                heldOutput.put(id, new ArrayList<Message>());
+            }
+            for (Message m : l) {
+                render(m);
+            }
+        }
+    }
+
+    /// Turns a message into frames and sends them.
+    private void render(Message msg) {
+        List<OpenLcbCanFrame> l = messageBuilder.processMessage(msg);
+        for (CanFrame f : l) {
+            frameOutput.send(f);
+        }
+    }
+
     class FrameParser implements CanFrameListener {
         @Override
         public void send(CanFrame frame) {
+            OpenLcbCanFrame f = new OpenLcbCanFrame(frame);
+            NIDaAlgorithm owner = localAliases.get(f.getSourceAlias());
+            if (owner != null && owner.isComplete() && !f.isCIM()) {
+                // Somebody else uses the alias of a local node.
+                aliasConflict(owner, f.getSourceAlias());
+                owner = null;
+            }
+            if (f.isAliasMapDefinition() && f.getSourceAlias() != aliasMap.getAlias(f.getNodeID())
+                    && (f.getNodeID().equals(nodeId) || virtualNodes.containsKey(f.getNodeID()))) {
+                logger.warning("Another node on the bus uses our node ID " + f.getNodeID() +
+                        " with alias 0x" + Integer.toHexString(f.getSourceAlias()));
+            }
             aliasWatcher.send(frame);
-            aliasMap.processFrame(new OpenLcbCanFrame(frame));
+            aliasMap.processFrame(f);
+            VirtualNode target = null;
+            if (!virtualNodes.isEmpty()) {
+                // Frames using the alias a virtual node is reserving or defending.
+                if (owner != null && owner != aliasWatcher) {
+                    owner.processFrame(f);
+                }
+                int dest = f.getDestAlias();
+                if (dest >= 0) {
+                    target = virtualByAlias.get(dest);
+                }
+            }
             List<Message> l = messageBuilder.processFrame(frame);
             if (l == null) return;
             for (Message m : l) {
-                olcbInterface.getInputConnection().put(m, null);
+                if (target != null) {
+                    target.deliver(m, null);
+                } else {
+                    olcbInterface.getInputConnection().put(m, null);
+                }
             }
         }
     }
@@ -160,10 +410,24 @@ public class CanInterface {
     class FrameRenderer implements Connection {
         @Override
         public void put(Message msg, Connection sender) {
-            List<OpenLcbCanFrame> l = messageBuilder.processMessage(msg);
-            for (CanFrame f : l) {
-                frameOutput.send(f);
+            if (msg instanceof AddressedMessage && !virtualNodes.isEmpty()) {
+                // Local delivery between the nodes of this interface.
+                VirtualNode vn = virtualNodes.get(((AddressedMessage) msg).getDestNodeID());
+                if (vn != null) {
+                    vn.deliver(msg, sender);
+                    return;
+                }
             }
+            if (holdingOutput) {
+                synchronized (heldOutput) {
+                    List<Message> held = heldOutput.get(msg.getSourceNodeID());
+                    if (held != null) {
+                        held.add(msg);
+                        return;
+                    }
+                }
+            }
+            render(msg);
         }
 
         @Override
@@ -174,6 +438,11 @@ public class CanInterface {
 
     public void dispose(){
         aliasWatcher.dispose();
+        for (VirtualNode vn : new ArrayList<>(virtualNodes.values())) {
+            virtualNodes.remove(vn.getNodeID(), vn);
+            vn.removed();
+            vn.reservation.dispose();
+        }
         // shut down the thread pool
         if(threadPool != null && !(threadPool.isShutdown())) {
            // modified from the javadoc for ExecutorService 
@@ -0,0 +1,214 @@
+package org.openlcb.can;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.logging.Logger;
+
+/**
+ * Collects the bytes of messages that arrive in more than one CAN frame: datagrams, addressed
+ * messages with the first/last flags (SNIP, traction and the like) and stream data.
+ * <p>
+ * Partial messages are kept per (source alias, destination alias), so interleaved transfers of
+ * different senders, or of one sender to different destinations, do not mix. The bytes go into
+ * 72-byte arrays, the size of the largest datagram, which are taken from a pool and returned to
+ * it once the message is complete. Messages that are longer, such as a long SNIP reply, grow
+ * their array; grown arrays are not pooled.
+ * <p>
+ * A partial message that has not seen a frame for {@link #DEFAULT_TIMEOUT_MSEC} is dropped, so
+ * that a sender that goes away in the middle of a transfer does not leave its bytes behind.
+ * Expired messages are looked for while frames arrive; there is no timer thread.
+ * <p>
+ * Not thread safe; used by the {@link MessageBuilder} on the thread that parses frames.
+ */
+class FrameReassembler {
+    private final static Logger logger = Logger.getLogger(FrameReassembler.class.getName());
+    /// Size of the pooled arrays, the longest datagram.
+    static final int BUFFER_SIZE = 72;
+    /// How long a partial message is kept without a new frame.
+    static final long DEFAULT_TIMEOUT_MSEC = 3000;
+    /// At most this many free arrays are kept.
+    static final int MAX_POOLED = 64;
+
+    private static final long KIND_DATAGRAM = 1L << 40;
+    private static final long KIND_ADDRESSED = 2L << 40;
+    private static final long KIND_STREAM = 3L << 40;
+
+    /// One partial message.
+    final class Buffer {
+        final long key;
+        byte[] data;
+        int length;
+        long lastFrameMsec;
+
+        Buffer(long key, byte[] data) {
+            this.key = key;
+            this.data = data;
+        }
+
+        /// Appends the data bytes of a frame, starting at the given index.
+        void append(CanFrame f, int from) {
+            int n = f.getNumDataElements() - from;
+            if (n <= 0) return;
+            if (length + n > data.length) {
+                byte[] d = new byte[Math.max(2 * data.length, length + n)];
+                System.arraycopy(data, 0, d, 0, length);
+                give(data);
+                data = d;
+            }
+            for (int i = 0; i < n; i++) {
+                data[length++] = (byte) f.getElement(from + i);
+            }
+        }
+    }
+
+    private final HashMap<Long, Buffer> active = new HashMap<>();
+    private final ArrayDeque<byte[]> pool = new ArrayDeque<>();
+    private long timeoutMsec = DEFAULT_TIMEOUT_MSEC;
+    private long nextSweepMsec = 0;
+    private long expiredCount = 0;
+    private long allocatedCount = 0;
+
+    /// Key of a datagram transfer.
+    static long datagramKey(int srcAlias, int dstAlias) {
+        return KIND_DATAGRAM | (srcAlias << 12) | dstAlias;
+    }
+
+    /// Key of a multi-frame addressed message.
+    static long addressedKey(int mti, int srcAlias, int dstAlias) {
+        return KIND_ADDRESSED | ((long) mti << 24) | (srcAlias << 12) | dstAlias;
+    }
+
+    /// Key of the data of one stream.
+    static long streamKey(int srcAlias, int dstAlias, int destStreamId) {
+        return KIND_STREAM | ((long) (destStreamId & 0xFF) << 24) | (srcAlias << 12) | dstAlias;
+    }
+
+    void setTimeout(long msec) {
+        timeoutMsec = msec;
+        nextSweepMsec = 0;
+    }
+
+    /**
+     * Starts a new message. A partial message with the same key is dropped; its sender has
+     * started over.
+     * @param key as returned by one of the key functions
+     * @param now current time in msec
+     * @return an empty buffer for the message.
+     */
+    Buffer start(long key, long now) {
+        Buffer b = active.get(key);
+        if (b != null) {
+            logger.fine("Restarted frame reassembly before the previous message was complete");
+            b.length = 0;
+        } else {
+            b = new Buffer(key, take());
+            active.put(key, b);
+        }
+        b.lastFrameMsec = now;
+        return b;
+    }
+
+    /**
+     * @param key as returned by one of the key functions
+     * @param now current time in msec
+     * @return the partial message with the given key, or null if there is none.
+     */
+    Buffer get(long key, long now) {
+        Buffer b = active.get(key);
+        if (b != null) b.lastFrameMsec = now;
+        return b;
+    }
+
+    /**
+     * Ends a message. The buffer goes back to the pool and must not be used afterwards.
+     * @param b buffer returned by start or get
+     * @return the bytes of the message.
+     */
+    byte[] finish(Buffer b) {
+        byte[] r = new byte[b.length];
+        System.arraycopy(b.data, 0, r, 0, b.length);
+        discard(b);
+        return r;
+    }
+
+    /// Drops a message without looking at its bytes.
+    void discard(Buffer b) {
+        if (active.get(b.key) == b) {
+            active.remove(b.key);
+        }
+        give(b.data);
+        b.data = null;
+        b.length = 0;
+    }
+
+    /**
+     * Drops the partial messages that timed out. Does the work at most twice per timeout
+     * period, so it can be called for every frame.
+     * @param now current time in msec
+     */
+    void tick(long now) {
+        if (now < nextSweepMsec) return;
+        nextSweepMsec = now + timeoutMsec / 2;
+        expire(now);
+    }
+
+    /**
+     * Drops the partial messages that did not get a frame for longer than the timeout.
+     * @param now current time in msec
+     * @return the number of messages dropped.
+     */
+    int expire(long now) {
+        int count = 0;
+        Iterator<Buffer> it = active.values().iterator();
+        while (it.hasNext()) {
+            Buffer b = it.next();
+            if (now - b.lastFrameMsec > timeoutMsec) {
+                it.remove();
+                give(b.data);
+                b.data = null;
+                ++count;
+            }
+        }
+        if (count > 0) {
+            expiredCount += count;
+            logger.fine(() -> "Dropped " + expiredCount + " incomplete multi-frame messages");
+        }
+        return count;
+    }
+
+    private byte[] take() {
+        byte[] d = pool.pollFirst();
+        if (d == null) {
+            ++allocatedCount;
+            d = new byte[BUFFER_SIZE];
+        }
+        return d;
+    }
+
+    private void give(byte[] d) {
+        if (d != null && d.length == BUFFER_SIZE && pool.size() < MAX_POOLED) {
+            pool.addFirst(d);
+        }
+    }
+
+    /// @return number of messages being collected.
+    int getActiveCount() {
+        return active.size();
+    }
+
+    /// @return number of free arrays in the pool.
+    int getPooledCount() {
+        return pool.size();
+    }
+
+    /// @return number of 72-byte arrays allocated so far.
+    long getAllocatedCount() {
+        return allocatedCount;
+    }
+
+    /// @return number of partial messages dropped because of the timeout.
+    long getExpiredCount() {
+        return expiredCount;
+    }
+}
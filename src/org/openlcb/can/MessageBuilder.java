@@ -1,7 +1,5 @@
 package org.openlcb.can;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -53,6 +51,9 @@ public class MessageBuilder {
         // check for special cases first
         if ( (f.getHeader() & 0x08000000) != 0x08000000 ) return null;  // not OpenLCB frame
         
+        frameTimeMsec = System.currentTimeMillis();
+        reassembler.tick(frameTimeMsec);
+
         // break into types
         int format = ( f.getHeader() & 0x07000000 ) >> 24;
 
@@ -78,10 +79,20 @@ public class MessageBuilder {
         }
     }
     
-    HashMap<NodeID, List<Integer>> datagramData = new HashMap<NodeID, List<Integer>>();
-    // dph
-    HashMap<NodeID, List<Integer>> streamData = new HashMap<NodeID, List<Integer>>();
-    
+    /// Partial datagrams, streams and addressed messages.
+    final FrameReassembler reassembler = new FrameReassembler();
+    /// Arrival time of the frame being processed.
+    private long frameTimeMsec;
+
+    /**
+     * Sets how long an incomplete multi-frame message is kept while no more frames arrive for
+     * it. Default is 3 seconds.
+     * @param msec timeout in milliseconds
+     */
+    public void setReassemblyTimeout(long msec) {
+        reassembler.setTimeout(msec);
+    }
+
     int getSourceID(CanFrame f) { return f.getHeader()&0x00000FFF; }
     int getMTI(CanFrame f) { return ( f.getHeader() & 0x00FFF000 ) >> 12; }
     EventID getEventID(CanFrame f) { return new EventID(f.getData()); }
@@ -91,38 +102,6 @@ public class MessageBuilder {
         return null;
     }
 
-    class AccumulationMemo {
-        long header;
-        NodeID source;
-        NodeID dest;
-        byte[] data;
-        
-        public AccumulationMemo(long header, NodeID source, NodeID dest, byte[] data) {
-            this.header = header;
-            this.source = source;
-            this.dest = dest;
-            this.data = data;
-        }
-        
-        public boolean equals(Object obj) {
-            if (! (obj instanceof AccumulationMemo) )
-                    return false;
-            
-            AccumulationMemo other = (AccumulationMemo)obj;
-            if (header != other.header) return false;
-            if ( ! source.equals(other.source)) return false;
-            if ( ! dest.equals(other.dest)) return false;
-            return true;
-        }
-        
-        // data varies in length, not considered.
-        public int hashCode() {
-            return (int)(header+dest.hashCode()+source.hashCode());
-        }
-    }
-    
-    HashMap<Integer, AccumulationMemo> accumulations = new HashMap<Integer, AccumulationMemo>();
-    
     List<Message> processFormat1(CanFrame f) {
         // MTI
         List<Message> retlist = new java.util.ArrayList<Message>();
@@ -135,32 +114,34 @@ public class MessageBuilder {
 
         if ( ((mti&0x008) != 0) && (f.getNumDataElements() >= 2) ) {
             // addressed message 
-            dest = map.getNodeID( ( (f.getElement(0) << 8) + (f.getElement(1) & 0xff) ) & 0xFFF );
-            AccumulationMemo mnew = new AccumulationMemo(f.getHeader(), source, dest, data);
-            // is header already in map?
-            AccumulationMemo mold = accumulations.get(f.getHeader());
-            if (mold == null) {
-                // no - start accumulation
-                accumulations.put(f.getHeader(),mnew);
-                mold = mnew;
+            int destAlias = ( (f.getElement(0) << 8) + (f.getElement(1) & 0xff) ) & 0xFFF;
+            dest = map.getNodeID(destAlias);
+            // 0x10: more frames follow; 0x20: not the first frame
+            int flags = f.getElement(0) & 0x30;
+            if (flags == 0) {
+                content = new byte[data.length-2];
+                System.arraycopy(data, 2, content, 0, content.length);
             } else {
-                // combine data into old one
-                byte[] newdata = new byte[mold.data.length+mnew.data.length-2];  // skip address
-                System.arraycopy(mold.data, 0, newdata, 0, mold.data.length);
-                System.arraycopy(mnew.data, 2, newdata, mold.data.length, mnew.data.length-2);
-                mold.data = newdata;
+                long key = FrameReassembler.addressedKey(mti, getSourceID(f), destAlias);
+                FrameReassembler.Buffer buffer;
+                if ((flags & 0x20) == 0) {
+                    buffer = reassembler.start(key, frameTimeMsec);
+                } else {
+                    buffer = reassembler.get(key, frameTimeMsec);
+                    if (buffer == null) {
+                        // the first frame was missed or the message timed out
+                        logger.log(Level.FINE, "dropped continuation frame of MTI 0x{0}",
+                                Integer.toHexString(mti));
+                        return retlist;
+                    }
+                }
+                buffer.append(f, 2);
+                if ((flags & 0x10) != 0) {
+                    // not the last frame, accumulate
+                    return retlist;
+                }
+                content = reassembler.finish(buffer);
             }
-            // see if final bit active
-            if ( (f.getElement(0) & 0x10 ) != 0) {
-                // no, accumulate
-                return retlist; // which is null right now
-            } 
-            // we're going to continue processing with the accumulated data
-            data = mold.data;
-            accumulations.remove(f.getHeader());
-
-            content = new byte[data.length-2];
-            System.arraycopy(data, 2, content, 0, content.length);
         }
         
         MessageTypeIdentifier value = MessageTypeIdentifier.get(mti);
@@ -284,11 +265,25 @@ public class MessageBuilder {
                 return retlist;
             // case StreamData is Format 7
             case StreamDataProceed:
-                retlist.add(new StreamDataProceedMessage(source,dest,content[2], content[3]));
+                // source stream, destination stream, flags(2)
+                retlist.add(new StreamDataProceedMessage(source,dest,content.length > 0 ?
+                        content[0] : -1, content.length > 1 ? content[1] : -1));
                 return retlist;
             case StreamDataComplete:
-                retlist.add(new StreamDataCompleteMessage(source,dest,content.length > 2 ?
-                        content[2] : -1, content.length > 3 ? content[3] : -1));
+                if (content.length > 1) {
+                    // hands on the stream data that did not fill a whole buffer
+                    byte destStreamID = content[1];
+                    FrameReassembler.Buffer buffer = reassembler.get(FrameReassembler
+                            .streamKey(getSourceID(f), ((f.getElement(0) << 8) + (f
+                                    .getElement(1) & 0xff)) & 0xFFF, destStreamID),
+                            frameTimeMsec);
+                    if (buffer != null) {
+                        retlist.add(new StreamDataSendMessage(source, dest, destStreamID,
+                                ByteSlice.wrap(reassembler.finish(buffer))));
+                    }
+                }
+                retlist.add(new StreamDataCompleteMessage(source,dest,content.length > 0 ?
+                        content[0] : -1, content.length > 1 ? content[1] : -1));
                 return retlist;
                 
             default:
@@ -296,80 +291,55 @@ public class MessageBuilder {
                 return null;
         }
     }
+    int getDatagramDestID(CanFrame f) { return (f.getHeader() & 0x00FFF000) >> 12; }
+
     List<Message> processFormat2(CanFrame f) {
         // datagram only-segment
-        NodeID source = map.getNodeID(getSourceID(f));
-        List<Integer> list = datagramData.get(source);
-        if (list == null) {
-            list = new ArrayList<Integer>();
-            // don't need to put it back, as we're doing just one
-        } else {
+        FrameReassembler.Buffer buffer = reassembler.get(FrameReassembler.datagramKey(
+                getSourceID(f), getDatagramDestID(f)), frameTimeMsec);
+        if (buffer != null) {
             // this is actually an error, datagram already in process for only-segment
+            reassembler.discard(buffer);
         }
-        for (int i = 0; i < f.getNumDataElements(); i++) {
-            list.add(f.getElement(i));
-        }
-        
-        // done, forward
-        
-        int[] data = new int[list.size()];
-        for (int i=0; i<list.size(); i++) {
-            data[i] = list.get(i);
-        }
-        List<Message> retlist = new java.util.ArrayList<Message>();
-        NodeID dest = map.getNodeID( (f.getHeader() & 0x00FFF000) >> 12);
-        retlist.add(new DatagramMessage(source, dest, data));
-        return retlist;
+        byte[] data = new byte[f.getNumDataElements()];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) f.getElement(i);
+        return datagramDone(f, ByteSlice.wrap(data));
     }
     List<Message> processFormat3(CanFrame f) {
         // datagram first-segment
-        NodeID source = map.getNodeID(getSourceID(f));
-        List<Integer> list = datagramData.get(source);
-        if (list == null) {
-            list = new ArrayList<Integer>();
-            datagramData.put(source, list);
-        } else {
-            // this is actually an error, datagram already in process for only-segment
-        }
-        for (int i = 0; i < f.getNumDataElements(); i++) {
-            list.add(f.getElement(i));
-        }
+        reassembler.start(FrameReassembler.datagramKey(getSourceID(f), getDatagramDestID(f)),
+                frameTimeMsec).append(f, 0);
         return null;
     }
     List<Message> processFormat4(CanFrame f) {
         // datagram middle-segment
-        NodeID source = map.getNodeID(getSourceID(f));
-        List<Integer> list = datagramData.get(source);
-        if (list == null) {
+        FrameReassembler.Buffer buffer = reassembler.get(FrameReassembler.datagramKey(
+                getSourceID(f), getDatagramDestID(f)), frameTimeMsec);
+        if (buffer == null) {
             // this is actually an error, should be already started
-            list = new ArrayList<Integer>();
-            datagramData.put(source, list);
-        }
-        for (int i = 0; i < f.getNumDataElements(); i++) {
-            list.add(f.getElement(i));
+            logger.fine("dropped datagram middle frame without a first frame");
+            return null;
         }
+        buffer.append(f, 0);
         return null;
     }
     List<Message> processFormat5(CanFrame f) {
         // datagram last
-        NodeID source = map.getNodeID(getSourceID(f));
-        List<Integer> list = datagramData.get(source);
-        if (list == null) {
-            list = new ArrayList<Integer>();
-        }
-        for (int i = 0; i < f.getNumDataElements(); i++) {
-            list.add(f.getElement(i));
-        }
-        
-        datagramData.put(source, null); // not accumulating any more
-        
-        int[] data = new int[list.size()];
-        for (int i=0; i<list.size(); i++) {
-            data[i] = list.get(i);
+        FrameReassembler.Buffer buffer = reassembler.get(FrameReassembler.datagramKey(
+                getSourceID(f), getDatagramDestID(f)), frameTimeMsec);
+        if (buffer == null) {
+            // this is actually an error, should be already started
+            logger.fine("dropped datagram last frame without a first frame");
+            return null;
         }
+        buffer.append(f, 0);
+        return datagramDone(f, ByteSlice.wrap(reassembler.finish(buffer)));
+    }
+    private List<Message> datagramDone(CanFrame f, ByteSlice payload) {
         List<Message> retlist = new java.util.ArrayList<Message>();
-        NodeID dest = map.getNodeID( (f.getHeader() & 0x00FFF000) >> 12);
-        retlist.add(new DatagramMessage(source, dest, data));
+        NodeID source = map.getNodeID(getSourceID(f));
+        NodeID dest = map.getNodeID(getDatagramDestID(f));
+        retlist.add(new DatagramMessage(source, dest, payload));
         return retlist;
     }
     List<Message> processFormat6(CanFrame f) {
@@ -378,38 +348,35 @@ public class MessageBuilder {
     }
     List<Message> processFormat7(CanFrame f) {
         // stream data
-        NodeID source = map.getNodeID(getSourceID(f));
-        // @todo need to define this  !!!!!!!!!!!!!!!!!!!!!!!!!!
-        int bufSize = 64;
+        if (f.getNumDataElements() < 1) return null;
         int destID = f.getElement(0);
-        // @todo support more than one stream per destination, use destID as key.
-        List<Integer> list = streamData.get(source);
-        if (list == null) {
-            list = new ArrayList<Integer>();
-        }
-        int n = Math.min(bufSize, f.getNumDataElements());
-        if(n < bufSize) {
-            // won't fill buffer, so add all
-            for (int i = 1; i < f.getNumDataElements(); i++) list.add(f.getElement(i));
+        int destAlias = getDatagramDestID(f);
+        long key = FrameReassembler.streamKey(getSourceID(f), destAlias, destID);
+        FrameReassembler.Buffer buffer = reassembler.get(key, frameTimeMsec);
+        if (buffer == null) {
+            buffer = reassembler.start(key, frameTimeMsec);
+        }
+        buffer.append(f, 1);
+        if (buffer.length < STREAM_BUFFER_SIZE) {
             return null;
-        } else {
-            // got a full buffer, fill it and send it on
-            for (int i = 1; i < n; i++) list.add(f.getElement(i));
-            int[] data = new int[list.size()];
-            for(int i=0; i<bufSize; i++) data[i] = list.get(i);
-            List<Message> retlist = new java.util.ArrayList<Message>();
-            NodeID dest = map.getNodeID( (f.getHeader() & 0x00FFF000) >> 12);
-            //retlist.add(new DatagramMessage(source, dest, data));
-            retlist.add(new StreamDataSendMessage(source, dest, (byte)destID, data));
-            // make a new List and fill it with the rest of received data
-            list = new ArrayList<Integer>();
-            for (int i=n; i<f.getNumDataElements(); i++) list.add(f.getElement(i));
-            return retlist;
         }
-        // @todo the list variable needs to be saved into the streamData map, otherwise we lose
-        // the accumulated bytes.
+        // got a full buffer, send it on; the remaining bytes start the next one
+        byte[] data = new byte[STREAM_BUFFER_SIZE];
+        System.arraycopy(buffer.data, 0, data, 0, STREAM_BUFFER_SIZE);
+        int rest = buffer.length - STREAM_BUFFER_SIZE;
+        System.arraycopy(buffer.data, STREAM_BUFFER_SIZE, buffer.data, 0, rest);
+        buffer.length = rest;
+        if (rest == 0) reassembler.discard(buffer);
+        List<Message> retlist = new java.util.ArrayList<Message>();
+        NodeID source = map.getNodeID(getSourceID(f));
+        NodeID dest = map.getNodeID(destAlias);
+        retlist.add(new StreamDataSendMessage(source, dest, (byte)destID, ByteSlice.wrap(data)));
+        return retlist;
     }
-        
+
+    /// Stream data is handed on in messages of this many bytes.
+    // @todo use the buffer size negotiated when the stream was initiated
+    static final int STREAM_BUFFER_SIZE = 64;
 
     /** 
      * Accept an OpenLCB Message, and convert to 
@@ -611,19 +578,17 @@ public class MessageBuilder {
         @Override
         public void handleDatagram(DatagramMessage msg, Connection sender){
             // must loop over data to send 8 byte chunks
-            int remains = msg.getData().length;
+            ByteSlice payload = msg.getPayload();
+            int remains = payload.length();
             int j = 0;
             boolean first = true;
             // always sends at least one datagram, even with zero bytes
             do {
                 int size = Math.min(8, remains);
-                int[] data = new int[size];
-                for (int i = 0; i<size; i++) {
-                    data[i] = msg.getData()[j++];
-                }
-                
                 OpenLcbCanFrame f = new OpenLcbCanFrame(0x00);
-                f.setDatagram(data, map.getAlias(msg.getDestNodeID()), first, remains <= 8);
+                f.setDatagram(payload, j, size, map.getAlias(msg.getDestNodeID()), first,
+                        remains <= 8);
+                j += size;
                 f.setSourceAlias(map.getAlias(msg.getSourceNodeID()));
                 retlist.add(f);
                 
@@ -639,16 +604,16 @@ public class MessageBuilder {
         public void handleStreamDataSend(StreamDataSendMessage msg, Connection sender){
             // dph
             // must loop over data to send 8 byte chunks
-            int remains = msg.getData().length;
+            ByteSlice payload = msg.getPayload();
+            int remains = payload.length();
             int j = 0;
             // always sends at least one stream message, even with zero bytes  ???????
             do {
                 int size = Math.min(7, remains);
                 byte[] data = new byte[size+1];
                 data[0] = msg.getDestinationStreamID();
-                for (int i = 0; i<size; i++) {
-                    data[i+1] = (byte)msg.getData()[j++];
-                }
+                payload.copyTo(j, data, 1, size);
+                j += size;
                 
                 OpenLcbCanFrame f = new OpenLcbCanFrame(map.getAlias(msg.getSourceNodeID()));
                 f.setStream(data, map.getAlias(msg.getDestNodeID()));
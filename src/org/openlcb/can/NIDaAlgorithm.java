@@ -1,7 +1,6 @@
 package org.openlcb.can;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.List;
 import java.util.logging.Logger;
 import org.openlcb.*;
 
@@ -16,26 +15,49 @@ import org.openlcb.*;
  */
 public class NIDaAlgorithm implements CanFrameListener {
 
+    /**
+     * Keeps several local nodes that reserve aliases on the same CAN link from picking the same
+     * alias. Frames sent by the link itself are not received back, so such a collision would
+     * not be detected otherwise.
+     */
+    interface AliasClaims {
+        /**
+         * @param alias alias about to be reserved
+         * @param owner algorithm reserving it
+         * @return true if the alias was free locally and is now held by the owner.
+         */
+        boolean claim(int alias, NIDaAlgorithm owner);
+
+        /// Gives up an alias held by the owner.
+        void release(int alias, NIDaAlgorithm owner);
+    }
+
     /// Callback to invoke when the alias was successfully reserved.
     private Runnable done;
     private CanFrameListener sendInterface;
-    private static Timer timer;
-    private TimerTask task;
+    private HashedWheelTimer timer;
+    private HashedWheelTimer.Timeout task;
+    private AliasClaims claims = null;
+    /// Alias currently held in the claims, or -1.
+    private int claimedAlias = -1;
+    private AliasReservationEngine engine = null;
+    /// Counts the check frame sequences sent; tells the engine which check a window belongs to.
+    private int attempt = 0;
+    private boolean disposed = false;
     private final static Logger logger = Logger.getLogger(NIDaAlgorithm.class.getName());
 
     private synchronized void scheduleTimer(long delay) {
-        task = new TimerTask() {
+        if (timer == null) {
+           // no timer in unit tests, or dispose occured before
+           // the task was scheduled.
+           return;
+        }
+        task = timer.schedule(new Runnable() {
         @Override
         public void run() {
             timerExpired();
         }
-        };
-        try {
-           timer.schedule(task, delay);
-        } catch (IllegalStateException | NullPointerException ise){
-           // the timer was canceled, dispose occured before
-           // the task was scheduled.
-        }
+        }, delay);
     }
 
     public NIDaAlgorithm(NodeID n) {
@@ -44,16 +66,49 @@ public class NIDaAlgorithm implements CanFrameListener {
     }
 
     public NIDaAlgorithm(NodeID n, CanFrameListener sendInterface) {
+        this(n, sendInterface, HashedWheelTimer.getDefault());
+    }
+
+    /**
+     * @param n             node ID to reserve an alias for
+     * @param sendInterface where to send the CAN frames
+     * @param timer         timer for the reservation delays, usually the one of the interface.
+     */
+    public NIDaAlgorithm(NodeID n, CanFrameListener sendInterface, HashedWheelTimer timer) {
         this(n);
         this.sendInterface = sendInterface;
-	if(timer == null ) {
-           timer = new Timer("OpenLCB NIDaAlgorithm Timer");
-	}
+        this.timer = timer;
+    }
+
+    /// Coordinates this reservation with the other local nodes on the same link.
+    synchronized void setAliasClaims(AliasClaims claims) {
+        this.claims = claims;
+    }
+
+    /**
+     * Lets the engine drive this reservation, batched with the other nodes on the same link,
+     * instead of running its own timers. Must be called before {@link #start}.
+     */
+    synchronized void setReservationEngine(AliasReservationEngine engine) {
+        this.engine = engine;
+    }
+
+    /// @return the node ID this algorithm reserves an alias for.
+    public NodeID getNodeID() {
+        return nid;
     }
 
     public void start(Runnable done) {
         this.done = done;
-        scheduleTimer(100);
+        AliasReservationEngine e;
+        synchronized (this) {
+            e = engine;
+        }
+        if (e != null) {
+            e.enqueue(this);
+        } else {
+            scheduleTimer(100);
+        }
     }
 
     public OpenLcbCanFrame nextFrame() {
@@ -78,7 +133,7 @@ public class NIDaAlgorithm implements CanFrameListener {
     
     public int getNIDa() { return nida.getNIDa(); }
 
-    public void processFrame(OpenLcbCanFrame f) {
+    public synchronized void processFrame(OpenLcbCanFrame f) {
         if (f == null) return; // as a convenience, ignore
 
         // System.out.println("process "+Integer.toHexString(f.getNodeIDa())
@@ -86,14 +141,39 @@ public class NIDaAlgorithm implements CanFrameListener {
 
         if (f.getSourceAlias() != nida.getNIDa()) return;  // not us
         if (f.isCIM() && complete) {
-            // CIM with our alias: send RIM
+            // CIM with our alias: send RIM. The reservation timer has long expired, so this
+            // needs a new one.
             index = 4;
-            cancelTimer();
+            scheduleTimer(0);
         } else {
             // other frame with our alias: reset and start over
-            index = 0;
-            complete = false;
-            nida.nextAlias();
+            restartLocked();
+        }
+    }
+
+    /**
+     * Gives up the current alias and reserves the next one, e.g. because another node was
+     * found using it.
+     * @param done invoked once the new alias is reserved.
+     */
+    public synchronized void restart(Runnable done) {
+        if (disposed) return;
+        this.done = done;
+        restartLocked();
+    }
+
+    private void restartLocked() {
+        boolean wasComplete = complete;
+        releaseClaim();
+        index = 0;
+        complete = false;
+        nida.nextAlias();
+        if (engine != null) {
+            engine.retry(this);
+        } else if (wasComplete) {
+            // No timer pending any more.
+            scheduleTimer(0);
+        } else {
             cancelTimer();
         }
     }
@@ -111,18 +191,78 @@ public class NIDaAlgorithm implements CanFrameListener {
     }
     
     protected void timerExpired() {
-        if (index == 0) {
-            while (index < 4) {
+        Runnable callback = null;
+        synchronized (this) {
+            if (index == 0) {
+                claimAlias();
+                while (index < 4) {
+                    sendInterface.send(nextFrame());
+                }
+                scheduleTimer(200);
+            } else if (index == 4) {
                 sendInterface.send(nextFrame());
-            }
-            scheduleTimer(200);
-        } else if (index == 4) {
-            sendInterface.send(nextFrame());
-            if (done != null) {
-                done.run();
+                callback = done;
                 done = null;
             }
         }
+        // Called without the lock held, as it typically calls into the interface.
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    /// Skips aliases used by other local nodes. Lock held.
+    private void claimAlias() {
+        if (claims == null) return;
+        while (claimedAlias != nida.getNIDa() && !claims.claim(nida.getNIDa(), this)) {
+            nida.nextAlias();
+        }
+        claimedAlias = nida.getNIDa();
+    }
+
+    /**
+     * Called by the engine to start a check window.
+     * @param out the four CID frames are appended here.
+     * @return the attempt the frames belong to, or -1 if there is nothing to check.
+     */
+    synchronized int checkFrames(List<OpenLcbCanFrame> out) {
+        if (disposed || index != 0) return -1;
+        claimAlias();
+        while (index < 4) {
+            out.add(nextFrame());
+        }
+        return ++attempt;
+    }
+
+    /**
+     * Called by the engine at the end of a check window.
+     * @param checkAttempt the attempt returned by {@link #checkFrames}
+     * @param out          the RID frame is appended here if the alias is still good.
+     * @return the callback to run after the RID frame was sent; null if the alias collided
+     * meanwhile.
+     */
+    synchronized Runnable reserveFrame(int checkAttempt, List<OpenLcbCanFrame> out) {
+        if (disposed || checkAttempt != attempt || index != 4 || complete) return null;
+        out.add(nextFrame());
+        Runnable callback = done;
+        done = null;
+        if (callback == null) {
+            // Re-reservation after a collision; nobody waits for it.
+            callback = new Runnable() {
+                @Override
+                public void run() {
+                }
+            };
+        }
+        return callback;
+    }
+
+    /// Gives back the alias held in the claims. Lock held.
+    private void releaseClaim() {
+        if (claims != null && claimedAlias >= 0) {
+            claims.release(claimedAlias, this);
+        }
+        claimedAlias = -1;
     }
     
     int index = 0;
@@ -136,9 +276,12 @@ public class NIDaAlgorithm implements CanFrameListener {
     }
 
     public void dispose(){
-       cancelTimer();  // dispose of the timer task
-       timer.cancel();
-       timer = null;
+       synchronized (this) {
+          timer = null;  // the timer is shared; just drop our task.
+          if (task != null) task.cancel();
+          releaseClaim();
+          disposed = true;
+       }
        done = null;
        complete = true;
     }
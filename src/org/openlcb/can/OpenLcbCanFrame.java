@@ -199,6 +199,15 @@ public class OpenLcbCanFrame implements CanFrame {
     data[5] = val[5];
   }
 
+  void setAMD(int alias, NodeID nid) {
+    init(alias);
+    setFrameTypeCAN();
+    setVariableField(AMD_VAR_FIELD);
+    length=6;
+    byte[] val = nid.getContents();
+    System.arraycopy(val, 0, data, 0, 6);
+  }
+
   void setAME(int alias, @Nullable NodeID nid) {
     init(alias);
     setFrameTypeCAN();
@@ -359,6 +368,27 @@ public class OpenLcbCanFrame implements CanFrame {
     data[7] = val[7];
   }
   
+  /**
+   * @return the destination alias of an addressed OpenLCB frame (addressed MTI, datagram or
+   * stream), or -1 for global messages and CAN control frames.
+   */
+  int getDestAlias() {
+      if (!isFrameTypeOpenLcb()) return -1;
+      switch (getOpenLcbFormat()) {
+          case FRAME_FORMAT_MTI:
+              if ((getVariableField() & 0x008) == 0 || length < 2) return -1;
+              return ((data[0] & 0xFF) << 8 | (data[1] & 0xFF)) & 0xFFF;
+          case FRAME_FORMAT_ADDRESSED_DATAGRAM_ALL:
+          case FRAME_FORMAT_ADDRESSED_DATAGRAM_FIRST:
+          case FRAME_FORMAT_ADDRESSED_DATAGRAM_MID:
+          case FRAME_FORMAT_ADDRESSED_DATAGRAM_LAST:
+          case FRAME_FORMAT_STREAM_CODE:
+              return getVariableField() & 0xFFF;
+          default:
+              return -1;
+      }
+  }
+
   // general, but not efficient
   boolean isDatagram() {
       return isFrameTypeOpenLcb() 
@@ -399,6 +429,24 @@ public class OpenLcbCanFrame implements CanFrame {
     }
   }
 
+    /**
+     * create a single datagram frame from a part of the payload
+     * @param payload      datagram payload
+     * @param from         index of the first byte of this frame in the payload
+     * @param count        number of bytes, up to 8
+     * @param destAlias    alias of the destination node
+     * @param first        true if this is the first of the payload
+     * @param last         true if this is the last of the payload
+     */
+  void setDatagram(ByteSlice payload, int from, int count, int destAlias, boolean first,
+                   boolean last) {
+    setDatagram(EMPTY_CONTENT, destAlias, first, last);
+    length = count;
+    payload.copyTo(from, data, 0, count);
+  }
+
+  private static final int[] EMPTY_CONTENT = new int[0];
+
   void setStream(byte[] content, int destAlias) {
       init(nodeAlias);
       setVariableField((FRAME_FORMAT_STREAM_CODE << 12) | destAlias);
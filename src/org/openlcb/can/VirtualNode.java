@@ -0,0 +1,141 @@
+package org.openlcb.can;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.openlcb.Connection;
+import org.openlcb.InitializationCompleteMessage;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.VerifiedNodeIDNumberMessage;
+
+/**
+ * An additional local node hosted by a {@link CanInterface}. It shares the CAN link, alias map,
+ * threads and message stack with the interface's own node, but has its own node ID and alias.
+ * Created by {@link CanInterface#addVirtualNode}.
+ * <p>
+ * The alias is reserved in parallel with the other nodes of the interface. Messages sent via
+ * {@link #getOutputConnection} before the reservation completes are held back and sent once the
+ * node has announced itself with Initialization Complete. Like all messages of the interface,
+ * they go out once the interface's own node is initialized.
+ * <p>
+ * Addressed messages for the node, from the bus or from other local nodes, are delivered to the
+ * handler given at creation. Global messages arrive on the interface's input connection, the
+ * same way as for the interface's own node, so a single listener there can serve all virtual
+ * nodes. Verify Node ID requests are answered by the interface.
+ * <p>
+ * If another node turns up using the alias, the interface gives it up and reserves a new one;
+ * meanwhile {@link #getAlias} returns -1 and outgoing messages are held.
+ */
+public class VirtualNode {
+    private final CanInterface host;
+    private final NodeID nodeId;
+    private final Connection handler;
+    final NIDaAlgorithm reservation;
+    private final Connection output;
+    // The following are guarded by this.
+    private int alias = -1;
+    /// Messages sent before the alias was reserved; null afterwards.
+    private List<Message> held = new ArrayList<>();
+    private boolean removed = false;
+
+    VirtualNode(CanInterface host, NodeID nodeId, Connection handler, NIDaAlgorithm
+            reservation) {
+        this.host = host;
+        this.nodeId = nodeId;
+        this.handler = handler;
+        this.reservation = reservation;
+        output = new Connection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+                send(msg);
+            }
+
+            @Override
+            public void registerStartNotification(ConnectionListener c) {
+                host.getInterface().getOutputConnection().registerStartNotification(c);
+            }
+        };
+    }
+
+    public NodeID getNodeID() {
+        return nodeId;
+    }
+
+    /// @return the CAN alias of the node, or -1 while it is being reserved.
+    public synchronized int getAlias() {
+        return alias;
+    }
+
+    /// @return true once the alias is reserved and the node has announced itself.
+    public synchronized boolean isReserved() {
+        return alias >= 0;
+    }
+
+    /**
+     * @return connection for sending messages on behalf of this node. The messages must have
+     * this node as their source.
+     */
+    public Connection getOutputConnection() {
+        return output;
+    }
+
+    /**
+     * Takes the node off the network: releases its alias and stops delivering messages to it.
+     */
+    public void remove() {
+        host.removeVirtualNode(this);
+    }
+
+    private synchronized void send(Message msg) {
+        if (removed) return;
+        if (held != null) {
+            held.add(msg);
+            return;
+        }
+        host.getInterface().getOutputConnection().put(msg, null);
+    }
+
+    /// Called by the host when the alias reservation is complete.
+    synchronized void reserved(int alias) {
+        if (removed) return;
+        this.alias = alias;
+        Connection out = host.getInterface().getOutputConnection();
+        out.put(new InitializationCompleteMessage(nodeId), null);
+        // Still under the lock, so that nothing overtakes the held messages.
+        for (Message m : held) {
+            out.put(m, null);
+        }
+        held = null;
+    }
+
+    /// Called by the host when another node was found using our alias.
+    synchronized void aliasLost() {
+        if (alias >= 0) alias = -1;
+    }
+
+    /// Called by the host when a new alias is reserved after a conflict.
+    synchronized void aliasChanged(int alias) {
+        if (removed) return;
+        this.alias = alias;
+    }
+
+    /// Called by the host when the node is taken off. @return the alias it had, or -1.
+    synchronized int removed() {
+        removed = true;
+        held = null;
+        return alias;
+    }
+
+    /// Announces the node in reply to a Verify Node ID request.
+    void sendVerified() {
+        send(new VerifiedNodeIDNumberMessage(nodeId));
+    }
+
+    /// Called by the host with every addressed message for this node.
+    void deliver(Message msg, Connection sender) {
+        synchronized (this) {
+            if (removed) return;
+        }
+        handler.put(msg, sender);
+    }
+}
@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.logging.Logger;
+import org.openlcb.OlcbExecutors;
 import org.openlcb.can.CanFrame;
 import org.openlcb.can.CanFrameListener;
 import org.openlcb.implementations.DatagramUtils;
@@ -34,11 +35,11 @@ public class GridConnectInput {
         this.input = input;
         this.listener = listener;
         this.onError = onError;
-        new Thread("openlcb-gc-input") {
+        OlcbExecutors.newThread(new Runnable() {
             public void run() {
                 threadBody();
             }
-        }.start();
+        }, "openlcb-gc-input", false).start();
     }
 
     private void threadBody() {
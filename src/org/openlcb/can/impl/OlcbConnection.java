@@ -12,6 +12,7 @@ import java.util.List;
 import java.util.Map;
 import org.openlcb.Connection;
 import org.openlcb.NodeID;
+import org.openlcb.OlcbExecutors;
 import org.openlcb.OlcbInterface;
 import org.openlcb.can.CanFrame;
 import org.openlcb.can.CanFrameListener;
@@ -49,11 +50,11 @@ public class OlcbConnection {
     }
 
     public void startConnect() {
-        new Thread("openlcb-connect") {
+        OlcbExecutors.newThread(new Runnable() {
             public void run() {
                 connect();
             }
-        }.start();
+        }, "openlcb-connect", false).start();
     }
 
     private Runnable mOnError = new Runnable() {
@@ -0,0 +1,286 @@
+package org.openlcb.cdi.impl;
+
+import org.openlcb.EventID;
+import org.openlcb.NodeID;
+import org.openlcb.implementations.EventTable;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Layout-wide reverse index of event ID configuration fields. Answers the question "which node
+ * and which configuration field uses event X" in constant time, without visiting the CDI of
+ * every node.
+ * <p>
+ * Every {@link ConfigRepresentation} added to the index is scanned for event ID fields once the
+ * CDI is loaded; the index then follows the UPDATE_ENTRY_DATA notifications of those fields, so
+ * it stays current as the caches are filled, reloaded or written. If an {@link EventTable} is
+ * given, each field that has a value is also registered there, with the source key
+ * {@code <node ID>/<CDI key>}.
+ */
+@ThreadSafe
+public class EventFieldIndex {
+    /**
+     * One configuration field of a node that holds an event ID.
+     */
+    public static class Field {
+        private final NodeID node;
+        private final ConfigRepresentation.EventEntry entry;
+        private final String description;
+        /// Follows the value changes of the entry.
+        private volatile PropertyChangeListener listener = null;
+        // The following are guarded by the index lock.
+        private EventID event = null;
+        private EventTable.EventTableEntryHolder holder = null;
+
+        Field(NodeID node, ConfigRepresentation.EventEntry entry, String description) {
+            this.node = node;
+            this.entry = entry;
+            this.description = description;
+        }
+
+        public NodeID getNodeID() {
+            return node;
+        }
+
+        /// @return the internal key of the configuration variable within the node's CDI.
+        public String getKey() {
+            return entry.key;
+        }
+
+        public ConfigRepresentation.EventEntry getEntry() {
+            return entry;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        /// @return the source key under which this field is registered in the event table.
+        public String getSourceKey() {
+            return sourceKey(node, entry.key);
+        }
+    }
+
+    /// Tracks the fields of one node.
+    private class NodeFields implements PropertyChangeListener {
+        final ConfigRepresentation rep;
+        final List<Field> fields = new ArrayList<>();
+
+        NodeFields(ConfigRepresentation rep) {
+            this.rep = rep;
+        }
+
+        /// Listens to the representation becoming available or being reloaded.
+        @Override
+        public void propertyChange(PropertyChangeEvent e) {
+            if (ConfigRepresentation.UPDATE_REP.equals(e.getPropertyName())) {
+                scan(this);
+            }
+        }
+    }
+
+    private final EventTable eventTable;
+    private final Map<Long, Field[]> byEvent = new HashMap<>();
+    private final Map<ConfigRepresentation, NodeFields> nodes = new IdentityHashMap<>();
+
+    /**
+     * @param eventTable if not null, all indexed fields are registered in this event table.
+     */
+    public EventFieldIndex(@Nullable EventTable eventTable) {
+        this.eventTable = eventTable;
+    }
+
+    /**
+     * @param node remote node
+     * @param key  CDI key of the event field
+     * @return the source key used for event table entries coming from this field.
+     */
+    public static String sourceKey(NodeID node, String key) {
+        return (node == null ? "mock" : node.toString()) + "/" + key;
+    }
+
+    /**
+     * Starts indexing the event fields of a node. If the CDI is not yet loaded, indexing starts
+     * when it is.
+     * @param rep configuration representation of the node.
+     */
+    public void addNode(ConfigRepresentation rep) {
+        NodeFields n;
+        synchronized (this) {
+            if (nodes.containsKey(rep)) return;
+            n = new NodeFields(rep);
+            nodes.put(rep, n);
+        }
+        rep.addPropertyChangeListener(n);
+        if (rep.getRoot() != null) {
+            scan(n);
+        }
+    }
+
+    /**
+     * Stops indexing a node and removes all its fields from the index and the event table.
+     * @param rep configuration representation of the node.
+     */
+    public void removeNode(ConfigRepresentation rep) {
+        NodeFields n;
+        synchronized (this) {
+            n = nodes.remove(rep);
+            if (n == null) return;
+        }
+        rep.removePropertyChangeListener(n);
+        clearFields(n);
+    }
+
+    /**
+     * Looks up which configuration fields use a given event.
+     * @param event event ID
+     * @return all fields currently set to this event ID; empty list if none.
+     */
+    @Nonnull
+    public List<Field> lookup(EventID event) {
+        Field[] l;
+        synchronized (this) {
+            l = byEvent.get(event.toLong());
+        }
+        if (l == null) return Collections.emptyList();
+        return Collections.unmodifiableList(Arrays.asList(l));
+    }
+
+    /// @return the number of distinct event IDs that are used by at least one field.
+    public synchronized int getEventCount() {
+        return byEvent.size();
+    }
+
+    /// @return the event ID a given field is currently indexed under, or null.
+    @Nullable
+    public synchronized EventID getIndexedEvent(Field f) {
+        return f.event;
+    }
+
+    /// Enumerates the event fields of a node and starts following their updates.
+    private void scan(final NodeFields n) {
+        // A reload of the CDI replaces all entry objects.
+        clearFields(n);
+        final List<Field> found = new ArrayList<>();
+        final NodeID node = n.rep.getRemoteNodeID();
+        n.rep.visit(new ConfigRepresentation.Visitor() {
+            @Override
+            public void visitEvent(ConfigRepresentation.EventEntry e) {
+                found.add(new Field(node, e, n.rep.getRemoteNodeAsString() + "." + e.key));
+            }
+        });
+        synchronized (this) {
+            if (nodes.get(n.rep) != n) return; // removed meanwhile
+            n.fields.addAll(found);
+        }
+        for (final Field f : found) {
+            f.listener = new PropertyChangeListener() {
+                @Override
+                public void propertyChange(PropertyChangeEvent e) {
+                    if (ConfigRepresentation.UPDATE_ENTRY_DATA.equals(e.getPropertyName())) {
+                        update(f);
+                    }
+                }
+            };
+            f.entry.addPropertyChangeListener(f.listener);
+            update(f);
+        }
+    }
+
+    /// Removes all fields of a node from the index.
+    private void clearFields(NodeFields n) {
+        List<Field> fields;
+        synchronized (this) {
+            fields = new ArrayList<>(n.fields);
+            n.fields.clear();
+        }
+        for (Field f : fields) {
+            if (f.listener != null) {
+                f.entry.removePropertyChangeListener(f.listener);
+            }
+            setEvent(f, null);
+        }
+    }
+
+    /// Called when the value of an event field may have changed.
+    private void update(Field f) {
+        setEvent(f, f.entry.getValue());
+    }
+
+    /// Moves a field to a new event ID in the index and in the event table.
+    private void setEvent(Field f, @Nullable EventID ev) {
+        EventTable.EventTableEntryHolder oldHolder;
+        synchronized (this) {
+            if (ev == null ? f.event == null : ev.equals(f.event)) return;
+            if (f.event != null) {
+                removeFromBucket(f.event.toLong(), f);
+            }
+            f.event = ev;
+            if (ev != null) {
+                long k = ev.toLong();
+                Field[] l = byEvent.get(k);
+                if (l == null) {
+                    l = new Field[]{f};
+                } else {
+                    l = Arrays.copyOf(l, l.length + 1);
+                    l[l.length - 1] = f;
+                }
+                byEvent.put(k, l);
+            }
+            oldHolder = f.holder;
+            f.holder = null;
+        }
+        // The event table sends notifications, so it is called without our lock held.
+        if (oldHolder != null) {
+            oldHolder.release();
+        }
+        if (ev != null && eventTable != null) {
+            EventTable.EventTableEntryHolder h = eventTable.addEvent(ev, f.description, f
+                    .getSourceKey());
+            synchronized (this) {
+                if (ev.equals(f.event) && f.holder == null) {
+                    f.holder = h;
+                    h = null;
+                }
+            }
+            if (h != null) {
+                // Superseded by a concurrent update.
+                h.release();
+            }
+        }
+    }
+
+    /// Removes a field from the list of an event. Must be called with the lock held.
+    private void removeFromBucket(long k, Field f) {
+        Field[] l = byEvent.get(k);
+        if (l == null) return;
+        int idx = -1;
+        for (int i = 0; i < l.length; ++i) {
+            if (l[i] == f) {
+                idx = i;
+                break;
+            }
+        }
+        if (idx < 0) return;
+        if (l.length == 1) {
+            byEvent.remove(k);
+            return;
+        }
+        Field[] nl = new Field[l.length - 1];
+        System.arraycopy(l, 0, nl, 0, idx);
+        System.arraycopy(l, idx + 1, nl, idx, l.length - idx - 1);
+        byEvent.put(k, nl);
+    }
+}
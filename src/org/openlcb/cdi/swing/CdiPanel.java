@@ -5,6 +5,7 @@ import org.openlcb.cdi.CdiRep;
 import org.openlcb.cdi.cmd.BackupConfig;
 import org.openlcb.cdi.cmd.RestoreConfig;
 import org.openlcb.cdi.impl.ConfigRepresentation;
+import org.openlcb.cdi.impl.EventFieldIndex;
 import org.openlcb.implementations.EventTable;
 import org.openlcb.implementations.MemoryConfigurationService;
 import org.openlcb.swing.EventIdTextField;
@@ -1360,6 +1361,11 @@ public class CdiPanel extends JPanel {
             boolean first = true;
             for (EventTable.EventTableEntry ee: elist) {
                 if (ee.isOwnedBy(eventTableEntryHolder)) continue;
+                // The same field registered by the layout-wide event index.
+                if (eventTableEntryHolder != null && ee.getSourceKey() != null && ee
+                        .getSourceKey().equals(eventTableEntryHolder.getEntry().getSourceKey())) {
+                    continue;
+                }
                 if (first) {
                     b.append("Other uses of this Event ID:<br>");
                     first = false;
@@ -1492,7 +1498,8 @@ public class CdiPanel extends JPanel {
                 eventNamesLabel.setVisible(false);
                 return;
             }
-            eventTableEntryHolder = eventTable.addEvent(id, getEventName());
+            eventTableEntryHolder = eventTable.addEvent(id, getEventName(), EventFieldIndex
+                    .sourceKey(rep.getRemoteNodeID(), entry.key));
             eventTableEntryHolder.getList().addPropertyChangeListener(eventListUpdateListener);
             updateEventDescriptionField(eventTableEntryHolder.getList());
         }
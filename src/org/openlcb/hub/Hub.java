@@ -6,6 +6,7 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.openlcb.OlcbExecutors;
 
 /**
  * Simple multi-threaded OpenLCB hub implementation.
@@ -37,7 +38,7 @@ public class Hub {
     public Hub(int port) {
         this.port = port;
         // create array server thread
-        Thread t = new Thread("openlcb-hub-output") {
+        Thread t = OlcbExecutors.newThread(new Runnable() {
             public void run() {
                 while (true) {
                     try {
@@ -53,8 +54,7 @@ public class Hub {
                     }
                 }
             }
-        };
-        t.setDaemon(true);
+        }, "openlcb-hub-output", true);
         t.start();
     }
     
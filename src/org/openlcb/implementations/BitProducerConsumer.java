@@ -6,7 +6,6 @@ import org.openlcb.EventID;
 import org.openlcb.EventMessage;
 import org.openlcb.EventState;
 import org.openlcb.IdentifyConsumersMessage;
-import org.openlcb.IdentifyEventsMessage;
 import org.openlcb.IdentifyProducersMessage;
 import org.openlcb.MessageDecoder;
 import org.openlcb.OlcbInterface;
@@ -25,6 +24,13 @@ public class BitProducerConsumer extends MessageDecoder {
     private final VersionedValue<Boolean> value;
     private final VersionedValueListener<Boolean> valueListener;
     private final int flags;
+    private final IdentifyEventsResponder.EventSource eventSource = new
+            IdentifyEventsResponder.EventSource() {
+        @Override
+        public void collectEvents(IdentifyEventsResponder.Collector c) {
+            collectIdentifiedEvents(c);
+        }
+    };
 
     public final static EventID nullEvent = new EventID(new byte[]{0, 0, 0, 0, 0, 0, 0, 0});
     //private final static Logger log = Logger.getLogger(VersionedValue.class.getCanonicalName());
@@ -74,6 +80,7 @@ public class BitProducerConsumer extends MessageDecoder {
             }
         };
         iface.registerMessageListener(this);
+        iface.getIdentifyEventsResponder().registerEventSource(eventSource);
         iface.getOutputConnection().registerStartNotification(new ConnectionListener() {
             @Override
             public void connectionActive(Connection c) {
@@ -159,8 +166,24 @@ public class BitProducerConsumer extends MessageDecoder {
         }
     }
 
+    /**
+     * Declares our events to the Identify Events responder.
+     * @param c collector of the responder
+     */
+    private void collectIdentifiedEvents(IdentifyEventsResponder.Collector c) {
+        if ((flags & IS_PRODUCER) != 0) {
+            if (!eventOn.equals(nullEvent)) c.addProducer(eventOn, getOnEventState());
+            if (!eventOff.equals(nullEvent)) c.addProducer(eventOff, getOffEventState());
+        }
+        if ((flags & IS_CONSUMER) != 0) {
+            if (!eventOn.equals(nullEvent)) c.addConsumer(eventOn, getOnEventState());
+            if (!eventOff.equals(nullEvent)) c.addConsumer(eventOff, getOffEventState());
+        }
+    }
+
     public void release() {
         iface.unRegisterMessageListener(this);
+        iface.getIdentifyEventsResponder().unRegisterEventSource(eventSource);
     }
 
     @Override
@@ -244,13 +267,6 @@ public class BitProducerConsumer extends MessageDecoder {
         setValueFromNetwork(isOn);
     }
 
-    @Override
-    public void handleIdentifyEvents(IdentifyEventsMessage msg, Connection sender) {
-        if (msg.getDestNodeID().equals(iface.getNodeId())) {
-            sendIdentifiedMessages(false);
-        }
-    }
-
     private void setValueFromNetwork(boolean isOn) {
         valueListener.setFromOwner(isOn);
     }
@@ -1,10 +1,7 @@
 package org.openlcb.implementations;
 
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -58,10 +55,18 @@ public class DatagramMeteringBuffer extends MessageDecoder {
      * @param tpe Thread pool in which threads associated with the buffer run.
      */
     public DatagramMeteringBuffer(Connection toDownstream,ThreadPoolExecutor tpe) {
+        this(toDownstream, tpe, HashedWheelTimer.getDefault());
+    }
+
+    /**
+     * @param toDownstream Connection object associated with the new buffer 
+     * @param tpe Thread pool in which threads associated with the buffer run.
+     * @param timer Timer for the datagram timeouts, usually the one of the interface.
+     */
+    public DatagramMeteringBuffer(Connection toDownstream,ThreadPoolExecutor tpe,
+                                  HashedWheelTimer timer) {
         threadPool = tpe;
-        if(timer == null){
-           timer = new Timer("OpenLCB-datagram-timer");
-        }
+        this.timer = timer;
         this.toDownstream = toDownstream;
         datagramComplete();
         
@@ -71,7 +76,7 @@ public class DatagramMeteringBuffer extends MessageDecoder {
     Connection toDownstream;
     Connection fromDownstream;
     MessageMemo currentMemo;
-    private Timer timer = null;
+    private volatile HashedWheelTimer timer;
     int timeoutMillis = TIMEOUT;
 
     /**
@@ -86,6 +91,8 @@ public class DatagramMeteringBuffer extends MessageDecoder {
     BlockingQueue<MessageMemo> queue = new LinkedBlockingQueue<MessageMemo>();
     int pendingEntries = 0;
     int threadPending = 0;
+    /// Number of datagram timeouts being processed right now. Guarded by this.
+    private int timeoutsRunning = 0;
 
     public void setTimeout(int timeoutMillis) {
         this.timeoutMillis = timeoutMillis;
@@ -131,18 +138,18 @@ public class DatagramMeteringBuffer extends MessageDecoder {
         waitForTimer();
     }
 
-    private void waitForTimer() {
-        final Semaphore s = new Semaphore(0);
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                s.release();
+    /**
+     * Waits until no datagram timeout of this buffer is being processed. The wheel timer is
+     * shared and has a coarse tick, so a task scheduled on it would make every flush wait for
+     * the next tick.
+     */
+    private synchronized void waitForTimer() {
+        while (timeoutsRunning > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return;
             }
-        }, 1);
-        try {
-            s.acquire();
-        } catch (InterruptedException e) {
-            return;
         }
     }
 
@@ -186,7 +193,7 @@ public class DatagramMeteringBuffer extends MessageDecoder {
         DatagramMessage message;
         Connection toDownstream;
         Connection toUpstream;
-        TimerTask timerTask;
+        HashedWheelTimer.Timeout timerTask;
 
         MessageMemo(DatagramMessage msg, Connection toUpstream, Connection toDownstream) {
             message = msg;
@@ -205,17 +212,25 @@ public class DatagramMeteringBuffer extends MessageDecoder {
         }
         
         void startTimeout() {
-            timerTask = new TimerTask(){
-                public void run(){
-                    timerExpired();
+            HashedWheelTimer t = timer;
+            timerTask = t == null ? null : t.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (DatagramMeteringBuffer.this) {
+                        ++timeoutsRunning;
+                    }
+                    try {
+                        timerExpired();
+                    } finally {
+                        synchronized (DatagramMeteringBuffer.this) {
+                            --timeoutsRunning;
+                            DatagramMeteringBuffer.this.notifyAll();
+                        }
+                    }
                 }
-            };
-            try {
-                timer.schedule(timerTask, timeoutMillis);
-            } catch( java.lang.IllegalStateException ise) {
-                logger.log(Level.WARNING, "Timer already canceled when starting timeout for datagram {0}", message != null ? message : " == null");
-            } catch( java.util.concurrent.RejectedExecutionException ree) {
-                logger.log(Level.WARNING, "Timer rejected execution when starting timeout for datagram {0}", message != null ? message : " == null");
+            }, timeoutMillis);
+            if (timerTask == null) {
+                logger.log(Level.WARNING, "Timer already stopped when starting timeout for datagram {0}", message != null ? message : " == null");
             }
         }
 
@@ -313,8 +328,11 @@ public class DatagramMeteringBuffer extends MessageDecoder {
             }
         }
         threadPool = null;
-        // and cancel the timer
-        timer.cancel();
+        // and cancel the pending timeout; the timer itself is shared.
+        MessageMemo m = currentMemo;
+        if (m != null && m.timerTask != null) {
+            m.timerTask.cancel();
+        }
         timer = null;
     }    
 
@@ -1,5 +1,8 @@
 package org.openlcb.implementations;
 
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.jcip.annotations.Immutable;
@@ -18,11 +21,14 @@ import org.openlcb.*;
  *
  * Does not handle retry of negative replies. For that, see {@link DatagramMeteringBuffer}.
  * <p>
+ * Payloads are passed as {@link ByteSlice} from the incoming message to the receive memo
+ * without copying; the {@code int[]} methods remain as adapters.
+ * <p>
  * Multiple copies of this can exist.  
  * <ul>
- * <li>Replies to sent datagrams are processed one-by-one here. This object
- *      can send to multiple destination nodes, but it cannot overlap sent messages:
- *      each send&amp;reply must be complete before the next is started.
+ * <li>Replies to sent datagrams are processed here. This object can have datagrams
+ *      outstanding to multiple destination nodes at the same time; the replies of one
+ *      node are matched to its datagrams in the order they were sent.
  * <li>Incoming datagrams for this node are forwarded to the receiving
  *      code, regardless of whether the sending node was ever a destination.
  * </ul>
@@ -54,11 +60,8 @@ public class DatagramService extends MessageDecoder {
      * @param memo    datagram to send
      */
     public void sendData(DatagramServiceTransmitMemo memo){
-        if (xmtMemo != null) {
-            logger.log(Level.SEVERE, "Overriding datagram transmit memo. old {0} new {1}", new Object[]{xmtMemo, memo}); //log
-        }
-        xmtMemo = memo;
-        Message m = new DatagramMessage(here, memo.dest, memo.data);
+        addTransmitMemo(memo);
+        Message m = new DatagramMessage(here, memo.dest, memo.getPayload());
         downstream.put(m, this);
     }
 
@@ -68,6 +71,15 @@ public class DatagramService extends MessageDecoder {
      * @param data    datagram payload
      */
     public void sendData(NodeID dest, int[] data){
+        sendData(dest, ByteSlice.fromInts(data));
+    }
+
+    /**
+     * Send data to layout
+     * @param dest    target node ID
+     * @param data    datagram payload
+     */
+    public void sendData(NodeID dest, ByteSlice data){
         DatagramServiceTransmitMemo memo = new DatagramServiceTransmitMemo(dest, data) {
             @Override
             public void handleSuccess(int flags) {}
@@ -75,8 +87,8 @@ public class DatagramService extends MessageDecoder {
             @Override
             public void handleFailure(int errorCode) {}
         };
-        xmtMemo = memo;
-        Message m = new DatagramMessage(here, memo.dest, memo.data);
+        addTransmitMemo(memo);
+        Message m = new DatagramMessage(here, memo.dest, data);
         downstream.put(m, this);
     }
 
@@ -91,17 +103,15 @@ public class DatagramService extends MessageDecoder {
         // forward
         int retval = DEFAULT_ERROR_CODE;
         ReplyMemo replyMemo = new ReplyMemo(msg, downstream, here, this);
-        if (msg.getData() == null) {
-            new Exception("Unexpected null content of datagram").printStackTrace();
-        }
-        if (msg.getData() != null && msg.getData().length == 0) {
+        ByteSlice payload = msg.getPayload();
+        if (payload.isEmpty()) {
             new Exception("Unexpected zero length content of datagram").printStackTrace();
         }
-        if (rcvMemo != null && msg.getData()!=null && msg.getData().length > 0 && rcvMemo.type == msg.getData()[0]) {
-            rcvMemo.handleData(msg.getSourceNodeID(), msg.getData(), replyMemo);
+        if (rcvMemo != null && !payload.isEmpty() && rcvMemo.type == payload.get(0)) {
+            rcvMemo.handleData(msg.getSourceNodeID(), payload, replyMemo);
             // check that client replied
             if (! replyMemo.hasReplied())
-                logger.log(Level.SEVERE, "No internal reply received to datagram with contents {0}", Utilities.toHexDotsString(msg.getData())); //log
+                logger.log(Level.SEVERE, "No internal reply received to datagram with contents {0}", payload); //log
         } else {
             // reject
             replyMemo.acceptData(retval);
@@ -114,10 +124,9 @@ public class DatagramService extends MessageDecoder {
      */
     @Override
     public void handleDatagramRejected(DatagramRejectedMessage msg, Connection sender){
-        if (xmtMemo != null && msg.getDestNodeID().equals(here) && xmtMemo.dest.equals(msg.getSourceNodeID()) ) {
-            if (msg.canResend()) return;
-            DatagramServiceTransmitMemo temp = xmtMemo;
-            xmtMemo = null;
+        if (!here.equals(msg.getDestNodeID()) || msg.canResend()) return;
+        DatagramServiceTransmitMemo temp = removeTransmitMemo(msg.getSourceNodeID());
+        if (temp != null) {
             temp.handleFailure(msg.getCode());
         }
     }
@@ -127,15 +136,38 @@ public class DatagramService extends MessageDecoder {
      */
     @Override
     public void handleDatagramAcknowledged(DatagramAcknowledgedMessage msg, Connection sender){
-        if (xmtMemo != null && msg.getDestNodeID().equals(here) && xmtMemo.dest.equals(msg.getSourceNodeID()) ) {
-            DatagramServiceTransmitMemo temp = xmtMemo;
-            xmtMemo = null;
+        if (!here.equals(msg.getDestNodeID())) return;
+        DatagramServiceTransmitMemo temp = removeTransmitMemo(msg.getSourceNodeID());
+        if (temp != null) {
             temp.handleSuccess(msg.getFlags());
         }
     }
 
+    private void addTransmitMemo(DatagramServiceTransmitMemo memo) {
+        synchronized (xmtMemos) {
+            ArrayDeque<DatagramServiceTransmitMemo> q = xmtMemos.get(memo.dest);
+            if (q == null) {
+                q = new ArrayDeque<>(2);
+                xmtMemos.put(memo.dest, q);
+            }
+            q.add(memo);
+        }
+    }
+
+    /// @return the oldest datagram sent to the given node that has no reply yet, or null.
+    private DatagramServiceTransmitMemo removeTransmitMemo(NodeID dest) {
+        synchronized (xmtMemos) {
+            ArrayDeque<DatagramServiceTransmitMemo> q = xmtMemos.get(dest);
+            if (q == null) return null;
+            DatagramServiceTransmitMemo memo = q.poll();
+            if (q.isEmpty()) xmtMemos.remove(dest);
+            return memo;
+        }
+    }
+
     DatagramServiceReceiveMemo rcvMemo;
-    DatagramServiceTransmitMemo xmtMemo;
+    /// Datagrams waiting for their reply, per destination in the order they were sent.
+    final Map<NodeID, ArrayDeque<DatagramServiceTransmitMemo>> xmtMemos = new HashMap<>();
     
     /**
      * Accept request to notify for a particular
@@ -196,6 +228,19 @@ public class DatagramService extends MessageDecoder {
             service.acceptData(DEFAULT_ERROR_CODE);
         }
 
+        /**
+         * Called by the datagram service with the payload as it came in. Overload this to
+         * avoid copying the payload; the default converts it and calls
+         * {@link #handleData(NodeID, int[], ReplyMemo)}.
+         *
+         * @param n       sender node ID (somewhere on the bus)
+         * @param data    payload that came
+         * @param service to reply to the datagram, see above.
+         */
+        public void handleData(NodeID n, ByteSlice data, ReplyMemo service) {
+            handleData(n, data.toIntArray(), service);
+        }
+
     }
     
     @Immutable
@@ -248,33 +293,43 @@ public class DatagramService extends MessageDecoder {
             this.dest = dest;
         }
 
+        public DatagramServiceTransmitMemo(NodeID dest, ByteSlice payload) {
+            this.payload = payload;
+            this.dest = dest;
+        }
+
         protected DatagramServiceTransmitMemo(NodeID dest) {
             this.data = null;  // sends zero-byte datagram
             this.dest = dest; 
         }
         
         protected int[] data;
+        /// Payload if given as a slice; takes precedence over data.
+        protected ByteSlice payload;
         final NodeID dest;
+
+        /// @return the datagram contents.
+        public ByteSlice getPayload() {
+            if (payload != null) return payload;
+            return ByteSlice.fromInts(data);
+        }
         
         @Override
         public boolean equals(Object o) {
             if (o == null) return false;
             if (! (o instanceof DatagramServiceTransmitMemo)) return false;
             DatagramServiceTransmitMemo m = (DatagramServiceTransmitMemo) o;
-            if (this.data.length != m.data.length) return false;
             if (this.dest != m.dest) return false;
-            for (int i = 0; i < this.data.length; i++)
-                if (this.data[i] != m.data[i]) return false;
-            return true;
+            return getPayload().equals(m.getPayload());
         } 
     
         @Override
         public String toString() {
-            return "DatagramServiceTransmitMemo to " + dest.toString() + ": "+Utilities.toHexDotsString(data);
+            return "DatagramServiceTransmitMemo to " + dest.toString() + ": "+getPayload();
         }
         
         @Override
-        public int hashCode() { return this.data.length+this.data[0]+dest.hashCode(); }
+        public int hashCode() { return getPayload().hashCode()+dest.hashCode(); }
         
         /**
          * Notifies that the datagram was accepted by the destination.
@@ -0,0 +1,200 @@
+package org.openlcb.implementations;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size table of counters keyed by a primitive long, with exponentially decayed rates.
+ * <p>
+ * Incrementing a counter is lock-free and does not allocate: the table uses open addressing with
+ * linear probing over atomic arrays. The number of distinct keys is bounded by the capacity
+ * given at construction; increments for keys that do not fit any more are added to an overflow
+ * counter instead. Rates are computed by {@link #decay}, which is expected to be called
+ * periodically from a single maintenance thread.
+ */
+public class DecayingCounterTable {
+    /// Maximum number of slots to probe before giving up.
+    private final static int MAX_PROBE = 16;
+
+    /// One snapshot entry of the table.
+    public static class Entry {
+        private final long key;
+        private final long count;
+        private final double rate;
+
+        Entry(long key, long count, double rate) {
+            this.key = key;
+            this.count = count;
+            this.rate = rate;
+        }
+
+        public long getKey() {
+            return key;
+        }
+
+        /// @return the total number of increments since the table was created.
+        public long getCount() {
+            return count;
+        }
+
+        /// @return the decayed rate in increments per second.
+        public double getRate() {
+            return rate;
+        }
+    }
+
+    private final int mask;
+    /// Keys of the slots. Zero means empty; the key zero itself is stored in the last slot.
+    private final AtomicLongArray keys;
+    /// Counts of the slots. The extra slot at index mask + 1 belongs to the key zero.
+    private final AtomicLongArray counts;
+    private final AtomicLong overflow = new AtomicLong();
+    // The following are only touched under the lock by the maintenance calls.
+    private final long[] lastCounts;
+    private final double[] rates;
+
+    /**
+     * @param capacity maximum number of distinct keys to track. Rounded up to a power of two,
+     *                 the table allocates twice this many slots to keep probe chains short.
+     */
+    public DecayingCounterTable(int capacity) {
+        int size = Integer.highestOneBit(Math.max(4, capacity) - 1) << 2;
+        mask = size - 1;
+        keys = new AtomicLongArray(size);
+        counts = new AtomicLongArray(size + 1);
+        lastCounts = new long[size + 1];
+        rates = new double[size + 1];
+    }
+
+    private static int hash(long key) {
+        key ^= (key >>> 33);
+        key *= 0xff51afd7ed558ccdL;
+        key ^= (key >>> 33);
+        return (int) key;
+    }
+
+    /// @return the slot for the key, or -1 if the table is full.
+    private int findSlot(long key, boolean insert) {
+        if (key == 0) return mask + 1;
+        int idx = hash(key) & mask;
+        for (int i = 0; i < MAX_PROBE; ++i) {
+            long k = keys.get(idx);
+            if (k == key) return idx;
+            if (k == 0) {
+                if (!insert) return -1;
+                if (keys.compareAndSet(idx, 0, key)) return idx;
+                // Someone else just took this slot; re-examine it.
+                if (keys.get(idx) == key) return idx;
+            }
+            idx = (idx + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Adds one to the counter of a key.
+     * @param key which counter to increment
+     * @return the new value of the counter, or 0 if the key could not be stored and was counted
+     * as overflow.
+     */
+    public long increment(long key) {
+        int slot = findSlot(key, true);
+        if (slot < 0) {
+            overflow.incrementAndGet();
+            return 0;
+        }
+        return counts.incrementAndGet(slot);
+    }
+
+    /// @return the number of increments for a given key.
+    public long getCount(long key) {
+        int slot = findSlot(key, false);
+        if (slot < 0) return 0;
+        return counts.get(slot);
+    }
+
+    /// @return the number of increments that could not be stored because the table was full.
+    public long getOverflowCount() {
+        return overflow.get();
+    }
+
+    /// @return the decayed rate of a key in increments per second.
+    public synchronized double getRate(long key) {
+        int slot = findSlot(key, false);
+        if (slot < 0) return 0;
+        return rates[slot];
+    }
+
+    /// @return how many distinct keys are stored.
+    public int size() {
+        int n = counts.get(mask + 1) != 0 ? 1 : 0;
+        for (int i = 0; i <= mask; ++i) {
+            if (keys.get(i) != 0) ++n;
+        }
+        return n;
+    }
+
+    /**
+     * Updates the decayed rates with the increments since the last call.
+     * @param elapsedMsec   time elapsed since the last call
+     * @param halfLifeMsec  after this much time, the weight of old samples halves.
+     */
+    public synchronized void decay(long elapsedMsec, double halfLifeMsec) {
+        if (elapsedMsec <= 0) return;
+        double alpha = Math.pow(0.5, elapsedMsec / halfLifeMsec);
+        for (int i = 0; i <= mask + 1; ++i) {
+            long c = counts.get(i);
+            long delta = c - lastCounts[i];
+            lastCounts[i] = c;
+            rates[i] = rates[i] * alpha + (delta * 1000.0 / elapsedMsec) * (1 - alpha);
+        }
+    }
+
+    private long keyAt(int slot) {
+        return slot > mask ? 0 : keys.get(slot);
+    }
+
+    private boolean isUsed(int slot) {
+        return slot > mask ? counts.get(slot) != 0 : keys.get(slot) != 0;
+    }
+
+    /**
+     * @param n how many entries to return
+     * @return the entries with the highest decayed rate, highest first.
+     */
+    public synchronized List<Entry> getTop(int n) {
+        Comparator<Entry> byRate = new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Double.compare(a.rate, b.rate);
+            }
+        };
+        PriorityQueue<Entry> q = new PriorityQueue<>(Math.max(1, n), byRate);
+        for (int i = 0; i <= mask + 1 && n > 0; ++i) {
+            if (!isUsed(i)) continue;
+            if (q.size() < n) {
+                q.add(new Entry(keyAt(i), counts.get(i), rates[i]));
+            } else if (q.peek().rate < rates[i]) {
+                q.poll();
+                q.add(new Entry(keyAt(i), counts.get(i), rates[i]));
+            }
+        }
+        List<Entry> ret = new ArrayList<>(q);
+        Collections.sort(ret, Collections.reverseOrder(byRate));
+        return ret;
+    }
+
+    /// @return all entries in the table, in no particular order.
+    public synchronized List<Entry> getAll() {
+        List<Entry> ret = new ArrayList<>();
+        for (int i = 0; i <= mask + 1; ++i) {
+            if (isUsed(i)) ret.add(new Entry(keyAt(i), counts.get(i), rates[i]));
+        }
+        return ret;
+    }
+}
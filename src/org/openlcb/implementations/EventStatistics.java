@@ -0,0 +1,303 @@
+package org.openlcb.implementations;
+
+import org.openlcb.AbstractConnection;
+import org.openlcb.Connection;
+import org.openlcb.EventID;
+import org.openlcb.EventMessage;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.OlcbInterface;
+import org.openlcb.ProducerConsumerEventReportMessage;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Instrumentation connection that collects statistics of the message traffic seen by an
+ * interface: message counts per MTI, per event ID, and event reports per producing node.
+ * <p>
+ * Register it on an interface with {@link OlcbInterface#registerMessageListener}; the
+ * constructor taking an interface does this automatically. Counting a message is lock-free and
+ * allocation-free; memory is bounded by the capacities given at construction. Exponentially
+ * decayed rates are updated periodically on the interface's timer, from which the hottest events
+ * and producers can be queried via {@link #getSnapshot} or via JMX after calling
+ * {@link #registerMBean}.
+ */
+public class EventStatistics extends AbstractConnection implements EventStatisticsMXBean {
+    private final static Logger logger = Logger.getLogger(EventStatistics.class.getName());
+    /// How often the decayed rates are updated.
+    public final static long DECAY_PERIOD_MSEC = 1000;
+    /// Default number of distinct event IDs and producers to track.
+    public final static int DEFAULT_CAPACITY = 4096;
+    /// How many entries the JMX top lists return.
+    private final static int JMX_TOP_N = 20;
+
+    /**
+     * Immutable snapshot of the statistics.
+     */
+    public static class Snapshot {
+        private final long totalMessages;
+        private final double messageRate;
+        private final List<DecayingCounterTable.Entry> mtis;
+        private final List<DecayingCounterTable.Entry> hotEvents;
+        private final List<DecayingCounterTable.Entry> hotProducers;
+
+        Snapshot(long totalMessages, double messageRate, List<DecayingCounterTable.Entry> mtis,
+                 List<DecayingCounterTable.Entry> hotEvents, List<DecayingCounterTable.Entry>
+                         hotProducers) {
+            this.totalMessages = totalMessages;
+            this.messageRate = messageRate;
+            this.mtis = Collections.unmodifiableList(mtis);
+            this.hotEvents = Collections.unmodifiableList(hotEvents);
+            this.hotProducers = Collections.unmodifiableList(hotProducers);
+        }
+
+        public long getTotalMessages() {
+            return totalMessages;
+        }
+
+        /// @return decayed rate of all messages, in messages per second.
+        public double getMessageRate() {
+            return messageRate;
+        }
+
+        /// @return counts and rates per MTI; the key of each entry is the MTI.
+        public List<DecayingCounterTable.Entry> getMtis() {
+            return mtis;
+        }
+
+        /// @return hottest events, highest rate first; the key is the event ID as a long.
+        public List<DecayingCounterTable.Entry> getHotEvents() {
+            return hotEvents;
+        }
+
+        /// @return hottest producers, highest rate first; the key is the node ID as a long.
+        public List<DecayingCounterTable.Entry> getHotProducers() {
+            return hotProducers;
+        }
+    }
+
+    private final OlcbInterface iface;
+    private final DecayingCounterTable mtiCounts = new DecayingCounterTable(64);
+    private final DecayingCounterTable eventCounts;
+    private final DecayingCounterTable producerCounts;
+    /// Human-readable names of the MTIs seen, filled in once per MTI.
+    private final Map<Integer, String> mtiNames = new ConcurrentHashMap<>();
+    private final AtomicLong totalMessages = new AtomicLong();
+    // Guarded by this.
+    private long lastTotal = 0;
+    private double messageRate = 0;
+    private long lastDecayMsec;
+    private double halfLifeMsec = 10000;
+    private TimerTask decayTask = null;
+    private ObjectName mbeanName = null;
+
+    /**
+     * Creates the statistics collector and registers it on an interface.
+     * @param iface interface whose traffic to count
+     */
+    public EventStatistics(OlcbInterface iface) {
+        this(iface, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates the statistics collector and registers it on an interface.
+     * @param iface    interface whose traffic to count, or null to not register anywhere (in
+     *                 which case the caller has to call {@link #decay} periodically).
+     * @param capacity how many distinct events and producers to track at most.
+     */
+    public EventStatistics(OlcbInterface iface, int capacity) {
+        this.iface = iface;
+        eventCounts = new DecayingCounterTable(capacity);
+        producerCounts = new DecayingCounterTable(capacity);
+        lastDecayMsec = System.currentTimeMillis();
+        if (iface != null) {
+            iface.registerMessageListener(this);
+            decayTask = new TimerTask() {
+                @Override
+                public void run() {
+                    decay(System.currentTimeMillis());
+                }
+            };
+            iface.getTimer().schedule(decayTask, DECAY_PERIOD_MSEC, DECAY_PERIOD_MSEC);
+        }
+    }
+
+    /**
+     * Sets how fast old traffic is forgotten in the rates.
+     * @param msec after this much time the weight of a past sample halves.
+     */
+    public synchronized void setHalfLifeMsec(double msec) {
+        halfLifeMsec = msec;
+    }
+
+    @Override
+    public void put(Message msg, Connection sender) {
+        totalMessages.incrementAndGet();
+        int mti = msg.getMTI();
+        if (mtiCounts.increment(mti) == 1) {
+            mtiNames.put(mti, msg.getClass().getSimpleName());
+        }
+        if (msg instanceof EventMessage) {
+            eventCounts.increment(((EventMessage) msg).getEventID().toLong());
+            NodeID src = msg.getSourceNodeID();
+            if (msg instanceof ProducerConsumerEventReportMessage && src != null) {
+                producerCounts.increment(src.toLong());
+            }
+        }
+    }
+
+    /**
+     * Updates the decayed rates. Called periodically from the timer.
+     * @param nowMsec current time in milliseconds
+     */
+    public synchronized void decay(long nowMsec) {
+        long elapsed = nowMsec - lastDecayMsec;
+        if (elapsed <= 0) return;
+        lastDecayMsec = nowMsec;
+        mtiCounts.decay(elapsed, halfLifeMsec);
+        eventCounts.decay(elapsed, halfLifeMsec);
+        producerCounts.decay(elapsed, halfLifeMsec);
+        long total = totalMessages.get();
+        double alpha = Math.pow(0.5, elapsed / halfLifeMsec);
+        messageRate = messageRate * alpha + ((total - lastTotal) * 1000.0 / elapsed) * (1 -
+                alpha);
+        lastTotal = total;
+    }
+
+    /**
+     * @param topN how many hot events and producers to return.
+     * @return a snapshot of the current statistics.
+     */
+    public Snapshot getSnapshot(int topN) {
+        double rate;
+        synchronized (this) {
+            rate = messageRate;
+        }
+        return new Snapshot(totalMessages.get(), rate, mtiCounts.getAll(), eventCounts.getTop
+                (topN), producerCounts.getTop(topN));
+    }
+
+    /// @return how many times a given event was seen.
+    public long getEventCount(EventID event) {
+        return eventCounts.getCount(event.toLong());
+    }
+
+    /// @return how many messages with a given MTI were seen.
+    public long getMtiCount(int mti) {
+        return mtiCounts.getCount(mti);
+    }
+
+    /// @return how many event reports a given node produced.
+    public long getProducerCount(NodeID node) {
+        return producerCounts.getCount(node.toLong());
+    }
+
+    @Override
+    public long getTotalMessageCount() {
+        return totalMessages.get();
+    }
+
+    @Override
+    public synchronized double getMessageRate() {
+        return messageRate;
+    }
+
+    /// @return the display name of an MTI.
+    private String mtiName(int mti) {
+        String hex = String.format("0x%04X", mti);
+        String name = mtiNames.get(mti);
+        return name == null ? hex : hex + " " + name;
+    }
+
+    @Override
+    public Map<String, Long> getMtiCounts() {
+        Map<String, Long> ret = new TreeMap<>();
+        for (DecayingCounterTable.Entry e : mtiCounts.getAll()) {
+            ret.put(mtiName((int) e.getKey()), e.getCount());
+        }
+        return ret;
+    }
+
+    @Override
+    public String[] getHotEvents() {
+        List<DecayingCounterTable.Entry> l = eventCounts.getTop(JMX_TOP_N);
+        String[] ret = new String[l.size()];
+        for (int i = 0; i < ret.length; ++i) {
+            DecayingCounterTable.Entry e = l.get(i);
+            ret[i] = String.format("%s %.2f/s (total %d)", new EventID(e.getKey()).toString(),
+                    e.getRate(), e.getCount());
+        }
+        return ret;
+    }
+
+    @Override
+    public String[] getHotProducers() {
+        List<DecayingCounterTable.Entry> l = producerCounts.getTop(JMX_TOP_N);
+        String[] ret = new String[l.size()];
+        for (int i = 0; i < ret.length; ++i) {
+            DecayingCounterTable.Entry e = l.get(i);
+            ret[i] = String.format("%012X %.2f/s (total %d)", e.getKey(), e.getRate(), e
+                    .getCount());
+        }
+        return ret;
+    }
+
+    @Override
+    public int getTrackedEventCount() {
+        return eventCounts.size();
+    }
+
+    @Override
+    public long getOverflowCount() {
+        return eventCounts.getOverflowCount() + producerCounts.getOverflowCount();
+    }
+
+    /**
+     * Exports these statistics to the platform MBean server.
+     * @param name distinguishes multiple interfaces in the same JVM.
+     */
+    public synchronized void registerMBean(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName n = new ObjectName("org.openlcb:type=EventStatistics,name=" + ObjectName
+                    .quote(name));
+            server.registerMBean(this, n);
+            mbeanName = n;
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to register event statistics MBean", e);
+        }
+    }
+
+    /**
+     * Stops collecting statistics and removes the MBean registration.
+     */
+    public synchronized void dispose() {
+        if (iface != null) {
+            iface.unRegisterMessageListener(this);
+        }
+        if (decayTask != null) {
+            decayTask.cancel();
+            decayTask = null;
+        }
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Failed to unregister event statistics MBean", e);
+            }
+            mbeanName = null;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.openlcb.implementations;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link EventStatistics}, exported via JMX.
+ */
+public interface EventStatisticsMXBean {
+    /// @return total number of messages seen.
+    long getTotalMessageCount();
+
+    /// @return decayed rate of all messages, in messages per second.
+    double getMessageRate();
+
+    /// @return number of messages seen per MTI, keyed by the MTI name (or hex value).
+    Map<String, Long> getMtiCounts();
+
+    /// @return the hottest events with their decayed rates, hottest first.
+    String[] getHotEvents();
+
+    /// @return the nodes producing the most event reports with their decayed rates.
+    String[] getHotProducers();
+
+    /// @return number of distinct events being tracked.
+    int getTrackedEventCount();
+
+    /// @return number of event messages that were not tracked because the tables were full.
+    long getOverflowCount();
+}
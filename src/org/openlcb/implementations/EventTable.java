@@ -26,6 +26,8 @@ import javax.annotation.concurrent.ThreadSafe;
 @ThreadSafe
 public class EventTable {
     private final HashMap<Long, EventInfo> entries = new HashMap<>();
+    /// Optional persistent backing store. Gets notified of every keyed entry change.
+    private volatile EventTableStore store = null;
 
     /// This property change notification is produced when the list of descriptions registered
     /// for a given event ID has changed (due to addition, removal or description change).
@@ -63,6 +65,42 @@ public class EventTable {
         return getEventInfo(event).add(description);
     }
 
+    /**
+     * Registers a new event description that comes from a well-defined source, such as a
+     * specific configuration field of a node. Such entries are remembered by the persistent
+     * store, if one is attached.
+     *
+     * @param event       event ID for which we want to add a new entry
+     * @param description the description of the new entry
+     * @param sourceKey   identifies where this entry comes from, e.g. node ID and CDI key. A
+     *                    later registration with the same key supersedes this one in the
+     *                    persistent store.
+     * @return Holder object that allows to change or remove the given entry. The caller must
+     * keep this and call the release method before going out of scope.
+     */
+    public EventTableEntryHolder addEvent(EventID event, String description, String sourceKey) {
+        return getEventInfo(event).add(description, sourceKey);
+    }
+
+    /**
+     * Attaches a persistent store. Called by the store itself.
+     * @param s the store, or null to detach.
+     */
+    void setStore(EventTableStore s) {
+        store = s;
+    }
+
+    /**
+     * Tells the persistent store (if any) about a live entry that was added or changed.
+     * @param e entry that was updated.
+     */
+    private void notifyStore(EventTableEntry e) {
+        EventTableStore s = store;
+        if (s != null && e.sourceKey != null && !e.cached) {
+            s.liveEntryUpdated(e);
+        }
+    }
+
     /**
      * Searches for registered events matching a given query. Results will be sorted according to
      * how well they match the query.
@@ -225,7 +263,35 @@ public class EventTable {
          * keep this and call the release method before going out of scope.
          */
         public EventTableEntryHolder add(String description) {
-            EventTableEntry newEntry = new EventTableEntry(description);
+            return add(description, null);
+        }
+
+        /**
+         * Adds a new entry for this event ID with a source key.
+         *
+         * @param description the description for the new entry.
+         * @param sourceKey   where this entry comes from, see
+         *                    {@link EventTable#addEvent(EventID, String, String)}. May be null.
+         * @return Holder object that allows to change or remove the given entry. The caller must
+         * keep this and call the release method before going out of scope.
+         */
+        public EventTableEntryHolder add(String description, String sourceKey) {
+            EventTableEntryHolder h = addInternal(description, sourceKey, false);
+            notifyStore(h.entry);
+            return h;
+        }
+
+        /**
+         * Adds an entry that was loaded from the persistent store and has not been confirmed
+         * by live data yet.
+         */
+        EventTableEntryHolder addCached(String description, String sourceKey) {
+            return addInternal(description, sourceKey, true);
+        }
+
+        private EventTableEntryHolder addInternal(String description, String sourceKey, boolean
+                cached) {
+            EventTableEntry newEntry = new EventTableEntry(description, sourceKey, cached);
             EventTableEntryHolder h = new EventTableEntryHolder(this, newEntry);
             newEntry.h = h;
             synchronized (entries) {
@@ -282,9 +348,15 @@ public class EventTable {
         String description;
         /// This is the holder object that the client has a reference to.
         EventTableEntryHolder h;
+        /// Where this entry comes from, or null if unknown.
+        final String sourceKey;
+        /// True if this entry was loaded from the persistent store.
+        final boolean cached;
 
-        EventTableEntry(String d) {
+        EventTableEntry(String d, String sourceKey, boolean cached) {
             description = d;
+            this.sourceKey = sourceKey;
+            this.cached = cached;
         }
 
         /**
@@ -311,6 +383,21 @@ public class EventTable {
             return holder == h;
         }
 
+        /**
+         * @return the source key this entry was registered with, or null.
+         */
+        public String getSourceKey() {
+            return sourceKey;
+        }
+
+        /**
+         * @return true if this entry was loaded from the persistent store and has not (yet) been
+         * confirmed by live data from the network.
+         */
+        public boolean isCached() {
+            return cached;
+        }
+
         /**
          * Replace the description of the current entry, notifying clients who are listening.
          * @param newDescription user-visible string describing the EventID's usage represented
@@ -322,6 +409,7 @@ public class EventTable {
                 description = newDescription;
             }
             h.event.notifyUpdated();
+            notifyStore(this);
         }
     }
 
@@ -0,0 +1,422 @@
+package org.openlcb.implementations;
+
+import org.openlcb.EventID;
+import org.openlcb.OlcbThreadFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent backing store for an {@link EventTable}.
+ * <p>
+ * Remembers the keyed entries of the event table (see
+ * {@link EventTable#addEvent(EventID, String, String)}) in an append-only log file, and puts
+ * them back into the event table at the next start, before the CDI of the nodes is read
+ * again. The file is read in one go and parsed on a background thread, so opening the store
+ * returns immediately. Entries coming from the file are marked as cached; as soon as live data
+ * arrives for the same source key, the cached entry is replaced and the file is updated if the
+ * event or description changed. When the log accumulates enough superseded records, it is
+ * compacted on the background thread by rewriting the live records to a new file.
+ * <p>
+ * File format: an 8-byte header, then records of: int length, byte type, long event ID,
+ * source key and description (each as an int length followed by UTF-8 bytes). A truncated
+ * record at the end (e.g. after a crash) is dropped.
+ */
+public class EventTableStore {
+    private final static Logger logger = Logger.getLogger(EventTableStore.class.getName());
+    private final static byte[] HEADER = "OLCBEVT1".getBytes(StandardCharsets.US_ASCII);
+    private final static byte TYPE_PUT = 1;
+    private final static byte TYPE_DELETE = 2;
+    /// Do not compact logs that have fewer records than this.
+    final static int MIN_COMPACT_RECORDS = 1000;
+
+    /// One persisted row.
+    private static class Record {
+        final long event;
+        final String description;
+
+        Record(long event, String description) {
+            this.event = event;
+            this.description = description;
+        }
+    }
+
+    private final EventTable table;
+    private final File file;
+    /// All file operations happen on this thread, in order.
+    private final ExecutorService ioThread;
+    private FileChannel channel = null;
+    // The following are guarded by this.
+    /// Latest record for each source key.
+    private final Map<String, Record> index = new HashMap<>();
+    /// Entries we put into the event table from the file, by source key.
+    private final Map<String, EventTable.EventTableEntryHolder> placeholders = new HashMap<>();
+    /// Source keys for which live data has been seen.
+    private final Set<String> liveKeys = new HashSet<>();
+    /// Number of records in the log, including superseded ones.
+    private int logRecords = 0;
+    private boolean loaded = false;
+    private boolean compactionPending = false;
+
+    /**
+     * Attaches a persistent store to an event table and starts loading the file in the
+     * background.
+     *
+     * @param table event table to back
+     * @param file  file to store the data in; will be created if it does not exist.
+     */
+    public EventTableStore(EventTable table, File file) {
+        this.table = table;
+        this.file = file;
+        ThreadPoolExecutor tpe = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new
+                LinkedBlockingQueue<Runnable>(), new OlcbThreadFactory());
+        tpe.allowCoreThreadTimeOut(true);
+        ioThread = tpe;
+        table.setStore(this);
+        ioThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * @return true when the file has been loaded.
+     */
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Blocks until all pending file operations are complete. Useful for testing.
+     */
+    public void flush() {
+        final Object done = new Object();
+        final boolean[] finished = new boolean[]{false};
+        ioThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (done) {
+                    finished[0] = true;
+                    done.notifyAll();
+                }
+            }
+        });
+        synchronized (done) {
+            while (!finished[0]) {
+                try {
+                    done.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return how many source keys the store knows about.
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Forgets everything about a given source, e.g. when a node has been removed from the
+     * layout. Removes the cached entry from the event table too.
+     *
+     * @param sourceKey the key to forget.
+     */
+    public void remove(String sourceKey) {
+        EventTable.EventTableEntryHolder h;
+        synchronized (this) {
+            h = placeholders.remove(sourceKey);
+            if (index.remove(sourceKey) == null) return;
+            appendLater(TYPE_DELETE, sourceKey, new Record(0, ""));
+        }
+        if (h != null) h.release();
+    }
+
+    /**
+     * Called by the event table when a live entry with a source key is added or changes its
+     * description.
+     *
+     * @param e the live entry.
+     */
+    void liveEntryUpdated(EventTable.EventTableEntry e) {
+        String key = e.getSourceKey();
+        long ev = e.getEvent().toLong();
+        String desc = e.getDescription();
+        EventTable.EventTableEntryHolder h;
+        synchronized (this) {
+            liveKeys.add(key);
+            h = placeholders.remove(key);
+            Record r = index.get(key);
+            if (r == null || r.event != ev || !r.description.equals(desc)) {
+                r = new Record(ev, desc);
+                index.put(key, r);
+                appendLater(TYPE_PUT, key, r);
+            }
+        }
+        // The cached entry is superseded by the live data.
+        if (h != null) h.release();
+    }
+
+    /**
+     * Queues a record to be appended to the log. Must be called with the lock held.
+     */
+    private void appendLater(final byte type, final String key, final Record r) {
+        ++logRecords;
+        ioThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                append(type, key, r);
+            }
+        });
+        maybeScheduleCompaction();
+    }
+
+    /**
+     * Schedules a compaction if the log has too much garbage. Must be called with the lock held.
+     */
+    private void maybeScheduleCompaction() {
+        if (!loaded || compactionPending) return;
+        if (logRecords < MIN_COMPACT_RECORDS || logRecords < 2 * index.size()) return;
+        compactionPending = true;
+        ioThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                compact();
+            }
+        });
+    }
+
+    /// Encodes a record, including its length prefix.
+    private static byte[] encode(byte type, String key, Record r) throws IOException {
+        ByteArrayOutputStream bs = new ByteArrayOutputStream();
+        DataOutputStream ds = new DataOutputStream(bs);
+        ds.writeInt(0); // placeholder for length
+        ds.writeByte(type);
+        ds.writeLong(r.event);
+        writeString(ds, key);
+        writeString(ds, r.description);
+        ds.flush();
+        byte[] b = bs.toByteArray();
+        ByteBuffer.wrap(b).putInt(0, b.length - 4);
+        return b;
+    }
+
+    private static void writeString(DataOutputStream ds, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        ds.writeInt(b.length);
+        ds.write(b);
+    }
+
+    private static String readString(ByteBuffer b) {
+        int len = b.getInt();
+        if (len < 0 || len > b.remaining()) {
+            throw new IllegalArgumentException("Bad string length " + len);
+        }
+        byte[] d = new byte[len];
+        b.get(d);
+        return new String(d, StandardCharsets.UTF_8);
+    }
+
+    /// Runs on the I/O thread.
+    private void append(byte type, String key, Record r) {
+        if (channel == null) return;
+        try {
+            ByteBuffer b = ByteBuffer.wrap(encode(type, key, r));
+            long pos = channel.size();
+            while (b.hasRemaining()) {
+                pos += channel.write(b, pos);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to write event table store " + file, e);
+        }
+    }
+
+    /**
+     * Runs on the I/O thread. Reads the file and rebuilds the index. The file is read into a
+     * heap buffer rather than mapped, because a mapping stays alive until it is garbage
+     * collected, and the file has to be truncated or replaced afterwards.
+     */
+    private void load() {
+        Map<String, Record> loadedIndex = new HashMap<>();
+        int records = 0;
+        try {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            long size = channel.size();
+            long valid = HEADER.length;
+            if (size < HEADER.length) {
+                channel.truncate(0);
+                channel.write(ByteBuffer.wrap(HEADER), 0);
+            } else {
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Event table store too large: " + file);
+                }
+                ByteBuffer m = ByteBuffer.allocate((int) size);
+                while (m.hasRemaining()) {
+                    if (channel.read(m, m.position()) < 0) break;
+                }
+                m.flip();
+                byte[] h = new byte[HEADER.length];
+                m.get(h);
+                if (!java.util.Arrays.equals(h, HEADER)) {
+                    throw new IOException("Not an event table store: " + file);
+                }
+                while (m.remaining() >= 4) {
+                    int len = m.getInt();
+                    if (len < 17 || len > m.remaining()) break; // truncated tail
+                    ByteBuffer rec = m.slice();
+                    rec.limit(len);
+                    m.position(m.position() + len);
+                    try {
+                        byte type = rec.get();
+                        long ev = rec.getLong();
+                        String key = readString(rec);
+                        String desc = readString(rec);
+                        if (type == TYPE_PUT) {
+                            loadedIndex.put(key, new Record(ev, desc));
+                        } else {
+                            loadedIndex.remove(key);
+                        }
+                    } catch (RuntimeException e) {
+                        break; // corrupt record
+                    }
+                    ++records;
+                    valid = m.position();
+                }
+                if (valid < size) {
+                    logger.log(Level.WARNING, "Dropping {0} bytes of damaged data at the end of "
+                            + "{1}", new Object[]{size - valid, file});
+                    channel.truncate(valid);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to load event table store " + file, e);
+            closeChannel();
+        }
+        List<Map.Entry<String, Record>> toAdd = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<String, Record> e : loadedIndex.entrySet()) {
+                if (liveKeys.contains(e.getKey())) continue; // live data has arrived already
+                index.put(e.getKey(), e.getValue());
+                toAdd.add(e);
+            }
+            logRecords += records;
+        }
+        for (Map.Entry<String, Record> e : toAdd) {
+            EventTable.EventTableEntryHolder h = table.getEventInfo(new EventID(e.getValue()
+                    .event)).addCached(e.getValue().description, e.getKey());
+            boolean superseded;
+            synchronized (this) {
+                superseded = liveKeys.contains(e.getKey());
+                if (!superseded) placeholders.put(e.getKey(), h);
+            }
+            // Live data arrived while we were adding the cached entry.
+            if (superseded) h.release();
+        }
+        synchronized (this) {
+            loaded = true;
+            maybeScheduleCompaction();
+        }
+    }
+
+    /**
+     * Rewrites the log file with only the current records. Runs on the I/O thread.
+     */
+    void compact() {
+        List<byte[]> data = new ArrayList<>();
+        try {
+            synchronized (this) {
+                compactionPending = false;
+                for (Map.Entry<String, Record> e : index.entrySet()) {
+                    data.add(encode(TYPE_PUT, e.getKey(), e.getValue()));
+                }
+                logRecords = data.size();
+            }
+            if (channel == null) return;
+            File tmp = new File(file.getPath() + ".tmp");
+            try (FileChannel out = new RandomAccessFile(tmp, "rw").getChannel()) {
+                out.truncate(0);
+                out.write(ByteBuffer.wrap(HEADER));
+                for (byte[] b : data) {
+                    out.write(ByteBuffer.wrap(b));
+                }
+                out.force(true);
+            }
+            closeChannel();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to compact event table store " + file, e);
+        }
+    }
+
+    /**
+     * Requests a compaction of the log file on the background thread.
+     */
+    public void compactNow() {
+        synchronized (this) {
+            compactionPending = true;
+        }
+        ioThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                compact();
+            }
+        });
+    }
+
+    private void closeChannel() {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignored
+        }
+        channel = null;
+    }
+
+    /**
+     * Writes out all pending changes, closes the file and detaches from the event table.
+     */
+    public void close() {
+        table.setStore(null);
+        ioThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeChannel();
+            }
+        });
+        ioThread.shutdown();
+        try {
+            ioThread.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package org.openlcb.implementations;
+
+import org.openlcb.Connection;
+import org.openlcb.ConsumerIdentifiedMessage;
+import org.openlcb.ConsumerRangeIdentifiedMessage;
+import org.openlcb.EventID;
+import org.openlcb.EventState;
+import org.openlcb.IdentifyEventsMessage;
+import org.openlcb.Message;
+import org.openlcb.MessageDecoder;
+import org.openlcb.NodeID;
+import org.openlcb.OlcbInterface;
+import org.openlcb.ProducerIdentifiedMessage;
+import org.openlcb.ProducerRangeIdentifiedMessage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimerTask;
+
+/**
+ * Central responder for the Identify Events message of the local node.
+ * <p>
+ * Producers and consumers register themselves as an {@link EventSource}. When an Identify
+ * Events message arrives for the local node, all registered sources are asked for their
+ * events, the results are sorted and deduplicated, contiguous blocks of events in unknown
+ * state are collapsed into Producer/Consumer Range Identified messages, and the resulting
+ * messages are sent out paced at a configurable share of the bus bandwidth, so that a node
+ * with thousands of events does not starve higher-priority traffic.
+ */
+public class IdentifyEventsResponder extends MessageDecoder {
+    /// How many event identified frames fit on a 125 kbps CAN bus per second (approximately).
+    public final static int FULL_BUS_FRAMES_PER_SECOND = 800;
+    /// How often the pacing timer sends a batch of messages.
+    final static int PACING_PERIOD_MSEC = 10;
+
+    /**
+     * Implement this interface and register with {@link #registerEventSource} to declare
+     * events on the network upon an Identify Events message.
+     */
+    public interface EventSource {
+        /**
+         * Reports all events this object currently produces or consumes.
+         * @param c collector to add the events to.
+         */
+        void collectEvents(Collector c);
+    }
+
+    /**
+     * Accumulates the produced and consumed events of all sources.
+     */
+    public static class Collector {
+        private long[] producers = new long[16];
+        private EventState[] producerStates = new EventState[16];
+        private int numProducers = 0;
+        private long[] consumers = new long[16];
+        private EventState[] consumerStates = new EventState[16];
+        private int numConsumers = 0;
+
+        /**
+         * Declares a produced event.
+         * @param event event ID
+         * @param state current state of the event
+         */
+        public void addProducer(EventID event, EventState state) {
+            if (numProducers == producers.length) {
+                producers = Arrays.copyOf(producers, numProducers * 2);
+                producerStates = Arrays.copyOf(producerStates, numProducers * 2);
+            }
+            producers[numProducers] = event.toLong();
+            producerStates[numProducers] = state;
+            ++numProducers;
+        }
+
+        /**
+         * Declares a consumed event.
+         * @param event event ID
+         * @param state current state of the event
+         */
+        public void addConsumer(EventID event, EventState state) {
+            if (numConsumers == consumers.length) {
+                consumers = Arrays.copyOf(consumers, numConsumers * 2);
+                consumerStates = Arrays.copyOf(consumerStates, numConsumers * 2);
+            }
+            consumers[numConsumers] = event.toLong();
+            consumerStates[numConsumers] = state;
+            ++numConsumers;
+        }
+    }
+
+    private final OlcbInterface iface;
+    private final List<EventSource> sources = new ArrayList<>();
+    /// Share of the bus bandwidth we are allowed to use, 0..1.
+    private double busShare = 0.25;
+    /// This many messages are sent out immediately before pacing starts.
+    private int burstSize = 32;
+    /// Blocks of unknown-state events smaller than this are not collapsed into a range.
+    private int minRangeSize = 4;
+    /// Messages that are still waiting to be sent out by the pacing timer.
+    private List<Message> pending = null;
+    private int pendingIndex = 0;
+    private TimerTask pacingTask = null;
+
+    public IdentifyEventsResponder(OlcbInterface iface) {
+        this.iface = iface;
+        iface.registerMessageListener(this);
+    }
+
+    public synchronized void registerEventSource(EventSource s) {
+        sources.add(s);
+    }
+
+    public synchronized void unRegisterEventSource(EventSource s) {
+        sources.remove(s);
+    }
+
+    /**
+     * Sets the share of the bus bandwidth the responses may use.
+     * @param share fraction of the bus, between 0 (exclusive) and 1 (inclusive).
+     */
+    public synchronized void setBusShare(double share) {
+        if (share <= 0 || share > 1) {
+            throw new IllegalArgumentException("Invalid bus share: " + share);
+        }
+        busShare = share;
+    }
+
+    /**
+     * @param size how many messages to send out immediately before pacing kicks in.
+     */
+    public synchronized void setBurstSize(int size) {
+        burstSize = Math.max(1, size);
+    }
+
+    /**
+     * @param size smallest number of contiguous unknown-state events that are collapsed into a
+     *             range identified message. Must be a power of two, at least 2.
+     */
+    public synchronized void setMinRangeSize(int size) {
+        if (size < 2 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Invalid minimum range size: " + size);
+        }
+        minRangeSize = size;
+    }
+
+    /**
+     * @return true if there are responses still waiting to be sent out.
+     */
+    public synchronized boolean isBusy() {
+        return pending != null;
+    }
+
+    @Override
+    public void handleIdentifyEvents(IdentifyEventsMessage msg, Connection sender) {
+        if (msg.getDestNodeID() != null && !msg.getDestNodeID().equals(iface.getNodeId())) {
+            return;
+        }
+        sendAllIdentified();
+    }
+
+    /**
+     * Collects the events of all registered sources and starts sending out the identified
+     * messages. Any response still in progress is abandoned, since the new one supersedes it.
+     */
+    public void sendAllIdentified() {
+        Collector c = new Collector();
+        List<EventSource> l;
+        synchronized (this) {
+            l = new ArrayList<>(sources);
+        }
+        for (EventSource s : l) {
+            s.collectEvents(c);
+        }
+        NodeID src = iface.getNodeId();
+        List<Message> msgs = new ArrayList<>(c.numProducers + c.numConsumers);
+        int minRange;
+        synchronized (this) {
+            minRange = minRangeSize;
+        }
+        encode(src, c.producers, c.producerStates, c.numProducers, true, minRange, msgs);
+        encode(src, c.consumers, c.consumerStates, c.numConsumers, false, minRange, msgs);
+        synchronized (this) {
+            cancelPacing();
+            int n = Math.min(burstSize, msgs.size());
+            for (Message m : msgs.subList(0, n)) {
+                iface.getOutputConnection().put(m, this);
+            }
+            if (n < msgs.size()) {
+                pending = msgs;
+                pendingIndex = n;
+                pacingTask = new TimerTask() {
+                    @Override
+                    public void run() {
+                        sendNextBatch();
+                    }
+                };
+                iface.getTimer().schedule(pacingTask, PACING_PERIOD_MSEC, PACING_PERIOD_MSEC);
+            }
+        }
+    }
+
+    /// @return how many messages we may send out in one pacing period.
+    private int getBatchSize() {
+        return Math.max(1, (int) (FULL_BUS_FRAMES_PER_SECOND * busShare * PACING_PERIOD_MSEC /
+                1000));
+    }
+
+    /// Called from the pacing timer. Sending only enqueues, so it is safe under the lock.
+    private synchronized void sendNextBatch() {
+        if (pending == null) return;
+        int end = Math.min(pending.size(), pendingIndex + getBatchSize());
+        for (Message m : pending.subList(pendingIndex, end)) {
+            iface.getOutputConnection().put(m, this);
+        }
+        pendingIndex = end;
+        if (end >= pending.size()) {
+            cancelPacing();
+        }
+    }
+
+    /// Stops the pacing timer. Must be called with the lock held.
+    private void cancelPacing() {
+        if (pacingTask != null) {
+            pacingTask.cancel();
+            pacingTask = null;
+        }
+        pending = null;
+        pendingIndex = 0;
+    }
+
+    /**
+     * Stops sending any outstanding responses.
+     */
+    public synchronized void dispose() {
+        cancelPacing();
+        iface.unRegisterMessageListener(this);
+    }
+
+    /**
+     * Turns a set of events into identified messages, collapsing blocks of unknown-state events
+     * into range messages where the protocol allows.
+     * @param src       source node ID for the messages
+     * @param events    event IDs, will be sorted in place
+     * @param states    event states, parallel to events
+     * @param count     number of valid entries in events and states
+     * @param producer  true to make producer messages, false for consumer messages
+     * @param minRange  smallest range to collapse
+     * @param output    generated messages are appended here
+     */
+    static void encode(NodeID src, long[] events, EventState[] states, int count, boolean
+            producer, int minRange, List<Message> output) {
+        // Sorts the events (as unsigned numbers), keeping the states with them.
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; ++i) order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compareUnsigned(events[a], events[b]));
+        long[] ev = new long[count];
+        EventState[] st = new EventState[count];
+        int n = 0;
+        for (int i = 0; i < count; ++i) {
+            long e = events[order[i]];
+            if (n > 0 && ev[n - 1] == e) continue; // duplicate
+            ev[n] = e;
+            st[n] = states[order[i]];
+            ++n;
+        }
+        int i = 0;
+        while (i < n) {
+            if (st[i] != EventState.Unknown) {
+                output.add(createIdentified(src, ev[i], st[i], producer));
+                ++i;
+                continue;
+            }
+            // Finds the end of the contiguous unknown-state run starting at i.
+            int j = i;
+            while (j + 1 < n && st[j + 1] == EventState.Unknown && ev[j + 1] == ev[j] + 1) {
+                ++j;
+            }
+            while (i <= j) {
+                int size = largestAlignedBlock(ev[i], j - i + 1);
+                if (size >= minRange) {
+                    output.add(createRange(src, ev[i], size, producer));
+                    i += size;
+                } else {
+                    output.add(createIdentified(src, ev[i], st[i], producer));
+                    ++i;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param base first event
+     * @param available how many contiguous events are there starting at base
+     * @return the size of the largest power-of-two block that starts at base, is aligned to its
+     * size, and fits into available.
+     */
+    static int largestAlignedBlock(long base, int available) {
+        int size = 1;
+        while (size <= (1 << 29) && (size << 1) <= available && (base & ((size << 1) - 1)) == 0) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    /**
+     * Creates the range identified message for an aligned block. The range is encoded by the
+     * trailing bits of the event ID being all equal and different from the next higher bit.
+     */
+    static Message createRange(NodeID src, long base, int size, boolean producer) {
+        long id;
+        if ((base & size) == 0) {
+            id = base | (size - 1);
+        } else {
+            id = base;
+        }
+        EventID e = new EventID(id);
+        if (producer) {
+            return new ProducerRangeIdentifiedMessage(src, e);
+        } else {
+            return new ConsumerRangeIdentifiedMessage(src, e);
+        }
+    }
+
+    private static Message createIdentified(NodeID src, long event, EventState state, boolean
+            producer) {
+        EventID e = new EventID(event);
+        if (producer) {
+            return new ProducerIdentifiedMessage(src, e, state);
+        } else {
+            return new ConsumerIdentifiedMessage(src, e, state);
+        }
+    }
+}
@@ -1,16 +1,20 @@
 package org.openlcb.implementations;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.Semaphore;
 import java.util.logging.Logger;
 import net.jcip.annotations.Immutable;
 import net.jcip.annotations.ThreadSafe;
+import org.openlcb.ByteSlice;
 import org.openlcb.FailureCallback;
+import org.openlcb.HashedWheelTimer;
 import org.openlcb.NoReturnCallback;
 import org.openlcb.NodeID;
 import org.openlcb.Utilities;
@@ -42,6 +46,12 @@ public class MemoryConfigurationService {
     private static final int SUBCMD_REPLY = 0x10;
     private static final int SUBCMD_ERROR = 0x08;
 
+    /// Error code of a request that got no reply in time.
+    public static final int ERROR_NO_REPLY = 0x1000;
+    /// Error code of a pipelined write that was not sent, because an earlier one to the same
+    /// node failed.
+    public static final int ERROR_CANCELLED = 0x2000;
+
     private static final int SUBCMD_WRITE = 0x00;
     private static final int SUBCMD_WRITE_STREAM = 0x20;
     private static final int SUBCMD_READ = 0x40;
@@ -55,7 +65,17 @@ public class MemoryConfigurationService {
      * @param downstream Connection in the direction of the layout
      */
     public MemoryConfigurationService(NodeID here, DatagramService downstream) {
-        retryTimer = new Timer("OpenLCB Memory Configuration Service Retry Timer");
+        this(here, downstream, HashedWheelTimer.getDefault());
+    }
+
+    /**
+     * @param here       our node ID
+     * @param downstream Connection in the direction of the layout
+     * @param retryTimer timer for the request retries, usually the one of the interface.
+     */
+    public MemoryConfigurationService(NodeID here, DatagramService downstream,
+                                      HashedWheelTimer retryTimer) {
+        this.retryTimer = retryTimer;
         this.here = here;
         this.downstream = downstream;   
         
@@ -70,20 +90,18 @@ public class MemoryConfigurationService {
             //
             // doesn't check for match of reply to memo, but eventually should.
             @Override
-            public synchronized void handleData(NodeID dest, int[] data, DatagramService.ReplyMemo
-                    service) {
+            public synchronized void handleData(NodeID dest, ByteSlice data,
+                                                DatagramService.ReplyMemo service) {
                 //log System.out.println("OLCB: handleData");
                 service.acceptData(0);
                 if (addrSpaceMemo != null) {
                     // doesn't handle decode of desc string, but should
-                    int space = data[2] & 0xFF;
-                    long highAddress = (((long) data[3] & 0xFF) << 24) | (((long) data[4] & 0xFF)
-                            << 16) | (((long) data[5] & 0xFF) << 8) | ((long) data[6] & 0xFF);
-                    int flags = data[7] & 0xFF;
+                    int space = data.get(2);
+                    long highAddress = data.getUint32(3);
+                    int flags = data.get(7);
                     long lowAddress = 0;
-                    if (data.length >= 11)
-                        lowAddress = (((long) data[8] & 0xFF) << 24) | (((long) data[9] & 0xFF)
-                                << 16) | (((long) data[10] & 0xFF) << 8) | ((long) data[11] & 0xFF);
+                    if (data.length() >= 11)
+                        lowAddress = data.getUint32(8);
 
                     McsAddrSpaceMemo memo = addrSpaceMemo;
                     addrSpaceMemo = null;
@@ -93,67 +111,78 @@ public class MemoryConfigurationService {
                 // config memo may trigger address space read, so do second
                 if (configMemo != null) {
                     // doesn't handle decode of name string, but should
-                    int commands = (data[2] << 8) + data[3];
-                    int options = data[4];
-                    int highSpace = data[5];
-                    int lowSpace = data[6];
+                    int commands = (data.get(2) << 8) + data.get(3);
+                    int options = data.get(4);
+                    int highSpace = data.get(5);
+                    int lowSpace = data.get(6);
                     McsConfigMemo memo = configMemo;
                     configMemo = null;
                     memo.handleConfigData(dest, commands, options, highSpace, lowSpace, "");
                     return;
                 }
                 /*
-                if (writeMemo != null && ((data[1] & 0xF0) == 0x10)) {
+                if (writeMemo != null && ((data.get(1) & 0xF0) == 0x10)) {
                     McsWriteMemo memo = writeMemo;
-                    long retAddress = DatagramUtils.parseLong(data, 2);
+                    long retAddress = data.getUint32(2);
                     if (retAddress != memo.address) {
                         logger.warning("Spurious write response datagram. Requested address=" +
                                 memo.address + " returned address=" + retAddress);
                         return;
                     }
                     writeMemo = null;
-                    boolean spaceByte = ((data[1] & 0x03) == 0);
-                    boolean failed = (data[1] & 0x08) != 0;
+                    boolean spaceByte = ((data.get(1) & 0x03) == 0);
+                    boolean failed = (data.get(1) & 0x08) != 0;
                     int codeOffset = 6;
                     if (spaceByte) ++codeOffset;
                     int code = failed ? 0x1000 : 0;
-                    if (data.length >= codeOffset + 2) {
-                        code = (data[codeOffset] << 8) + data[codeOffset + 1];
+                    if (data.length() >= codeOffset + 2) {
+                        code = (data.get(codeOffset) << 8) + data.get(codeOffset + 1);
                     }
                     memo.handleWriteReply(code);
                 }*/
                 if (writeStreamMemo != null) {
                     // figure out address space uses byte?
-                    boolean spaceByte = ((data[1] & 0x03) == 0);
+                    boolean spaceByte = ((data.get(1) & 0x03) == 0);
                     int spaceOfs = spaceByte ? 1 : 0;
                     McsWriteStreamMemo memo = writeStreamMemo;
                     writeStreamMemo = null;
                     // TODO: compare the incoming parameters to the information in the memo.
-                    if ((data[1] & 0x08) == 0) {
+                    if ((data.get(1) & 0x08) == 0) {
                         // OK
                         memo.handleSuccess();
                     } else {
                         // error
-                        memo.handleFailure("WriteStreamReply", DatagramUtils.parseErrorCode(data,
-                                6 + spaceOfs));
+                        memo.handleFailure("WriteStreamReply", data.getUint16(6 + spaceOfs));
                     }
                     return;
                 }
-                int requestCode = getRequestTypeFromResponseType(data[1]);
+                int requestCode = getRequestTypeFromResponseType(data.get(1));
+                boolean error = (data.get(1) & SUBCMD_ERROR) != 0;
+                McsRequestMemo awaited = takeAwaitingReply(dest, requestCode, data);
+                if (awaited != null) {
+                    List<McsRequestMemo> cancelled = error ? takeQueuedWrites(awaited) :
+                            Collections.<McsRequestMemo>emptyList();
+                    awaited.foundResponse = true;
+                    ((RequestWithReplyDatagram) awaited).handleResponseDatagram(data);
+                    failCancelled(cancelled);
+                    return;
+                }
                 RequestWithReplyDatagram memo = null;
                 McsRequestMemo rqMemo = null;
+                List<McsRequestMemo> cancelled = Collections.emptyList();
                 synchronized (this) {
                     if (pendingRequests.containsKey(requestCode)) {
                         rqMemo = pendingRequests.get(requestCode);
                         if (!rqMemo.getDest().equals(dest)) {
                             logger.warning("Spurious MemCfg response datagram " + Utilities
-                                    .toHexSpaceString(data)+": expected source " + rqMemo.getDest()
-                                    + " actual source " + dest);
+                                    .toHexSpaceString(data.toByteArray()) + ": expected source " +
+                                    rqMemo.getDest() + " actual source " + dest);
                             delayRetryMemo(rqMemo);
                             return;
                         }
                         if (!(rqMemo instanceof RequestWithReplyDatagram)) {
-                            logger.warning("Spurious MemCfg response datagram " + Utilities.toHexSpaceString(data)+
+                            logger.warning("Spurious MemCfg response datagram " + Utilities
+                                    .toHexSpaceString(data.toByteArray()) +
                                     ": the request memo does not support response datagrams. " +
                                     "Memo: " + rqMemo);
                             delayRetryMemo(rqMemo);
@@ -163,21 +192,23 @@ public class MemoryConfigurationService {
                         if (!memo.compareResponse(data)) {
                             logger.warning("Unexpected MemCfg response datagram from " + dest
                                     .toString() + ": " + memo + " payload " + Utilities
-                                    .toHexSpaceString(data));
+                                    .toHexSpaceString(data.toByteArray()));
                             delayRetryMemo(rqMemo);
                             return;
                         } else {
+                            if (error) cancelled = takeQueuedWrites(rqMemo);
                             checkAndPopMemo(rqMemo);
                         }
                     } else {
                         logger.warning("Could not find a matching memo for MemCfg response " +
                                 "datagram from " + dest.toString() + " payload " + Utilities
-                                .toHexSpaceString(data));
+                                .toHexSpaceString(data.toByteArray()));
                     }
                 }
                 if (memo != null) {
                     rqMemo.foundResponse = true;
                     memo.handleResponseDatagram(data);
+                    failCancelled(cancelled);
                 }
             }
         });
@@ -186,10 +217,11 @@ public class MemoryConfigurationService {
     
     NodeID here;
     DatagramService downstream;
-    private Timer retryTimer;
+    private final HashedWheelTimer retryTimer;
+    private volatile boolean disposed = false;
 
     public MemoryConfigurationService(MemoryConfigurationService mcs) {
-        this(mcs.here, mcs.downstream);
+        this(mcs.here, mcs.downstream, mcs.retryTimer);
     }
 
     public void setTimeoutMillis(long t) {
@@ -203,12 +235,14 @@ public class MemoryConfigurationService {
      */
     public void waitForTimer() throws InterruptedException {
         final Semaphore s = new Semaphore(0);
-        retryTimer.schedule(new TimerTask() {
+        if (retryTimer.schedule(new Runnable() {
             @Override
             public void run() {
                 s.release();
             }
-        }, 1);
+        }, 1) == null) {
+            return; // timer stopped
+        }
         s.acquire();
     }
 
@@ -260,14 +294,14 @@ public class MemoryConfigurationService {
          * returns true), then this function will be called with the response datagram payload.
          * @param data response datagram payload.
          */
-        void handleResponseDatagram(int[] data);
+        void handleResponseDatagram(ByteSlice data);
 
         /**
          * Returns true if the received response belongs to this request.
          * @param data datagram pyaload
          * @return true if the response is for this request
          */
-        boolean compareResponse(int[] data);
+        boolean compareResponse(ByteSlice data);
     }
 
     /**
@@ -314,8 +348,8 @@ public class MemoryConfigurationService {
          * @param data    the datagram contents
          * @return 7 if there is a separate space byte, 6 if the space is encoded in the low bits.
          */
-        protected int getPayloadOffset(int[] data) {
-            return 6 + ((data[1] & 0x3) != 0 ? 0 : 1);
+        protected int getPayloadOffset(ByteSlice data) {
+            return 6 + ((data.get(1) & 0x3) != 0 ? 0 : 1);
         }
 
         protected void fillRequest(int[] data) {
@@ -350,9 +384,9 @@ public class MemoryConfigurationService {
         }
 
         @Override
-        public boolean compareResponse(int[] data) {
-            if (data.length < (6 + getSpaceOffset())) return false;
-            if (address != DatagramUtils.parseLong(data, 2)) return false;
+        public boolean compareResponse(ByteSlice data) {
+            if (data.length() < (6 + getSpaceOffset())) return false;
+            if (address != data.getUint32(2)) return false;
             if (space != getSpaceFromPayload(data)) return false;
             return true;
         }
@@ -377,9 +411,9 @@ public class MemoryConfigurationService {
         }
 
         @Override
-        public void handleResponseDatagram(int[] data) {
-            if ((data[1] & SUBCMD_ERROR) != 0) {
-                failureCallback.handleFailure(DatagramUtils.parseErrorCode(data, getPayloadOffset(data)));
+        public void handleResponseDatagram(ByteSlice data) {
+            if ((data.get(1) & SUBCMD_ERROR) != 0) {
+                failureCallback.handleFailure(data.getUint16(getPayloadOffset(data)));
                 return;
             }
             handleSuccessResponse(data);
@@ -390,7 +424,7 @@ public class MemoryConfigurationService {
          * matching.
          * @param data payload of response datagram.
          */
-        protected abstract void handleSuccessResponse(int[] data);
+        protected abstract void handleSuccessResponse(ByteSlice data);
     }
 
     public static int getSpaceFromPayload(int[] data) {
@@ -398,6 +432,11 @@ public class MemoryConfigurationService {
         return data[6];
     }
 
+    public static int getSpaceFromPayload(ByteSlice data) {
+        if ((data.get(1) & 0x3) != 0) { return 0xFC + (data.get(1) & 0x3); }
+        return data.get(6);
+    }
+
     /**
      * Computes what the request type would be that caused this response command to arrive.
      * @param subCmd data[1] of an incoming response.
@@ -415,6 +454,9 @@ public class MemoryConfigurationService {
     // waiting a response. Must be synchronized(this) for all accesses.
     final Map<Integer, McsRequestMemo> pendingRequests = new HashMap<>(5);
     final Map<Integer, ArrayDeque<McsRequestMemo>> queuedRequests = new HashMap<>(5);
+    // Pipelined writes that the target accepted and that wait for their reply datagram, oldest
+    // first. They no longer block the pending queue. Must be synchronized(this) for all accesses.
+    final List<McsRequestMemo> awaitingReply = new ArrayList<>();
 
 
     /**
@@ -447,6 +489,88 @@ public class MemoryConfigurationService {
         }
     }
 
+    /**
+     * Moves an accepted pipelined write out of the pending queue, so that the next request can
+     * be sent while the target works on this one. Fails the write if the reply does not come in
+     * time.
+     * @param memo the memo whose datagram was acknowledged with reply pending.
+     */
+    private void awaitReply(final McsRequestMemo memo) {
+        synchronized (this) {
+            if (pendingRequests.get(memo.getRequestCode()) != memo) {
+                return; // the reply was faster than the datagram acknowledgement
+            }
+            awaitingReply.add(memo);
+        }
+        checkAndPopMemo(memo);
+        if (disposed) return;
+        retryTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (MemoryConfigurationService.this) {
+                    if (!awaitingReply.remove(memo) || disposed) return;
+                }
+                List<McsRequestMemo> cancelled = takeQueuedWrites(memo);
+                memo.failureCallback.handleFailure(ERROR_NO_REPLY);
+                failCancelled(cancelled);
+            }
+        }, timeoutMillis);
+    }
+
+    /**
+     * Takes the pipelined writes to the node of a failed one out of the queue, so that none of
+     * them reaches the node before the caller sent the failed write again.
+     * @param failed the request that failed.
+     * @return the writes taken out, in request order; pass them to {@link #failCancelled} after
+     * the failure of the request was reported.
+     */
+    private List<McsRequestMemo> takeQueuedWrites(McsRequestMemo failed) {
+        List<McsRequestMemo> taken = new ArrayList<>();
+        if (!(failed instanceof McsWriteMemo) || !((McsWriteMemo) failed).pipelined) {
+            return taken;
+        }
+        synchronized (this) {
+            ArrayDeque<McsRequestMemo> q = queuedRequests.get(failed.getRequestCode());
+            if (q == null) return taken;
+            for (Iterator<McsRequestMemo> it = q.iterator(); it.hasNext(); ) {
+                McsRequestMemo m = it.next();
+                if (m instanceof McsWriteMemo && ((McsWriteMemo) m).pipelined &&
+                        m.getDest().equals(failed.getDest())) {
+                    it.remove();
+                    taken.add(m);
+                }
+            }
+        }
+        return taken;
+    }
+
+    private static void failCancelled(List<McsRequestMemo> memos) {
+        for (McsRequestMemo m : memos) {
+            m.failureCallback.handleFailure(ERROR_CANCELLED);
+        }
+    }
+
+    /**
+     * Looks for the pipelined write a response datagram belongs to, and removes it.
+     * @param dest        sender of the response
+     * @param requestCode request type of the response
+     * @param data        response datagram payload
+     * @return the matching memo, or null if the response is for no pipelined write.
+     */
+    private McsRequestMemo takeAwaitingReply(NodeID dest, int requestCode, ByteSlice data) {
+        synchronized (this) {
+            for (Iterator<McsRequestMemo> it = awaitingReply.iterator(); it.hasNext(); ) {
+                McsRequestMemo memo = it.next();
+                if (memo.getRequestCode() == requestCode && memo.getDest().equals(dest) &&
+                        ((RequestWithReplyDatagram) memo).compareResponse(data)) {
+                    it.remove();
+                    return memo;
+                }
+            }
+        }
+        return null;
+    }
+
     /**
      *
      * @param memo a request memo
@@ -465,19 +589,18 @@ public class MemoryConfigurationService {
      */
     private void delayRetryMemo(final McsRequestMemo memo) {
         if (memo.numTries >= MAX_TRIES) {
-            // TODO: add proper error code.
             checkAndPopMemo(memo);
-            memo.failureCallback.handleFailure(0x1000);
+            memo.failureCallback.handleFailure(ERROR_NO_REPLY);
         }
-        TimerTask tt = new TimerTask() {
+        if (disposed) return;
+        retryTimer.schedule(new Runnable() {
             @Override
             public void run() {
-                if (memo.foundResponse) return;
+                if (disposed || memo.foundResponse) return;
                 if (!isBlockingPendingQueue(memo)) return;
                 sendRequest(memo);
             }
-        };
-        retryTimer.schedule(tt, timeoutMillis);
+        }, timeoutMillis);
     }
 
     private void sendRequest(final McsRequestMemo memo) {
@@ -493,6 +616,10 @@ public class MemoryConfigurationService {
                 }
                 if (memo instanceof RequestWithReplyDatagram &&
                         ((flags & DatagramService.FLAG_REPLY_PENDING) != 0)) {
+                    if (memo instanceof McsWriteMemo && ((McsWriteMemo) memo).pipelined) {
+                        awaitReply(memo);
+                        return;
+                    }
                     // Leave the memo in the pending, wait for reply datagram.
                     return;
                 }
@@ -510,8 +637,10 @@ public class MemoryConfigurationService {
 
             @Override
             public void handleFailure(int errorCode) {
+                List<McsRequestMemo> cancelled = takeQueuedWrites(memo);
                 checkAndPopMemo(memo);
                 memo.failureCallback.handleFailure(errorCode);
+                failCancelled(cancelled);
             }
         });
     }
@@ -543,6 +672,8 @@ public class MemoryConfigurationService {
 
         final byte[] data;
         final NoReturnCallback callback;
+        /// True if the next request may be sent before the reply of this one came back.
+        boolean pipelined = false;
 
         @Override
         public boolean equals(Object o) {
@@ -568,7 +699,7 @@ public class MemoryConfigurationService {
         }
 
         @Override
-        protected void handleSuccessResponse(int[] data) {
+        protected void handleSuccessResponse(ByteSlice data) {
             callback.handleSuccess();
         }
 
@@ -585,6 +716,30 @@ public class MemoryConfigurationService {
         request(new McsWriteMemo(dest, space, address, data, cb));
     }
 
+    /**
+     * Writes like {@link #requestWrite}, but does not hold up the following requests while the
+     * target is busy with this one. Once the target accepted the datagram and announced a write
+     * reply, the next queued request goes out; the reply is matched to the write by its
+     * address. The writes reach the target in the order they were requested. When a write fails,
+     * or its reply does not arrive in time, the pipelined writes to the same node that are still
+     * queued are not sent; they fail with {@link #ERROR_CANCELLED} after the failed one, so that
+     * the caller can send them again in order. Writes that were already sent are not affected.
+     * <p>
+     * Meant for long series of writes to one node, such as a firmware image.
+     *
+     * @param dest    target node
+     * @param space   memory space
+     * @param address where to write in the space
+     * @param data    bytes to write, at most 64
+     * @param cb      gets the result of this write
+     */
+    public void requestPipelinedWrite(NodeID dest, int space, long address, byte[] data,
+                                      McsWriteHandler cb) {
+        McsWriteMemo memo = new McsWriteMemo(dest, space, address, data, cb);
+        memo.pipelined = true;
+        request(memo);
+    }
+
     public interface McsReadHandler extends FailureCallback {
         /**
          * This function will be called upon successful read.
@@ -597,6 +752,26 @@ public class MemoryConfigurationService {
         void handleReadData(NodeID dest, int space, long address, byte[] data);
     }
 
+    /**
+     * Read handler that gets the returned data as it came in the response datagram, without
+     * a copy.
+     */
+    public interface McsReadSliceHandler extends McsReadHandler {
+        /**
+         * This function will be called upon successful read.
+         * @param dest the node ID from which the read happened
+         * @param space the space number from which the read happened
+         * @param address address within the space at where the read happened
+         * @param data the returned payload, at least one byte long.
+         */
+        void handleReadData(NodeID dest, int space, long address, ByteSlice data);
+
+        @Override
+        default void handleReadData(NodeID dest, int space, long address, byte[] data) {
+            handleReadData(dest, space, address, ByteSlice.wrap(data));
+        }
+    }
+
     static class McsReadMemo extends McsAddressedRequestMemo implements
             RequestWithReplyDatagram {
         public McsReadMemo(NodeID dest, int space, long address, int len, McsReadHandler
@@ -629,11 +804,13 @@ public class MemoryConfigurationService {
         }
 
         @Override
-        protected void handleSuccessResponse(int[] data) {
-            int payofs = getPayloadOffset(data);
-            byte[] response  = new byte[data.length - payofs];
-            DatagramUtils.intToByteArray(response, 0, data, payofs, response.length);
-            callback.handleReadData(dest, space, address, response);
+        protected void handleSuccessResponse(ByteSlice data) {
+            ByteSlice response = data.slice(getPayloadOffset(data));
+            if (callback instanceof McsReadSliceHandler) {
+                ((McsReadSliceHandler) callback).handleReadData(dest, space, address, response);
+            } else {
+                callback.handleReadData(dest, space, address, response.toByteArray());
+            }
         }
     }
 
@@ -954,6 +1131,7 @@ public class MemoryConfigurationService {
 
 
     public void dispose(){
-       retryTimer.cancel();
+       // The timer is shared; outstanding retries see the flag and do nothing.
+       disposed = true;
     }
 }
@@ -5,6 +5,9 @@ import org.openlcb.*;
 /**
  * Example of receiving a OpenLCB stream.
  *<p>
+ * Asks for the next buffer each time a whole buffer
+ * of data has arrived, however the sender split it
+ * into messages.
  *
  * @author  Bob Jacobsen   Copyright 2009
  * @version $Revision$
@@ -22,6 +25,8 @@ public class StreamReceiver extends MessageDecoder {
 
     byte sourceStreamID;
     byte destStreamID = 3;  //  notional value
+    int bufferSize;
+    int received;
 
     /**
      * Handle "Stream Init Request" message
@@ -30,6 +35,8 @@ public class StreamReceiver extends MessageDecoder {
         // send reply with same length
         int len = msg.getBufferSize();
         sourceStreamID = msg.getSourceStreamID();
+        bufferSize = len;
+        received = 0;
 
         Message m = new StreamInitiateReplyMessage(here, far, len, sourceStreamID, destStreamID);
         connection.put(m, this);
@@ -39,9 +46,14 @@ public class StreamReceiver extends MessageDecoder {
      * Handle "Stream Data Send" message
      */
     public void handleStreamDataSend(StreamDataSendMessage msg, Connection sender){
-        // send proceed reply
-        Message m = new StreamDataProceedMessage(here, far, sourceStreamID, destStreamID);
-        connection.put(m, this);
+        // send proceed reply for every full buffer
+        received += msg.getPayload().length();
+        int size = bufferSize > 0 ? bufferSize : received;
+        while (received >= size && received > 0) {
+            received -= size;
+            Message m = new StreamDataProceedMessage(here, far, sourceStreamID, destStreamID);
+            connection.put(m, this);
+        }
     }
 
 }
@@ -0,0 +1,163 @@
+package org.openlcb.implementations;
+
+import org.openlcb.ByteSlice;
+import org.openlcb.Connection;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.StreamDataCompleteMessage;
+import org.openlcb.StreamDataSendMessage;
+
+/**
+ * Sends the data of one OpenLCB stream, once the stream has been initiated.
+ * <p>
+ * The receiver grants one buffer of the negotiated size when it accepts the stream, and one more
+ * with every Stream Data Proceed message. The sender keeps count of the bytes it was granted and
+ * sends whenever some are left, instead of waiting for a proceed after each buffer; a receiver
+ * that has room for more than one buffer, or that answers before it has written the buffer
+ * away, keeps the data flowing without a round trip per buffer.
+ * <p>
+ * Large buffers are sent in several messages of equal size, at most {@link #MAX_CHUNK_SIZE}
+ * bytes each, so that the first bytes are on the wire while the rest of the buffer is still
+ * being framed. The messages carry slices of the data, nothing is copied.
+ * <p>
+ * Subclasses can hold back chunks with {@link #beforeChunk} and follow the transfer with
+ * {@link #onProgress} and {@link #onComplete}.
+ */
+public class StreamSender {
+    /// Largest number of bytes in one Stream Data Send message.
+    public static final int MAX_CHUNK_SIZE = 512;
+
+    private final NodeID here;
+    private final NodeID far;
+    private final byte sourceStreamID;
+    private final ByteSlice data;
+    private final Connection connection;
+    private final Connection self;
+
+    // The following are guarded by this.
+    private byte destStreamID;
+    private int bufferSize;
+    private int chunkSize;
+    private int credit = 0;
+    private int sent = 0;
+    private boolean started = false;
+    private boolean sending = false;
+    private boolean complete = false;
+
+    /**
+     * @param here           sending node
+     * @param far            receiving node
+     * @param sourceStreamID stream ID of the sender
+     * @param data           bytes to send; shared, not copied.
+     * @param c              where to send the messages
+     * @param self           passed as the sender of the messages, may be null
+     */
+    public StreamSender(NodeID here, NodeID far, byte sourceStreamID, ByteSlice data, Connection
+            c, Connection self) {
+        this.here = here;
+        this.far = far;
+        this.sourceStreamID = sourceStreamID;
+        this.data = data;
+        this.connection = c;
+        this.self = self;
+    }
+
+    /**
+     * Starts sending, with the first buffer granted.
+     * @param bufferSize   buffer size from the Stream Initiate Reply
+     * @param destStreamID stream ID of the receiver, from the Stream Initiate Reply
+     */
+    public synchronized void start(int bufferSize, byte destStreamID) {
+        if (started) return;
+        started = true;
+        this.bufferSize = Math.max(1, bufferSize);
+        this.destStreamID = destStreamID;
+        chunkSize = chunkSizeFor(this.bufferSize);
+        credit = this.bufferSize;
+        sendMore();
+    }
+
+    /// Grants another buffer; call for every Stream Data Proceed message of this stream.
+    public synchronized void proceed() {
+        if (!started || complete) return;
+        credit += bufferSize;
+        sendMore();
+    }
+
+    /**
+     * @param bufferSize negotiated buffer size
+     * @return the size of the messages a buffer is sent in.
+     */
+    static int chunkSizeFor(int bufferSize) {
+        int count = (bufferSize + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE;
+        return (bufferSize + count - 1) / count;
+    }
+
+    /// @return the size of the data messages, 0 before the start.
+    public synchronized int getChunkSize() {
+        return chunkSize;
+    }
+
+    /// @return number of bytes sent so far.
+    public synchronized int getSentCount() {
+        return sent;
+    }
+
+    /// @return true once all data and the Stream Data Complete message are sent.
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    private void sendMore() {
+        if (sending || complete) return;
+        final int size = Math.min(Math.min(chunkSize, credit), data.length() - sent);
+        if (size <= 0) {
+            if (sent == data.length()) {
+                complete = true;
+                connection.put(new StreamDataCompleteMessage(here, far, sourceStreamID,
+                        destStreamID), self);
+                onComplete();
+            }
+            return;
+        }
+        sending = true;
+        credit -= size;
+        beforeChunk(size, new Runnable() {
+            @Override
+            public void run() {
+                sendChunk(size);
+            }
+        });
+    }
+
+    private synchronized void sendChunk(int size) {
+        sending = false;
+        Message m = new StreamDataSendMessage(here, far, destStreamID, data.slice(sent, sent +
+                size));
+        sent += size;
+        connection.put(m, self);
+        onProgress(sent);
+        sendMore();
+    }
+
+    /**
+     * Called before each data message. The default sends right away.
+     * @param size number of bytes in the message
+     * @param send sends the message, may be run later on another thread; not running it stops
+     *             the transfer.
+     */
+    protected void beforeChunk(int size, Runnable send) {
+        send.run();
+    }
+
+    /**
+     * Called after each data message was handed to the connection.
+     * @param sentCount number of bytes sent so far
+     */
+    protected void onProgress(int sentCount) {
+    }
+
+    /// Called after the Stream Data Complete message was handed to the connection.
+    protected void onComplete() {
+    }
+}
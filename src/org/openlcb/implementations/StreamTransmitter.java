@@ -8,7 +8,8 @@ import org.openlcb.*;
  * This implementation is limited to sending 
  * from a fixed-size input array.  The protocol
  * permits continuous transmission, but this class
- * is not intended to implement that.
+ * is not intended to implement that. The data
+ * goes out through a {@link StreamSender}.
  *
  * @author  Bob Jacobsen   Copyright 2009
  * @version $Revision$
@@ -38,7 +39,7 @@ public class StreamTransmitter extends MessageDecoder {
     int bufferSize; 
     int[] bytes;
     Connection connection;
-    int nextIndex;
+    StreamSender streamSender;
     
     byte destStreamID;
     byte sourceStreamID = 4;  // notional value
@@ -52,32 +53,10 @@ public class StreamTransmitter extends MessageDecoder {
         this.bufferSize = msg.getBufferSize();
         this.destStreamID = msg.getDestinationStreamID();
         
-        // init transfer
-        nextIndex = 0;
-
-        // send data
-        sendNext();
-    }
-
-    void sendNext() {
-        //System.out.println("StreamTransmitter sendNext");
-        int size = Math.min(bufferSize, bytes.length-nextIndex);
-        int[] data = new int[size];
-        // copy the needed data
-        for (int i = 0; i<size; i++)
-            data[i] = bytes[nextIndex+i];
-        nextIndex = nextIndex+size;
-        
         // send data
-        Message m = new StreamDataSendMessage(here, far, destStreamID, data);
-        connection.put(m, this);
-        
-        // are we done?
-        if (nextIndex < bytes.length) return; // no, wait for Data Proceed message
-        
-        // yes, say we're done
-        m = new StreamDataCompleteMessage(here, far, sourceStreamID, destStreamID);
-        connection.put(m, this);
+        streamSender = new StreamSender(here, far, sourceStreamID, ByteSlice.fromInts(bytes),
+                connection, this);
+        streamSender.start(bufferSize, destStreamID);
     }
     
     /**
@@ -85,7 +64,7 @@ public class StreamTransmitter extends MessageDecoder {
      */
     public void handleStreamDataProceed(StreamDataProceedMessage msg, Connection sender){
         //System.out.println("StreamTransmitter handleStreamDataProceed");
-        sendNext();
+        if (streamSender != null) streamSender.proceed();
     }
     
 }
@@ -47,6 +47,15 @@ public abstract class AbstractNodeCache<T> extends MessageDecoder {
         return list;
     }
 
+    /**
+     * @param id node to look up
+     * @return the cache entry of the node, or null if the node has not been seen.
+     */
+    public synchronized T get(NodeID id) {
+        Integer i = index.get(id);
+        return i == null ? null : list.get(i);
+    }
+
     @Override
     public void handleProducerConsumerEventReport(ProducerConsumerEventReportMessage msg, Connection sender) {
         EventID evt = msg.getEventID();
@@ -0,0 +1,139 @@
+package org.openlcb.implementations.throttle;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.openlcb.Connection;
+import org.openlcb.HashedWheelTimer;
+import org.openlcb.Message;
+
+/**
+ * Rate limits the speed and function commands sent to one train node.
+ * <p>
+ * A command that comes less than the minimum interval after the previous send is held back. A
+ * newer command of the same kind, the speed or the same function, replaces the held one, so
+ * when the interval is over only the latest values go out. An emergency stop is sent right away,
+ * outside the rate limit, through the priority connection so that it goes ahead of the traffic
+ * queued on the interface, and drops the held speed command.
+ * <p>
+ * The messages are handed to the output connection under the lock of this object, so they keep
+ * the order in which they were decided.
+ */
+class CommandCoalescer {
+    private final Connection output;
+    private final Connection priorityOutput;
+    private final Connection sender;
+    private final HashedWheelTimer timer;
+
+    // The following are guarded by this.
+    private long minIntervalNanos;
+    private boolean sentAny = false;
+    private long lastSentNanos;
+    private Message pendingSpeed;
+    private final Map<Integer, Message> pendingFunctions = new LinkedHashMap<>();
+    private HashedWheelTimer.Timeout flushTimeout;
+    /// Tells a cancelled flush that is already running that it is stale.
+    private int flushGeneration = 0;
+
+    /**
+     * @param output          where to send the commands
+     * @param priorityOutput  where to send the emergency stop
+     * @param sender          passed as the sender of the messages
+     * @param timer           runs the delayed sends
+     * @param minIntervalMsec minimum time between two sends; 0 sends every command right away
+     */
+    CommandCoalescer(Connection output, Connection priorityOutput, Connection sender,
+                     HashedWheelTimer timer, long minIntervalMsec) {
+        this.output = output;
+        this.priorityOutput = priorityOutput;
+        this.sender = sender;
+        this.timer = timer;
+        this.minIntervalNanos = minIntervalMsec * 1000000;
+    }
+
+    synchronized void setMinInterval(long msec) {
+        minIntervalNanos = msec * 1000000;
+    }
+
+    synchronized long getMinInterval() {
+        return minIntervalNanos / 1000000;
+    }
+
+    /// @param m Set Speed command, replaces the one waiting to be sent.
+    synchronized void setSpeed(Message m) {
+        pendingSpeed = m;
+        sendOrSchedule();
+    }
+
+    /**
+     * @param fn function number
+     * @param m  Set Function command, replaces the one waiting to be sent for the same function.
+     */
+    synchronized void setFunction(int fn, Message m) {
+        pendingFunctions.put(fn, m);
+        sendOrSchedule();
+    }
+
+    /// @param m Emergency Stop command; sent right away, the held speed command is dropped.
+    synchronized void emergencyStop(Message m) {
+        pendingSpeed = null;
+        if (pendingFunctions.isEmpty()) cancelFlush();
+        priorityOutput.put(m, sender);
+    }
+
+    /// Sends the held commands right away.
+    synchronized void sendNow() {
+        cancelFlush();
+        flush();
+    }
+
+    private void sendOrSchedule() {
+        if (flushTimeout != null) return;
+        long wait = sentAny ? lastSentNanos + minIntervalNanos - System.nanoTime() : 0;
+        if (wait <= 0) {
+            flush();
+            return;
+        }
+        final int generation = flushGeneration;
+        flushTimeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CommandCoalescer.this) {
+                    if (generation != flushGeneration) return;
+                    flushTimeout = null;
+                    flush();
+                }
+            }
+        }, (wait + 999999) / 1000000);
+        if (flushTimeout == null) {
+            // Timer stopped; nothing would send later.
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (pendingSpeed == null && pendingFunctions.isEmpty()) return;
+        if (pendingSpeed != null) {
+            output.put(pendingSpeed, sender);
+            pendingSpeed = null;
+        }
+        for (Iterator<Message> it = pendingFunctions.values().iterator(); it.hasNext(); ) {
+            output.put(it.next(), sender);
+            it.remove();
+        }
+        markSent();
+    }
+
+    private void markSent() {
+        sentAny = true;
+        lastSentNanos = System.nanoTime();
+    }
+
+    private void cancelFlush() {
+        if (flushTimeout != null) {
+            flushTimeout.cancel();
+            flushTimeout = null;
+            ++flushGeneration;
+        }
+    }
+}
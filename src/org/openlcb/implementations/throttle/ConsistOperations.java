@@ -0,0 +1,372 @@
+package org.openlcb.implementations.throttle;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+import org.openlcb.Connection;
+import org.openlcb.HashedWheelTimer;
+import org.openlcb.Message;
+import org.openlcb.MessageDecoder;
+import org.openlcb.NodeID;
+import org.openlcb.OlcbInterface;
+import org.openlcb.messages.TractionControlReplyMessage;
+import org.openlcb.messages.TractionControlRequestMessage;
+
+/**
+ * Builds, changes and reads consists, waiting for the train nodes to confirm every step.
+ * <p>
+ * All attach and detach requests of one operation are sent together, to the lead and to the
+ * members, and each reply is matched to its request by the train, the subcommand and the node
+ * it is about. A request that is not answered within the timeout is sent again, up to the
+ * maximum number of tries. When all requests are answered the consist list of the lead is
+ * fetched: the length is queried, then all the entries at once, matched to the replies by their
+ * index. The operation completes with that list once it shows the requested change.
+ * <p>
+ * The futures are completed on the thread that delivers the messages of the interface; the
+ * code chained on them should not block.
+ */
+public class ConsistOperations extends MessageDecoder {
+    private final static Logger logger = Logger.getLogger(ConsistOperations.class.getName());
+    /// How long to wait for a reply before sending the request again.
+    public static final long DEFAULT_TIMEOUT_MSEC = 1000;
+    /// How many times a request is sent before the operation gives up on it.
+    public static final int DEFAULT_MAX_TRIES = 3;
+
+    /// One entry of a consist list.
+    public static final class Member {
+        private final NodeID node;
+        private final int flags;
+
+        /**
+         * @param node  train node
+         * @param flags consist flags according to the standard (eg. whether the unit runs
+         *              reversed, whether it gets function commands)
+         */
+        public Member(NodeID node, int flags) {
+            this.node = node;
+            this.flags = flags & 0xff;
+        }
+
+        public NodeID getNode() { return node; }
+
+        public int getFlags() { return flags; }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Member)) return false;
+            Member m = (Member) o;
+            return flags == m.flags && node.equals(m.node);
+        }
+
+        @Override
+        public int hashCode() {
+            return node.hashCode() * 31 + flags;
+        }
+
+        @Override
+        public String toString() {
+            return node + "/" + flags;
+        }
+    }
+
+    /// Tells that a consist operation did not reach the requested state.
+    public static class ConsistException extends Exception {
+        private final List<Member> consist;
+        private final List<NodeID> failed;
+
+        ConsistException(String message, List<Member> consist, List<NodeID> failed) {
+            super(message + ": " + failed);
+            this.consist = consist;
+            this.failed = failed;
+        }
+
+        /// @return the consist list of the lead as it was read after the changes.
+        public List<Member> getConsist() { return consist; }
+
+        /// @return the members that were not attached or detached as requested.
+        public List<NodeID> getFailed() { return failed; }
+    }
+
+    /// Identifies a request by what its reply carries.
+    private static final class Key {
+        final NodeID train;
+        final int subCmd;
+        /// Node of an attach or detach, index of a query, -1 for the length query.
+        final Object arg;
+
+        Key(NodeID train, int subCmd, Object arg) {
+            this.train = train;
+            this.subCmd = subCmd;
+            this.arg = arg;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return subCmd == k.subCmd && train.equals(k.train) && arg.equals(k.arg);
+        }
+
+        @Override
+        public int hashCode() {
+            return (train.hashCode() * 31 + subCmd) * 31 + arg.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "consist subcommand " + subCmd + " to " + train + " for " + arg;
+        }
+    }
+
+    /// A request waiting for its reply.
+    private final class Pending {
+        final Key key;
+        final Message request;
+        final CompletableFuture<TractionControlReplyMessage> future = new CompletableFuture<>();
+        // The following are guarded by this.
+        int tries = 0;
+        HashedWheelTimer.Timeout timeout;
+
+        Pending(Key key, Message request) {
+            this.key = key;
+            this.request = request;
+        }
+
+        synchronized void send() {
+            if (future.isDone()) return;
+            ++tries;
+            iface.getOutputConnection().put(request, ConsistOperations.this);
+            timeout = iface.getWheelTimer().schedule(this::expired, timeoutMsec);
+            if (timeout == null) fail("interface stopped");
+        }
+
+        synchronized void expired() {
+            if (future.isDone()) return;
+            if (tries < maxTries) {
+                logger.fine("No reply, sending again: " + key);
+                send();
+                return;
+            }
+            fail("no reply after " + tries + " tries");
+        }
+
+        synchronized void cancelTimeout() {
+            if (timeout != null) timeout.cancel();
+        }
+
+        private void fail(String why) {
+            pending.remove(key, this);
+            future.completeExceptionally(new TimeoutException(key + ": " + why));
+        }
+    }
+
+    private final OlcbInterface iface;
+    private final Map<Key, Pending> pending = new ConcurrentHashMap<>();
+    private volatile long timeoutMsec = DEFAULT_TIMEOUT_MSEC;
+    private volatile int maxTries = DEFAULT_MAX_TRIES;
+
+    public ConsistOperations(OlcbInterface iface) {
+        this.iface = iface;
+        iface.registerMessageListener(this);
+    }
+
+    /// Stops listening to the interface. The operations in progress are cancelled.
+    public void dispose() {
+        iface.unRegisterMessageListener(this);
+        for (Pending p : pending.values()) {
+            p.cancelTimeout();
+            p.future.cancel(false);
+        }
+        pending.clear();
+    }
+
+    public void setTimeout(long msec) { timeoutMsec = msec; }
+
+    public long getTimeout() { return timeoutMsec; }
+
+    public void setMaxTries(int tries) { maxTries = Math.max(1, tries); }
+
+    public int getMaxTries() { return maxTries; }
+
+    /**
+     * Adds units to the consist of a lead, or changes their flags. Like
+     * {@link TractionThrottle#addToConsist}, each member is attached to the lead and the lead to
+     * the member.
+     *
+     * @param lead    train node that leads the consist
+     * @param members units to attach, with their flags
+     * @return the consist list of the lead once it has all the members with the given flags;
+     * completes with a {@link ConsistException} if some members could not be attached.
+     */
+    public CompletableFuture<List<Member>> attach(final NodeID lead, final Collection<Member>
+            members) {
+        final Set<NodeID> failed = ConcurrentHashMap.newKeySet();
+        List<CompletableFuture<Void>> steps = new ArrayList<>();
+        NodeID src = iface.getNodeId();
+        for (Member m : members) {
+            steps.add(change(lead, m.getNode(), TractionControlRequestMessage
+                    .createConsistAttach(src, lead, m.getNode(), m.getFlags()), m.getNode(),
+                    failed));
+            steps.add(change(m.getNode(), lead, TractionControlRequestMessage
+                    .createConsistAttach(src, m.getNode(), lead, m.getFlags()), m.getNode(),
+                    failed));
+        }
+        return allOf(steps).thenCompose(v -> fetch(lead)).thenCompose(list -> {
+            for (Member m : members) {
+                if (!list.contains(m)) failed.add(m.getNode());
+            }
+            return verified("Attach failed", list, failed);
+        });
+    }
+
+    /**
+     * Removes units from the consist of a lead. Like {@link TractionThrottle#removeFromConsist},
+     * each member is detached from the lead and the lead from the member.
+     *
+     * @param lead    train node that leads the consist
+     * @param members units to detach
+     * @return the consist list of the lead once none of the members are in it; completes with
+     * a {@link ConsistException} if some members could not be detached.
+     */
+    public CompletableFuture<List<Member>> detach(final NodeID lead, final Collection<NodeID>
+            members) {
+        final Set<NodeID> failed = ConcurrentHashMap.newKeySet();
+        List<CompletableFuture<Void>> steps = new ArrayList<>();
+        NodeID src = iface.getNodeId();
+        for (NodeID n : members) {
+            steps.add(change(lead, n, TractionControlRequestMessage.createConsistDetach(src,
+                    lead, n), n, failed));
+            steps.add(change(n, lead, TractionControlRequestMessage.createConsistDetach(src, n,
+                    lead), n, failed));
+        }
+        return allOf(steps).thenCompose(v -> fetch(lead)).thenCompose(list -> {
+            for (Member m : list) {
+                if (members.contains(m.getNode())) failed.add(m.getNode());
+            }
+            return verified("Detach failed", list, failed);
+        });
+    }
+
+    /**
+     * Reads the consist list of a train. The entries are queried together once the length is
+     * known.
+     *
+     * @param lead train node
+     * @return the consist list, in the order of the train node.
+     */
+    public CompletableFuture<List<Member>> fetch(final NodeID lead) {
+        final NodeID src = iface.getNodeId();
+        return request(new Key(lead, TractionControlRequestMessage.SUBCMD_CONSIST_QUERY, -1),
+                TractionControlRequestMessage.createConsistLengthQuery(src, lead)).thenCompose(
+                r -> {
+            int length = r.getConsistLength();
+            final List<CompletableFuture<TractionControlReplyMessage>> entries = new
+                    ArrayList<>(length);
+            for (int i = 0; i < length; ++i) {
+                entries.add(request(new Key(lead, TractionControlRequestMessage
+                        .SUBCMD_CONSIST_QUERY, i), TractionControlRequestMessage
+                        .createConsistIndexQuery(src, lead, i)));
+            }
+            return allOf(entries).thenApply(v -> {
+                List<Member> list = new ArrayList<>(entries.size());
+                for (CompletableFuture<TractionControlReplyMessage> f : entries) {
+                    TractionControlReplyMessage e = f.join();
+                    NodeID n = e.getConsistQueryNodeID();
+                    if (n != null) list.add(new Member(n, e.getConsistQueryFlags()));
+                }
+                return list;
+            });
+        });
+    }
+
+    /**
+     * Sends an attach or detach request and records the member as failed if the train refuses
+     * it or does not answer.
+     */
+    private CompletableFuture<Void> change(NodeID train, NodeID about, Message request, final
+            NodeID member, final Set<NodeID> failed) {
+        int subCmd = ((TractionControlRequestMessage) request).getPayload()[1];
+        return request(new Key(train, subCmd, about), request).handle((r, e) -> {
+            if (e != null || r.getConsistChangeResult() != 0) failed.add(member);
+            return null;
+        });
+    }
+
+    private static CompletableFuture<List<Member>> verified(String what, List<Member> list,
+                                                            Set<NodeID> failed) {
+        CompletableFuture<List<Member>> f = new CompletableFuture<>();
+        if (failed.isEmpty()) {
+            f.complete(Collections.unmodifiableList(list));
+        } else {
+            f.completeExceptionally(new ConsistException(what, Collections.unmodifiableList(list),
+                    new ArrayList<>(failed)));
+        }
+        return f;
+    }
+
+    private static CompletableFuture<Void> allOf(List<? extends CompletableFuture<?>> l) {
+        return CompletableFuture.allOf(l.toArray(new CompletableFuture<?>[l.size()]));
+    }
+
+    /**
+     * Sends a request. A request with the same key that is still waiting is answered first,
+     * since the replies could not be told apart.
+     */
+    private CompletableFuture<TractionControlReplyMessage> request(final Key key, final Message
+            m) {
+        Pending p = new Pending(key, m);
+        Pending old = pending.putIfAbsent(key, p);
+        if (old != null) {
+            return old.future.handle((r, e) -> null).thenCompose(v -> request(key, m));
+        }
+        p.send();
+        return p.future;
+    }
+
+    private boolean complete(Key key, TractionControlReplyMessage msg) {
+        Pending p = pending.remove(key);
+        if (p == null) return false;
+        p.cancelTimeout();
+        p.future.complete(msg);
+        return true;
+    }
+
+    @Override
+    public void handleTractionControlReply(TractionControlReplyMessage msg, Connection sender) {
+        if (!iface.getNodeId().equals(msg.getDestNodeID())) return;
+        byte[] p = msg.getPayload();
+        if (p.length < 2 || p[0] != TractionControlReplyMessage.CMD_CONSIST) return;
+        NodeID train = msg.getSourceNodeID();
+        int subCmd = p[1];
+        switch (subCmd) {
+            case TractionControlReplyMessage.SUBCMD_CONSIST_ATTACH:
+            case TractionControlReplyMessage.SUBCMD_CONSIST_DETACH: {
+                NodeID n = msg.getConsistChangeNodeID();
+                if (n != null) complete(new Key(train, subCmd, n), msg);
+                break;
+            }
+            case TractionControlReplyMessage.SUBCMD_CONSIST_QUERY: {
+                int index = msg.getConsistIndex();
+                // Some trains answer the length query with the first entry as well.
+                if (index < 0 || !complete(new Key(train, subCmd, index), msg)) {
+                    complete(new Key(train, subCmd, -1), msg);
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    /// @return the number of requests waiting for a reply.
+    int getPendingCount() {
+        return pending.size();
+    }
+}
@@ -0,0 +1,367 @@
+package org.openlcb.implementations.throttle;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import org.openlcb.NodeID;
+import org.openlcb.OlcbThreadFactory;
+
+/**
+ * Persistent cache of the Function Description Information (FDI) of train nodes.
+ * <p>
+ * Most trains on a layout share a handful of decoder types, and the trains of one type have the
+ * same FDI. The cache stores every distinct FDI once, in a file named by the SHA-256 hash of its
+ * contents, and keeps an index file that maps the node IDs to the hashes. One cache can be shared
+ * by several train node caches.
+ * <p>
+ * The index is read when the cache is opened; the FDI files are read when a node asks for them.
+ * Files are written on a background thread. A file whose contents do not match its name is
+ * ignored and the node loads its FDI again.
+ * <p>
+ * Next to each FDI file the cache keeps its compiled {@link FunctionTable}, so a throttle gets
+ * the functions of a cached train without parsing XML.
+ * <p>
+ * Index file format: one line per node, the node ID and the hash separated by a space.
+ */
+public class FdiCache {
+    private final static Logger logger = Logger.getLogger(FdiCache.class.getName());
+    private final static String INDEX_FILE = "index.txt";
+    private final static String SUFFIX = ".xml";
+    private final static String TABLE_SUFFIX = ".fnt";
+
+    private final File directory;
+    /// All file writes happen on this thread, in order.
+    private final ExecutorService ioThread;
+    // The following are guarded by this.
+    private final Map<NodeID, String> hashOf = new HashMap<>();
+    /// FDI text by hash, for the hashes that were read or written since the start.
+    private final Map<String, String> contents = new HashMap<>();
+    /// How many nodes refer to each hash.
+    private final Map<String, Integer> refCount = new HashMap<>();
+    private boolean indexWritePending = false;
+
+    /**
+     * Opens a cache and reads its index.
+     *
+     * @param directory where to keep the files; will be created if it does not exist.
+     */
+    public FdiCache(File directory) {
+        this.directory = directory;
+        ThreadPoolExecutor tpe = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new
+                LinkedBlockingQueue<Runnable>(), new OlcbThreadFactory());
+        tpe.allowCoreThreadTimeOut(true);
+        ioThread = tpe;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.warning("Cannot create FDI cache directory " + directory);
+        }
+        readIndex();
+    }
+
+    private void readIndex() {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(new File(directory, INDEX_FILE).toPath(),
+                    StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read FDI cache index in " + directory, e);
+            return;
+        }
+        synchronized (this) {
+            for (String line : lines) {
+                String[] parts = line.trim().split(" ");
+                if (parts.length != 2) continue;
+                try {
+                    addRef(new NodeID(parts[0]), parts[1]);
+                } catch (RuntimeException e) {
+                    logger.warning("Invalid line in FDI cache index: " + line);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param text FDI contents
+     * @return the hex SHA-256 hash of the UTF-8 encoded text.
+     */
+    static String hash(String text) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets
+                    .UTF_8));
+            StringBuilder sb = new StringBuilder(d.length * 2);
+            for (byte b : d) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Looks up the FDI of a node. Reads the FDI file the first time a hash is asked for.
+     *
+     * @param node train node
+     * @return the FDI, or null if it is not in the cache.
+     */
+    @Nullable
+    public String get(NodeID node) {
+        String h;
+        synchronized (this) {
+            h = hashOf.get(node);
+            if (h == null) return null;
+            String text = contents.get(h);
+            if (text != null) return text;
+        }
+        String text = null;
+        try {
+            text = new String(Files.readAllBytes(contentFile(h).toPath()), StandardCharsets
+                    .UTF_8);
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Missing FDI cache file for " + node, e);
+        }
+        if (text != null && !hash(text).equals(h)) {
+            logger.warning("Corrupt FDI cache file " + contentFile(h));
+            text = null;
+        }
+        synchronized (this) {
+            if (text == null) {
+                // Dropped for all nodes that used it; they load their FDI again.
+                List<NodeID> users = new ArrayList<>();
+                for (Map.Entry<NodeID, String> e : hashOf.entrySet()) {
+                    if (e.getValue().equals(h)) users.add(e.getKey());
+                }
+                for (NodeID n : users) {
+                    remove(n);
+                }
+                return null;
+            }
+            if (h.equals(hashOf.get(node))) contents.put(h, text);
+        }
+        return text;
+    }
+
+    /**
+     * Looks up the compiled functions of a node. Reads the function table file, or compiles
+     * the FDI and writes the file, the first time a hash is asked for.
+     *
+     * @param node train node
+     * @return the function table, or null if the FDI of the node is not in the cache.
+     */
+    @Nullable
+    public FunctionTable getFunctionTable(NodeID node) {
+        final String h;
+        synchronized (this) {
+            h = hashOf.get(node);
+        }
+        if (h == null) return null;
+        FunctionTable t = FunctionTable.lookup(h);
+        if (t != null) return t;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new
+                FileInputStream(tableFile(h))))) {
+            t = FunctionTable.read(in);
+            if (t.getHash().equals(h)) return t;
+        } catch (IOException e) {
+            logger.log(Level.FINE, "No function table file for " + node, e);
+        }
+        String text = get(node);
+        if (text == null) return null;
+        t = FunctionTable.forFdi(text);
+        if (t == null) {
+            remove(node);
+            return null;
+        }
+        final FunctionTable table = t;
+        ioThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (FdiCache.this) {
+                    if (!refCount.containsKey(h)) return;
+                }
+                ByteArrayOutputStream b = new ByteArrayOutputStream();
+                try {
+                    table.write(new DataOutputStream(b));
+                } catch (IOException e) {
+                    return;
+                }
+                write(tableFile(h), b.toByteArray());
+            }
+        });
+        return t;
+    }
+
+    /**
+     * Stores the FDI of a node.
+     *
+     * @param node train node
+     * @param text FDI read from the node
+     */
+    public synchronized void put(NodeID node, String text) {
+        final String h = hash(text);
+        if (h.equals(hashOf.get(node))) return;
+        removeRef(node);
+        boolean isNew = !refCount.containsKey(h);
+        addRef(node, h);
+        if (!contents.containsKey(h)) contents.put(h, text);
+        if (isNew) {
+            final String data = text;
+            ioThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(contentFile(h), data.getBytes(StandardCharsets.UTF_8));
+                }
+            });
+        }
+        scheduleIndexWrite();
+    }
+
+    /**
+     * Forgets the FDI of a node.
+     *
+     * @param node train node
+     */
+    public synchronized void remove(NodeID node) {
+        if (!hashOf.containsKey(node)) return;
+        removeRef(node);
+        scheduleIndexWrite();
+    }
+
+    /// @return the number of nodes with a cached FDI.
+    public synchronized int getNodeCount() {
+        return hashOf.size();
+    }
+
+    /// @return the number of distinct FDIs stored.
+    public synchronized int getContentCount() {
+        return refCount.size();
+    }
+
+    private void addRef(NodeID node, String h) {
+        hashOf.put(node, h);
+        Integer c = refCount.get(h);
+        refCount.put(h, c == null ? 1 : c + 1);
+    }
+
+    private void removeRef(NodeID node) {
+        final String h = hashOf.remove(node);
+        if (h == null) return;
+        int c = refCount.get(h) - 1;
+        if (c > 0) {
+            refCount.put(h, c);
+            return;
+        }
+        refCount.remove(h);
+        contents.remove(h);
+        ioThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (FdiCache.this) {
+                    // Stored again meanwhile.
+                    if (refCount.containsKey(h)) return;
+                }
+                for (File f : new File[]{contentFile(h), tableFile(h)}) {
+                    if (!f.delete() && f.exists()) {
+                        logger.warning("Cannot delete " + f);
+                    }
+                }
+            }
+        });
+    }
+
+    private File contentFile(String h) {
+        return new File(directory, h + SUFFIX);
+    }
+
+    private File tableFile(String h) {
+        return new File(directory, h + TABLE_SUFFIX);
+    }
+
+    private void scheduleIndexWrite() {
+        if (indexWritePending) return;
+        indexWritePending = true;
+        ioThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                StringBuilder sb = new StringBuilder();
+                synchronized (FdiCache.this) {
+                    indexWritePending = false;
+                    for (Map.Entry<NodeID, String> e : hashOf.entrySet()) {
+                        sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+                    }
+                }
+                write(new File(directory, INDEX_FILE), sb.toString().getBytes(StandardCharsets
+                        .UTF_8));
+            }
+        });
+    }
+
+    /// Replaces a file atomically. Runs on the I/O thread.
+    private void write(File f, byte[] data) {
+        File tmp = new File(f.getPath() + ".tmp");
+        try {
+            Files.write(tmp.toPath(), data);
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to write FDI cache file " + f, e);
+        }
+    }
+
+    /**
+     * Blocks until all pending file operations are complete.
+     */
+    public void flush() {
+        final Object done = new Object();
+        final boolean[] finished = new boolean[]{false};
+        ioThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (done) {
+                    finished[0] = true;
+                    done.notifyAll();
+                }
+            }
+        });
+        synchronized (done) {
+            while (!finished[0]) {
+                try {
+                    done.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the pending changes and stops the background thread.
+     */
+    public void close() {
+        flush();
+        ioThread.shutdown();
+    }
+}
@@ -0,0 +1,268 @@
+package org.openlcb.implementations.throttle;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+import org.jdom2.Element;
+import org.openlcb.cdi.jdom.XmlHelper;
+
+/**
+ * The functions of a train, compiled from its FDI.
+ * <p>
+ * The functions are kept in arrays sorted by function number, with the names interned; a
+ * function is found by its number with a direct lookup table, or a binary search when the
+ * numbers are large. Tables are shared: compiling an FDI that was compiled before, by the hash
+ * of its contents, gives the same table, so trains with the same decoder share one. A table can
+ * be written to a file and read back without parsing the XML again.
+ */
+@Immutable
+@ThreadSafe
+public final class FunctionTable {
+    private static final int MAGIC = 0x46444954; // "FDIT"
+    private static final int VERSION = 1;
+    /// Function numbers below this are found with a direct lookup table.
+    private static final int MAX_DIRECT = 1024;
+    private static final FdiParser.FunctionType[] TYPES = FdiParser.FunctionType.values();
+
+    /// Compiled tables by the hash of their FDI; guarded by itself.
+    private static final Map<String, WeakReference<FunctionTable>> registry = new HashMap<>();
+
+    private final String hash;
+    private final int[] numbers;
+    private final String[] names;
+    private final byte[] types;
+    private final int[] spaces;
+    private final long[] offsets;
+    private final int[] sizes;
+    /// Index by function number + 1, 0 for missing functions; null if the numbers are large.
+    private final short[] direct;
+
+    private FunctionTable(String hash, int[] numbers, String[] names, byte[] types, int[] spaces,
+                          long[] offsets, int[] sizes) {
+        this.hash = hash;
+        this.numbers = numbers;
+        this.names = names;
+        this.types = types;
+        this.spaces = spaces;
+        this.offsets = offsets;
+        this.sizes = sizes;
+        int n = numbers.length;
+        if (n > 0 && numbers[0] >= 0 && numbers[n - 1] < MAX_DIRECT) {
+            direct = new short[numbers[n - 1] + 1];
+            for (int i = 0; i < n; ++i) {
+                direct[numbers[i]] = (short) (i + 1);
+            }
+        } else {
+            direct = null;
+        }
+    }
+
+    /**
+     * Compiles an FDI, or returns the table compiled before from the same FDI.
+     * @param fdi contents of the FDI
+     * @return the function table, or null if the FDI is not valid XML.
+     */
+    @Nullable
+    public static FunctionTable forFdi(String fdi) {
+        String h = FdiCache.hash(fdi);
+        FunctionTable t = lookup(h);
+        if (t != null) return t;
+        Element root;
+        try {
+            root = XmlHelper.parseXmlFromReader(new StringReader(fdi));
+        } catch (Exception e) {
+            return null;
+        }
+        return compile(root, h);
+    }
+
+    /**
+     * Compiles a parsed FDI, or returns the table compiled before from the same FDI.
+     * @param root parsed FDI
+     * @param hash hash of the FDI contents, see {@link FdiCache}
+     * @return the function table.
+     */
+    public static FunctionTable compile(Element root, String hash) {
+        FunctionTable t = lookup(hash);
+        if (t != null) return t;
+        List<FdiParser.FunctionInfo> l = new ArrayList<>(new FdiParser(root).getAllFunctions());
+        // Stable, so the first of two functions with the same number stays first.
+        l.sort(new Comparator<FdiParser.FunctionInfo>() {
+            @Override
+            public int compare(FdiParser.FunctionInfo a, FdiParser.FunctionInfo b) {
+                return Integer.compare(a.getFn(), b.getFn());
+            }
+        });
+        int n = 0;
+        for (int i = 0; i < l.size(); ++i) {
+            if (n == 0 || l.get(i).getFn() != l.get(n - 1).getFn()) l.set(n++, l.get(i));
+        }
+        int[] numbers = new int[n];
+        String[] names = new String[n];
+        byte[] types = new byte[n];
+        int[] spaces = new int[n];
+        long[] offsets = new long[n];
+        int[] sizes = new int[n];
+        for (int i = 0; i < n; ++i) {
+            FdiParser.FunctionInfo f = l.get(i);
+            numbers[i] = f.getFn();
+            names[i] = f.getName().intern();
+            types[i] = (byte) f.getType().ordinal();
+            spaces[i] = f.getSpace();
+            offsets[i] = f.getOffset();
+            sizes[i] = f.getSize();
+        }
+        return register(new FunctionTable(hash, numbers, names, types, spaces, offsets, sizes));
+    }
+
+    /**
+     * @param hash hash of an FDI
+     * @return the table compiled from that FDI if it is still in use, or null.
+     */
+    @Nullable
+    static FunctionTable lookup(String hash) {
+        synchronized (registry) {
+            WeakReference<FunctionTable> r = registry.get(hash);
+            return r == null ? null : r.get();
+        }
+    }
+
+    private static FunctionTable register(FunctionTable t) {
+        synchronized (registry) {
+            WeakReference<FunctionTable> r = registry.get(t.hash);
+            FunctionTable old = r == null ? null : r.get();
+            if (old != null) return old;
+            // Drops the entries of tables no longer in use; there are few distinct FDIs.
+            registry.values().removeIf(w -> w.get() == null);
+            registry.put(t.hash, new WeakReference<>(t));
+            return t;
+        }
+    }
+
+    /**
+     * Writes the table in a compact binary form.
+     * @param out where to write
+     * @throws IOException if writing fails
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(hash);
+        out.writeInt(numbers.length);
+        for (int i = 0; i < numbers.length; ++i) {
+            out.writeInt(numbers[i]);
+            out.writeUTF(names[i]);
+            out.writeByte(types[i]);
+            out.writeInt(spaces[i]);
+            out.writeLong(offsets[i]);
+            out.writeInt(sizes[i]);
+        }
+    }
+
+    /**
+     * Reads a table written by {@link #write}. Returns the shared table if the same FDI was
+     * compiled or read before.
+     * @param in where to read from
+     * @return the table.
+     * @throws IOException if reading fails or the data is not a function table.
+     */
+    public static FunctionTable read(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a function table");
+        }
+        String hash = in.readUTF();
+        int n = in.readInt();
+        if (n < 0 || n > 0x1000000) throw new IOException("Invalid function count " + n);
+        int[] numbers = new int[n];
+        String[] names = new String[n];
+        byte[] types = new byte[n];
+        int[] spaces = new int[n];
+        long[] offsets = new long[n];
+        int[] sizes = new int[n];
+        for (int i = 0; i < n; ++i) {
+            numbers[i] = in.readInt();
+            names[i] = in.readUTF().intern();
+            types[i] = in.readByte();
+            spaces[i] = in.readInt();
+            offsets[i] = in.readLong();
+            sizes[i] = in.readInt();
+            if (types[i] < 0 || types[i] >= TYPES.length || (i > 0 && numbers[i] <=
+                    numbers[i - 1])) {
+                throw new IOException("Invalid function table");
+            }
+        }
+        FunctionTable t = lookup(hash);
+        if (t != null) return t;
+        return register(new FunctionTable(hash, numbers, names, types, spaces, offsets, sizes));
+    }
+
+    /// @return the hash of the FDI this table was compiled from.
+    public String getHash() {
+        return hash;
+    }
+
+    /// @return the number of functions.
+    public int size() {
+        return numbers.length;
+    }
+
+    /**
+     * @param fn function number
+     * @return the index of the function, or -1 if the train does not have it.
+     */
+    public int indexOf(int fn) {
+        if (direct != null) {
+            return fn >= 0 && fn < direct.length ? direct[fn] - 1 : -1;
+        }
+        int i = Arrays.binarySearch(numbers, fn);
+        return i < 0 ? -1 : i;
+    }
+
+    /**
+     * @param fn function number
+     * @return the name of the function, or null if the train does not have it.
+     */
+    @Nullable
+    public String getNameOf(int fn) {
+        int i = indexOf(fn);
+        return i < 0 ? null : names[i];
+    }
+
+    // The following take the index of the function, 0 to size() - 1, in increasing function
+    // number.
+
+    public int getNumber(int index) {
+        return numbers[index];
+    }
+
+    public String getName(int index) {
+        return names[index];
+    }
+
+    public FdiParser.FunctionType getType(int index) {
+        return TYPES[types[index]];
+    }
+
+    public int getSpace(int index) {
+        return spaces[index];
+    }
+
+    public long getOffset(int index) {
+        return offsets[index];
+    }
+
+    public int getSize(int index) {
+        return sizes[index];
+    }
+}
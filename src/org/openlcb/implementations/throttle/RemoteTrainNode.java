@@ -1,7 +1,14 @@
 package org.openlcb.implementations.throttle;
 
+import java.io.IOException;
 import java.io.Reader;
+import java.io.StringReader;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 import net.jcip.annotations.Immutable;
 import net.jcip.annotations.ThreadSafe;
 import org.jdom2.Element;
@@ -22,12 +29,21 @@ import org.openlcb.implementations.MemoryConfigurationService;
 public class RemoteTrainNode {
 
     public static final String UPDATE_PROP_FDI = "fdi";
+    public static final String UPDATE_PROP_FUNCTIONS = "functions";
     private final static Logger logger = Logger.getLogger(RemoteTrainNode.class.getName());
     private final OlcbInterface iface;
     java.beans.PropertyChangeSupport pcs = new java.beans.PropertyChangeSupport(this);
-    private Element fdiRoot;
     private NodeID node;
     private String fdiXml = null;
+    /// Compiled FDI, shared with the trains that have the same FDI.
+    private FunctionTable functions = null;
+    /// FDI text, if not kept by the FDI cache.
+    private String fdiText = null;
+    /// Parsed FDI, dropped when memory is low.
+    private SoftReference<Element> fdiRoot = null;
+    private FdiCache fdiCache = null;
+    private boolean fdiLoading = false;
+    private List<Runnable> fdiWaiters = new ArrayList<>();
 
     public RemoteTrainNode(NodeID node, OlcbInterface iface) {
         this.node = node;
@@ -46,12 +62,103 @@ public class RemoteTrainNode {
         if (fdiXml != null) { fdiXml = payload; }
     }
 
-    public synchronized void flushCache() {
-        fdiRoot = null;
+    public void flushCache() {
+        FdiCache c;
+        synchronized (this) {
+            functions = null;
+            fdiText = null;
+            fdiRoot = null;
+            c = fdiCache;
+        }
+        if (c != null) c.remove(node);
     }
 
-    public synchronized Element getFdiXml() {
-        if (fdiRoot != null) return fdiRoot;
+    /**
+     * Sets the persistent cache to take the FDI from before reading it from the node, and to
+     * store the FDI read from the node in.
+     * @param cache shared FDI cache, or null
+     */
+    public synchronized void setFdiCache(@Nullable FdiCache cache) {
+        fdiCache = cache;
+    }
+
+    /**
+     * @return the functions of the train if already loaded or in the FDI cache. Otherwise starts
+     * loading the FDI and returns null; a property change {@link #UPDATE_PROP_FUNCTIONS} is
+     * fired when it arrives.
+     */
+    @Nullable
+    public FunctionTable getFunctionTable() {
+        synchronized (this) {
+            if (functions != null) return functions;
+        }
+        loadFdi(null);
+        synchronized (this) {
+            return functions;
+        }
+    }
+
+    /**
+     * @return the parsed FDI if already loaded or in the FDI cache. Otherwise starts loading it
+     * and returns null; a property change {@link #UPDATE_PROP_FDI} is fired when it arrives.
+     * The XML is parsed again after it was dropped to save memory; prefer {@link
+     * #getFunctionTable}.
+     */
+    @Nullable
+    public Element getFdiXml() {
+        if (getFunctionTable() == null) return null;
+        return fdiElement();
+    }
+
+    /// @return the XML of the loaded FDI, parsed again if it was dropped.
+    @Nullable
+    private Element fdiElement() {
+        String text;
+        FdiCache c;
+        synchronized (this) {
+            Element e = fdiRoot == null ? null : fdiRoot.get();
+            if (e != null) return e;
+            text = fdiText;
+            c = fdiCache;
+        }
+        if (text == null && c != null) text = c.get(node);
+        if (text == null) return null;
+        Element e = parseFdi(text);
+        if (e != null) {
+            synchronized (this) {
+                fdiRoot = new SoftReference<>(e);
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Loads the FDI unless it is already loaded. A load that is already running is not started
+     * again.
+     * @param done called when the load is finished, whether it succeeded or not; may be called
+     *             before this function returns.
+     */
+    void loadFdi(@Nullable Runnable done) {
+        boolean loaded;
+        FdiCache cache;
+        synchronized (this) {
+            loaded = functions != null;
+            if (!loaded) {
+                if (done != null) fdiWaiters.add(done);
+                if (fdiLoading) return;
+                fdiLoading = true;
+            }
+            cache = fdiCache;
+        }
+        if (loaded) {
+            if (done != null) done.run();
+            return;
+        }
+        FunctionTable cached = cache == null ? null : cache.getFunctionTable(node);
+        if (cached != null) {
+            fdiLoaded(cached, null, null);
+            return;
+        }
         new CdiMemConfigReader(node, iface, MemoryConfigurationService.SPACE_TRACTION_FDI)
                 .startLoadReader(new CdiMemConfigReader.ReaderAccess() {
                     @Override
@@ -61,19 +168,73 @@ public class RemoteTrainNode {
 
                     @Override
                     public void provideReader(Reader r) {
-                        try {
-                            fdiRoot = XmlHelper.parseXmlFromReader(r);//JdomCdiReader.getHeadFromReader(r);
-                        } catch (Exception e) {
-                            logger.warning("Unable to parse returned FDI from train " + node
-                                    .toString());
-                            e.printStackTrace();
-                            //throw new RuntimeException(e);
+                        String text = readAll(r);
+                        Element root = text == null ? null : parseFdi(text);
+                        if (root == null) {
+                            fdiLoaded(null, null, null);
                             return;
                         }
-                        firePropertyChange(UPDATE_PROP_FDI, null, fdiRoot);
+                        FunctionTable t = FunctionTable.compile(root, FdiCache.hash(text));
+                        FdiCache c;
+                        synchronized (RemoteTrainNode.this) {
+                            c = fdiCache;
+                        }
+                        if (c != null) {
+                            // The cache keeps the text, once for all trains with this FDI.
+                            c.put(node, text);
+                            text = null;
+                        }
+                        fdiLoaded(t, root, text);
                     }
                 });
-        return null;
+    }
+
+    @Nullable
+    private static String readAll(Reader r) {
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[1024];
+        try {
+            int n;
+            while ((n = r.read(buf)) > 0) {
+                sb.append(buf, 0, n);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return sb.toString();
+    }
+
+    @Nullable
+    private Element parseFdi(String text) {
+        try {
+            return XmlHelper.parseXmlFromReader(new StringReader(text));
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Unable to parse returned FDI from train " + node, e);
+            return null;
+        }
+    }
+
+    private void fdiLoaded(@Nullable FunctionTable t, @Nullable Element root, @Nullable String
+            text) {
+        List<Runnable> waiters;
+        synchronized (this) {
+            fdiLoading = false;
+            if (t != null) {
+                functions = t;
+                fdiText = text;
+                fdiRoot = root == null ? null : new SoftReference<>(root);
+            }
+            waiters = fdiWaiters;
+            fdiWaiters = new ArrayList<>();
+        }
+        if (t != null) {
+            if (root == null && pcs.hasListeners(UPDATE_PROP_FDI)) root = fdiElement();
+            if (root != null) firePropertyChange(UPDATE_PROP_FDI, null, root);
+            firePropertyChange(UPDATE_PROP_FUNCTIONS, null, t);
+        }
+        for (Runnable r : waiters) {
+            r.run();
+        }
     }
 
     public synchronized void addPropertyChangeListener(java.beans.PropertyChangeListener l) {
@@ -1,6 +1,7 @@
 package org.openlcb.implementations.throttle;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -23,6 +24,9 @@ import org.openlcb.messages.TractionControlRequestMessage;
  * talking to the train nodes, including proper allocation and deallocation of
  * throttles.
  * <p>
+ * Throttles created by a {@link TractionThrottleManager} get their replies from the manager and
+ * send their function queries through it.
+ * <p>
  * Created by bracz on 12/30/15.
  */
 public class TractionThrottle extends MessageDecoder {
@@ -33,11 +37,19 @@ public class TractionThrottle extends MessageDecoder {
     public static final int CONSIST_FLAG_FNN = TractionControlRequestMessage
             .CONSIST_FLAG_FNN;
 
+    /// Default minimum time between two speed or function commands.
+    public static final long DEFAULT_MIN_COMMAND_INTERVAL_MSEC = 50;
+
     public static final String UPDATE_PROP_ENABLED = "updateEnabled";
     public static final String UPDATE_PROP_STATUS = "updateStatus";
     public static final String UPDATE_PROP_CONSISTLIST = "updateConsistList";
     private final static Logger logger = Logger.getLogger(TractionThrottle.class.getName());
     private final OlcbInterface iface;
+    @Nullable
+    private final TractionThrottleManager manager;
+    private final CommandCoalescer commands;
+    /// Train whose replies the manager hands to this throttle.
+    private NodeID listeningTo;
     RemoteTrainNode trainNode;
     boolean assigned = false;
     boolean enabled = false;
@@ -51,7 +63,7 @@ public class TractionThrottle extends MessageDecoder {
 
             Message m = TractionControlRequestMessage.createSetSpeed(iface.getNodeId(),
                     trainNode.getNodeId(), Math.copySign(1.0, t) >= 0, t);
-            iface.getOutputConnection().put(m, TractionThrottle.this);
+            commands.setSpeed(m);
 
         }
     };
@@ -70,7 +82,20 @@ public class TractionThrottle extends MessageDecoder {
     }
 
     public TractionThrottle(OlcbInterface iface) {
+        this(iface, null);
+    }
+
+    /**
+     * @param iface   interface to send the requests on
+     * @param manager manager that forwards the replies of the train node, or null to listen to
+     *                the interface directly
+     */
+    TractionThrottle(OlcbInterface iface, @Nullable TractionThrottleManager manager) {
         this.iface = iface;
+        this.manager = manager;
+        commands = new CommandCoalescer(iface.getOutputConnection(), iface
+                .getPriorityOutputConnection(), this, iface.getWheelTimer(),
+                DEFAULT_MIN_COMMAND_INTERVAL_MSEC);
     }
 
     public void start(RemoteTrainNode trainNode) {
@@ -91,6 +116,14 @@ public class TractionThrottle extends MessageDecoder {
         if (!getEnabled()) return;
         querySpeed();
         queryConsist();
+        if (manager != null) {
+            List<Integer> fns;
+            synchronized (this) {
+                fns = new ArrayList<>(functions.keySet());
+            }
+            manager.queueFunctionQueries(this, fns);
+            return;
+        }
         for (FunctionInfo f : functions.values()) {
             queryFunction(f.fn);
         }
@@ -101,15 +134,41 @@ public class TractionThrottle extends MessageDecoder {
      */
     public void release() {
         if (!assigned) return;
+        commands.sendNow();
         Message m = TractionControlRequestMessage.createReleaseController(iface.getNodeId(),
                 trainNode.getNodeId());
-        iface.getOutputConnection().put(m, this);
+        send(m);
         assigned = false;
         setEnabled(false);
-        iface.unRegisterMessageListener(this);
+        stopListening();
         setStatus("Released node.");
     }
 
+    /**
+     * Stops the train right away, ahead of any speed command still held back by the rate limit.
+     * The next speed change moves the train again.
+     */
+    public void doEmergencyStop() {
+        if (trainNode == null) return;
+        commands.emergencyStop(TractionControlRequestMessage.createEmergencyStop(iface
+                .getNodeId(), trainNode.getNodeId()));
+        speedUpdater.setFromOwner(Math.copySign(0.0f, speed.getLatestData()));
+    }
+
+    /**
+     * Sets the rate limit of speed and function commands. Commands that come faster are held
+     * back; of the held ones only the latest speed and the latest value of each function are
+     * sent.
+     * @param msec minimum time between two sends; 0 sends every command right away
+     */
+    public void setMinCommandInterval(long msec) {
+        commands.setMinInterval(msec);
+    }
+
+    public long getMinCommandInterval() {
+        return commands.getMinInterval();
+    }
+
     /**
      * @return the list of nodes in the consist managed by the assgined node. Entries may be
      * null in case the node list is still being fetched.
@@ -118,10 +177,37 @@ public class TractionThrottle extends MessageDecoder {
 
     private void assign() {
         setStatus("Assigning node...");
-        iface.registerMessageListener(this);
+        startListening();
         pendingAssign = true;
         Message m = TractionControlRequestMessage.createAssignController(iface.getNodeId(),
                 trainNode.getNodeId());
+        send(m);
+    }
+
+    private void startListening() {
+        if (manager == null) {
+            iface.registerMessageListener(this);
+            return;
+        }
+        NodeID train = trainNode.getNodeId();
+        if (train.equals(listeningTo)) return;
+        stopListening();
+        listeningTo = train;
+        manager.attach(this, train);
+    }
+
+    private void stopListening() {
+        if (manager == null) {
+            iface.unRegisterMessageListener(this);
+            return;
+        }
+        if (listeningTo == null) return;
+        manager.detach(this, listeningTo);
+        listeningTo = null;
+    }
+
+    private void send(Message m) {
+        if (manager != null) manager.requestSent(m);
         iface.getOutputConnection().put(m, this);
     }
 
@@ -140,7 +226,7 @@ public class TractionThrottle extends MessageDecoder {
     public void querySpeed() {
         Message m = TractionControlRequestMessage.createGetSpeed(iface.getNodeId(), trainNode
                 .getNodeId());
-        iface.getOutputConnection().put(m, this);
+        send(m);
     }
 
     /**
@@ -152,7 +238,7 @@ public class TractionThrottle extends MessageDecoder {
         needFetchConsist = true;
         Message m = TractionControlRequestMessage.createConsistLengthQuery(iface.getNodeId(),
                 trainNode.getNodeId());
-        iface.getOutputConnection().put(m, this);
+        send(m);
     }
 
     /**
@@ -162,7 +248,7 @@ public class TractionThrottle extends MessageDecoder {
     public void queryConsistMember(int index) {
         Message m = TractionControlRequestMessage.createConsistIndexQuery(iface.getNodeId(),
                 trainNode.getNodeId(), index);
-        iface.getOutputConnection().put(m, this);
+        send(m);
     }
 
     /**
@@ -170,14 +256,15 @@ public class TractionThrottle extends MessageDecoder {
      * existing node's consisting flags.
      * @param newMember    Node ID to add as a consist member
      * @param flags        bitmap of consist flags according to the standard (eg. whether forward or reverse, whether to send Fn buttons etc)
+     * @see ConsistOperations#attach for attaching several units and waiting for the result
      */
     public void addToConsist(NodeID newMember, int flags) {
         Message m = TractionControlRequestMessage.createConsistAttach(iface.getNodeId(),
                 trainNode.getNodeId(), newMember, flags);
-        iface.getOutputConnection().put(m, this);
+        send(m);
         m = TractionControlRequestMessage.createConsistAttach(iface.getNodeId(),
                 newMember, trainNode.getNodeId(), flags);
-        iface.getOutputConnection().put(m, this);
+        send(m);
     }
 
     /** Removes a node from the consist handled by the current assigned node.
@@ -186,10 +273,10 @@ public class TractionThrottle extends MessageDecoder {
     public void removeFromConsist(NodeID member) {
         Message m = TractionControlRequestMessage.createConsistDetach(iface.getNodeId(),
                 trainNode.getNodeId(), member);
-        iface.getOutputConnection().put(m, this);
+        send(m);
         m = TractionControlRequestMessage.createConsistDetach(iface.getNodeId(),
                 member, trainNode.getNodeId());
-        iface.getOutputConnection().put(m, this);
+        send(m);
     }
 
     /**
@@ -201,7 +288,7 @@ public class TractionThrottle extends MessageDecoder {
     public void queryFunction(int fn) {
         Message m = TractionControlRequestMessage.createGetFn(iface.getNodeId(), trainNode
                 .getNodeId(), fn);
-        iface.getOutputConnection().put(m, this);
+        send(m);
     }
 
     public VersionedValue<Boolean> getFunction(int fn) {
@@ -220,7 +307,11 @@ public class TractionThrottle extends MessageDecoder {
             v = new FunctionInfo(fn);
             functions.put(fn, v);
             if (!pendingAssign) {
-                queryFunction(fn);
+                if (manager != null) {
+                    manager.queueFunctionQueries(this, Collections.singletonList(fn));
+                } else {
+                    queryFunction(fn);
+                }
             }
         }
         return v;
@@ -345,7 +436,7 @@ public class TractionThrottle extends MessageDecoder {
                 if (!enabled) return;
                 Message m = TractionControlRequestMessage.createSetFn(iface.getNodeId(),
                         trainNode.getNodeId(), fn, aBoolean ? 1 : 0);
-                iface.getOutputConnection().put(m, TractionThrottle.this);
+                commands.setFunction(fn, m);
             }
         };
 
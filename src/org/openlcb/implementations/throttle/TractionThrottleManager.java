@@ -0,0 +1,283 @@
+package org.openlcb.implementations.throttle;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.openlcb.Connection;
+import org.openlcb.DurationHistogram;
+import org.openlcb.Message;
+import org.openlcb.MessageDecoder;
+import org.openlcb.NodeID;
+import org.openlcb.OlcbInterface;
+import org.openlcb.messages.TractionControlReplyMessage;
+import org.openlcb.messages.TractionControlRequestMessage;
+
+/**
+ * Runs many {@link TractionThrottle} sessions on one interface.
+ * <p>
+ * A throttle created by {@link #createThrottle} does not listen to the interface itself. The
+ * manager is the only listener; it hands each Traction Control Reply to the throttles assigned
+ * to the sending train, found by a hash lookup on the node ID, so the other messages on the bus
+ * and the replies of other trains cost the throttles nothing.
+ * <p>
+ * Function queries of the throttles go through the manager. Queries asked for right after the
+ * assignment, when a throttle refreshes all its functions and the user interface creates the
+ * ones it shows, are collected for {@link #FN_QUERY_TICK_MSEC}; a function asked for twice goes
+ * out once. The queries are then sent {@link #FN_QUERIES_PER_TICK} at a time, taking turns
+ * between the throttles, so that many throttles starting together do not flood the bus.
+ * <p>
+ * The manager measures the round trip of the requests that the train node answers: assign,
+ * speed query and function query. The traction protocol does not answer Set Speed, so the
+ * speed query stands in for the latency of speed commands.
+ */
+public class TractionThrottleManager extends MessageDecoder {
+    /// How long function queries are collected before sending.
+    public static final long FN_QUERY_TICK_MSEC = 20;
+    /// How many function queries are sent per tick.
+    public static final int FN_QUERIES_PER_TICK = 16;
+
+    /// The requests whose round trip is measured.
+    public enum RequestKind { ASSIGN, SPEED, FUNCTION }
+
+    /// Round trip statistics of one kind of request.
+    public static class Latency {
+        private final long count;
+        private final double meanMsec;
+        private final double maxMsec;
+        private final double p95Msec;
+
+        Latency(long count, double meanMsec, double maxMsec, double p95Msec) {
+            this.count = count;
+            this.meanMsec = meanMsec;
+            this.maxMsec = maxMsec;
+            this.p95Msec = p95Msec;
+        }
+
+        /// @return number of replies measured.
+        public long getCount() { return count; }
+        public double getMeanMsec() { return meanMsec; }
+        public double getMaxMsec() { return maxMsec; }
+        /**
+         * @return the round trip that 95% of the replies were faster than, rounded up to a power
+         * of two microseconds but not above the maximum.
+         */
+        public double getP95Msec() { return p95Msec; }
+
+        @Override
+        public String toString() {
+            return String.format("%d replies, mean %.1f ms, p95 %.1f ms, max %.1f ms", count,
+                    meanMsec, p95Msec, maxMsec);
+        }
+    }
+
+    /// A request waiting for its reply.
+    private static final class RequestKey {
+        final NodeID train;
+        final int code;
+
+        RequestKey(NodeID train, int code) {
+            this.train = train;
+            this.code = code;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RequestKey)) return false;
+            RequestKey k = (RequestKey) o;
+            return code == k.code && train.equals(k.train);
+        }
+
+        @Override
+        public int hashCode() {
+            return train.hashCode() * 31 + code;
+        }
+    }
+
+    private static final int CODE_ASSIGN = 0x2000000;
+    private static final int CODE_SPEED = 0x1000000;
+
+    private final OlcbInterface iface;
+    private final Map<NodeID, List<TractionThrottle>> sessions = new ConcurrentHashMap<>();
+    private final Map<RequestKey, Long> outstanding = new ConcurrentHashMap<>();
+    private final DurationHistogram[] latency = new DurationHistogram[RequestKind.values()
+            .length];
+
+    // Function queries waiting to be sent; guarded by this.
+    private final Map<TractionThrottle, TreeSet<Integer>> fnQueries = new IdentityHashMap<>();
+    private final ArrayDeque<TractionThrottle> fnTurns = new ArrayDeque<>();
+    private boolean fnDrainScheduled = false;
+
+    public TractionThrottleManager(OlcbInterface iface) {
+        this.iface = iface;
+        for (int i = 0; i < latency.length; ++i) {
+            latency[i] = new DurationHistogram();
+        }
+        iface.registerMessageListener(this);
+    }
+
+    /// @return a new throttle that gets its messages through this manager.
+    public TractionThrottle createThrottle() {
+        return new TractionThrottle(iface, this);
+    }
+
+    /// Stops listening to the interface. The throttles of this manager stop getting replies.
+    public void dispose() {
+        iface.unRegisterMessageListener(this);
+    }
+
+    /// @return the number of throttles that are assigned or being assigned to a train.
+    public int getSessionCount() {
+        int n = 0;
+        for (List<TractionThrottle> l : sessions.values()) {
+            n += l.size();
+        }
+        return n;
+    }
+
+    /**
+     * @param kind which requests
+     * @return the round trip statistics of the given requests since the manager was created.
+     */
+    public Latency getLatency(RequestKind kind) {
+        DurationHistogram h = latency[kind.ordinal()];
+        return new Latency(h.getCount(), h.getMeanNanos() / 1e6, h.getMaxNanos() / 1e6, h
+                .getPercentileMicros(95) / 1e3);
+    }
+
+    void attach(TractionThrottle t, NodeID train) {
+        sessions.computeIfAbsent(train, k -> new CopyOnWriteArrayList<>()).add(t);
+    }
+
+    void detach(TractionThrottle t, NodeID train) {
+        synchronized (this) {
+            if (fnQueries.remove(t) != null) {
+                fnTurns.remove(t);
+            }
+        }
+        List<TractionThrottle> l = sessions.get(train);
+        if (l == null) return;
+        l.remove(t);
+        if (l.isEmpty()) {
+            sessions.remove(train, l);
+            // A throttle may be attached again between these two steps.
+            if (!l.isEmpty()) {
+                sessions.putIfAbsent(train, l);
+                return;
+            }
+            // Replies that did not come are not waited for any more.
+            outstanding.keySet().removeIf(k -> k.train.equals(train));
+        }
+    }
+
+    /**
+     * Queues function queries of a throttle.
+     * @param t   throttle that wants the function values
+     * @param fns function numbers
+     */
+    synchronized void queueFunctionQueries(TractionThrottle t, Collection<Integer> fns) {
+        if (fns.isEmpty()) return;
+        TreeSet<Integer> s = fnQueries.get(t);
+        if (s == null) {
+            s = new TreeSet<>();
+            fnQueries.put(t, s);
+            fnTurns.add(t);
+        }
+        s.addAll(fns);
+        if (!fnDrainScheduled) {
+            fnDrainScheduled = true;
+            if (iface.getWheelTimer().schedule(this::drainFunctionQueries, FN_QUERY_TICK_MSEC)
+                    == null) {
+                fnDrainScheduled = false; // timer stopped
+            }
+        }
+    }
+
+    private void drainFunctionQueries() {
+        List<TractionThrottle> throttles = new ArrayList<>();
+        List<Integer> fns = new ArrayList<>();
+        synchronized (this) {
+            fnDrainScheduled = false;
+            while (fns.size() < FN_QUERIES_PER_TICK && !fnTurns.isEmpty()) {
+                TractionThrottle t = fnTurns.poll();
+                TreeSet<Integer> s = fnQueries.get(t);
+                throttles.add(t);
+                fns.add(s.pollFirst());
+                if (s.isEmpty()) {
+                    fnQueries.remove(t);
+                } else {
+                    fnTurns.add(t);
+                }
+            }
+            if (!fnTurns.isEmpty()) {
+                fnDrainScheduled = iface.getWheelTimer().schedule(this::drainFunctionQueries,
+                        FN_QUERY_TICK_MSEC) != null;
+            }
+        }
+        for (int i = 0; i < fns.size(); ++i) {
+            throttles.get(i).queryFunction(fns.get(i));
+        }
+    }
+
+    /// @return the number of measured requests waiting for their reply.
+    int getOutstandingCount() {
+        return outstanding.size();
+    }
+
+    /**
+     * Called by the throttles for every request they send. A request replaces an earlier one of
+     * the same kind to the same train whose reply was lost, so the round trip is measured from
+     * the last send.
+     * @param m the request
+     */
+    void requestSent(Message m) {
+        if (!(m instanceof TractionControlRequestMessage)) return;
+        TractionControlRequestMessage r = (TractionControlRequestMessage) m;
+        int code = requestCode(r.getPayload());
+        if (code < 0) return;
+        outstanding.put(new RequestKey(r.getDestNodeID(), code), System.nanoTime());
+    }
+
+    /**
+     * @param p payload of a traction request or reply
+     * @return the key of a measured request, or -1 for the others.
+     */
+    private static int requestCode(byte[] p) {
+        if (p.length < 1) return -1;
+        if (p[0] == TractionControlRequestMessage.CMD_GET_SPEED) return CODE_SPEED;
+        if (p[0] == TractionControlRequestMessage.CMD_GET_FN && p.length >= 4) {
+            return ((p[1] & 0xff) << 16) | ((p[2] & 0xff) << 8) | (p[3] & 0xff);
+        }
+        if (p[0] == TractionControlRequestMessage.CMD_CONTROLLER && p.length >= 2 && p[1] ==
+                TractionControlRequestMessage.SUBCMD_CONTROLLER_ASSIGN) {
+            return CODE_ASSIGN;
+        }
+        return -1;
+    }
+
+    private void replyReceived(TractionControlReplyMessage msg) {
+        int code = requestCode(msg.getPayload());
+        if (code < 0) return;
+        Long sent = outstanding.remove(new RequestKey(msg.getSourceNodeID(), code));
+        if (sent == null) return;
+        RequestKind kind = code == CODE_SPEED ? RequestKind.SPEED : code == CODE_ASSIGN ?
+                RequestKind.ASSIGN : RequestKind.FUNCTION;
+        latency[kind.ordinal()].record(System.nanoTime() - sent);
+    }
+
+    @Override
+    public void handleTractionControlReply(TractionControlReplyMessage msg, Connection sender) {
+        if (!iface.getNodeId().equals(msg.getDestNodeID())) return;
+        List<TractionThrottle> l = sessions.get(msg.getSourceNodeID());
+        if (l == null) return;
+        replyReceived(msg);
+        for (TractionThrottle t : l) {
+            t.handleTractionControlReply(msg, sender);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.openlcb.implementations.throttle;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.annotation.Nullable;
+import org.openlcb.NodeID;
+
+/**
+ * Finds train nodes by the words and numbers of their names and by their DCC address.
+ * <p>
+ * The words of the names are kept in a sorted map, so the trains whose name has a word starting
+ * with the searched text are found without looking at the other trains. Train nodes in the
+ * DCC range of node IDs (06.01.00.00.xx.xx) can also be found by their address.
+ */
+class TrainIndex {
+    private final TreeMap<String, Set<RemoteTrainNode>> words = new TreeMap<>();
+    private final Map<Integer, Set<RemoteTrainNode>> addresses = new HashMap<>();
+    private final Map<RemoteTrainNode, String> names = new HashMap<>();
+    private final Map<RemoteTrainNode, List<String>> wordsOf = new HashMap<>();
+
+    private final Comparator<RemoteTrainNode> byName = new Comparator<RemoteTrainNode>() {
+        @Override
+        public int compare(RemoteTrainNode a, RemoteTrainNode b) {
+            int c = String.CASE_INSENSITIVE_ORDER.compare(getName(a), getName(b));
+            if (c != 0) return c;
+            return a.getNodeId().toString().compareTo(b.getNodeId().toString());
+        }
+    };
+
+    /**
+     * @param id node ID of a train
+     * @return the DCC address of a train node in the DCC range, or -1.
+     */
+    static int dccAddress(NodeID id) {
+        byte[] b = id.getContents();
+        if (b[0] != 0x06 || b[1] != 0x01 || b[2] != 0 || b[3] != 0) return -1;
+        return ((b[4] & 0x3F) << 8) | (b[5] & 0xff);
+    }
+
+    private static List<String> split(String text) {
+        List<String> l = new ArrayList<>();
+        for (String w : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!w.isEmpty()) l.add(w);
+        }
+        return l;
+    }
+
+    /**
+     * Adds a train, or updates its name.
+     * @param t    train node
+     * @param name user name from the SNIP, or null if not known yet
+     */
+    synchronized void put(RemoteTrainNode t, @Nullable String name) {
+        if (name == null) name = "";
+        List<String> old = wordsOf.get(t);
+        if (old == null) {
+            int a = dccAddress(t.getNodeId());
+            if (a >= 0) addTo(addresses, a, t);
+        } else {
+            if (name.equals(names.get(t))) return;
+            for (String w : old) {
+                Set<RemoteTrainNode> s = words.get(w);
+                s.remove(t);
+                if (s.isEmpty()) words.remove(w);
+            }
+        }
+        List<String> l = split(name);
+        for (String w : l) {
+            addTo(words, w, t);
+        }
+        wordsOf.put(t, l);
+        names.put(t, name);
+    }
+
+    private static <K> void addTo(Map<K, Set<RemoteTrainNode>> m, K key, RemoteTrainNode t) {
+        Set<RemoteTrainNode> s = m.get(key);
+        if (s == null) {
+            s = new HashSet<>();
+            m.put(key, s);
+        }
+        s.add(t);
+    }
+
+    /// @return the user name of the train, empty if not known.
+    synchronized String getName(RemoteTrainNode t) {
+        String n = names.get(t);
+        return n == null ? "" : n;
+    }
+
+    /**
+     * Searches for trains. Each word of the query has to match: either a word of the train's
+     * name starts with it, or, for numbers, it is the DCC address of the train.
+     *
+     * @param query words to look for; an empty query finds all trains.
+     * @return the matching trains, sorted by name.
+     */
+    synchronized List<RemoteTrainNode> search(String query) {
+        Collection<RemoteTrainNode> found = null;
+        for (String w : split(query)) {
+            Set<RemoteTrainNode> matches = new LinkedHashSet<>();
+            for (Set<RemoteTrainNode> s : words.subMap(w, w + Character.MAX_VALUE).values()) {
+                matches.addAll(s);
+            }
+            if (w.length() <= 5 && w.chars().allMatch(Character::isDigit)) {
+                Set<RemoteTrainNode> s = addresses.get(Integer.parseInt(w));
+                if (s != null) matches.addAll(s);
+            }
+            if (found == null) {
+                found = matches;
+            } else {
+                found.retainAll(matches);
+            }
+            if (found.isEmpty()) return Collections.emptyList();
+        }
+        List<RemoteTrainNode> l = new ArrayList<>(found == null ? names.keySet() : found);
+        Collections.sort(l, byName);
+        return l;
+    }
+}
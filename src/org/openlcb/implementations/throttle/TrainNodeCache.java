@@ -1,21 +1,41 @@
 package org.openlcb.implementations.throttle;
 
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
 import org.openlcb.CommonIdentifiers;
 import org.openlcb.Connection;
 import org.openlcb.IdentifyProducersMessage;
 import org.openlcb.MimicNodeStore;
 import org.openlcb.NodeID;
 import org.openlcb.OlcbInterface;
+import org.openlcb.SimpleNodeIdent;
 
 /**
  * Maintain a cache of Train objects on OpenLCB network
+ * <p>
+ * The trains can be searched by the words of their user name and by DCC address, see
+ * {@link #search}. With {@link #startFdiPrefetch} the FDI of the trains is loaded in the
+ * background, a few trains at a time, so that it is ready when a throttle opens the train; with
+ * {@link #setFdiCache} it is kept across restarts.
  *
  * @author Bob Jacobsen   Copyright 2012
  * @version $Revision$
  */
 public class TrainNodeCache extends AbstractNodeCache<RemoteTrainNode> {
+    /// Default number of trains whose FDI is prefetched at the same time.
+    public static final int DEFAULT_PREFETCH_CONCURRENCY = 2;
 
     private final OlcbInterface iface;
+    private final TrainIndex trains = new TrainIndex();
+    private FdiCache fdiCache = null;
+    // The following are guarded by prefetchQueue.
+    private final ArrayDeque<RemoteTrainNode> prefetchQueue = new ArrayDeque<>();
+    private int prefetchLimit = 0;
+    private int prefetchRunning = 0;
 
     public TrainNodeCache(OlcbInterface _iface) {
         super(CommonIdentifiers.IS_TRAIN);
@@ -33,16 +53,135 @@ public class TrainNodeCache extends AbstractNodeCache<RemoteTrainNode> {
 
     public void release() {
         iface.unRegisterMessageListener(this);
+        stopFdiPrefetch();
     }
 
     protected RemoteTrainNode newObject(NodeID id) {
-        MimicNodeStore.NodeMemo memo = iface.getNodeStore().findNode(id);
+        final RemoteTrainNode t = new RemoteTrainNode(id, iface);
+        t.setFdiCache(fdiCache);
+        trains.put(t, null);
+        final MimicNodeStore.NodeMemo memo = iface.getNodeStore().findNode(id);
         if (memo != null) {
+            memo.addPropertyChangeListener(new PropertyChangeListener() {
+                @Override
+                public void propertyChange(PropertyChangeEvent e) {
+                    if (MimicNodeStore.NodeMemo.UPDATE_PROP_SIMPLE_NODE_IDENT.equals(e
+                            .getPropertyName())) {
+                        indexName(t, memo);
+                    }
+                }
+            });
             // Instantiates the fetching of SNIP and PIP data.
             memo.getSimpleNodeIdent();
             memo.getProtocolIdentification();
+            indexName(t, memo);
+        }
+        synchronized (prefetchQueue) {
+            if (prefetchLimit > 0) {
+                prefetchQueue.add(t);
+                // Not on the caller's thread, which holds the lock of the cache.
+                iface.runOnThreadPool(new Runnable() {
+                    @Override
+                    public void run() {
+                        prefetchNext();
+                    }
+                });
+            }
+        }
+        return t;
+    }
+
+    private void indexName(RemoteTrainNode t, MimicNodeStore.NodeMemo memo) {
+        SimpleNodeIdent snip = memo.getSimpleNodeIdent();
+        if (snip == null || !snip.contentComplete()) return;
+        trains.put(t, snip.getUserName());
+    }
+
+    /**
+     * Finds trains by name or address. Each word of the query has to match: either a word of
+     * the train's user name starts with it, or, for numbers, it is the DCC address of the train.
+     *
+     * @param query words to look for, for example "4103" or "big boy"; an empty query finds all
+     *              trains.
+     * @return the matching trains, sorted by user name.
+     */
+    public List<RemoteTrainNode> search(String query) {
+        return trains.search(query);
+    }
+
+    /**
+     * @param t a train from this cache
+     * @return the user name of the train from its SNIP, empty if not known yet.
+     */
+    public String getName(RemoteTrainNode t) {
+        return trains.getName(t);
+    }
+
+    /**
+     * Sets the persistent cache to load the FDI of the trains from, and to store it in. Applies
+     * to the trains already known too.
+     *
+     * @param cache FDI cache, may be shared with other train node caches; null to not use one.
+     */
+    public synchronized void setFdiCache(@Nullable FdiCache cache) {
+        fdiCache = cache;
+        for (RemoteTrainNode t : list) {
+            t.setFdiCache(cache);
+        }
+    }
+
+    /**
+     * Starts loading the FDI of all trains, the known ones and the ones that show up later, in
+     * the background. Trains whose FDI is in the FDI cache are done without network traffic.
+     *
+     * @param maxConcurrent how many trains to load at the same time
+     */
+    public void startFdiPrefetch(int maxConcurrent) {
+        List<RemoteTrainNode> known;
+        synchronized (this) {
+            known = new ArrayList<>(list);
+        }
+        synchronized (prefetchQueue) {
+            prefetchLimit = Math.max(1, maxConcurrent);
+            prefetchQueue.addAll(known);
+        }
+        prefetchNext();
+    }
+
+    /// Stops the prefetch; the loads that are running are finished.
+    public void stopFdiPrefetch() {
+        synchronized (prefetchQueue) {
+            prefetchLimit = 0;
+            prefetchQueue.clear();
+        }
+    }
+
+    /// @return the number of trains waiting for or in the middle of their FDI prefetch.
+    public int getPrefetchPending() {
+        synchronized (prefetchQueue) {
+            return prefetchQueue.size() + prefetchRunning;
+        }
+    }
+
+    private void prefetchNext() {
+        List<RemoteTrainNode> start = new ArrayList<>();
+        synchronized (prefetchQueue) {
+            while (prefetchRunning < prefetchLimit && !prefetchQueue.isEmpty()) {
+                start.add(prefetchQueue.poll());
+                ++prefetchRunning;
+            }
+        }
+        for (RemoteTrainNode t : start) {
+            t.loadFdi(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (prefetchQueue) {
+                        --prefetchRunning;
+                    }
+                    prefetchNext();
+                }
+            });
         }
-        return new RemoteTrainNode(id, iface);
     }
 
     public void flushCache() {
@@ -146,6 +146,27 @@ public class TractionControlReplyMessage extends AddressedPayloadMessage {
         return payload[4];
     }
 
+    /**
+     * @return the node ID the consist attach or detach reply is about, or null if missing.
+     * Valid only for consist attach and detach reply messages.
+     */
+    @Nullable
+    public NodeID getConsistChangeNodeID() {
+        if (payload.length < 8) return null;
+        byte[] id = new byte[6];
+        System.arraycopy(payload, 2, id, 0, 6);
+        return new NodeID(id);
+    }
+
+    /**
+     * @return the result code of a consist attach or detach reply, 0 for success.
+     * Valid only for consist attach and detach reply messages.
+     */
+    public int getConsistChangeResult() {
+        if (payload.length < 10) return 0;
+        return ((payload[8] & 0xff) << 8) | (payload[9] & 0xff);
+    }
+
     @Override
     public void applyTo(MessageDecoder decoder, Connection sender) {
         decoder.handleTractionControlReply(this, sender);
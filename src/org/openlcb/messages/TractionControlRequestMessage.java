@@ -65,6 +65,10 @@ public class TractionControlRequestMessage extends AddressedPayloadMessage {
         return new TractionControlRequestMessage(source, dest, payload);
     }
 
+    public static TractionControlRequestMessage createEmergencyStop(NodeID source, NodeID dest) {
+        return new TractionControlRequestMessage(source, dest, new byte[]{CMD_ESTOP});
+    }
+
     public static TractionControlRequestMessage createGetSpeed(NodeID source, NodeID dest) {
         return new TractionControlRequestMessage(source, dest, new byte[]{CMD_GET_SPEED});
     }
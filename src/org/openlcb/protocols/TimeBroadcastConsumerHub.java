@@ -0,0 +1,444 @@
+package org.openlcb.protocols;
+
+import org.openlcb.Connection;
+import org.openlcb.ConsumerRangeIdentifiedMessage;
+import org.openlcb.DefaultPropertyListenerSupport;
+import org.openlcb.EventID;
+import org.openlcb.MessageDecoder;
+import org.openlcb.NodeID;
+import org.openlcb.OlcbInterface;
+import org.openlcb.ProducerConsumerEventReportMessage;
+import org.openlcb.ProducerIdentifiedMessage;
+import org.openlcb.ProducerRangeIdentifiedMessage;
+
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/**
+ * Clock Consumer for several clocks of the Time Broadcast Protocol on one interface.
+ * <p>
+ * A layout often runs a fast clock and a real-time clock side by side. Instead of one
+ * {@link TimeBroadcastConsumer} per clock, each decoding all the event traffic, the hub has a
+ * single listener. It takes the event ID as a long and finds the clock by comparing the upper 48
+ * bits with the clock IDs, so events of other clocks and other producers cost one scan of a
+ * short array.
+ * <p>
+ * Each {@link Clock} keeps the last reported year, month, day, hour and minute as numbers and
+ * converts them to a timestamp with integer date arithmetic, so decoding a report allocates
+ * nothing. A report causes at most one property change. The year and date reports of a block
+ * are applied to the clock right away, and their change is published together with the time
+ * report, which the clock generators always send last.
+ */
+public class TimeBroadcastConsumerHub {
+    private static final long DAY_MSEC = 86400L * 1000;
+
+    /// Interface we are registered to.
+    private final OlcbInterface iface;
+    private final Handler messageHandler = new Handler();
+    /// Replaced as a whole when a clock is added or removed; guarded by this for writing.
+    private volatile Routes routes = new Routes(new long[0], new Clock[0]);
+
+    /// The clock IDs as longs, and the clock state of each.
+    private static final class Routes {
+        final long[] prefixes;
+        final Clock[] clocks;
+
+        Routes(long[] prefixes, Clock[] clocks) {
+            this.prefixes = prefixes;
+            this.clocks = clocks;
+        }
+    }
+
+    public TimeBroadcastConsumerHub(OlcbInterface iface) {
+        this.iface = iface;
+        iface.registerMessageListener(messageHandler);
+    }
+
+    /// De-registers message listeners to prepare for deallocating this object.
+    public void dispose() {
+        iface.unRegisterMessageListener(messageHandler);
+    }
+
+    /**
+     * Starts following a clock. Sends the consumer and producer range identification and a
+     * query for the clock state once the connection is active, unless the clock was removed
+     * by then.
+     *
+     * @param clock ID of the clock
+     * @return the state of the clock; the same object if the clock was added before.
+     */
+    public Clock addClock(NodeID clock) {
+        final Clock c;
+        synchronized (this) {
+            Clock old = getClock(clock);
+            if (old != null) return old;
+            c = new Clock(clock);
+            Routes r = routes;
+            int n = r.clocks.length;
+            long[] p = Arrays.copyOf(r.prefixes, n + 1);
+            Clock[] cl = Arrays.copyOf(r.clocks, n + 1);
+            p[n] = clock.toLong();
+            cl[n] = c;
+            routes = new Routes(p, cl);
+        }
+        iface.getOutputConnection().registerStartNotification(new Connection.ConnectionListener() {
+            @Override
+            public void connectionActive(Connection conn) {
+                // The clock may have been removed, or removed and added again, meanwhile.
+                if (getClock(clock) == c) c.sendStartupAction();
+            }
+        });
+        return c;
+    }
+
+    /// Stops following a clock.
+    public synchronized void removeClock(NodeID clock) {
+        long id = clock.toLong();
+        Routes r = routes;
+        long[] p = r.prefixes;
+        for (int i = 0; i < p.length; ++i) {
+            if (p[i] != id) continue;
+            long[] np = new long[p.length - 1];
+            Clock[] nc = new Clock[p.length - 1];
+            System.arraycopy(p, 0, np, 0, i);
+            System.arraycopy(p, i + 1, np, i, p.length - i - 1);
+            System.arraycopy(r.clocks, 0, nc, 0, i);
+            System.arraycopy(r.clocks, i + 1, nc, i, p.length - i - 1);
+            routes = new Routes(np, nc);
+            return;
+        }
+    }
+
+    /// @return the state of a clock that was added, or null.
+    public Clock getClock(NodeID clock) {
+        return find(clock.toLong());
+    }
+
+    /// @return the clock whose ID is the given 48 bits, or null.
+    private Clock find(long prefix) {
+        Routes r = routes;
+        long[] p = r.prefixes;
+        for (int i = 0; i < p.length; ++i) {
+            if (p[i] == prefix) return r.clocks[i];
+        }
+        return null;
+    }
+
+    /// Listener for incoming messages from the interface.
+    private class Handler extends MessageDecoder {
+        @Override
+        public void handleProducerConsumerEventReport(ProducerConsumerEventReportMessage msg,
+                                                      Connection sender) {
+            route(msg.getEventID(), true);
+        }
+
+        @Override
+        public void handleProducerIdentified(ProducerIdentifiedMessage msg, Connection sender) {
+            route(msg.getEventID(), false);
+        }
+    }
+
+    private void route(EventID event, boolean force) {
+        long e = event.toLong();
+        Clock c = find(e >>> 16);
+        if (c != null) c.handleTimeEvent((int) (e & 0xffff), force);
+    }
+
+    /// Days since 1970-01-01 of a date in the proleptic Gregorian calendar.
+    static long daysFromCivil(long y, int m, int d) {
+        if (m <= 2) --y;
+        long era = Math.floorDiv(y, 400);
+        long yoe = y - era * 400;
+        long doy = (153 * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    /**
+     * Converts days since 1970-01-01 to a date in the proleptic Gregorian calendar.
+     * @return the date packed as year * 512 + month * 32 + day; see {@link #yearOf},
+     * {@link #monthOf}, {@link #dayOf}.
+     */
+    static long civilFromDays(long days) {
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        long d = doy - (153 * mp + 2) / 5 + 1;
+        long m = mp < 10 ? mp + 3 : mp - 9;
+        long y = yoe + era * 400 + (m <= 2 ? 1 : 0);
+        return (y << 9) | (m << 5) | d;
+    }
+
+    static int yearOf(long civil) {
+        return (int) (civil >> 9);
+    }
+
+    static int monthOf(long civil) {
+        return (int) ((civil >> 5) & 0xf);
+    }
+
+    static int dayOf(long civil) {
+        return (int) (civil & 0x1f);
+    }
+
+    /**
+     * State of one clock, updated from the reports of its generator.
+     */
+    public class Clock extends DefaultPropertyListenerSupport implements TimeProtocol {
+        /// Stores the prefix of the event ID that represents our clock.
+        private final NodeID clock;
+        /// Internal implementation for the current (fast) time.
+        TimeKeeper timeKeeper = new TimeKeeper();
+        /// The client-set timezone to use for interpreting the wire time (hh:mm).
+        private volatile TimeZone timeZone = TimeZone.getDefault();
+        // The last reported fields, collected from the various events coming from the network.
+        // Guarded by this.
+        private int year;
+        private int month;
+        private int day;
+        private int hour;
+        private int minute;
+        /// True if a year or date change was applied but not published yet.
+        private boolean timeChangePending = false;
+        /// Time before the unpublished change.
+        private long timeBeforeChange;
+
+        private Clock(NodeID clock) {
+            this.clock = clock;
+            setFields(timeKeeper.getTime());
+        }
+
+        public NodeID getClockID() {
+            return clock;
+        }
+
+        /**
+         * Overrides default time zone. If never called, uses computer's local time.
+         *
+         * @param tz This timezone will be used to convert the date and time values coming on
+         *           the wire into a long (milliseconds since epoch).
+         */
+        public void setTimeZone(TimeZone tz) {
+            timeZone = tz;
+        }
+
+        private void sendStartupAction() {
+            // Creating an event range representation depending on the lowest bit of the clock ID.
+            int consumerSuffix;
+            if ((clock.getContents()[5] & 1) == 0) {
+                consumerSuffix = 0xFFFF;
+            } else {
+                consumerSuffix = 0;
+            }
+            // We are consuming all events in the range.
+            iface.getOutputConnection().put(new ConsumerRangeIdentifiedMessage(iface.getNodeId(),
+                    TimeProtocol.createClockEvent(clock, consumerSuffix)), messageHandler);
+            // We are producing all events in the upper half ("SET" events).
+            iface.getOutputConnection().put(new ProducerRangeIdentifiedMessage(iface.getNodeId(),
+                    TimeProtocol.createClockEvent(clock, 0x8000)), messageHandler);
+            requestQuery();
+        }
+
+        /// @return the local time of a timestamp in the clock's time zone.
+        private long toLocal(long time) {
+            return time + timeZone.getOffset(time);
+        }
+
+        /// Sets the fields of the last reported time from a timestamp. Lock held.
+        private void setFields(long time) {
+            long local = toLocal(time);
+            long days = Math.floorDiv(local, DAY_MSEC);
+            long msOfDay = local - days * DAY_MSEC;
+            setDate(days);
+            hour = (int) (msOfDay / 3600000);
+            minute = (int) (msOfDay / 60000 % 60);
+        }
+
+        /// Sets year, month and day from days since the epoch. Lock held.
+        private void setDate(long days) {
+            long civil = civilFromDays(days);
+            year = yearOf(civil);
+            month = monthOf(civil);
+            day = dayOf(civil);
+        }
+
+        /// @return the timestamp of a local date and time in the clock's time zone.
+        private long toTime(int y, int mon, int d, long msOfDay) {
+            long local = daysFromCivil(y, mon, d) * DAY_MSEC + msOfDay;
+            TimeZone tz = timeZone;
+            return local - tz.getOffset(local - tz.getRawOffset());
+        }
+
+        /// @return the timestamp of the last reported fields.
+        private long reportedTime() {
+            return toTime(year, month, day, hour * 3600000L + minute * 60000L);
+        }
+
+        /**
+         * Applies a new date to the running clock, keeping its time of day. The change is
+         * published with the next time report.
+         */
+        private void applyDate(int y, int mon, int d) {
+            long ctime = timeKeeper.getTime();
+            long msOfDay = Math.floorMod(toLocal(ctime), DAY_MSEC);
+            long newTime = toTime(y, mon, d, msOfDay);
+            // Only apply if we are indeed away from the current.
+            if (Math.abs(newTime - ctime) <= 60 * 1000) return;
+            if (!timeChangePending) {
+                timeChangePending = true;
+                timeBeforeChange = ctime;
+            }
+            timeKeeper.setTime(newTime);
+        }
+
+        /**
+         * Handles an incoming notification from the clock master.
+         *
+         * @param d     event suffix of the clock event.
+         * @param force true for event report, false for producer identified.
+         */
+        private void handleTimeEvent(int d, boolean force) {
+            String prop = null;
+            // Only one of these pairs is used; boxed only when publishing.
+            boolean oldRunning = false, newRunning = false;
+            double oldRate = 0, newRate = 0;
+            long oldTime = 0, newTime = 0;
+            synchronized (this) {
+                switch (d) {
+                    case TimeProtocol.STOP_SUFFIX:
+                    case TimeProtocol.START_SUFFIX: {
+                        oldRunning = timeKeeper.isRunning;
+                        newRunning = d == TimeProtocol.START_SUFFIX;
+                        if (newRunning) {
+                            timeKeeper.start();
+                        } else {
+                            timeKeeper.stop();
+                        }
+                        if (oldRunning != newRunning) prop = PROP_RUN_UPDATE;
+                        break;
+                    }
+                    case TimeProtocol.DATE_ROLLOVER: {
+                        // This is an advisory message that we are moving over to the next day.
+                        long days = daysFromCivil(year, month, day);
+                        setDate(timeKeeper.rate >= 0 ? days + 1 : days - 1);
+                        break;
+                    }
+                    default:
+                        switch (d >> 12) {
+                            case NIB_TIME_REPORT:
+                            case NIB_TIME_REPORT_ALT: {
+                                hour = (d >> 8) & 0x1f;
+                                minute = d & 0xff;
+                                long reported = reportedTime();
+                                long ctime = timeKeeper.getTime();
+                                // We only set the fast clock if the actual time is more than
+                                // two minutes apart, unless the minute just ticked. Otherwise
+                                // we would be better off with a bit of skew.
+                                boolean apply = force || Math.abs(ctime - reported) > 120 * 1000;
+                                if (apply) timeKeeper.setTime(reported);
+                                if (apply || timeChangePending) {
+                                    prop = PROP_TIME_UPDATE;
+                                    oldTime = timeChangePending ? timeBeforeChange : ctime;
+                                    newTime = apply ? reported : ctime;
+                                    timeChangePending = false;
+                                }
+                                break;
+                            }
+                            case NIB_DATE_REPORT: {
+                                month = (d >> 8) & 0xf;
+                                day = d & 0xff;
+                                if (force) applyDate(year, month, day);
+                                break;
+                            }
+                            case NIB_YEAR_REPORT: {
+                                year = d & 0xfff;
+                                if (force) {
+                                    // Keeps the month and day of the running clock.
+                                    long civil = civilFromDays(Math.floorDiv(toLocal(timeKeeper
+                                            .getTime()), DAY_MSEC));
+                                    applyDate(year, monthOf(civil), dayOf(civil));
+                                }
+                                break;
+                            }
+                            case NIB_RATE_REPORT: {
+                                oldRate = timeKeeper.rate;
+                                newRate = TimeProtocol.decodeRate(d);
+                                timeKeeper.setRate(newRate);
+                                if (oldRate != newRate) prop = PROP_RATE_UPDATE;
+                                break;
+                            }
+                            // We ignore all other nibble values.
+                        }
+                }
+            }
+            if (prop == null) return;
+            switch (prop) {
+                case PROP_RUN_UPDATE:
+                    firePropertyChange(prop, oldRunning, newRunning);
+                    break;
+                case PROP_RATE_UPDATE:
+                    firePropertyChange(prop, oldRate, newRate);
+                    break;
+                default:
+                    firePropertyChange(prop, oldTime, newTime);
+                    break;
+            }
+        }
+
+        @Override
+        public double getRate() {
+            return timeKeeper.rate;
+        }
+
+        @Override
+        public boolean isRunning() {
+            return timeKeeper.isRunning;
+        }
+
+        @Override
+        public long getTimeInMsec() {
+            return timeKeeper.getTime();
+        }
+
+        private void sendSet(int suffix) {
+            iface.getOutputConnection().put(new ProducerConsumerEventReportMessage(iface
+                    .getNodeId(), TimeProtocol.createClockEvent(clock, suffix)), messageHandler);
+        }
+
+        @Override
+        public void requestSetRate(double rate) {
+            sendSet(TimeProtocol.createRate(rate) | TimeProtocol.SET_SUFFIX);
+        }
+
+        @Override
+        public void requestStop() {
+            sendSet(TimeProtocol.STOP_SUFFIX);
+        }
+
+        @Override
+        public void requestStart() {
+            sendSet(TimeProtocol.START_SUFFIX);
+        }
+
+        @Override
+        public void requestSetTime(long timeMsec) {
+            long local = toLocal(timeMsec);
+            long days = Math.floorDiv(local, DAY_MSEC);
+            long msOfDay = local - days * DAY_MSEC;
+            long civil = civilFromDays(days);
+            sendSet(TimeProtocol.createYear(yearOf(civil)) | TimeProtocol.SET_SUFFIX);
+            sendSet(TimeProtocol.createMonthDay(monthOf(civil), dayOf(civil)) | TimeProtocol
+                    .SET_SUFFIX);
+            sendSet(TimeProtocol.createHourMin((int) (msOfDay / 3600000), (int) (msOfDay / 60000
+                    % 60)) | TimeProtocol.SET_SUFFIX);
+        }
+
+        @Override
+        public void requestQuery() {
+            sendSet(TimeProtocol.QUERY_SUFFIX);
+        }
+    }
+}
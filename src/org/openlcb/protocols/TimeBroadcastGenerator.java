@@ -1,5 +1,6 @@
 package org.openlcb.protocols;
 
+import org.openlcb.ClockScheduler;
 import org.openlcb.Connection;
 import org.openlcb.ConsumerRangeIdentifiedMessage;
 import org.openlcb.DefaultPropertyListenerSupport;
@@ -16,9 +17,7 @@ import org.openlcb.ProducerRangeIdentifiedMessage;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.Calendar;
-import java.util.Date;
 import java.util.TimeZone;
-import java.util.TimerTask;
 
 import static org.openlcb.MessageTypeIdentifier.ConsumerRangeIdentified;
 import static org.openlcb.MessageTypeIdentifier.ProducerConsumerEventReport;
@@ -28,6 +27,10 @@ import static org.openlcb.MessageTypeIdentifier.ProducerRangeIdentified;
 /**
  * Implementation of the Clock Generator feature of the Time Broadcast Protocol.
  *
+ * The timed events of the clock (date rollover, the delayed resync and the optional minute
+ * reports) run on the {@link ClockScheduler} of the interface. Their times are computed ahead
+ * from the fast time of the event, for any rate, so they do not drift.
+ *
  * Created by bracz on 9/30/18.
  */
 
@@ -38,6 +41,7 @@ public class TimeBroadcastGenerator extends DefaultPropertyListenerSupport imple
         this.timeKeeper = new TimeKeeper();
         this.fastDayLastAnnounced = timeKeeper.matchingFastTime;
         this.iface = iface;
+        this.scheduler = iface.getClockScheduler();
         iface.registerMessageListener(messageHandler);
         iface.getOutputConnection().registerStartNotification(new Connection.ConnectionListener() {
             @Override
@@ -51,10 +55,26 @@ public class TimeBroadcastGenerator extends DefaultPropertyListenerSupport imple
         timeZone = tz;
     }
 
+    /// Turns on or off sending a time report event at every fast minute while the clock runs.
+    public void setMinuteReports(boolean enabled) {
+        synchronized (this) {
+            minuteReports = enabled;
+            updateMinuteTask();
+        }
+    }
+
     public synchronized void dispose() {
         if (delayedSyncTask != null) {
             delayedSyncTask.cancel();
         }
+        if (midnightTask != null) {
+            midnightTask.cancel();
+            midnightTask = null;
+        }
+        if (minuteTask != null) {
+            minuteTask.cancel();
+            minuteTask = null;
+        }
         iface.unRegisterMessageListener(messageHandler);
     }
 
@@ -156,7 +176,7 @@ public class TimeBroadcastGenerator extends DefaultPropertyListenerSupport imple
             delayedSyncTask.cancel();
             delayedSyncTask = null;
         }
-        delayedSyncTask = new TimerTask() {
+        delayedSyncTask = scheduler.schedule(new Runnable() {
             @Override
             public void run() {
                 synchronized(TimeBroadcastGenerator.this) {
@@ -164,9 +184,7 @@ public class TimeBroadcastGenerator extends DefaultPropertyListenerSupport imple
                 }
                 triggerClockSyncNow();
             }
-        };
-        iface.getTimer().schedule(delayedSyncTask, RESYNC_DELAY_MSEC);
-        // @todo.
+        }, RESYNC_DELAY_MSEC);
     }
 
     private void triggerClockSyncNow() {
@@ -198,17 +216,28 @@ public class TimeBroadcastGenerator extends DefaultPropertyListenerSupport imple
     private final NodeID clock;
     /// Internal implementation for the current (fast) time.
     TimeKeeper timeKeeper;
-    /// Timer task used for delaying a sync.
-    TimerTask delayedSyncTask = null;
-    /// Timer task used to announce midnight
-    private TimerTask midnightTask = null;
-    /// Real-time at which the current midnight task is scheduled.
-    private long midnightScheduledTime = 0;
+    /// Runs the timed events of the clock.
+    private final ClockScheduler scheduler;
+    /// Scheduled task used for delaying a sync.
+    ClockScheduler.Task delayedSyncTask = null;
+    /// Scheduled task used to announce midnight
+    private ClockScheduler.Task midnightTask = null;
+    /// Tells an outdated midnight task that is already running that it is stale.
+    private int midnightGeneration = 0;
+    /// Whether to send a time report at every fast minute.
+    private boolean minuteReports = false;
+    /// Scheduled task that sends the next minute report.
+    private ClockScheduler.Task minuteTask = null;
+    /// Tells an outdated minute task that is already running that it is stale.
+    private int minuteGeneration = 0;
+    /// Fast time of the minute boundary the minute task is scheduled for.
+    private long nextMinuteFastTime = 0;
     /// Current day (by fast time) for the purpose of midnight announcements. This changes exactly
     /// when the midnight announcement goes out or the time jumps to a different day.
     private long fastDayLastAnnounced;
     /// This is how long we wait before sending out the the re-synchronization messages. This is not final in order to write tests that run faster.
     long RESYNC_DELAY_MSEC = 3000;
+    private static final long MINUTE_MSEC = 60 * 1000;
 
     @Override
     public double getRate() {
@@ -238,6 +267,7 @@ public class TimeBroadcastGenerator extends DefaultPropertyListenerSupport imple
                 // that got triggered but the timer thread is waiting for the lock?
                 updateMidnightTask(0, 0);
             }
+            updateMinuteTask();
         }
         firePropertyChange(TimeProtocol.PROP_RATE_UPDATE, oldRate, r);
     }
@@ -246,12 +276,10 @@ public class TimeBroadcastGenerator extends DefaultPropertyListenerSupport imple
     /// @param daysDelta is +1, 0 or -1 to decide how much to move the fastDayLastAnnounced
     /// timestamp (forward a day, not move, or backwards a day).
     private synchronized void updateMidnightTask(long unused, int daysDelta) {
-        // Real-time at which we want to fire the midnight task.
-        long desiredTime = 0;
+        // nanoTime at which we want to fire the midnight task.
+        long desiredTime = Long.MIN_VALUE;
         long chosenFastMidnight = 0;
-        if (!timeKeeper.isRunning || timeKeeper.rate == 0) {
-            desiredTime = 0;
-        } else {
+        if (timeKeeper.isRunning && timeKeeper.rate != 0) {
             Calendar c = Calendar.getInstance(timeZone);
             c.setTimeInMillis(fastDayLastAnnounced);
             if (daysDelta != 0) {
@@ -269,26 +297,86 @@ public class TimeBroadcastGenerator extends DefaultPropertyListenerSupport imple
                 c.add(Calendar.DAY_OF_MONTH, 1);
             }
             chosenFastMidnight = c.getTimeInMillis();
-            desiredTime = timeKeeper.translateFastToRealTime(chosenFastMidnight);
+            desiredTime = timeKeeper.translateFastToNanoTime(chosenFastMidnight);
             // makes midnight rollover scheduled earlier on the timer queue than any actual
             // time events.
-            desiredTime -= 1;
+            desiredTime -= 1000000;
+        }
+        if (midnightTask != null && desiredTime == midnightTask.getDeadlineNanos()) {
+            return; // no need to change.
         }
-        if (desiredTime == midnightScheduledTime) return; // no need to change.
         if (midnightTask != null) {
             midnightTask.cancel();
             midnightTask = null;
         }
-        midnightScheduledTime = 0;
-        if (desiredTime == 0) return;
-        midnightTask = new TimerTask() {
+        final int generation = ++midnightGeneration;
+        if (desiredTime == Long.MIN_VALUE) return;
+        midnightTask = scheduler.scheduleAt(new Runnable() {
+            @Override
+            public void run() {
+                announceMidnight(generation);
+            }
+        }, desiredTime);
+    }
+
+    /// Updates, if necessary, the scheduled task that sends the time report at the next fast
+    /// minute.
+    private synchronized void updateMinuteTask() {
+        if (!minuteReports || !timeKeeper.isRunning || timeKeeper.rate == 0) {
+            if (minuteTask != null) {
+                minuteTask.cancel();
+                minuteTask = null;
+                ++minuteGeneration;
+            }
+            return;
+        }
+        long t = timeKeeper.getTime();
+        long boundary;
+        if (timeKeeper.rate > 0) {
+            boundary = Math.floorDiv(t, MINUTE_MSEC) * MINUTE_MSEC + MINUTE_MSEC;
+        } else {
+            boundary = Math.floorDiv(t - 1, MINUTE_MSEC) * MINUTE_MSEC;
+        }
+        scheduleMinuteTask(boundary);
+    }
+
+    /// Schedules the minute report for when the fast time reaches a minute boundary.
+    private void scheduleMinuteTask(long boundary) {
+        long desiredTime = timeKeeper.translateFastToNanoTime(boundary);
+        if (minuteTask != null) {
+            if (boundary == nextMinuteFastTime && desiredTime == minuteTask.getDeadlineNanos()) {
+                return; // no need to change.
+            }
+            minuteTask.cancel();
+        }
+        nextMinuteFastTime = boundary;
+        final int generation = ++minuteGeneration;
+        minuteTask = scheduler.scheduleAt(new Runnable() {
             @Override
             public void run() {
-                announceMidnight(this);
+                announceMinute(generation);
             }
-        };
-        midnightScheduledTime = desiredTime;
-        iface.getTimer().schedule(midnightTask, new Date(midnightScheduledTime));
+        }, desiredTime);
+    }
+
+    private void announceMinute(int generation) {
+        int suffix;
+        synchronized (this) {
+            if (minuteTask == null || minuteGeneration != generation) return;
+            long boundary = nextMinuteFastTime;
+            boolean forward = timeKeeper.rate > 0;
+            // Going backwards the clock enters the previous minute at the boundary.
+            long reported = forward ? boundary : boundary - MINUTE_MSEC;
+            Calendar c = Calendar.getInstance(timeZone);
+            c.setTimeInMillis(reported);
+            suffix = TimeProtocol.createHourMin(c.get(Calendar.HOUR_OF_DAY), c.get(Calendar
+                    .MINUTE));
+            // The next boundary is computed from this one, not from the current time, so the
+            // reports do not drift.
+            minuteTask = null;
+            scheduleMinuteTask(forward ? boundary + MINUTE_MSEC : boundary - MINUTE_MSEC);
+        }
+        sendClockEvent(suffix);
     }
 
     /// Updates internal state and property change listeners. Does not talk to the bus.
@@ -301,14 +389,15 @@ public class TimeBroadcastGenerator extends DefaultPropertyListenerSupport imple
                 fastDayLastAnnounced = newTime;
                 updateMidnightTask(0, 0);
             }
+            updateMinuteTask();
         }
         firePropertyChange(TimeProtocol.PROP_TIME_UPDATE, oldTime, newTime);
     }
 
-    private synchronized void announceMidnight(TimerTask self) {
+    private synchronized void announceMidnight(int generation) {
         // We only run if the midnight task has not been changed from us. This is the
         // lock-protected synchronization we do to avoid outdated midnight tasks from executing.
-        if (!timeKeeper.isRunning || midnightTask != self) {
+        if (!timeKeeper.isRunning || midnightGeneration != generation) {
             return;
         }
         sendClockEvent(TimeProtocol.DATE_ROLLOVER);
@@ -333,6 +422,7 @@ public class TimeBroadcastGenerator extends DefaultPropertyListenerSupport imple
                 timeKeeper.stop();
             }
             updateMidnightTask(0, 0);
+            updateMinuteTask();
         }
         firePropertyChange(TimeProtocol.PROP_RUN_UPDATE, lastRunning, r);
     }
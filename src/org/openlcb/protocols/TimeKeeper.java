@@ -13,6 +13,10 @@ class TimeKeeper {
         return System.currentTimeMillis();
     }
 
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
     /// @return the current fast time.
     public long getTime() {
         return getTime(currentTimeMillis());
@@ -30,6 +34,7 @@ class TimeKeeper {
     /// Sets the current fast time. @param millis is time since epoch in milliseconds.
     public synchronized void setTime(long millis) {
         realTimeAnchor = currentTimeMillis();
+        realTimeAnchorNanos = nanoTime();
         matchingFastTime = millis;
     }
 
@@ -45,6 +50,7 @@ class TimeKeeper {
     public synchronized void start() {
         if (isRunning) return;
         realTimeAnchor = currentTimeMillis();
+        realTimeAnchorNanos = nanoTime();
         isRunning = true;
     }
 
@@ -55,6 +61,7 @@ class TimeKeeper {
         // need to re-anchor the clock first.
         long t = getTime(c);
         realTimeAnchor = c;
+        realTimeAnchorNanos = nanoTime();
         matchingFastTime = t;
         // then we can set the rate.
         rate = r;
@@ -72,10 +79,24 @@ class TimeKeeper {
         return realTimeAnchor + deltaRealTime;
     }
 
+    /// Translates a fast time timestamp to the {@link System#nanoTime} value when we will reach it
+    /// (or have reached it). Every fast time is computed from the same anchor, so a series of
+    /// events scheduled this way does not drift.
+    /// @param fastTime is a millisecond timestamp in the fast time.
+    /// @return Long.MIN_VALUE if the clock is stopped or rate is zero. Otherwise the nanoTime
+    /// when the given fast time will be reached.
+    public synchronized long translateFastToNanoTime(long fastTime) {
+        if (!isRunning || rate == 0) return Long.MIN_VALUE;
+        double delta = fastTime - matchingFastTime;
+        return realTimeAnchorNanos + (long) (delta * 1e6 / rate);
+    }
+
     /// true if the clock is running
     boolean isRunning = true;
     /// the real time for which we are storing the equivalent fast time. Ignored if !isRunning. Defined as msec since epoch.
     long realTimeAnchor = currentTimeMillis();
+    /// {@link System#nanoTime} value taken together with realTimeAnchor.
+    long realTimeAnchorNanos = nanoTime();
     /// fast time matching the real time anchor, or the fast time when the clock was stopped. Defined as msec since epoch.
     long matchingFastTime = realTimeAnchor;
     /// Rate of the fast clock, may be negative.
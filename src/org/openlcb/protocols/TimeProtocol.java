@@ -47,12 +47,7 @@ public interface TimeProtocol extends PropertyListenerSupport {
     /// @return -1 if te event is unrelated to that clock, otherwise the last 16 bits (the clock suffix).
     static int decodeClock(EventID event, NodeID expectedClock) {
         if (!event.startsWith(expectedClock)) return -1;
-        byte[] cnt = event.getContents();
-        int r = cnt[6];
-        r &= 0xff;
-        r <<= 8;
-        r |= (cnt[7] & 0xff);
-        return r;
+        return (int) (event.toLong() & 0xffff);
     }
 
     /// Assembles a clock control event ID.
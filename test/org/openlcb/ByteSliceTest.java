@@ -0,0 +1,78 @@
+package org.openlcb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tests the immutable byte slice used for datagram payloads.
+ */
+public class ByteSliceTest {
+    @Test
+    public void testWrapAndGet() {
+        byte[] b = new byte[]{0x20, (byte) 0x80, (byte) 0xFF, 1, 2, 3, 4};
+        ByteSlice s = ByteSlice.wrap(b);
+        Assert.assertEquals(7, s.length());
+        Assert.assertEquals(0x20, s.get(0));
+        Assert.assertEquals(0x80, s.get(1));
+        Assert.assertEquals(0xFF, s.get(2));
+        Assert.assertEquals(-1, s.getByte(2));
+        Assert.assertEquals(0x80FF, s.getUint16(1));
+        Assert.assertEquals(0xFF010203L, s.getUint32(2));
+        Assert.assertEquals("20.80.FF.01.02.03.04", s.toString());
+    }
+
+    @Test
+    public void testSliceSharesBytes() {
+        byte[] b = new byte[]{0, 1, 2, 3, 4, 5};
+        ByteSlice s = ByteSlice.wrap(b, 1, 4).slice(1);
+        Assert.assertEquals(3, s.length());
+        Assert.assertEquals(2, s.get(0));
+        Assert.assertArrayEquals(new byte[]{2, 3, 4}, s.toByteArray());
+        Assert.assertArrayEquals(new int[]{2, 3, 4}, s.toIntArray());
+        // No copy was made.
+        b[2] = 42;
+        Assert.assertEquals(42, s.get(0));
+        try {
+            s.get(3);
+            Assert.fail();
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testConversions() {
+        ByteSlice s = ByteSlice.fromInts(new int[]{0x20, 0xFE, 0x101});
+        Assert.assertArrayEquals(new int[]{0x20, 0xFE, 0x01}, s.toIntArray());
+        Assert.assertEquals(ByteSlice.wrap(new byte[]{0x20, (byte) 0xFE, 1}), s);
+        Assert.assertEquals(ByteSlice.wrap(new byte[]{0x20, (byte) 0xFE, 1}).hashCode(), s
+                .hashCode());
+        Assert.assertNotEquals(s.slice(1), s);
+        Assert.assertSame(ByteSlice.EMPTY, ByteSlice.fromInts(new int[0]));
+
+        byte[] b = new byte[]{5, 6};
+        ByteSlice c = ByteSlice.copyOf(b);
+        b[0] = 9;
+        Assert.assertEquals(5, c.get(0));
+
+        ByteBuffer bb = s.slice(1).asByteBuffer();
+        Assert.assertTrue(bb.isReadOnly());
+        Assert.assertEquals(2, bb.remaining());
+        Assert.assertEquals((byte) 0xFE, bb.get());
+    }
+
+    @Test
+    public void testDatagramMessage() {
+        NodeID a = new NodeID(new byte[]{1, 2, 3, 4, 5, 6});
+        NodeID b = new NodeID(new byte[]{1, 2, 3, 4, 5, 7});
+        ByteSlice p = ByteSlice.wrap(new byte[]{0x20, (byte) 0x81, 3});
+        DatagramMessage m = new DatagramMessage(a, b, p);
+        Assert.assertSame(p, m.getPayload());
+        Assert.assertArrayEquals(new int[]{0x20, 0x81, 3}, m.getData());
+        Assert.assertEquals(new DatagramMessage(a, b, new int[]{0x20, 0x81, 3}), m);
+        Assert.assertEquals(p, new DatagramMessage(a, b, new byte[]{0x20, (byte) 0x81, 3})
+                .getPayload());
+    }
+}
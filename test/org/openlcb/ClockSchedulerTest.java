@@ -0,0 +1,118 @@
+package org.openlcb;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the clock scheduler and measures its jitter.
+ */
+public class ClockSchedulerTest {
+    ClockScheduler scheduler = new ClockScheduler("test clock scheduler");
+
+    @After
+    public void tearDown() {
+        scheduler.stop();
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        final List<Integer> fired = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch l = new CountDownLatch(4);
+        long now = System.nanoTime();
+        int[] delays = {40, 3, 20, 0};
+        for (final int d : delays) {
+            scheduler.scheduleAt(new Runnable() {
+                @Override
+                public void run() {
+                    fired.add(d);
+                    l.countDown();
+                }
+            }, now + d * 1000000L);
+        }
+        Assert.assertTrue(l.await(2, TimeUnit.SECONDS));
+        Assert.assertEquals(Integer.valueOf(0), fired.get(0));
+        Assert.assertEquals(Integer.valueOf(3), fired.get(1));
+        Assert.assertEquals(Integer.valueOf(20), fired.get(2));
+        Assert.assertEquals(Integer.valueOf(40), fired.get(3));
+        Assert.assertEquals(4, scheduler.getJitter().getCount());
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final CountDownLatch l = new CountDownLatch(1);
+        final boolean[] ran = new boolean[1];
+        ClockScheduler.Task t = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran[0] = true;
+            }
+        }, 200);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                l.countDown();
+            }
+        }, 300);
+        Assert.assertTrue(t.cancel());
+        Assert.assertFalse(t.cancel());
+        Assert.assertTrue(l.await(2, TimeUnit.SECONDS));
+        Assert.assertFalse(ran[0]);
+    }
+
+    @Test
+    public void testStopped() {
+        scheduler.stop();
+        Assert.assertNull(scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 0));
+    }
+
+    /**
+     * Runs a series of clock events 5 msec apart, computed from one anchor, while the shared
+     * timer of the interface is blocked, and checks that they are not delayed by it.
+     */
+    @Test
+    public void testJitterWithBusyTimer() throws Exception {
+        Timer timer = new Timer("busy timer");
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(400);
+                } catch (InterruptedException e) {
+                    // done
+                }
+            }
+        }, 0);
+        final int count = 50;
+        final CountDownLatch l = new CountDownLatch(count);
+        long anchor = System.nanoTime() + 20000000;
+        for (int i = 0; i < count; ++i) {
+            scheduler.scheduleAt(new Runnable() {
+                @Override
+                public void run() {
+                    l.countDown();
+                }
+            }, anchor + i * 5000000L);
+        }
+        Assert.assertTrue(l.await(5, TimeUnit.SECONDS));
+        timer.cancel();
+        ClockScheduler.Jitter j = scheduler.getJitter();
+        System.out.println("Clock scheduler jitter: " + j);
+        Assert.assertEquals(count, j.getCount());
+        Assert.assertTrue(j.toString(), j.getMaxMicros() < 100000);
+        scheduler.resetJitter();
+        Assert.assertEquals(0, scheduler.getJitter().getCount());
+    }
+}
@@ -0,0 +1,130 @@
+package org.openlcb;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the coalescing property change dispatcher.
+ */
+public class CoalescingPropertyChangeDispatcherTest {
+    static class Source extends DefaultPropertyListenerSupport {
+        void fire(String p, Object old, Object n) {
+            firePropertyChange(p, old, n);
+        }
+    }
+
+    final List<PropertyChangeEvent> events = Collections.synchronizedList(new ArrayList<>());
+    final PropertyChangeListener listener = new PropertyChangeListener() {
+        @Override
+        public void propertyChange(PropertyChangeEvent e) {
+            events.add(e);
+        }
+    };
+    CoalescingPropertyChangeDispatcher dispatcher;
+
+    @Test
+    public void testCoalesce() {
+        dispatcher = new CoalescingPropertyChangeDispatcher(Runnable::run, 1000);
+        Source s1 = new Source();
+        Source s2 = new Source();
+        PropertyChangeListener l = dispatcher.wrap(listener);
+        s1.addPropertyChangeListener(l);
+        s2.addPropertyChangeListener(l);
+        for (int i = 0; i < 1000; ++i) {
+            s1.fire("a", i, i + 1);
+        }
+        s2.fire("a", 0, 1);
+        s1.fire("b", null, null);
+        s1.fire("b", null, null);
+        Assert.assertTrue(events.isEmpty());
+        Assert.assertEquals(3, dispatcher.getQueueDepth());
+
+        dispatcher.flush();
+        Assert.assertEquals(3, events.size());
+        Assert.assertEquals(0, dispatcher.getQueueDepth());
+        Assert.assertSame(s1, events.get(0).getSource());
+        Assert.assertEquals("a", events.get(0).getPropertyName());
+        Assert.assertEquals(0, events.get(0).getOldValue());
+        Assert.assertEquals(1000, events.get(0).getNewValue());
+        Assert.assertSame(s2, events.get(1).getSource());
+        Assert.assertEquals("b", events.get(2).getPropertyName());
+        Assert.assertEquals(1003, dispatcher.getReceivedCount());
+        Assert.assertEquals(3, dispatcher.getDeliveredCount());
+
+        s1.removePropertyChangeListener(l);
+        s1.fire("a", 1, 2);
+        dispatcher.flush();
+        Assert.assertEquals(3, events.size());
+    }
+
+    @Test
+    public void testSeparateListeners() {
+        dispatcher = new CoalescingPropertyChangeDispatcher(Runnable::run, 1000);
+        Source s = new Source();
+        final List<PropertyChangeEvent> other = new ArrayList<>();
+        s.addPropertyChangeListener(dispatcher.wrap(listener));
+        s.addPropertyChangeListener(dispatcher.wrap(other::add));
+        s.fire("a", 1, 2);
+        s.fire("a", 2, 3);
+        dispatcher.flush();
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals(1, other.size());
+    }
+
+    @Test
+    public void testWindowAndExecutor() throws Exception {
+        ExecutorService ex = Executors.newSingleThreadExecutor();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        // Keeps the executor busy so that we can observe the queue depth.
+        ex.execute(() -> {
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        dispatcher = new CoalescingPropertyChangeDispatcher(ex, 20);
+        Source s = new Source();
+        s.addPropertyChangeListener(dispatcher.wrap(listener));
+        s.fire("a", 1, 2);
+        s.fire("b", 1, 2);
+        Thread.sleep(100);
+        // Window is over, but the executor did not run the delivery yet.
+        Assert.assertTrue(events.isEmpty());
+        Assert.assertEquals(2, dispatcher.getQueueDepth());
+        blocked.countDown();
+        ex.shutdown();
+        Assert.assertTrue(ex.awaitTermination(1, TimeUnit.SECONDS));
+        Assert.assertEquals(2, events.size());
+        Assert.assertEquals(0, dispatcher.getQueueDepth());
+    }
+
+    @Test
+    public void testListenerException() {
+        dispatcher = new CoalescingPropertyChangeDispatcher(Runnable::run, 1000);
+        Source s = new Source();
+        s.addPropertyChangeListener(dispatcher.wrap(e -> {
+            throw new RuntimeException("test");
+        }));
+        s.addPropertyChangeListener(dispatcher.wrap(listener));
+        s.fire("a", 1, 2);
+        dispatcher.flush();
+        Assert.assertEquals(1, events.size());
+    }
+
+    @After
+    public void tearDown() {
+        dispatcher.dispose();
+    }
+}
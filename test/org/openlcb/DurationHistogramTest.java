@@ -0,0 +1,49 @@
+package org.openlcb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the duration histogram.
+ */
+public class DurationHistogramTest {
+    @Test
+    public void testEmpty() {
+        DurationHistogram h = new DurationHistogram();
+        Assert.assertEquals(0, h.getCount());
+        Assert.assertEquals(0, h.getMeanNanos(), 0);
+        Assert.assertEquals(0, h.getMaxNanos());
+        Assert.assertEquals(0, h.getPercentileMicros(99));
+    }
+
+    @Test
+    public void testFewSamples() {
+        DurationHistogram h = new DurationHistogram();
+        h.record(8444000);
+        h.record(1000000);
+        Assert.assertEquals(8444, h.getPercentileMicros(99));
+        Assert.assertEquals(1024, h.getPercentileMicros(50));
+    }
+
+    @Test
+    public void testPercentiles() {
+        DurationHistogram h = new DurationHistogram();
+        for (int i = 0; i < 98; ++i) {
+            h.record(100000); // 100 usec
+        }
+        h.record(5000000); // 5 msec
+        h.record(20000000); // 20 msec
+        Assert.assertEquals(100, h.getCount());
+        Assert.assertEquals(20000000, h.getMaxNanos());
+        Assert.assertEquals((98 * 100000 + 25000000) / 100.0, h.getMeanNanos(), 0.1);
+        Assert.assertEquals(128, h.getPercentileMicros(95));
+        Assert.assertEquals(8192, h.getPercentileMicros(99));
+        // Not above the maximum.
+        Assert.assertEquals(20000, h.getPercentileMicros(100));
+
+        h.reset();
+        Assert.assertEquals(0, h.getCount());
+        Assert.assertEquals(0, h.getMaxNanos());
+        Assert.assertEquals(0, h.getPercentileMicros(95));
+    }
+}
@@ -136,4 +136,13 @@ public class EventIDTest {
         Assert.assertEquals(-2L, new EventID(new byte[]{(byte)0xff,(byte)0xff,(byte)0xff,(byte)0xff,
                 (byte)0xff,(byte)0xff,(byte)0xff,(byte)0xfe}).toLong());
     }
+
+    @Test
+    public void testFromLong() {
+        Assert.assertEquals(new EventID("00.00.00.00.00.00.00.00"), new EventID(0L));
+        Assert.assertEquals(new EventID("00.00.00.00.00.00.01.00"), new EventID(256L));
+        Assert.assertEquals(new EventID("05.04.03.02.01.00.07.08"), new EventID(0x0504030201000708L));
+        Assert.assertEquals(new EventID("FF.FF.FF.FF.FF.FF.FF.FE"), new EventID(-2L));
+        Assert.assertEquals(0x8001020304050607L, new EventID(0x8001020304050607L).toLong());
+    }
 }
@@ -0,0 +1,245 @@
+package org.openlcb;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests loading firmware into many simulated nodes at the same time.
+ */
+public class FirmwareUpdateOrchestratorTest {
+    static final NodeID HOST_ID = new NodeID(new byte[]{1, 2, 0, 0, 1, 1});
+    static final int SPACE = 0xEF;
+
+    /// A node that takes its firmware in datagrams.
+    class Target {
+        final NodeID id;
+        final byte[] memory = new byte[4096];
+        int length = 0;
+        boolean frozen = false;
+        /// Number of loads to refuse by not entering the upgrade state.
+        int refuse = 0;
+
+        Target(NodeID id) {
+            this.id = id;
+        }
+    }
+
+    final Map<NodeID, Target> targets = new HashMap<>();
+    final AtomicInteger frozen = new AtomicInteger();
+    final AtomicInteger maxFrozen = new AtomicInteger();
+    ExecutorService replies;
+    OlcbInterface iface;
+
+    /// The bus with the simulated nodes; answers on a separate thread, like a real link.
+    final Connection bus = new AbstractConnection() {
+        @Override
+        public void put(Message msg, Connection sender) {
+            if (!(msg instanceof AddressedMessage)) return;
+            Target t = targets.get(((AddressedMessage) msg).getDestNodeID());
+            if (t == null) return;
+            if (msg instanceof ProtocolIdentificationRequestMessage) {
+                long pip = ProtocolIdentification.Protocol.Datagram.value;
+                synchronized (t) {
+                    if (t.refuse > 0) {
+                        --t.refuse;
+                    } else {
+                        pip |= ProtocolIdentification.Protocol.FirmwareUpgradeActive.value;
+                    }
+                }
+                reply(new ProtocolIdentificationReplyMessage(t.id, HOST_ID, pip));
+            } else if (msg instanceof DatagramMessage) {
+                handleDatagram(t, ((DatagramMessage) msg).getPayload());
+            }
+        }
+    };
+
+    void handleDatagram(Target t, ByteSlice d) {
+        reply(new DatagramAcknowledgedMessage(t.id, HOST_ID));
+        int cmd = d.get(1);
+        synchronized (t) {
+            if (cmd == 0xA1) {
+                if (!t.frozen) {
+                    t.frozen = true;
+                    int n = frozen.incrementAndGet();
+                    maxFrozen.accumulateAndGet(n, Math::max);
+                }
+                reply(new InitializationCompleteMessage(t.id));
+            } else if (cmd == 0xA0) {
+                if (t.frozen) {
+                    t.frozen = false;
+                    frozen.decrementAndGet();
+                }
+            } else if ((cmd & 0xFC) == 0) {
+                int address = (int) d.getUint32(2);
+                int ofs = (cmd & 3) == 0 ? 7 : 6;
+                d.copyTo(ofs, t.memory, address, d.length() - ofs);
+                t.length = Math.max(t.length, address + d.length() - ofs);
+            }
+        }
+    }
+
+    void reply(final Message m) {
+        replies.execute(new Runnable() {
+            @Override
+            public void run() {
+                iface.getInputConnection().put(m, null);
+            }
+        });
+    }
+
+    List<NodeID> addTargets(int count) {
+        List<NodeID> l = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            NodeID id = new NodeID(new byte[]{5, 1, 1, 1, 0, (byte) (i + 1)});
+            targets.put(id, new Target(id));
+            l.add(id);
+        }
+        return l;
+    }
+
+    static byte[] image(int length) {
+        byte[] b = new byte[length];
+        new Random(length).nextBytes(b);
+        return b;
+    }
+
+    byte[] loaded(NodeID id) {
+        Target t = targets.get(id);
+        synchronized (t) {
+            return Arrays.copyOf(t.memory, t.length);
+        }
+    }
+
+    /// Records the callbacks.
+    static class Recorder implements FirmwareUpdateOrchestrator.Listener {
+        final List<FirmwareUpdateOrchestrator.NodeStatus> done = new ArrayList<>();
+        final AtomicInteger progress = new AtomicInteger();
+        int allDone = 0;
+
+        @Override
+        public void onProgress(NodeID node, float percent) {
+            progress.incrementAndGet();
+        }
+
+        @Override
+        public synchronized void onNodeDone(FirmwareUpdateOrchestrator.NodeStatus status) {
+            done.add(status);
+        }
+
+        @Override
+        public synchronized void onAllDone(FirmwareUpdateOrchestrator.Report report) {
+            ++allDone;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        replies = Executors.newSingleThreadExecutor();
+        iface = new OlcbInterface(HOST_ID, bus);
+    }
+
+    @After
+    public void tearDown() {
+        iface.dispose();
+        replies.shutdownNow();
+    }
+
+    @Test
+    public void testManyNodes() throws Exception {
+        List<NodeID> nodes = addTargets(12);
+        Target flaky = targets.get(nodes.get(3));
+        flaky.refuse = 1;
+        byte[] image = image(300);
+        FirmwareUpdateOrchestrator o = new FirmwareUpdateOrchestrator(iface, SPACE, 0, image);
+        o.setMaxConcurrent(4);
+        Recorder r = new Recorder();
+        o.setListener(r);
+        o.start(nodes);
+        Assert.assertTrue(o.awaitCompletion(30, TimeUnit.SECONDS));
+
+        for (NodeID n : nodes) {
+            Assert.assertArrayEquals(image, loaded(n));
+            Assert.assertFalse(targets.get(n).frozen);
+        }
+        Assert.assertTrue(maxFrozen.get() > 1);
+        // Four loads, plus the refusing node until it is unfrozen after its failed attempt.
+        Assert.assertTrue(maxFrozen.get() <= 5);
+
+        FirmwareUpdateOrchestrator.Report report = o.getReport();
+        Assert.assertEquals(12, report.getTargetCount());
+        Assert.assertEquals(12, report.getSucceededCount());
+        Assert.assertEquals(0, report.getFailedCount());
+        Assert.assertEquals(1, report.getRetryCount());
+        Assert.assertEquals(12 * 300, report.getBytesSent());
+        Assert.assertTrue(report.getBytesPerSecond() > 0);
+        Assert.assertEquals(2, report.getNodes().get(3).getAttempts());
+        Assert.assertEquals(1, report.getNodes().get(4).getAttempts());
+
+        Assert.assertEquals(12, r.done.size());
+        Assert.assertEquals(1, r.allDone);
+        Assert.assertTrue(r.progress.get() >= 12 * 5);
+    }
+
+    @Test
+    public void testGivesUp() throws Exception {
+        List<NodeID> nodes = addTargets(3);
+        targets.get(nodes.get(1)).refuse = 100;
+        FirmwareUpdateOrchestrator o = new FirmwareUpdateOrchestrator(iface, SPACE, 0, image(
+                100));
+        o.setMaxAttempts(2);
+        o.start(nodes);
+        Assert.assertTrue(o.awaitCompletion(30, TimeUnit.SECONDS));
+        FirmwareUpdateOrchestrator.Report report = o.getReport();
+        Assert.assertEquals(2, report.getSucceededCount());
+        Assert.assertEquals(1, report.getFailedCount());
+        FirmwareUpdateOrchestrator.NodeStatus s = report.getNodes().get(1);
+        Assert.assertEquals(FirmwareUpdateOrchestrator.State.FAILED, s.getState());
+        Assert.assertEquals(2, s.getAttempts());
+        Assert.assertNotEquals(0, s.getErrorCode());
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        List<NodeID> nodes = addTargets(2);
+        byte[] image = image(640);
+        FirmwareUpdateOrchestrator o = new FirmwareUpdateOrchestrator(iface, SPACE, 0, image);
+        o.setMaxBytesPerSecond(2000);
+        long start = System.currentTimeMillis();
+        o.start(nodes);
+        Assert.assertTrue(o.awaitCompletion(30, TimeUnit.SECONDS));
+        long elapsed = System.currentTimeMillis() - start;
+        // 1280 bytes with a 500 byte burst need at least 0.39 sec at this rate.
+        Assert.assertTrue("took " + elapsed + " msec", elapsed >= 350);
+        for (NodeID n : nodes) {
+            Assert.assertArrayEquals(image, loaded(n));
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        List<NodeID> nodes = addTargets(6);
+        FirmwareUpdateOrchestrator o = new FirmwareUpdateOrchestrator(iface, SPACE, 0, image(
+                200));
+        o.setMaxConcurrent(2);
+        o.start(nodes);
+        o.cancel();
+        Assert.assertTrue(o.awaitCompletion(30, TimeUnit.SECONDS));
+        FirmwareUpdateOrchestrator.Report report = o.getReport();
+        Assert.assertEquals(2, report.getSucceededCount());
+        Assert.assertEquals(FirmwareUpdateOrchestrator.State.CANCELLED, report.getNodes().get(5)
+                .getState());
+    }
+}
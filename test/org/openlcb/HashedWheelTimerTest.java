@@ -0,0 +1,136 @@
+package org.openlcb;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the hashed-wheel timer.
+ */
+public class HashedWheelTimerTest {
+    HashedWheelTimer timer = new HashedWheelTimer("test timer", 5, 8);
+
+    @After
+    public void tearDown() {
+        timer.stop();
+    }
+
+    @Test
+    public void testFiresNotEarly() throws Exception {
+        final CountDownLatch l = new CountDownLatch(1);
+        final long start = System.nanoTime();
+        final long[] elapsed = new long[1];
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                elapsed[0] = System.nanoTime() - start;
+                l.countDown();
+            }
+        }, 30);
+        Assert.assertTrue(l.await(2, TimeUnit.SECONDS));
+        Assert.assertTrue("fired after " + elapsed[0], elapsed[0] >= 30000000);
+        Assert.assertEquals(0, timer.getPendingCount());
+        Assert.assertEquals(1, timer.getExpiredCount());
+    }
+
+    @Test
+    public void testOrderAndMultipleRounds() throws Exception {
+        // The wheel has 8 buckets of 5 msec; 100 msec is several turns.
+        final List<Integer> fired = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch l = new CountDownLatch(4);
+        int[] delays = {100, 3, 47, 0};
+        for (final int d : delays) {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    fired.add(d);
+                    l.countDown();
+                }
+            }, d);
+        }
+        Assert.assertTrue(l.await(2, TimeUnit.SECONDS));
+        Assert.assertEquals(3, fired.get(0) + fired.get(1));
+        Assert.assertEquals(47, (int) fired.get(2));
+        Assert.assertEquals(100, (int) fired.get(3));
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        Runnable r = new Runnable() {
+            @Override
+            public void run() {
+                count.incrementAndGet();
+            }
+        };
+        HashedWheelTimer.Timeout t1 = timer.schedule(r, 20);
+        HashedWheelTimer.Timeout t2 = timer.schedule(r, 20);
+        HashedWheelTimer.Timeout t3 = timer.schedule(r, 20);
+        Assert.assertEquals(3, timer.getPendingCount());
+        // Unlinking from the middle and the head of the bucket.
+        Assert.assertTrue(t2.cancel());
+        Assert.assertFalse(t2.cancel());
+        Assert.assertEquals(2, timer.getPendingCount());
+        Assert.assertTrue(t3.cancel());
+        Assert.assertEquals(1, timer.getPendingCount());
+        Thread.sleep(80);
+        Assert.assertEquals(1, count.get());
+        Assert.assertTrue(t1.isExpired());
+        Assert.assertFalse(t1.cancel());
+        Assert.assertTrue(t3.isCancelled());
+        Assert.assertEquals(2, timer.getCancelledCount());
+        Assert.assertEquals(0, timer.getPendingCount());
+    }
+
+    @Test
+    public void testMetricsAndException() throws Exception {
+        final AtomicInteger expired = new AtomicInteger();
+        timer.setMetrics(new HashedWheelTimer.Metrics() {
+            @Override
+            public void tickCompleted(long lagMicros, int e, int pending) {
+                expired.addAndGet(e);
+            }
+        });
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                throw new RuntimeException("expected");
+            }
+        }, 1);
+        final CountDownLatch l = new CountDownLatch(1);
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                l.countDown();
+            }
+        }, 15);
+        Assert.assertTrue(l.await(2, TimeUnit.SECONDS));
+        Thread.sleep(20);
+        Assert.assertEquals(2, expired.get());
+    }
+
+    @Test
+    public void testStop() {
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Assert.fail();
+            }
+        }, 10000);
+        timer.stop();
+        Assert.assertTrue(timer.isStopped());
+        Assert.assertEquals(0, timer.getPendingCount());
+        Assert.assertNull(timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 1));
+    }
+}
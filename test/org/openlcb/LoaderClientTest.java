@@ -243,6 +243,132 @@ public class LoaderClientTest {
 
     
     
+    static int[] writeDG(int address, byte[] content, int size) {
+        int[] d = new int[7 + size];
+        d[0] = 0x20; d[1] = 0x00;
+        d[2] = (address >> 24) & 0xFF; d[3] = (address >> 16) & 0xFF;
+        d[4] = (address >> 8) & 0xFF; d[5] = address & 0xFF;
+        d[6] = 0xEF;
+        for (int i = 0; i < size; i++) d[7 + i] = content[address + i] & 0xFF;
+        return d;
+    }
+
+    @Test
+    public void testLoaderClientDGPipelined() {
+        data = new byte[200];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+        final int[] result = new int[]{-1};
+        LoaderClient xmt = new LoaderClient(testConnection, mcs, dcs);
+        xmt.doLoad(hereID,farID, 0xEF, 0, data, new LoaderStatusReporter() {
+            public void onProgress(float percent) {
+            }
+            public void onDone(int errorCode, String errorString) {
+                result[0] = errorCode;
+            }
+        });
+        messagesReceived.clear();
+        dcs.put(new DatagramAcknowledgedMessage(farID,hereID), null);
+        xmt.put(new InitializationCompleteMessage(farID), null);
+        delay(200);
+        messagesReceived.clear();
+        xmt.put(new ProtocolIdentificationReplyMessage(farID,hereID,0x400030000000L), null);
+    // Each write goes out once the previous one is accepted, before its reply.
+        int[] sizes = new int[]{64, 64, 64, 8};
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals("DG " + i, 1, messagesReceived.size());
+            Assert.assertEquals(new DatagramMessage(hereID, farID, writeDG(i * 64, data,
+                    sizes[i])), messagesReceived.get(0));
+            messagesReceived.clear();
+            dcs.put(new DatagramAcknowledgedMessage(farID, hereID, 0x80), null);
+        }
+        Assert.assertEquals(0, messagesReceived.size());
+    // Second chunk fails. It is sent again alone once the others are answered, then the
+    // chunks after it are written again.
+        dcs.put(new DatagramMessage(farID, hereID, new int[]{0x20, 0x18, 0, 0, 0, 64, 0xEF,
+                0x20, 0x00}), null);
+        Assert.assertEquals(1, messagesReceived.size());
+        Assert.assertEquals(new DatagramAcknowledgedMessage(hereID, farID), messagesReceived.get(0));
+        messagesReceived.clear();
+        for (int i : new int[]{0, 2, 3}) {
+            dcs.put(new DatagramMessage(farID, hereID, new int[]{0x20, 0x10, 0, 0, 0, i * 64,
+                    0xEF}), null);
+        }
+        Assert.assertEquals(4, messagesReceived.size());
+        Assert.assertEquals(new DatagramMessage(hereID, farID, writeDG(64, data, 64)),
+                messagesReceived.get(3));
+        messagesReceived.clear();
+        dcs.put(new DatagramAcknowledgedMessage(farID, hereID), null);
+        for (int i = 2; i < 4; i++) {
+            Assert.assertEquals("DG " + i, 1, messagesReceived.size());
+            Assert.assertEquals(new DatagramMessage(hereID, farID, writeDG(i * 64, data,
+                    sizes[i])), messagesReceived.get(0));
+            Assert.assertEquals(-1, result[0]);
+            messagesReceived.clear();
+            dcs.put(new DatagramAcknowledgedMessage(farID, hereID), null);
+        }
+    // Unfreeze
+        Assert.assertEquals("Unfreeze", 1, messagesReceived.size());
+        Assert.assertEquals(new DatagramMessage(hereID, farID, new int[]{0x20, 0xA0, 0xEF}),
+                messagesReceived.get(0));
+        dcs.put(new DatagramAcknowledgedMessage(farID, hereID), null);
+        Assert.assertEquals(0, result[0]);
+        xmt.dispose();
+    }
+
+    @Test
+    public void testLoaderClientDGRejectedInOrder() {
+        data = new byte[300];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+        final int[] result = new int[]{-1};
+        LoaderClient xmt = new LoaderClient(testConnection, mcs, dcs);
+        xmt.doLoad(hereID,farID, 0xEF, 0, data, new LoaderStatusReporter() {
+            public void onProgress(float percent) {
+            }
+            public void onDone(int errorCode, String errorString) {
+                result[0] = errorCode;
+            }
+        });
+        messagesReceived.clear();
+        dcs.put(new DatagramAcknowledgedMessage(farID,hereID), null);
+        xmt.put(new InitializationCompleteMessage(farID), null);
+        delay(200);
+        messagesReceived.clear();
+        xmt.put(new ProtocolIdentificationReplyMessage(farID,hereID,0x400030000000L), null);
+    // The node rejects the third chunk once, and answers the writes only when idle.
+        java.util.List<Integer> seen = new java.util.ArrayList<>();
+        java.util.List<Integer> replies = new java.util.ArrayList<>();
+        boolean rejected = false;
+        while (result[0] == -1) {
+            if (messagesReceived.isEmpty()) {
+                Assert.assertFalse("stuck", replies.isEmpty());
+                int a = replies.remove(0);
+                dcs.put(new DatagramMessage(farID, hereID, new int[]{0x20, 0x10, 0, 0, a >> 8,
+                        a & 0xFF, 0xEF}), null);
+                continue;
+            }
+            Message m = messagesReceived.remove(0);
+            if (!(m instanceof DatagramMessage)) continue;
+            int[] d = ((DatagramMessage) m).getData();
+            if (d[1] == 0xA0) {
+                dcs.put(new DatagramAcknowledgedMessage(farID, hereID), null);
+                continue;
+            }
+            Assert.assertEquals(0x00, d[1]);
+            int a = (d[4] << 8) | d[5];
+            seen.add(a);
+            if (a == 128 && !rejected) {
+                rejected = true;
+                dcs.put(new DatagramRejectedMessage(farID, hereID, 0x1000), null);
+                continue;
+            }
+            dcs.put(new DatagramAcknowledgedMessage(farID, hereID, 0x80), null);
+            replies.add(a);
+        }
+        Assert.assertEquals(0, result[0]);
+        Assert.assertEquals(java.util.Arrays.asList(0, 64, 128, 128, 192, 256), seen);
+        xmt.dispose();
+    }
+
     @Test
     public void testLoaderClientStream() {
         data = new byte[]{'a','b','c','d','e','f','g','h','i','j'};
@@ -260,4 +260,65 @@ public class MimicNodeStoreTest {
         Assert.assertNull(store.findNode(nid2));
     }
 
+    @Test
+    public void testSnapshotIsStable() {
+        store.put(pim1,null);
+        Collection<MimicNodeStore.NodeMemo> list = store.getNodeMemos();
+        Assert.assertSame(list, store.getNodeMemos());
+        store.put(pim1,null);
+        Assert.assertSame(list, store.getNodeMemos());
+
+        store.put(pim2,null);
+        // The old snapshot does not change under the iterating caller.
+        Assert.assertEquals(1, list.size());
+        Assert.assertEquals(2, store.getNodeMemos().size());
+        Assert.assertEquals(2, store.size());
+        try {
+            list.clear();
+            Assert.fail("snapshot should be read-only");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFastPath() {
+        Assert.assertFalse(MimicNodeStore.isHandledByMemo(pim1));
+        Assert.assertTrue(MimicNodeStore.isHandledByMemo(snii1));
+        Assert.assertTrue(MimicNodeStore.isHandledByMemo(new InitializationCompleteMessage(nid1)));
+    }
+
+    @Test
+    public void testConcurrentAddAndIterate() throws Exception {
+        final int numThreads = 4;
+        final int perThread = 2000;
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; ++t) {
+            final int base = t * perThread;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; ++i) {
+                    int n = base + i;
+                    store.put(new ProducerIdentifiedMessage(new NodeID(new byte[]{5, 1, 1, 1,
+                            (byte) (n >> 8), (byte) n}), new EventID(new byte[]{1, 0, 0, 0, 0, 0, 1, 0}), EventState
+                            .Unknown), null);
+                }
+            });
+            threads[t].start();
+        }
+        int lastSize = 0;
+        while (lastSize < numThreads * perThread) {
+            int n = 0;
+            for (MimicNodeStore.NodeMemo m : store.getNodeMemos()) {
+                Assert.assertNotNull(m.getNodeID());
+                ++n;
+            }
+            Assert.assertTrue(n >= lastSize);
+            lastSize = n;
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertEquals(numThreads * perThread, store.getNodeMemos().size());
+    }
+
 }
@@ -0,0 +1,125 @@
+package org.openlcb;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests the paced SNIP/PIP discovery of the MimicNodeStore.
+ */
+public class NodeDiscoverySchedulerTest {
+    NodeID src = new NodeID(new byte[]{1, 2, 3, 4, 5, 6});
+    final List<Message> sent = Collections.synchronizedList(new ArrayList<>());
+    Connection connection = new AbstractConnection() {
+        @Override
+        public void put(Message msg, Connection sender) {
+            sent.add(msg);
+        }
+    };
+    MimicNodeStore store;
+    NodeDiscoveryScheduler scheduler;
+    Long completedMsec = null;
+
+    static NodeID node(int i) {
+        return new NodeID(new byte[]{5, 1, 1, 1, 0x14, (byte) i});
+    }
+
+    /// Waits until the given number of messages were sent out.
+    private void waitForSent(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (sent.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(2);
+        }
+        Assert.assertEquals(count, sent.size());
+    }
+
+    /// Answers a SNIP request with a complete reply.
+    private void reply(NodeID n) {
+        store.put(new SimpleNodeIdentInfoReplyMessage(n, src, new byte[]{4, 'a', 0, 'b', 0, 'c',
+                0, 'd', 0, 2, 'e', 0, 'f', 0}), null);
+    }
+
+    private NodeID destOf(int i) {
+        return ((AddressedMessage) sent.get(i)).getDestNodeID();
+    }
+
+    @Before
+    public void setUp() {
+        store = new MimicNodeStore(connection, src);
+        scheduler = new NodeDiscoveryScheduler(store);
+        scheduler.setBusShare(1);
+        scheduler.addPropertyChangeListener(e -> {
+            if (NodeDiscoveryScheduler.DISCOVERY_COMPLETE.equals(e.getPropertyName())) {
+                completedMsec = (Long) e.getNewValue();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        store.dispose();
+    }
+
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        scheduler.setMaxConcurrent(2);
+        for (int i = 0; i < 6; ++i) {
+            store.addNode(node(i)).getSimpleNodeIdent();
+        }
+        Assert.assertSame(scheduler, store.getDiscoveryScheduler());
+        Assert.assertFalse(scheduler.isIdle());
+        waitForSent(2);
+        Thread.sleep(50);
+        Assert.assertEquals(2, sent.size());
+        Assert.assertEquals(2, scheduler.getActiveCount());
+        Assert.assertEquals(4, scheduler.getPendingCount());
+        Assert.assertTrue(sent.get(0) instanceof SimpleNodeIdentInfoRequestMessage);
+
+        for (int i = 0; i < 6; ++i) {
+            reply(destOf(i));
+            waitForSent(Math.min(6, i + 3));
+        }
+        Assert.assertTrue(scheduler.isIdle());
+        Assert.assertEquals(6, scheduler.getCompletedCount());
+        Assert.assertNotNull(completedMsec);
+        Assert.assertEquals((long) completedMsec, scheduler.getLastDiscoveryMsec());
+        Assert.assertEquals("a", store.getSimpleNodeIdent(node(5)).getMfgName());
+    }
+
+    @Test
+    public void testVisibleNodesFirst() throws Exception {
+        scheduler.setMaxConcurrent(1);
+        for (int i = 0; i < 5; ++i) {
+            store.addNode(node(i)).getSimpleNodeIdent();
+        }
+        waitForSent(1);
+        Assert.assertEquals(node(0), destOf(0));
+        scheduler.setVisibleNodes(Collections.singletonList(node(3)));
+        reply(node(0));
+        waitForSent(2);
+        Assert.assertEquals(node(3), destOf(1));
+        scheduler.prioritize(node(4));
+        reply(node(3));
+        waitForSent(3);
+        Assert.assertEquals(node(4), destOf(2));
+    }
+
+    @Test
+    public void testRatePacing() throws Exception {
+        scheduler.setMaxConcurrent(100);
+        scheduler.setBusShare(0.1);
+        // 80 frames per second; each fetch is 10 frames, the burst is two fetches.
+        for (int i = 0; i < 4; ++i) {
+            store.addNode(node(i)).getSimpleNodeIdent();
+        }
+        waitForSent(2);
+        Thread.sleep(60);
+        Assert.assertEquals(2, sent.size());
+        waitForSent(3);
+    }
+}
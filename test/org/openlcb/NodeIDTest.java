@@ -157,4 +157,15 @@ public class NodeIDTest {
         Assert.assertEquals("01.10.13.0D.D0.AB", e1.toString());
     }
 
+    @Test
+    public void testHashSpread() {
+        java.util.Set<Integer> hashes = new java.util.HashSet<>();
+        for (int i = 0; i < 4096; i++) {
+            NodeID n = new NodeID(new byte[]{5,1,1,1,(byte)(i >> 8),(byte)i});
+            Assert.assertEquals(n.hashCode(), new NodeID(n).hashCode());
+            hashes.add(n.hashCode());
+        }
+        Assert.assertEquals(4096, hashes.size());
+    }
+
 }
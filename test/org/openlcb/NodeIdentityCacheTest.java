@@ -0,0 +1,163 @@
+package org.openlcb;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests the persistent node identity cache.
+ */
+public class NodeIdentityCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    NodeID src = new NodeID(new byte[]{1, 2, 3, 4, 5, 6});
+    NodeID nid1 = new NodeID(new byte[]{5, 1, 1, 1, 0x14, 1});
+    NodeID nid2 = new NodeID(new byte[]{5, 1, 1, 1, 0x14, 2});
+    final List<Message> sent = Collections.synchronizedList(new ArrayList<>());
+    Connection connection = new AbstractConnection() {
+        @Override
+        public void put(Message msg, Connection sender) {
+            sent.add(msg);
+        }
+    };
+    File file;
+    MimicNodeStore store;
+    NodeIdentityCache cache;
+
+    private void reply(NodeID n, char name) {
+        store.put(new SimpleNodeIdentInfoReplyMessage(n, src, new byte[]{4, (byte) name, 0, 'b',
+                0, 'c', 0, 'd', 0, 2, 'e', 0, 'f', 0}), null);
+    }
+
+    /// Simulates a restart of the application.
+    private void restart() {
+        cache.close();
+        store.dispose();
+        sent.clear();
+        store = new MimicNodeStore(connection, src);
+        cache = new NodeIdentityCache(store, file);
+    }
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "nodes.dat");
+        store = new MimicNodeStore(connection, src);
+        cache = new NodeIdentityCache(store, file);
+    }
+
+    @After
+    public void tearDown() {
+        cache.close();
+        store.dispose();
+    }
+
+    @Test
+    public void testWarmStart() {
+        MimicNodeStore.NodeMemo memo = store.addNode(nid1);
+        Assert.assertFalse(memo.isStale());
+        memo.getSimpleNodeIdent();
+        reply(nid1, 'a');
+        store.put(new ProtocolIdentificationReplyMessage(nid1, src, 0xD41E00000000L), null);
+        store.addNode(nid2);
+        cache.flush();
+        Assert.assertEquals(1, cache.size());
+
+        restart();
+        Assert.assertEquals(1, store.getNodeMemos().size());
+        memo = store.findNode(nid1);
+        Assert.assertNotNull(memo);
+        Assert.assertTrue(memo.isStale());
+        Assert.assertEquals("a", memo.getSimpleNodeIdent().getMfgName());
+        Assert.assertEquals("f", memo.getSimpleNodeIdent().getUserDesc());
+        Assert.assertEquals(0xD41E00000000L, memo.getProtocolIdentification().getValue());
+        // Nothing was asked from the network.
+        Assert.assertTrue(sent.isEmpty());
+    }
+
+    @Test
+    public void testRevalidate() {
+        store.addNode(nid1).getSimpleNodeIdent();
+        reply(nid1, 'a');
+        cache.flush();
+        restart();
+
+        MimicNodeStore.NodeMemo memo = store.findNode(nid1);
+        Assert.assertTrue(memo.isStale());
+        // Other nodes do not trigger revalidation.
+        store.put(new VerifiedNodeIDNumberMessage(nid2), null);
+        Assert.assertTrue(sent.isEmpty());
+
+        store.put(new VerifiedNodeIDNumberMessage(nid1), null);
+        Assert.assertEquals(1, sent.size());
+        Assert.assertTrue(sent.get(0) instanceof SimpleNodeIdentInfoRequestMessage);
+        // Cached data stays visible during the fetch.
+        Assert.assertEquals("a", memo.getSimpleNodeIdent().getMfgName());
+        store.put(new VerifiedNodeIDNumberMessage(nid1), null);
+        Assert.assertEquals(1, sent.size());
+
+        reply(nid1, 'x');
+        Assert.assertFalse(memo.isStale());
+        Assert.assertEquals("x", memo.getSimpleNodeIdent().getMfgName());
+        cache.flush();
+        restart();
+        Assert.assertEquals("x", store.findNode(nid1).getSimpleNodeIdent().getMfgName());
+    }
+
+    @Test
+    public void testRevalidatePartialReply() {
+        store.addNode(nid1).getSimpleNodeIdent();
+        reply(nid1, 'a');
+        cache.flush();
+        restart();
+
+        MimicNodeStore.NodeMemo memo = store.findNode(nid1);
+        store.put(new VerifiedNodeIDNumberMessage(nid1), null);
+        Assert.assertEquals(1, sent.size());
+        store.put(new SimpleNodeIdentInfoReplyMessage(nid1, src, new byte[]{4, 'x', 0, 'y', 0,
+                'z'}), null);
+        // The cached data is shown unchanged until the reply is complete.
+        Assert.assertTrue(memo.isStale());
+        Assert.assertEquals("a", memo.getSimpleNodeIdent().getMfgName());
+        Assert.assertEquals("e", memo.getSimpleNodeIdent().getUserName());
+        store.put(new SimpleNodeIdentInfoReplyMessage(nid1, src, new byte[]{0, 'd', 0, 2, 'u',
+                0, 'v', 0}), null);
+        Assert.assertFalse(memo.isStale());
+        Assert.assertEquals("x", memo.getSimpleNodeIdent().getMfgName());
+        Assert.assertEquals("u", memo.getSimpleNodeIdent().getUserName());
+    }
+
+    @Test
+    public void testRefreshKeepsCachedData() {
+        store.addNode(nid1).getSimpleNodeIdent();
+        reply(nid1, 'a');
+        store.refresh();
+        MimicNodeStore.NodeMemo memo = store.addNode(nid1);
+        Assert.assertTrue(memo.isStale());
+        Assert.assertEquals("a", memo.getSimpleNodeIdent().getMfgName());
+    }
+
+    @Test
+    public void testDamagedFile() throws Exception {
+        store.addNode(nid1).getSimpleNodeIdent();
+        reply(nid1, 'a');
+        store.addNode(nid2).getSimpleNodeIdent();
+        reply(nid2, 'b');
+        cache.flush();
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(f.length() - 3);
+        }
+        restart();
+        Assert.assertEquals(1, store.getNodeMemos().size());
+        Assert.assertEquals(1, cache.size());
+    }
+}
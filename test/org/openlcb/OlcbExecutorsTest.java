@@ -0,0 +1,86 @@
+package org.openlcb;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the thread provider selection.
+ */
+public class OlcbExecutorsTest {
+    OlcbExecutors.Provider saved;
+
+    @Before
+    public void setUp() {
+        saved = OlcbExecutors.getProvider();
+    }
+
+    @After
+    public void tearDown() {
+        OlcbExecutors.setProvider(saved);
+    }
+
+    @Test
+    public void testPlatform() {
+        Thread t = OlcbExecutors.PLATFORM.newThread(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, "test-thread", true);
+        Assert.assertEquals("test-thread", t.getName());
+        Assert.assertTrue(t.isDaemon());
+        Assert.assertEquals(Thread.State.NEW, t.getState());
+    }
+
+    @Test
+    public void testVirtualOrFallback() throws Exception {
+        OlcbExecutors.Provider v = OlcbExecutors.getVirtual();
+        if (OlcbExecutors.isVirtualThreadAvailable()) {
+            Assert.assertEquals("virtual", v.getName());
+        } else {
+            // Older JVM: falls back to platform threads.
+            Assert.assertSame(OlcbExecutors.PLATFORM, v);
+        }
+        final String[] ranOn = new String[1];
+        Thread t = v.newThread(new Runnable() {
+            @Override
+            public void run() {
+                ranOn[0] = Thread.currentThread().getName();
+            }
+        }, "probe-thread", true);
+        t.start();
+        t.join();
+        Assert.assertEquals("probe-thread", ranOn[0]);
+    }
+
+    @Test
+    public void testPoolUsesProvider() throws Exception {
+        final AtomicInteger created = new AtomicInteger();
+        OlcbExecutors.setProvider(new OlcbExecutors.Provider() {
+            @Override
+            public Thread newThread(Runnable r, String name, boolean daemon) {
+                created.incrementAndGet();
+                return OlcbExecutors.PLATFORM.newThread(r, name, daemon);
+            }
+
+            @Override
+            public String getName() {
+                return "counting";
+            }
+        });
+        ThreadPoolExecutor tpe = OlcbExecutors.newThreadPool(2, 1);
+        tpe.execute(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        tpe.shutdown();
+        Assert.assertTrue(tpe.awaitTermination(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, created.get());
+    }
+}
@@ -0,0 +1,184 @@
+package org.openlcb.can;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openlcb.Connection;
+import org.openlcb.EventID;
+import org.openlcb.EventState;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.ProducerIdentifiedMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that the CAN interface defends its aliases and recovers from alias conflicts.
+ */
+public class AliasDefenseTest {
+    static final NodeID HOST_ID = new NodeID(new byte[]{2, 1, 1, 1, 0, 0});
+    static final NodeID VIRTUAL_ID = new NodeID(new byte[]{2, 1, 1, 1, 0, 7});
+    static final NodeID REMOTE_ID = new NodeID(new byte[]{2, 1, 2, 2, 0, 1});
+    static final EventID EVENT = new EventID(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+
+    final List<OpenLcbCanFrame> frames = new ArrayList<>();
+    final CanFrameListener sink = new CanFrameListener() {
+        @Override
+        public void send(CanFrame frame) {
+            synchronized (frames) {
+                frames.add(new OpenLcbCanFrame(frame));
+            }
+        }
+    };
+    CanInterface iface;
+
+    @Before
+    public void setUp() throws Exception {
+        iface = new CanInterface(HOST_ID, sink);
+        final CountDownLatch started = new CountDownLatch(1);
+        iface.addStartListener(new Connection.ConnectionListener() {
+            @Override
+            public void connectionActive(Connection c) {
+                started.countDown();
+            }
+        });
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+    }
+
+    @After
+    public void tearDown() {
+        iface.getInterface().dispose();
+        iface.dispose();
+    }
+
+    List<OpenLcbCanFrame> snapshot() {
+        synchronized (frames) {
+            return new ArrayList<>(frames);
+        }
+    }
+
+    int indexOf(List<OpenLcbCanFrame> l, int alias, int from, String kind) {
+        for (int i = from; i < l.size(); ++i) {
+            OpenLcbCanFrame f = l.get(i);
+            if (f.getSourceAlias() != alias) continue;
+            if (kind.equals("AMR") && f.isAliasMapReset()) return i;
+            if (kind.equals("AMD") && f.isAliasMapDefinition()) return i;
+            if (kind.equals("RID") && f.isRIM()) return i;
+            if (kind.equals("PC") && !f.isFrameTypeCAN()) return i;
+        }
+        return -1;
+    }
+
+    void waitForAlias(int alias, int from, String kind) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (indexOf(snapshot(), alias, from, kind) < 0 && System.currentTimeMillis() <
+                deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    /// A frame from another node that uses the given source alias.
+    static OpenLcbCanFrame foreignFrame(int alias) {
+        OpenLcbCanFrame f = new OpenLcbCanFrame(alias);
+        f.setVerifiedNID(REMOTE_ID);
+        return f;
+    }
+
+    @Test
+    public void testDefendsAgainstCheck() throws Exception {
+        int alias = iface.getAlias();
+        int before = snapshot().size();
+        OpenLcbCanFrame cid = new OpenLcbCanFrame(alias);
+        cid.setCIM(0, 0x222, alias);
+        iface.frameInput().send(cid);
+        waitForAlias(alias, before, "RID");
+        List<OpenLcbCanFrame> l = snapshot();
+        Assert.assertTrue(indexOf(l, alias, before, "RID") >= 0);
+        Assert.assertEquals(alias, iface.getAlias());
+        Assert.assertEquals(-1, indexOf(l, alias, before, "AMR"));
+        Assert.assertEquals(0, iface.getAliasConflictCount());
+        // Works more than once.
+        before = l.size();
+        iface.frameInput().send(cid);
+        waitForAlias(alias, before, "RID");
+        Assert.assertTrue(indexOf(snapshot(), alias, before, "RID") >= 0);
+    }
+
+    @Test
+    public void testConflictReReserves() throws Exception {
+        int oldAlias = iface.getAlias();
+        iface.frameInput().send(foreignFrame(oldAlias));
+        Assert.assertEquals(1, iface.getAliasConflictCount());
+        // Sent while the new alias is being reserved; has to wait for it.
+        iface.getInterface().getOutputConnection().put(new ProducerIdentifiedMessage(HOST_ID,
+                EVENT, EventState.Valid), null);
+        int newAlias = iface.getAlias();
+        Assert.assertNotEquals(oldAlias, newAlias);
+        waitForAlias(newAlias, 0, "PC");
+
+        List<OpenLcbCanFrame> l = snapshot();
+        int amr = indexOf(l, oldAlias, 0, "AMR");
+        Assert.assertTrue(amr >= 0);
+        Assert.assertEquals(-1, indexOf(l, oldAlias, amr + 1, "PC"));
+        int rid = indexOf(l, newAlias, amr, "RID");
+        int amd = indexOf(l, newAlias, amr, "AMD");
+        int pc = indexOf(l, newAlias, amr, "PC");
+        Assert.assertTrue(amr < rid);
+        Assert.assertTrue(rid < amd);
+        Assert.assertTrue(amd < pc);
+
+        // The message interface is still the same and uses the new alias.
+        int before = l.size();
+        iface.getInterface().getOutputConnection().put(new ProducerIdentifiedMessage(HOST_ID,
+                EVENT, EventState.Invalid), null);
+        Thread.sleep(50);
+        Assert.assertTrue(indexOf(snapshot(), newAlias, before, "PC") >= 0);
+    }
+
+    @Test
+    public void testVirtualNodeConflict() throws Exception {
+        final List<Message> received = new ArrayList<>();
+        VirtualNode vn = iface.addVirtualNode(VIRTUAL_ID, new Connection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+                synchronized (received) {
+                    received.add(msg);
+                }
+            }
+
+            @Override
+            public void registerStartNotification(ConnectionListener c) {
+            }
+        });
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!vn.isReserved() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        int oldAlias = vn.getAlias();
+        Assert.assertTrue(oldAlias >= 0);
+
+        iface.frameInput().send(foreignFrame(oldAlias));
+        Assert.assertEquals(-1, vn.getAlias());
+        vn.getOutputConnection().put(new ProducerIdentifiedMessage(VIRTUAL_ID, EVENT,
+                EventState.Valid), null);
+        deadline = System.currentTimeMillis() + 2000;
+        while (vn.getAlias() < 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        int newAlias = vn.getAlias();
+        Assert.assertTrue(newAlias >= 0);
+        Assert.assertNotEquals(oldAlias, newAlias);
+        waitForAlias(newAlias, 0, "PC");
+        List<OpenLcbCanFrame> l = snapshot();
+        int amr = indexOf(l, oldAlias, 0, "AMR");
+        Assert.assertTrue(amr >= 0);
+        Assert.assertTrue(indexOf(l, newAlias, amr, "AMD") < indexOf(l, newAlias, amr, "PC"));
+        // The host's own alias is not affected.
+        Assert.assertEquals(-1, indexOf(l, iface.getAlias(), amr, "AMR"));
+    }
+}
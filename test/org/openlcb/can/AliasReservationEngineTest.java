@@ -0,0 +1,151 @@
+package org.openlcb.can;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openlcb.HashedWheelTimer;
+import org.openlcb.NodeID;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests batched alias reservation.
+ */
+public class AliasReservationEngineTest {
+    HashedWheelTimer timer;
+    AliasReservationEngine engine;
+    final List<OpenLcbCanFrame> frames = new ArrayList<>();
+    final CanFrameListener sink = new CanFrameListener() {
+        @Override
+        public void send(CanFrame frame) {
+            synchronized (frames) {
+                frames.add(new OpenLcbCanFrame(frame));
+            }
+        }
+    };
+    /// Keeps the local nodes apart, like CanInterface does.
+    final NIDaAlgorithm.AliasClaims claims = new NIDaAlgorithm.AliasClaims() {
+        final Map<Integer, NIDaAlgorithm> held = new HashMap<>();
+
+        @Override
+        public synchronized boolean claim(int alias, NIDaAlgorithm owner) {
+            NIDaAlgorithm old = held.get(alias);
+            if (old != null && old != owner) return false;
+            held.put(alias, owner);
+            return true;
+        }
+
+        @Override
+        public synchronized void release(int alias, NIDaAlgorithm owner) {
+            if (held.get(alias) == owner) held.remove(alias);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        timer = new HashedWheelTimer("reservation test", 5, 64);
+        engine = new AliasReservationEngine(sink, timer);
+    }
+
+    @After
+    public void tearDown() {
+        timer.stop();
+    }
+
+    List<NIDaAlgorithm> start(int count, final CountDownLatch done) {
+        List<NIDaAlgorithm> l = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            NIDaAlgorithm alg = new NIDaAlgorithm(new NodeID(new byte[]{5, 1, 1, 1, (byte) (i >>
+                    8), (byte) i}), sink, timer);
+            alg.setAliasClaims(claims);
+            alg.setReservationEngine(engine);
+            l.add(alg);
+        }
+        for (NIDaAlgorithm alg : l) {
+            alg.start(new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+        }
+        return l;
+    }
+
+    int count(boolean cid) {
+        int n = 0;
+        synchronized (frames) {
+            for (OpenLcbCanFrame f : frames) {
+                if (cid ? f.isCIM() : f.isRIM()) ++n;
+            }
+        }
+        return n;
+    }
+
+    @Test
+    public void testManyInParallel() throws Exception {
+        final int n = 300;
+        CountDownLatch done = new CountDownLatch(n);
+        long start = System.currentTimeMillis();
+        List<NIDaAlgorithm> l = start(n, done);
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        long elapsed = System.currentTimeMillis() - start;
+        // One after the other this would take a minute.
+        Assert.assertTrue("took " + elapsed + " msec", elapsed < 2000);
+        Assert.assertTrue(engine.getBatchCount() < 10);
+        Assert.assertEquals(n, engine.getReservedCount());
+        Assert.assertEquals(4 * n, count(true));
+        Assert.assertEquals(n, count(false));
+        Set<Integer> aliases = new HashSet<>();
+        for (NIDaAlgorithm alg : l) {
+            Assert.assertTrue(alg.isComplete());
+            Assert.assertTrue(aliases.add(alg.getNIDa()));
+        }
+    }
+
+    @Test
+    public void testCollision() throws Exception {
+        CountDownLatch done = new CountDownLatch(3);
+        List<NIDaAlgorithm> l = start(3, done);
+        long deadline = System.currentTimeMillis() + 2000;
+        while (count(true) < 12 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(2);
+        }
+        Assert.assertEquals(12, count(true));
+        // Another node on the bus uses the alias of the second one.
+        NIDaAlgorithm victim = l.get(1);
+        int alias = victim.getNIDa();
+        OpenLcbCanFrame rid = new OpenLcbCanFrame(alias);
+        rid.setRIM(alias);
+        victim.processFrame(rid);
+        Assert.assertFalse(victim.isComplete());
+
+        Assert.assertTrue(done.await(2, TimeUnit.SECONDS));
+        Assert.assertNotEquals(alias, victim.getNIDa());
+        Assert.assertEquals(1, engine.getRetryCount());
+        Assert.assertEquals(3, engine.getReservedCount());
+        // The others went ahead in the first window; the victim checked a second alias.
+        Assert.assertEquals(16, count(true));
+        Assert.assertEquals(3, count(false));
+        Assert.assertNotEquals(victim.getNIDa(), l.get(0).getNIDa());
+        Assert.assertNotEquals(victim.getNIDa(), l.get(2).getNIDa());
+    }
+
+    @Test
+    public void testDisposed() throws Exception {
+        CountDownLatch done = new CountDownLatch(2);
+        List<NIDaAlgorithm> l = start(2, done);
+        l.get(0).dispose();
+        Thread.sleep(300);
+        Assert.assertEquals(1, done.getCount());
+        Assert.assertEquals(1, engine.getReservedCount());
+    }
+}
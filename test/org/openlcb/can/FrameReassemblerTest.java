@@ -0,0 +1,189 @@
+package org.openlcb.can;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openlcb.AddressedMessage;
+import org.openlcb.DatagramMessage;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.SimpleNodeIdentInfoReplyMessage;
+import org.openlcb.StreamDataCompleteMessage;
+import org.openlcb.StreamDataSendMessage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests reassembly of multi-frame messages in the message builder.
+ */
+public class FrameReassemblerTest {
+    static final int NODES = 40;
+
+    AliasMap map;
+    MessageBuilder builder;
+
+    static NodeID node(int i) {
+        return new NodeID(new byte[]{2, 1, 4, 4, (byte) (i >> 8), (byte) i});
+    }
+
+    static int alias(int i) {
+        return 0x200 + i;
+    }
+
+    @Before
+    public void setUp() {
+        map = new AliasMap();
+        for (int i = 0; i < NODES; ++i) {
+            map.insert(alias(i), node(i));
+        }
+        builder = new MessageBuilder(map);
+    }
+
+    static byte[] pattern(Random r, int length) {
+        byte[] b = new byte[length];
+        r.nextBytes(b);
+        return b;
+    }
+
+    /// One sender sending a series of messages to one destination.
+    static class Transfer {
+        final ArrayDeque<OpenLcbCanFrame> frames = new ArrayDeque<>();
+        final ArrayDeque<Message> expected = new ArrayDeque<>();
+    }
+
+    @Test
+    public void testInterleavedSenders() {
+        Random r = new Random(42);
+        MessageBuilder renderer = new MessageBuilder(map);
+        List<Transfer> transfers = new ArrayList<>();
+        int messageCount = 0;
+        for (int src = 0; src < NODES; ++src) {
+            for (int k = 1; k <= 3; ++k) {
+                int dst = (src + k * 7) % NODES;
+                Transfer t = new Transfer();
+                for (int m = 0; m < 20; ++m) {
+                    Message msg;
+                    if (r.nextInt(4) == 0) {
+                        // Longer than a pooled buffer.
+                        msg = new SimpleNodeIdentInfoReplyMessage(node(src), node(dst),
+                                pattern(r, 1 + r.nextInt(120)));
+                    } else {
+                        msg = new DatagramMessage(node(src), node(dst), pattern(r, 1 + r
+                                .nextInt(72)));
+                    }
+                    t.expected.add(msg);
+                    t.frames.addAll(renderer.processMessage(msg));
+                    ++messageCount;
+                }
+                transfers.add(t);
+            }
+        }
+
+        // Frames of the different transfers arrive mixed up; within one transfer in order.
+        Map<String, ArrayDeque<Message>> expected = new HashMap<>();
+        for (Transfer t : transfers) {
+            Message m = t.expected.peek();
+            expected.put(key(m), t.expected);
+        }
+        int received = 0;
+        List<Transfer> open = new ArrayList<>(transfers);
+        while (!open.isEmpty()) {
+            int i = r.nextInt(open.size());
+            Transfer t = open.get(i);
+            List<Message> l = builder.processFrame(t.frames.poll());
+            if (t.frames.isEmpty()) open.remove(i);
+            if (l == null) continue;
+            for (Message m : l) {
+                Message e = expected.get(key(m)).poll();
+                Assert.assertEquals(e, m);
+                ++received;
+            }
+        }
+        Assert.assertEquals(messageCount, received);
+        Assert.assertEquals(0, builder.reassembler.getActiveCount());
+        // The arrays were reused.
+        Assert.assertTrue(builder.reassembler.getAllocatedCount() <= transfers.size());
+        Assert.assertEquals(0, builder.reassembler.getExpiredCount());
+    }
+
+    static String key(Message m) {
+        return m.getSourceNodeID() + " " + ((AddressedMessage) m).getDestNodeID();
+    }
+
+    @Test
+    public void testAbandonedDatagramExpires() {
+        List<OpenLcbCanFrame> frames = new MessageBuilder(map).processMessage(new DatagramMessage(
+                node(1), node(2), new byte[20]));
+        Assert.assertEquals(3, frames.size());
+        Assert.assertNull(builder.processFrame(frames.get(0)));
+        Assert.assertNull(builder.processFrame(frames.get(1)));
+        Assert.assertEquals(1, builder.reassembler.getActiveCount());
+
+        long now = System.currentTimeMillis();
+        Assert.assertEquals(0, builder.reassembler.expire(now));
+        Assert.assertEquals(1, builder.reassembler.expire(now + FrameReassembler
+                .DEFAULT_TIMEOUT_MSEC + 1000));
+        Assert.assertEquals(0, builder.reassembler.getActiveCount());
+        Assert.assertEquals(1, builder.reassembler.getPooledCount());
+        // The rest of the datagram is dropped.
+        Assert.assertNull(builder.processFrame(frames.get(2)));
+        Assert.assertEquals(0, builder.reassembler.getActiveCount());
+    }
+
+    @Test
+    public void testExpiresWhileFramesArrive() throws Exception {
+        builder.setReassemblyTimeout(20);
+        List<OpenLcbCanFrame> frames = new MessageBuilder(map).processMessage(
+                new SimpleNodeIdentInfoReplyMessage(node(3), node(4), new byte[30]));
+        builder.processFrame(frames.get(0));
+        Assert.assertEquals(1, builder.reassembler.getActiveCount());
+        Thread.sleep(50);
+        // Any later frame gets the abandoned message cleaned up.
+        OpenLcbCanFrame other = new OpenLcbCanFrame(alias(5));
+        other.setInitializationComplete(alias(5), node(5));
+        builder.processFrame(other);
+        Assert.assertEquals(0, builder.reassembler.getActiveCount());
+        Assert.assertEquals(1, builder.reassembler.getExpiredCount());
+    }
+
+    @Test
+    public void testStreamData() {
+        byte[] payload = pattern(new Random(7), 70);
+        List<OpenLcbCanFrame> frames = new MessageBuilder(map).processMessage(
+                new StreamDataSendMessage(node(1), node(2), (byte) 4, toInts(payload)));
+        Assert.assertEquals(10, frames.size());
+        List<Message> got = new ArrayList<>();
+        for (OpenLcbCanFrame f : frames) {
+            List<Message> l = builder.processFrame(f);
+            if (l != null) got.addAll(l);
+        }
+        Assert.assertEquals(1, got.size());
+        Assert.assertEquals(new StreamDataSendMessage(node(1), node(2), (byte) 4, toInts(Arrays
+                .copyOf(payload, 64))), got.get(0));
+
+        // The rest comes with the end of the stream.
+        for (OpenLcbCanFrame f : new MessageBuilder(map).processMessage(new
+                StreamDataCompleteMessage(node(1), node(2), (byte) 3, (byte) 4))) {
+            got.addAll(builder.processFrame(f));
+        }
+        Assert.assertEquals(3, got.size());
+        Assert.assertEquals(new StreamDataSendMessage(node(1), node(2), (byte) 4, toInts(Arrays
+                .copyOfRange(payload, 64, 70))), got.get(1));
+        Assert.assertTrue(got.get(2) instanceof StreamDataCompleteMessage);
+        Assert.assertEquals(0, builder.reassembler.getActiveCount());
+    }
+
+    static int[] toInts(byte[] b) {
+        int[] r = new int[b.length];
+        for (int i = 0; i < b.length; ++i) {
+            r[i] = b[i] & 0xFF;
+        }
+        return r;
+    }
+}
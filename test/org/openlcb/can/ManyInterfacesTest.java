@@ -0,0 +1,133 @@
+package org.openlcb.can;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openlcb.NodeID;
+import org.openlcb.OlcbExecutors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scenario test: runs 500 CAN interfaces in one JVM, as a simulator would, split over a number
+ * of simulated bus segments. Uses virtual threads when the JVM has them.
+ */
+public class ManyInterfacesTest {
+    static final int NUM_INTERFACES = 500;
+    /// Interfaces sharing one simulated CAN bus. Startup traffic grows with the square of this.
+    static final int SEGMENT_SIZE = 10;
+
+    /// Delivers every frame to all interfaces except the sender, on a single thread.
+    static class Bus implements Runnable {
+        final List<CanInterface> members = new ArrayList<>();
+        final LinkedBlockingQueue<Object[]> queue = new LinkedBlockingQueue<>();
+        volatile long frames = 0;
+
+        CanFrameListener outputFor(final int index) {
+            return new CanFrameListener() {
+                @Override
+                public void send(CanFrame frame) {
+                    queue.add(new Object[]{index, frame});
+                }
+            };
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Object[] e = queue.take();
+                    int from = (Integer) e[0];
+                    for (int i = 0; i < members.size(); ++i) {
+                        if (i != from) members.get(i).frameInput().send((CanFrame) e[1]);
+                    }
+                    ++frames;
+                }
+            } catch (InterruptedException e) {
+                // done
+            }
+        }
+    }
+
+    OlcbExecutors.Provider savedProvider;
+
+    @Before
+    public void setUp() {
+        savedProvider = OlcbExecutors.getProvider();
+        OlcbExecutors.setProvider(OlcbExecutors.getVirtual());
+    }
+
+    @After
+    public void tearDown() {
+        OlcbExecutors.setProvider(savedProvider);
+    }
+
+    @Test
+    public void testFiveHundredInterfaces() throws Exception {
+        List<Bus> buses = new ArrayList<>();
+        List<CanInterface> all = new ArrayList<>();
+        for (int b = 0; b < NUM_INTERFACES / SEGMENT_SIZE; ++b) {
+            Bus bus = new Bus();
+            for (int i = 0; i < SEGMENT_SIZE; ++i) {
+                int n = all.size();
+                NodeID id = new NodeID(new byte[]{5, 1, 1, 1, (byte) (n >> 8), (byte) n});
+                CanInterface c = new CanInterface(id, bus.outputFor(i));
+                bus.members.add(c);
+                all.add(c);
+            }
+            buses.add(bus);
+        }
+        List<Thread> busThreads = new ArrayList<>();
+        for (Bus bus : buses) {
+            Thread t = OlcbExecutors.newThread(bus, "simulated-bus", true);
+            t.start();
+            busThreads.add(t);
+        }
+
+        try {
+            // Every interface announces itself after reserving an alias; the node stores of the
+            // other interfaces on the segment have to see that.
+            long start = System.currentTimeMillis();
+            long deadline = start + 60000;
+            int minSeen = 0;
+            while (System.currentTimeMillis() < deadline) {
+                minSeen = Integer.MAX_VALUE;
+                for (CanInterface c : all) {
+                    minSeen = Math.min(minSeen, c.getInterface().getNodeStore().size());
+                }
+                if (minSeen >= SEGMENT_SIZE - 1) break;
+                Thread.sleep(100);
+            }
+            Assert.assertTrue("nodes seen: " + minSeen, minSeen >= SEGMENT_SIZE - 1);
+            long frames = 0;
+            for (Bus bus : buses) {
+                frames += bus.frames;
+            }
+            System.out.println(NUM_INTERFACES + " interfaces on " + OlcbExecutors.getProvider()
+                    .getName() + " threads: " + frames + " frames, " + Thread.activeCount() +
+                    " live platform threads, " + (System.currentTimeMillis() - start) + " msec");
+        } finally {
+            ExecutorService disposer = Executors.newFixedThreadPool(50);
+            for (final CanInterface c : all) {
+                disposer.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        c.getInterface().dispose();
+                        c.dispose();
+                    }
+                });
+            }
+            disposer.shutdown();
+            Assert.assertTrue(disposer.awaitTermination(60, TimeUnit.SECONDS));
+            for (Thread t : busThreads) {
+                t.interrupt();
+            }
+        }
+    }
+}
@@ -383,6 +383,38 @@ public class MessageBuilderTest  {
         Assert.assertEquals("destination", destination, ((AddressedMessage)msg).getDestNodeID());
     }
     
+    @Test
+    public void testDatagramPayloadReassembly() {
+        MessageBuilder b = new MessageBuilder(map);
+        OpenLcbCanFrame frame = new OpenLcbCanFrame(0x123);
+        frame.setHeader(0x1B321123);
+        frame.setData(new byte[]{0x20, (byte) 0x80, 2, 3, 4, 5, 6, 7});
+        Assert.assertNull(b.processFrame(frame));
+        frame = new OpenLcbCanFrame(0x123);
+        frame.setHeader(0x1C321123);
+        frame.setData(new byte[]{8, 9, 10, 11, 12, 13, 14, 15});
+        Assert.assertNull(b.processFrame(frame));
+        frame = new OpenLcbCanFrame(0x123);
+        frame.setHeader(0x1D321123);
+        frame.setData(new byte[]{(byte) 0xFF});
+        List<Message> list = b.processFrame(frame);
+
+        Assert.assertEquals(1, list.size());
+        ByteSlice p = ((DatagramMessage) list.get(0)).getPayload();
+        Assert.assertEquals(17, p.length());
+        Assert.assertEquals(0x80, p.get(1));
+        Assert.assertEquals(15, p.get(15));
+        Assert.assertEquals(0xFF, p.get(16));
+
+        // Rendered back into the same frames.
+        List<OpenLcbCanFrame> frames = b.processMessage(list.get(0));
+        Assert.assertEquals(3, frames.size());
+        Assert.assertEquals(0x1B321123, frames.get(0).getHeader());
+        Assert.assertEquals(8, frames.get(1).getNumDataElements());
+        Assert.assertEquals(0x1D321123, frames.get(2).getHeader());
+        Assert.assertEquals(0xFF, frames.get(2).getElement(0));
+    }
+
     @Test	
     public void testTwoFrameDatagram() {
         OpenLcbCanFrame frame = new OpenLcbCanFrame(0x123);
@@ -772,6 +804,8 @@ public class MessageBuilderTest  {
         Assert.assertTrue(msg instanceof StreamDataProceedMessage);
         Assert.assertEquals("source", source, msg.getSourceNodeID());
         Assert.assertEquals("destination", high, ((StreamDataProceedMessage)msg).getDestNodeID());
+        Assert.assertEquals(4, ((StreamDataProceedMessage)msg).getSourceStreamID());
+        Assert.assertEquals(6, ((StreamDataProceedMessage)msg).getDestinationStreamID());
         Assert.assertEquals("sourceStreamID ",frame.getElement(2),4);
         Assert.assertEquals("destinationStreamID ",frame.getElement(3),6);
         Assert.assertEquals("flags ",(frame.getElement(4)<<8)+frame.getElement(5),0);
@@ -795,6 +829,8 @@ public class MessageBuilderTest  {
         Assert.assertTrue(msg instanceof StreamDataCompleteMessage);
         Assert.assertEquals("source", source, msg.getSourceNodeID());
         Assert.assertEquals("destination", high, ((StreamDataCompleteMessage)msg).getDestNodeID());
+        Assert.assertEquals(4, ((StreamDataCompleteMessage)msg).getSourceStreamID());
+        Assert.assertEquals(6, ((StreamDataCompleteMessage)msg).getDestinationStreamID());
         Assert.assertEquals("sourceStreamID ",frame.getElement(2),4);
         Assert.assertEquals("destinationStreamID ",frame.getElement(3),6);
         Assert.assertEquals("flags ",(frame.getElement(4)<<8)+frame.getElement(5),0);
@@ -0,0 +1,248 @@
+package org.openlcb.can;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openlcb.Connection;
+import org.openlcb.DatagramMessage;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.VerifiedNodeIDNumberMessage;
+import org.openlcb.VerifyNodeIDNumberMessage;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests hosting virtual nodes on a CAN interface.
+ */
+public class VirtualNodeTest {
+    static final NodeID HOST_ID = new NodeID(new byte[]{2, 1, 1, 1, 0, 0});
+    static final NodeID REMOTE_ID = new NodeID(new byte[]{2, 1, 2, 2, 0, 1});
+    static final int REMOTE_ALIAS = 0x123;
+
+    /// Records the frames sent by the interface.
+    final List<OpenLcbCanFrame> frames = new ArrayList<>();
+    final CanFrameListener sink = new CanFrameListener() {
+        @Override
+        public void send(CanFrame frame) {
+            synchronized (frames) {
+                frames.add(new OpenLcbCanFrame(frame));
+            }
+        }
+    };
+    CanInterface iface;
+
+    /// Records the messages delivered to a virtual node.
+    static class Recorder implements Connection {
+        final List<Message> messages = new ArrayList<>();
+
+        @Override
+        public synchronized void put(Message msg, Connection sender) {
+            messages.add(msg);
+        }
+
+        synchronized int size() {
+            return messages.size();
+        }
+
+        @Override
+        public void registerStartNotification(ConnectionListener c) {
+        }
+    }
+
+    static NodeID virtualId(int i) {
+        return new NodeID(new byte[]{2, 1, 1, 3, (byte) (i >> 8), (byte) i});
+    }
+
+    List<OpenLcbCanFrame> framesFrom(int alias) {
+        List<OpenLcbCanFrame> l = new ArrayList<>();
+        synchronized (frames) {
+            for (OpenLcbCanFrame f : frames) {
+                if (f.getSourceAlias() == alias) l.add(f);
+            }
+        }
+        return l;
+    }
+
+    /// Renders a message of the remote node to frames, as they would arrive from the bus.
+    void inject(Message m, VirtualNode dest) {
+        AliasMap remoteMap = new AliasMap();
+        remoteMap.insert(REMOTE_ALIAS, REMOTE_ID);
+        if (dest != null) remoteMap.insert(dest.getAlias(), dest.getNodeID());
+        for (OpenLcbCanFrame f : new MessageBuilder(remoteMap).processMessage(m)) {
+            iface.frameInput().send(f);
+        }
+    }
+
+    void waitReserved(List<VirtualNode> nodes, long timeoutMsec) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMsec;
+        for (VirtualNode vn : nodes) {
+            while (!vn.isReserved() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue("not reserved: " + vn.getNodeID(), vn.isReserved());
+        }
+    }
+
+    /// Waits until a node has sent a given number of frames, or the timeout passes.
+    void waitFrames(int alias, int count, long timeoutMsec) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMsec;
+        while (framesFrom(alias).size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        iface.getInterface().flushSendQueue();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        iface = new CanInterface(HOST_ID, sink);
+        // The virtual nodes send their messages through the interface, which starts sending
+        // once its own node is up.
+        final CountDownLatch started = new CountDownLatch(1);
+        iface.addStartListener(new Connection.ConnectionListener() {
+            @Override
+            public void connectionActive(Connection c) {
+                started.countDown();
+            }
+        });
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        OpenLcbCanFrame amd = new OpenLcbCanFrame(REMOTE_ALIAS);
+        amd.setAMD(REMOTE_ALIAS, REMOTE_ID);
+        iface.frameInput().send(amd);
+    }
+
+    @After
+    public void tearDown() {
+        iface.getInterface().dispose();
+        iface.dispose();
+    }
+
+    @Test
+    public void testThousandNodes() throws Exception {
+        List<VirtualNode> nodes = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 1000; ++i) {
+            nodes.add(iface.addVirtualNode(virtualId(i), new Recorder()));
+        }
+        // The reservations run in parallel, so this takes about as long as a single one.
+        waitReserved(nodes, 10000);
+        System.out.println("1000 virtual nodes reserved in " + (System.currentTimeMillis() -
+                start) + " msec");
+        Assert.assertEquals(1000, iface.getVirtualNodeCount());
+        Set<Integer> aliases = new HashSet<>();
+        for (VirtualNode vn : nodes) {
+            Assert.assertTrue(aliases.add(vn.getAlias()));
+            Assert.assertNotEquals(REMOTE_ALIAS, vn.getAlias());
+        }
+        // Four CIDs, RID, AMD and Initialization Complete each. Initialization Complete goes
+        // through the output queue of the interface, after the reservation.
+        VirtualNode vn = nodes.get(500);
+        waitFrames(vn.getAlias(), 7, 2000);
+        List<OpenLcbCanFrame> l = framesFrom(vn.getAlias());
+        Assert.assertEquals(7, l.size());
+        Assert.assertTrue(l.get(5).isAliasMapDefinition());
+        Assert.assertTrue(l.get(6).isInitializationComplete());
+    }
+
+    @Test
+    public void testAddressedRouting() throws Exception {
+        Recorder r1 = new Recorder();
+        Recorder r2 = new Recorder();
+        VirtualNode vn1 = iface.addVirtualNode(virtualId(1), r1);
+        VirtualNode vn2 = iface.addVirtualNode(virtualId(2), r2);
+        List<VirtualNode> nodes = new ArrayList<>();
+        nodes.add(vn1);
+        nodes.add(vn2);
+        waitReserved(nodes, 2000);
+
+        inject(new DatagramMessage(REMOTE_ID, vn2.getNodeID(), new int[]{0x20, 1, 2}), vn2);
+        Assert.assertEquals(0, r1.size());
+        Assert.assertEquals(1, r2.size());
+        Assert.assertEquals(REMOTE_ID, r2.messages.get(0).getSourceNodeID());
+
+        // Local traffic between virtual nodes does not go to the bus.
+        int sent = framesFrom(vn1.getAlias()).size();
+        vn1.getOutputConnection().put(new DatagramMessage(vn1.getNodeID(), vn2.getNodeID(),
+                new int[]{0x20, 3}), null);
+        Thread.sleep(50);
+        Assert.assertEquals(2, r2.size());
+        Assert.assertEquals(sent, framesFrom(vn1.getAlias()).size());
+
+        vn2.remove();
+        Assert.assertEquals(1, iface.getVirtualNodeCount());
+        List<OpenLcbCanFrame> l = framesFrom(vn2.getAlias());
+        Assert.assertTrue(l.get(l.size() - 1).isAliasMapReset());
+    }
+
+    @Test
+    public void testGlobalVerify() throws Exception {
+        List<VirtualNode> nodes = new ArrayList<>();
+        for (int i = 0; i < 5; ++i) {
+            nodes.add(iface.addVirtualNode(virtualId(i), new Recorder()));
+        }
+        waitReserved(nodes, 2000);
+        inject(new VerifyNodeIDNumberMessage(REMOTE_ID), null);
+        Thread.sleep(100);
+        for (VirtualNode vn : nodes) {
+            List<OpenLcbCanFrame> l = framesFrom(vn.getAlias());
+            Assert.assertTrue(l.get(l.size() - 1).isVerifiedNID());
+        }
+
+        // Targeted verify: only one node answers.
+        int before = framesFrom(nodes.get(0).getAlias()).size();
+        inject(new VerifyNodeIDNumberMessage(REMOTE_ID, nodes.get(3).getNodeID()), null);
+        Thread.sleep(100);
+        Assert.assertEquals(before, framesFrom(nodes.get(0).getAlias()).size());
+        List<OpenLcbCanFrame> l = framesFrom(nodes.get(3).getAlias());
+        Assert.assertTrue(l.get(l.size() - 1).isVerifiedNID());
+        Assert.assertTrue(l.get(l.size() - 2).isVerifiedNID());
+    }
+
+    @Test
+    public void testHeldUntilReserved() throws Exception {
+        VirtualNode vn = iface.addVirtualNode(virtualId(7), new Recorder());
+        Assert.assertFalse(vn.isReserved());
+        vn.getOutputConnection().put(new VerifiedNodeIDNumberMessage(vn.getNodeID()), null);
+        List<VirtualNode> nodes = new ArrayList<>();
+        nodes.add(vn);
+        waitReserved(nodes, 2000);
+        Thread.sleep(50);
+        List<OpenLcbCanFrame> l = framesFrom(vn.getAlias());
+        Assert.assertTrue(l.get(l.size() - 2).isInitializationComplete());
+        Assert.assertTrue(l.get(l.size() - 1).isVerifiedNID());
+    }
+
+    @Test
+    public void testCollisionDuringReservation() throws Exception {
+        VirtualNode vn = iface.addVirtualNode(virtualId(9), new Recorder());
+        // Waits for the check frames.
+        int alias = -1;
+        long deadline = System.currentTimeMillis() + 2000;
+        while (alias < 0 && System.currentTimeMillis() < deadline) {
+            int a = vn.reservation.getNIDa();
+            if (framesFrom(a).size() >= 4) alias = a;
+            Thread.sleep(5);
+        }
+        Assert.assertTrue(alias >= 0);
+        // Another node on the bus uses the same alias.
+        OpenLcbCanFrame rid = new OpenLcbCanFrame(alias);
+        rid.setRIM(alias);
+        iface.frameInput().send(rid);
+        List<VirtualNode> nodes = new ArrayList<>();
+        nodes.add(vn);
+        waitReserved(nodes, 2000);
+        Assert.assertNotEquals(alias, vn.getAlias());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicate() {
+        iface.addVirtualNode(virtualId(3), new Recorder());
+        iface.addVirtualNode(virtualId(3), new Recorder());
+    }
+}
@@ -0,0 +1,125 @@
+package org.openlcb.cdi.impl;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.openlcb.EventID;
+import org.openlcb.FakeOlcbInterface;
+import org.openlcb.NodeID;
+import org.openlcb.cdi.jdom.SampleFactory;
+import org.openlcb.implementations.EventTable;
+import org.openlcb.implementations.FakeMemoryConfigurationService;
+
+import java.util.List;
+
+/**
+ * Tests the reverse index of event ID configuration fields.
+ */
+public class EventFieldIndexTest {
+    FakeOlcbInterface iface;
+    FakeMemoryConfigurationService mcs;
+    NodeID remoteNode = new NodeID("05.01.01.01.14.39");
+    EventID ev1 = new EventID("05.01.01.01.14.39.00.01");
+    EventID ev2 = new EventID("05.01.01.01.14.39.00.02");
+    /// Offset of the only event ID field in the offset sample CDI.
+    static final int EVENT_OFFSET = 158;
+
+    private void addCdiData(Element root) {
+        String s = new org.jdom2.output.XMLOutputter().outputString(new Document(root)) + "\0";
+        mcs.addSpace(remoteNode, mcs.SPACE_CDI, s.getBytes(), false);
+    }
+
+    private void addSpaces() {
+        addCdiData(SampleFactory.getOffsetSample());
+        byte[] config = new byte[1000];
+        System.arraycopy(ev1.getContents(), 0, config, EVENT_OFFSET, 8);
+        mcs.addSpace(remoteNode, 13, config, true);
+        mcs.addSpace(remoteNode, 14, new byte[100], true);
+    }
+
+    private ConfigRepresentation createRep() {
+        addSpaces();
+        return new ConfigRepresentation(iface, remoteNode);
+    }
+
+    @Test
+    public void testIndexAndEventTable() {
+        EventTable table = new EventTable();
+        EventFieldIndex index = new EventFieldIndex(table);
+        ConfigRepresentation rep = createRep();
+        index.addNode(rep);
+
+        List<EventFieldIndex.Field> l = index.lookup(ev1);
+        Assert.assertEquals(1, l.size());
+        EventFieldIndex.Field f = l.get(0);
+        Assert.assertEquals(remoteNode, f.getNodeID());
+        Assert.assertSame(rep.getVariableForKey(f.getKey()), f.getEntry());
+        Assert.assertEquals(1, index.getEventCount());
+        Assert.assertTrue(index.lookup(ev2).isEmpty());
+
+        EventTable.EventTableEntry[] entries = table.getEventInfo(ev1).getAllEntries();
+        Assert.assertEquals(1, entries.length);
+        Assert.assertEquals(f.getDescription(), entries[0].getDescription());
+        Assert.assertEquals("05.01.01.01.14.39/" + f.getKey(), entries[0].getSourceKey());
+
+        // Changing the value moves the field in the index and the event table.
+        f.getEntry().setValue(ev2);
+        Assert.assertTrue(index.lookup(ev1).isEmpty());
+        Assert.assertEquals(1, index.lookup(ev2).size());
+        Assert.assertEquals(ev2, index.getIndexedEvent(f));
+        Assert.assertEquals(0, table.getEventInfo(ev1).getAllEntries().length);
+        Assert.assertEquals(1, table.getEventInfo(ev2).getAllEntries().length);
+
+        index.removeNode(rep);
+        Assert.assertTrue(index.lookup(ev2).isEmpty());
+        Assert.assertEquals(0, index.getEventCount());
+        Assert.assertEquals(0, table.getEventInfo(ev2).getAllEntries().length);
+
+        // Updates after removal are not followed any more.
+        f.getEntry().setValue(ev1);
+        Assert.assertTrue(index.lookup(ev1).isEmpty());
+    }
+
+    @Test
+    public void testInterfaceIndexesNewNodes() {
+        EventFieldIndex index = iface.getEventFieldIndex();
+        Assert.assertSame(index, iface.getEventFieldIndex());
+        // The fake memory service answers inline, so the representation is built right away.
+        addSpaces();
+        ConfigRepresentation rep = iface.getConfigForNode(remoteNode);
+        Assert.assertNotNull(rep.getRoot());
+        Assert.assertEquals(1, index.lookup(ev1).size());
+        Assert.assertEquals(1, iface.getEventTable().getEventInfo(ev1).getAllEntries().length);
+    }
+
+    @Test
+    public void testManyFieldsSameEvent() {
+        EventFieldIndex index = new EventFieldIndex(null);
+        ConfigRepresentation rep1 = createRep();
+        ConfigRepresentation rep2 = new ConfigRepresentation(iface, remoteNode);
+        index.addNode(rep1);
+        index.addNode(rep2);
+        index.addNode(rep2);
+        Assert.assertEquals(2, index.lookup(ev1).size());
+        index.removeNode(rep1);
+        List<EventFieldIndex.Field> l = index.lookup(ev1);
+        Assert.assertEquals(1, l.size());
+        Assert.assertSame(rep2.getVariableForKey(l.get(0).getKey()), l.get(0).getEntry());
+    }
+
+    @Before
+    public void setUp() {
+        iface = new FakeOlcbInterface();
+        mcs = new FakeMemoryConfigurationService(iface);
+        iface.injectMemoryConfigurationService(mcs);
+    }
+
+    @After
+    public void tearDown() {
+        iface.dispose();
+        mcs.dispose();
+    }
+}
@@ -134,6 +134,23 @@ public class DatagramServiceTest {
         Assert.assertTrue(messagesReceived.get(0) instanceof DatagramRejectedMessage);
     }
 
+    @Test
+    public void testReceivePayloadWithoutCopy() {
+        final ByteSlice[] received = new ByteSlice[1];
+        service.registerForReceive(new DatagramService.DatagramServiceReceiveMemo(0x20) {
+            @Override
+            public void handleData(NodeID n, ByteSlice data, DatagramService.ReplyMemo service) {
+                received[0] = data;
+                service.acceptData(0);
+            }
+        });
+        ByteSlice payload = ByteSlice.wrap(new byte[]{0x20, (byte) 0xC0, 7});
+        service.put(new DatagramMessage(farID, hereID, payload), null);
+        Assert.assertSame(payload, received[0]);
+        Assert.assertEquals(1, messagesReceived.size());
+        Assert.assertTrue(messagesReceived.get(0) instanceof DatagramAcknowledgedMessage);
+    }
+
     @Test
     public void testReceiveFirstDG() {
         DatagramService.DatagramServiceReceiveMemo m20 = 
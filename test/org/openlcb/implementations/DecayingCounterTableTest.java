@@ -0,0 +1,83 @@
+package org.openlcb.implementations;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Tests the lock-free counter table.
+ */
+public class DecayingCounterTableTest {
+    @Test
+    public void testCount() {
+        DecayingCounterTable t = new DecayingCounterTable(16);
+        Assert.assertEquals(1, t.increment(42));
+        Assert.assertEquals(2, t.increment(42));
+        Assert.assertEquals(1, t.increment(0));
+        Assert.assertEquals(1, t.increment(-1));
+        Assert.assertEquals(2, t.getCount(42));
+        Assert.assertEquals(1, t.getCount(0));
+        Assert.assertEquals(1, t.getCount(-1));
+        Assert.assertEquals(0, t.getCount(43));
+        Assert.assertEquals(3, t.size());
+        Assert.assertEquals(0, t.getOverflowCount());
+    }
+
+    @Test
+    public void testBounded() {
+        DecayingCounterTable t = new DecayingCounterTable(16);
+        for (long i = 1; i <= 10000; ++i) {
+            t.increment(i);
+        }
+        // 16 keys are guaranteed; the table never grows beyond its allocated slots.
+        Assert.assertTrue(t.size() >= 16);
+        Assert.assertTrue(t.size() <= 64);
+        Assert.assertEquals(10000, t.size() + t.getOverflowCount());
+    }
+
+    @Test
+    public void testDecayAndTop() {
+        DecayingCounterTable t = new DecayingCounterTable(16);
+        for (int i = 0; i < 100; ++i) t.increment(1);
+        for (int i = 0; i < 10; ++i) t.increment(2);
+        for (int i = 0; i < 50; ++i) t.increment(3);
+        // Half-life equal to the period: the rate gets half of the new sample.
+        t.decay(1000, 1000);
+        Assert.assertEquals(50, t.getRate(1), 0.001);
+        List<DecayingCounterTable.Entry> top = t.getTop(2);
+        Assert.assertEquals(2, top.size());
+        Assert.assertEquals(1, top.get(0).getKey());
+        Assert.assertEquals(3, top.get(1).getKey());
+        Assert.assertEquals(100, top.get(0).getCount());
+
+        // Event 2 becomes hot, event 1 cools down.
+        for (int i = 0; i < 1000; ++i) t.increment(2);
+        t.decay(1000, 1000);
+        Assert.assertEquals(25, t.getRate(1), 0.001);
+        top = t.getTop(1);
+        Assert.assertEquals(2, top.get(0).getKey());
+    }
+
+    @Test
+    public void testConcurrentIncrement() throws Exception {
+        final DecayingCounterTable t = new DecayingCounterTable(64);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 9600; ++j) {
+                        t.increment(j % 32 + 1);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread th : threads) th.join();
+        Assert.assertEquals(32, t.size());
+        for (int k = 1; k <= 32; ++k) {
+            Assert.assertEquals(1200, t.getCount(k));
+        }
+    }
+}
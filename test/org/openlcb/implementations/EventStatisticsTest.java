@@ -0,0 +1,77 @@
+package org.openlcb.implementations;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openlcb.EventID;
+import org.openlcb.NodeID;
+import org.openlcb.ProducerConsumerEventReportMessage;
+import org.openlcb.VerifiedNodeIDNumberMessage;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+/**
+ * Tests the event traffic statistics.
+ */
+public class EventStatisticsTest extends org.openlcb.InterfaceTestBase {
+    private final NodeID n1 = new NodeID("05.01.01.01.14.01");
+    private final NodeID n2 = new NodeID("05.01.01.01.14.02");
+    private final EventID e1 = new EventID("05.01.01.01.14.01.00.01");
+    private final EventID e2 = new EventID("05.01.01.01.14.02.00.02");
+
+    @Test
+    public void testCounting() {
+        EventStatistics stats = new EventStatistics(iface);
+        for (int i = 0; i < 5; ++i) {
+            sendMessage(new ProducerConsumerEventReportMessage(n1, e1));
+        }
+        sendMessage(new ProducerConsumerEventReportMessage(n2, e2));
+        sendMessage(new VerifiedNodeIDNumberMessage(n2));
+
+        Assert.assertEquals(7, stats.getTotalMessageCount());
+        Assert.assertEquals(5, stats.getEventCount(e1));
+        Assert.assertEquals(1, stats.getEventCount(e2));
+        Assert.assertEquals(5, stats.getProducerCount(n1));
+        Assert.assertEquals(6, stats.getMtiCount(new ProducerConsumerEventReportMessage(n1, e1)
+                .getMTI()));
+        Assert.assertEquals(2, stats.getTrackedEventCount());
+
+        Map<String, Long> mtis = stats.getMtiCounts();
+        Assert.assertEquals(2, mtis.size());
+        Assert.assertEquals(Long.valueOf(6), mtis.get("0x12D2 ProducerConsumerEventReportMessage"));
+        stats.dispose();
+    }
+
+    @Test
+    public void testHotEvents() {
+        EventStatistics stats = new EventStatistics(null, 16);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 10; ++i) {
+            stats.put(new ProducerConsumerEventReportMessage(n2, e2), null);
+        }
+        stats.put(new ProducerConsumerEventReportMessage(n1, e1), null);
+        stats.decay(now + 1000);
+        EventStatistics.Snapshot s = stats.getSnapshot(5);
+        Assert.assertEquals(11, s.getTotalMessages());
+        Assert.assertEquals(2, s.getHotEvents().size());
+        Assert.assertEquals(e2.toLong(), s.getHotEvents().get(0).getKey());
+        Assert.assertEquals(n2.toLong(), s.getHotProducers().get(0).getKey());
+        Assert.assertTrue(s.getMessageRate() > 0);
+        String[] hot = stats.getHotEvents();
+        Assert.assertTrue(hot[0].startsWith(e2.toString()));
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        EventStatistics stats = new EventStatistics(iface);
+        stats.registerMBean("test");
+        sendMessage(new ProducerConsumerEventReportMessage(n1, e1));
+        ObjectName name = new ObjectName("org.openlcb:type=EventStatistics,name=\"test\"");
+        Assert.assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name,
+                "TotalMessageCount"));
+        stats.dispose();
+        Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
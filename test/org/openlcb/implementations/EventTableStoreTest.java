@@ -0,0 +1,130 @@
+package org.openlcb.implementations;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openlcb.EventID;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests the persistent event table store.
+ */
+public class EventTableStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    EventID e1 = new EventID("01.02.03.04.05.06.07.08");
+    EventID e2 = new EventID("01.02.03.04.05.06.07.09");
+    File file;
+    EventTable table;
+    EventTableStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "events.dat");
+        reopen();
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    private void reopen() {
+        if (store != null) store.close();
+        table = new EventTable();
+        store = new EventTableStore(table, file);
+        store.flush();
+        Assert.assertTrue(store.isLoaded());
+    }
+
+    @Test
+    public void testWarmStart() {
+        EventTable.EventTableEntryHolder h = table.addEvent(e1, "Node.Input 1", "N1/in1");
+        table.addEvent(e2, "Unkeyed");
+        h.getEntry().updateDescription("Node.Input 1 renamed");
+        store.flush();
+        reopen();
+
+        EventTable.EventTableEntry[] l = table.getEventInfo(e1).getAllEntries();
+        Assert.assertEquals(1, l.length);
+        Assert.assertEquals("Node.Input 1 renamed", l[0].getDescription());
+        Assert.assertEquals("N1/in1", l[0].getSourceKey());
+        Assert.assertTrue(l[0].isCached());
+        // Entries without a source key are not persisted.
+        Assert.assertEquals(0, table.getEventInfo(e2).getAllEntries().length);
+    }
+
+    @Test
+    public void testLiveDataSupersedesCache() {
+        table.addEvent(e1, "Input 1", "N1/in1");
+        store.flush();
+        reopen();
+        Assert.assertEquals(1, table.getEventInfo(e1).getAllEntries().length);
+
+        // The node was reconfigured to use a different event meanwhile.
+        table.addEvent(e2, "Input 1", "N1/in1");
+        Assert.assertEquals(0, table.getEventInfo(e1).getAllEntries().length);
+        EventTable.EventTableEntry[] l = table.getEventInfo(e2).getAllEntries();
+        Assert.assertEquals(1, l.length);
+        Assert.assertFalse(l[0].isCached());
+
+        store.flush();
+        reopen();
+        Assert.assertEquals(0, table.getEventInfo(e1).getAllEntries().length);
+        Assert.assertEquals(1, table.getEventInfo(e2).getAllEntries().length);
+    }
+
+    @Test
+    public void testRemove() {
+        table.addEvent(e1, "Input 1", "N1/in1");
+        store.flush();
+        reopen();
+        store.remove("N1/in1");
+        Assert.assertEquals(0, table.getEventInfo(e1).getAllEntries().length);
+        store.flush();
+        reopen();
+        Assert.assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testTruncatedTail() throws Exception {
+        table.addEvent(e1, "Input 1", "N1/in1");
+        table.addEvent(e2, "Input 2", "N1/in2");
+        store.close();
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(f.length() - 3);
+        }
+        store = null;
+        reopen();
+        Assert.assertEquals(1, store.size());
+        Assert.assertEquals(1, table.getEventInfo(e1).getAllEntries().length);
+        // Appending after the damaged tail works.
+        table.addEvent(e2, "Input 2", "N1/in2");
+        store.flush();
+        reopen();
+        Assert.assertEquals(2, store.size());
+    }
+
+    @Test
+    public void testCompaction() {
+        for (int i = 0; i < EventTableStore.MIN_COMPACT_RECORDS + 10; ++i) {
+            table.addEvent(new EventID(0x0102030405060000L + (i % 10)), "Input " + i, "N1/in" +
+                    (i % 10));
+        }
+        store.flush();
+        long compactedLength = file.length();
+        Assert.assertTrue("file was not compacted: " + compactedLength, compactedLength < 2000);
+        reopen();
+        Assert.assertEquals(10, store.size());
+        EventTable.EventTableEntry[] l = table.getEventInfo(new EventID(0x0102030405060003L))
+                .getAllEntries();
+        Assert.assertEquals(1, l.length);
+        Assert.assertEquals("Input 1003", l[0].getDescription());
+    }
+}
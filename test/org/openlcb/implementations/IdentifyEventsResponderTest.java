@@ -0,0 +1,125 @@
+package org.openlcb.implementations;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openlcb.ConsumerRangeIdentifiedMessage;
+import org.openlcb.EventID;
+import org.openlcb.EventState;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.ProducerIdentifiedMessage;
+import org.openlcb.ProducerRangeIdentifiedMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests the shared Identify Events responder.
+ */
+public class IdentifyEventsResponderTest extends org.openlcb.InterfaceTestBase {
+    private static final NodeID src = new NodeID("01.02.00.00.01.01");
+
+    /// Registers a source with count consecutive unknown-state producers starting at base.
+    private void addProducerBlock(final long base, final int count) {
+        iface.getIdentifyEventsResponder().registerEventSource(
+                new IdentifyEventsResponder.EventSource() {
+            @Override
+            public void collectEvents(IdentifyEventsResponder.Collector c) {
+                for (int i = 0; i < count; ++i) {
+                    c.addProducer(new EventID(base + i), EventState.Unknown);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testLargestAlignedBlock() {
+        Assert.assertEquals(1, IdentifyEventsResponder.largestAlignedBlock(0x101, 100));
+        Assert.assertEquals(4, IdentifyEventsResponder.largestAlignedBlock(0x104, 100));
+        Assert.assertEquals(64, IdentifyEventsResponder.largestAlignedBlock(0x100, 100));
+        Assert.assertEquals(2, IdentifyEventsResponder.largestAlignedBlock(0x100, 3));
+        Assert.assertEquals(1, IdentifyEventsResponder.largestAlignedBlock(0x100, 1));
+    }
+
+    @Test
+    public void testCreateRange() {
+        // Bit above the range is zero: trailing ones.
+        Assert.assertEquals(new ProducerRangeIdentifiedMessage(src, new EventID(0x10FL)),
+                IdentifyEventsResponder.createRange(src, 0x100, 16, true));
+        // Bit above the range is one: trailing zeros.
+        Assert.assertEquals(new ConsumerRangeIdentifiedMessage(src, new EventID(0x110L)),
+                IdentifyEventsResponder.createRange(src, 0x110, 16, false));
+    }
+
+    @Test
+    public void testEncodeCollapsesRuns() {
+        long[] events = new long[]{0x105, 0x100, 0x101, 0x102, 0x103, 0x104, 0x104, 0x200};
+        EventState[] states = new EventState[events.length];
+        for (int i = 0; i < states.length; ++i) states[i] = EventState.Unknown;
+        states[7] = EventState.Valid;
+        List<Message> out = new ArrayList<>();
+        IdentifyEventsResponder.encode(src, events, states, events.length, true, 4, out);
+        Assert.assertEquals(4, out.size());
+        Assert.assertEquals(new ProducerRangeIdentifiedMessage(src, new EventID(0x103L)), out
+                .get(0));
+        Assert.assertEquals(new ProducerIdentifiedMessage(src, new EventID(0x104L), EventState
+                .Unknown), out.get(1));
+        Assert.assertEquals(new ProducerIdentifiedMessage(src, new EventID(0x105L), EventState
+                .Unknown), out.get(2));
+        Assert.assertEquals(new ProducerIdentifiedMessage(src, new EventID(0x200L), EventState
+                .Valid), out.get(3));
+    }
+
+    @Test
+    public void testKnownStateNotCollapsed() {
+        long[] events = new long[]{0x100, 0x101, 0x102, 0x103};
+        EventState[] states = new EventState[]{EventState.Unknown, EventState.Valid, EventState
+                .Unknown, EventState.Unknown};
+        List<Message> out = new ArrayList<>();
+        IdentifyEventsResponder.encode(src, events, states, events.length, true, 2, out);
+        Assert.assertEquals(3, out.size());
+        Assert.assertEquals(new ProducerRangeIdentifiedMessage(src, new EventID(0x102L)), out
+                .get(2));
+    }
+
+    @Test
+    public void testRespondWithRange() {
+        addProducerBlock(0x0504030201000000L, 256);
+        sendFrame(":X19968444N0333;");
+        expectFrame(":X19524333N05040302010000FF;");
+        expectNoFrames();
+
+        // Other target
+        sendFrame(":X19968444N0444;");
+        expectNoFrames();
+    }
+
+    @Test
+    public void testPacing() throws Exception {
+        IdentifyEventsResponder r = iface.getIdentifyEventsResponder();
+        r.setBurstSize(4);
+        r.setBusShare(1);
+        // Every other event, so that nothing can be collapsed.
+        for (int i = 0; i < 40; ++i) {
+            addProducerBlock(0x0504030201000000L + 2 * i, 1);
+        }
+        sendFrame(":X19968444N0333;");
+        Assert.assertTrue(r.isBusy());
+        expectFrame(":X19547333N0504030201000000;");
+        expectFrame(":X19547333N0504030201000006;");
+        while (r.isBusy()) {
+            Thread.sleep(5);
+        }
+        expectFrame(":X19547333N0504030201000008;");
+        expectFrame(":X19547333N050403020100004E;");
+        consumeMessages();
+        // 40 responses and the initialization complete message.
+        verify(outputConnectionMock, times(41)).put(any(), any());
+        clearInvocations(outputConnectionMock);
+    }
+}
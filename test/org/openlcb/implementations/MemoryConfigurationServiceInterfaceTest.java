@@ -30,6 +30,7 @@ import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 
@@ -202,6 +203,60 @@ public class MemoryConfigurationServiceInterfaceTest extends InterfaceTestBase {
         expectNoMessages();
     }
 
+    @Test
+    public void testPipelinedWrites() {
+        int space = MemoryConfigurationService.SPACE_CONFIG;
+        long address = 0x12340078;
+        int count = 3;
+        List<MemoryConfigurationService.McsWriteHandler> hnds = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            MemoryConfigurationService.McsWriteHandler mock = mock(
+                    MemoryConfigurationService.McsWriteHandler.class);
+            hnds.add(mock);
+            iface.getMemoryConfigurationService().requestPipelinedWrite(farID, space, address +
+                    i * 256, new byte[]{(byte) i, 2}, mock);
+        }
+
+        // Each write goes out as soon as the previous one is accepted with a reply pending.
+        for (int i = 0; i < count; ++i) {
+            expectMessageAndNoMore(new DatagramMessage(hereID, farID, new int[]{
+                    0x20, 0x01, 0x12, 0x34, i, 0x78, i, 2}));
+            sendMessage(new DatagramAcknowledgedMessage(farID, hereID, i < 2 ? 0x80 : 0));
+        }
+        // The last one had no reply pending: done right away.
+        verify(hnds.get(2)).handleSuccess();
+        verifyNoMoreInteractions(hnds.get(0), hnds.get(1));
+
+        // Replies are matched by address.
+        sendMessage(new DatagramMessage(farID, hereID, new int[]{0x20, 0x11, 0x12, 0x34, 1,
+                0x78}));
+        expectMessageAndNoMore(new DatagramAcknowledgedMessage(hereID, farID));
+        verify(hnds.get(1)).handleSuccess();
+        verifyNoMoreInteractions(hnds.get(0));
+
+        sendMessage(new DatagramMessage(farID, hereID, new int[]{0x20, 0x19, 0x12, 0x34, 0,
+                0x78, 0x10, 0x83}));
+        expectMessageAndNoMore(new DatagramAcknowledgedMessage(hereID, farID));
+        verify(hnds.get(0)).handleFailure(0x1083);
+        for (MemoryConfigurationService.McsWriteHandler h : hnds) {
+            verifyNoMoreInteractions(h);
+        }
+    }
+
+    @Test
+    public void testPipelinedWriteReplyTimeout() {
+        iface.getMemoryConfigurationService().setTimeoutMillis(50);
+        MemoryConfigurationService.McsWriteHandler hnd = mock(MemoryConfigurationService
+                .McsWriteHandler.class);
+        iface.getMemoryConfigurationService().requestPipelinedWrite(farID, 0xFD, 0x100, new
+                byte[]{1}, hnd);
+        expectMessageAndNoMore(new DatagramMessage(hereID, farID, new int[]{
+                0x20, 0x01, 0, 0, 1, 0, 1}));
+        sendMessage(new DatagramAcknowledgedMessage(farID, hereID, 0x80));
+        verify(hnd, timeout(2000)).handleFailure(0x1000);
+        verifyNoMoreInteractions(hnd);
+    }
+
     @Test
     public void testSimpleRead() {
         int space = 0xFD;
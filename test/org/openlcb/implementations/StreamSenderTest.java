@@ -0,0 +1,159 @@
+package org.openlcb.implementations;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openlcb.AbstractConnection;
+import org.openlcb.ByteSlice;
+import org.openlcb.Connection;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.StreamDataCompleteMessage;
+import org.openlcb.StreamDataSendMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the windowed stream sender.
+ */
+public class StreamSenderTest {
+    NodeID hereID = new NodeID(new byte[]{1, 2, 3, 4, 5, 6});
+    NodeID farID = new NodeID(new byte[]{1, 1, 1, 1, 1, 1});
+
+    List<Message> messagesReceived;
+    Connection testConnection;
+
+    @Before
+    public void setUp() {
+        messagesReceived = new ArrayList<>();
+        testConnection = new AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+                messagesReceived.add(msg);
+            }
+        };
+    }
+
+    static byte[] data(int length) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            b[i] = (byte) i;
+        }
+        return b;
+    }
+
+    int dataBytes() {
+        int n = 0;
+        for (Message m : messagesReceived) {
+            if (m instanceof StreamDataSendMessage) {
+                n += ((StreamDataSendMessage) m).getPayload().length();
+            }
+        }
+        return n;
+    }
+
+    @Test
+    public void testChunkSize() {
+        Assert.assertEquals(6, StreamSender.chunkSizeFor(6));
+        Assert.assertEquals(512, StreamSender.chunkSizeFor(512));
+        Assert.assertEquals(257, StreamSender.chunkSizeFor(513));
+        Assert.assertEquals(512, StreamSender.chunkSizeFor(16384));
+        Assert.assertEquals(500, StreamSender.chunkSizeFor(2000));
+    }
+
+    @Test
+    public void testLargeBufferIsSplit() {
+        byte[] b = data(3000);
+        StreamSender s = new StreamSender(hereID, farID, (byte) 4, ByteSlice.wrap(b),
+                testConnection, null);
+        s.start(2000, (byte) 9);
+        // The first buffer in four messages of 500 bytes.
+        Assert.assertEquals(4, messagesReceived.size());
+        Assert.assertEquals(new StreamDataSendMessage(hereID, farID, (byte) 9, ByteSlice.wrap(b,
+                500, 500)), messagesReceived.get(1));
+        Assert.assertEquals(2000, s.getSentCount());
+
+        messagesReceived.clear();
+        s.proceed();
+        Assert.assertEquals(3, messagesReceived.size());
+        Assert.assertEquals(new StreamDataSendMessage(hereID, farID, (byte) 9, ByteSlice.wrap(b,
+                2500, 500)), messagesReceived.get(1));
+        Assert.assertEquals(new StreamDataCompleteMessage(hereID, farID, (byte) 4, (byte) 9),
+                messagesReceived.get(2));
+        Assert.assertTrue(s.isComplete());
+    }
+
+    @Test
+    public void testEarlyProceedIsUsed() {
+        final List<Runnable> held = new ArrayList<>();
+        StreamSender s = new StreamSender(hereID, farID, (byte) 4, ByteSlice.wrap(data(1000)),
+                testConnection, null) {
+            @Override
+            protected void beforeChunk(int size, Runnable send) {
+                held.add(send);
+            }
+        };
+        s.start(100, (byte) 9);
+        // Proceeds that arrive while the first chunk is held back add up.
+        s.proceed();
+        s.proceed();
+        Assert.assertEquals(1, held.size());
+        for (int i = 0; i < 3; ++i) {
+            held.remove(0).run();
+        }
+        Assert.assertEquals(300, dataBytes());
+        // All granted data sent: waits for the next proceed.
+        Assert.assertTrue(held.isEmpty());
+        s.proceed();
+        Assert.assertEquals(1, held.size());
+        Assert.assertFalse(s.isComplete());
+    }
+
+    @Test
+    public void testEmptyStream() {
+        final int[] completed = new int[1];
+        StreamSender s = new StreamSender(hereID, farID, (byte) 4, ByteSlice.EMPTY,
+                testConnection, null) {
+            @Override
+            protected void onComplete() {
+                completed[0]++;
+            }
+        };
+        s.start(64, (byte) 9);
+        s.proceed();
+        Assert.assertEquals(1, messagesReceived.size());
+        Assert.assertTrue(messagesReceived.get(0) instanceof StreamDataCompleteMessage);
+        Assert.assertEquals(1, completed[0]);
+    }
+
+    @Test
+    public void testWithReceiver() {
+        // Receiver with a buffer that is not a multiple of the message size.
+        final StreamReceiver[] rcv = new StreamReceiver[1];
+        final StreamSender[] snd = new StreamSender[1];
+        final List<Message> toSender = new ArrayList<>();
+        Connection toReceiver = new AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+                messagesReceived.add(msg);
+                rcv[0].put(msg, null);
+            }
+        };
+        rcv[0] = new StreamReceiver(farID, hereID, new AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+                toSender.add(msg);
+            }
+        });
+        snd[0] = new StreamSender(hereID, farID, (byte) 4, ByteSlice.wrap(data(5000)),
+                toReceiver, null);
+        snd[0].start(700, (byte) 3);
+        while (!toSender.isEmpty()) {
+            toSender.remove(0);
+            snd[0].proceed();
+        }
+        Assert.assertTrue(snd[0].isComplete());
+        Assert.assertEquals(5000, dataBytes());
+    }
+}
@@ -0,0 +1,206 @@
+package org.openlcb.implementations.throttle;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openlcb.AbstractConnection;
+import org.openlcb.Connection;
+import org.openlcb.HashedWheelTimer;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.OlcbInterface;
+import org.openlcb.messages.TractionControlRequestMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests rate limiting and coalescing of throttle commands.
+ */
+public class CommandCoalescerTest {
+    static final long INTERVAL = 100;
+    NodeID here = new NodeID(new byte[]{1, 2, 0, 0, 1, 1});
+    NodeID train = new NodeID(new byte[]{6, 1, 0, 0, 0, 3});
+
+    final List<Message> sent = new ArrayList<>();
+    HashedWheelTimer timer;
+    CommandCoalescer c;
+
+    @Before
+    public void setUp() {
+        timer = new HashedWheelTimer("CommandCoalescerTest");
+        Connection out = new AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+                synchronized (sent) {
+                    sent.add(msg);
+                }
+            }
+        };
+        c = new CommandCoalescer(out, out, null, timer, INTERVAL);
+    }
+
+    @After
+    public void tearDown() {
+        timer.stop();
+    }
+
+    Message speed(double s) {
+        return TractionControlRequestMessage.createSetSpeed(here, train, true, s);
+    }
+
+    Message fn(int fn, int val) {
+        return TractionControlRequestMessage.createSetFn(here, train, fn, val);
+    }
+
+    static void assertPayload(Message expected, Message actual) {
+        Assert.assertArrayEquals(((TractionControlRequestMessage) expected).getPayload(),
+                ((TractionControlRequestMessage) actual).getPayload());
+    }
+
+    List<Message> sent() {
+        synchronized (sent) {
+            return new ArrayList<>(sent);
+        }
+    }
+
+    @Test
+    public void testLatestSpeedWins() throws Exception {
+        c.setSpeed(speed(1));
+        Assert.assertEquals(1, sent().size());
+        c.setSpeed(speed(2));
+        c.setSpeed(speed(3));
+        Assert.assertEquals(1, sent().size());
+        Thread.sleep(INTERVAL * 3);
+        List<Message> l = sent();
+        Assert.assertEquals(2, l.size());
+        assertPayload(speed(3), l.get(1));
+    }
+
+    @Test
+    public void testFunctionsCoalescedPerFunction() throws Exception {
+        c.setSpeed(speed(1));
+        c.setFunction(1, fn(1, 1));
+        c.setFunction(2, fn(2, 1));
+        c.setFunction(1, fn(1, 0));
+        Thread.sleep(INTERVAL * 3);
+        List<Message> l = sent();
+        Assert.assertEquals(3, l.size());
+        assertPayload(fn(1, 0), l.get(1));
+        assertPayload(fn(2, 1), l.get(2));
+    }
+
+    @Test
+    public void testEmergencyStopBypasses() throws Exception {
+        c.setSpeed(speed(1));
+        c.setSpeed(speed(2));
+        Message estop = TractionControlRequestMessage.createEmergencyStop(here, train);
+        c.emergencyStop(estop);
+        Assert.assertEquals(2, sent().size());
+        assertPayload(estop, sent().get(1));
+        Thread.sleep(INTERVAL * 3);
+        // The held speed command does not restart the train.
+        Assert.assertEquals(2, sent().size());
+    }
+
+    final List<Message> bus = new ArrayList<>();
+    final CountDownLatch sending = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    /**
+     * @return an interface whose output thread is held on its first message (Initialization
+     * Complete) until the release latch, so that the test can queue more messages behind it.
+     */
+    OlcbInterface heldInterface() throws InterruptedException {
+        OlcbInterface iface = new OlcbInterface(here, new AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+                sending.countDown();
+                try {
+                    release.await(2, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                synchronized (bus) {
+                    bus.add(msg);
+                }
+            }
+        });
+        Assert.assertTrue(sending.await(2, TimeUnit.SECONDS));
+        return iface;
+    }
+
+    @Test
+    public void testEmergencyStopAheadOfQueue() throws Exception {
+        OlcbInterface iface = heldInterface();
+        try {
+            NodeID other = new NodeID(new byte[]{6, 1, 0, 0, 0, 4});
+            for (int i = 0; i < 5; ++i) {
+                iface.getOutputConnection().put(TractionControlRequestMessage.createSetSpeed
+                        (here, other, true, i), null);
+            }
+            CommandCoalescer ic = new CommandCoalescer(iface.getOutputConnection(), iface
+                    .getPriorityOutputConnection(), null, iface.getWheelTimer(), INTERVAL);
+            Message estop = TractionControlRequestMessage.createEmergencyStop(here, train);
+            ic.emergencyStop(estop);
+            release.countDown();
+            iface.flushSendQueue();
+            synchronized (bus) {
+                // Initialization Complete, then the emergency stop, then the queued commands.
+                Assert.assertEquals(7, bus.size());
+                assertPayload(estop, bus.get(1));
+                assertPayload(speed(0), bus.get(2));
+            }
+        } finally {
+            release.countDown();
+            iface.dispose();
+        }
+    }
+
+    @Test
+    public void testEmergencyStopDropsQueuedSpeeds() throws Exception {
+        OlcbInterface iface = heldInterface();
+        try {
+            // Commands of other throttles to the same train, still in the output queue.
+            iface.getOutputConnection().put(speed(1), null);
+            iface.getOutputConnection().put(fn(2, 1), null);
+            iface.getOutputConnection().put(speed(2), null);
+            CommandCoalescer ic = new CommandCoalescer(iface.getOutputConnection(), iface
+                    .getPriorityOutputConnection(), null, iface.getWheelTimer(), INTERVAL);
+            Message estop = TractionControlRequestMessage.createEmergencyStop(here, train);
+            ic.emergencyStop(estop);
+            release.countDown();
+            iface.flushSendQueue();
+            synchronized (bus) {
+                // The stale speeds would release the emergency stop; only the function is left.
+                Assert.assertEquals(3, bus.size());
+                assertPayload(estop, bus.get(1));
+                assertPayload(fn(2, 1), bus.get(2));
+            }
+        } finally {
+            release.countDown();
+            iface.dispose();
+        }
+    }
+
+    @Test
+    public void testSendNow() {
+        c.setSpeed(speed(1));
+        c.setSpeed(speed(0));
+        c.sendNow();
+        Assert.assertEquals(2, sent().size());
+        assertPayload(speed(0), sent().get(1));
+    }
+
+    @Test
+    public void testNoLimit() {
+        c.setMinInterval(0);
+        for (int i = 0; i < 5; ++i) {
+            c.setSpeed(speed(i));
+        }
+        Assert.assertEquals(5, sent().size());
+    }
+}
@@ -0,0 +1,239 @@
+package org.openlcb.implementations.throttle;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openlcb.AbstractConnection;
+import org.openlcb.Connection;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.OlcbInterface;
+import org.openlcb.messages.TractionControlReplyMessage;
+import org.openlcb.messages.TractionControlRequestMessage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tests consist operations against simulated train nodes.
+ */
+public class ConsistOperationsTest {
+    static final NodeID HOST_ID = new NodeID(new byte[]{1, 2, 0, 0, 1, 1});
+    static final NodeID LEAD = train(100);
+
+    /// Consist list of each train node; guarded by itself.
+    final Map<NodeID, List<ConsistOperations.Member>> consists = new HashMap<>();
+    /// Trains that ignore the next consist request sent to them.
+    final Set<NodeID> dropOnce = new HashSet<>();
+    /// Trains that never answer.
+    final Set<NodeID> dead = new HashSet<>();
+    /// Trains that refuse attach.
+    final Set<NodeID> refuse = new HashSet<>();
+    final List<TractionControlRequestMessage> requests = new ArrayList<>();
+    ExecutorService replies;
+    OlcbInterface iface;
+    ConsistOperations ops;
+
+    static NodeID train(int address) {
+        return new NodeID(new byte[]{6, 1, 0, 0, (byte) (address >> 8), (byte) address});
+    }
+
+    final Connection bus = new AbstractConnection() {
+        @Override
+        public void put(Message msg, Connection sender) {
+            if (!(msg instanceof TractionControlRequestMessage)) return;
+            TractionControlRequestMessage r = (TractionControlRequestMessage) msg;
+            byte[] p = r.getPayload();
+            if (p[0] != TractionControlRequestMessage.CMD_CONSIST) return;
+            NodeID train = r.getDestNodeID();
+            synchronized (consists) {
+                requests.add(r);
+                if (dead.contains(train) || dropOnce.remove(train)) return;
+                List<ConsistOperations.Member> l = consists.get(train);
+                if (l == null) {
+                    l = new ArrayList<>();
+                    consists.put(train, l);
+                }
+                if (p[1] == TractionControlRequestMessage.SUBCMD_CONSIST_QUERY) {
+                    if (p.length < 3) {
+                        reply(train, new byte[]{p[0], p[1], (byte) l.size()});
+                        return;
+                    }
+                    ConsistOperations.Member m = l.get(p[2]);
+                    byte[] a = new byte[11];
+                    a[0] = p[0];
+                    a[1] = p[1];
+                    a[2] = (byte) l.size();
+                    a[3] = p[2];
+                    a[4] = (byte) m.getFlags();
+                    System.arraycopy(m.getNode().getContents(), 0, a, 5, 6);
+                    reply(train, a);
+                    return;
+                }
+                byte[] id = Arrays.copyOfRange(p, 3, 9);
+                NodeID n = new NodeID(id);
+                int result = 0;
+                for (int i = 0; i < l.size(); ++i) {
+                    if (l.get(i).getNode().equals(n)) l.remove(i--);
+                }
+                if (p[1] == TractionControlRequestMessage.SUBCMD_CONSIST_ATTACH) {
+                    if (refuse.contains(train)) {
+                        result = 0x1000;
+                    } else {
+                        l.add(new ConsistOperations.Member(n, p[2]));
+                    }
+                }
+                byte[] a = new byte[10];
+                a[0] = p[0];
+                a[1] = p[1];
+                System.arraycopy(id, 0, a, 2, 6);
+                a[8] = (byte) (result >> 8);
+                a[9] = (byte) result;
+                reply(train, a);
+            }
+        }
+    };
+
+    void reply(NodeID train, byte[] payload) {
+        final Message m = new TractionControlReplyMessage(train, HOST_ID, payload);
+        replies.execute(new Runnable() {
+            @Override
+            public void run() {
+                iface.getInputConnection().put(m, null);
+            }
+        });
+    }
+
+    int count(NodeID train, int subCmd) {
+        int n = 0;
+        synchronized (consists) {
+            for (TractionControlRequestMessage r : requests) {
+                if (r.getDestNodeID().equals(train) && r.getPayload()[1] == subCmd) ++n;
+            }
+        }
+        return n;
+    }
+
+    List<ConsistOperations.Member> units(int count, int flags) {
+        List<ConsistOperations.Member> l = new ArrayList<>();
+        for (int i = 1; i <= count; ++i) {
+            l.add(new ConsistOperations.Member(train(i), flags));
+        }
+        return l;
+    }
+
+    @Before
+    public void setUp() {
+        replies = Executors.newSingleThreadExecutor();
+        iface = new OlcbInterface(HOST_ID, bus);
+        ops = new ConsistOperations(iface);
+        ops.setTimeout(100);
+    }
+
+    @After
+    public void tearDown() {
+        ops.dispose();
+        iface.dispose();
+        replies.shutdownNow();
+    }
+
+    @Test
+    public void testBuildSixUnits() throws Exception {
+        List<ConsistOperations.Member> members = units(6, 4);
+        List<ConsistOperations.Member> result = ops.attach(LEAD, members).get(5, TimeUnit
+                .SECONDS);
+        Assert.assertEquals(members, result);
+        // Every member is attached back to the lead.
+        synchronized (consists) {
+            for (ConsistOperations.Member m : members) {
+                Assert.assertEquals(LEAD, consists.get(m.getNode()).get(0).getNode());
+            }
+        }
+        // One length query and one query per entry.
+        Assert.assertEquals(7, count(LEAD, TractionControlRequestMessage.SUBCMD_CONSIST_QUERY));
+        Assert.assertEquals(0, ops.getPendingCount());
+    }
+
+    @Test
+    public void testRetryLostRequest() throws Exception {
+        synchronized (consists) {
+            dropOnce.add(train(3));
+        }
+        List<ConsistOperations.Member> members = units(3, 0);
+        Assert.assertEquals(members, ops.attach(LEAD, members).get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, count(train(3), TractionControlRequestMessage
+                .SUBCMD_CONSIST_ATTACH));
+    }
+
+    @Test
+    public void testRefusedMemberReported() throws Exception {
+        synchronized (consists) {
+            refuse.add(train(2));
+        }
+        try {
+            ops.attach(LEAD, units(3, 0)).get(5, TimeUnit.SECONDS);
+            Assert.fail("attach should fail");
+        } catch (ExecutionException e) {
+            ConsistOperations.ConsistException c = (ConsistOperations.ConsistException) e
+                    .getCause();
+            Assert.assertEquals(Arrays.asList(train(2)), c.getFailed());
+            // The lead accepted all three.
+            Assert.assertEquals(3, c.getConsist().size());
+        }
+    }
+
+    @Test
+    public void testDeadMemberGivesUp() throws Exception {
+        synchronized (consists) {
+            dead.add(train(1));
+        }
+        ops.setMaxTries(2);
+        try {
+            ops.attach(LEAD, units(2, 0)).get(5, TimeUnit.SECONDS);
+            Assert.fail("attach should fail");
+        } catch (ExecutionException e) {
+            ConsistOperations.ConsistException c = (ConsistOperations.ConsistException) e
+                    .getCause();
+            Assert.assertEquals(Arrays.asList(train(1)), c.getFailed());
+        }
+        Assert.assertEquals(2, count(train(1), TractionControlRequestMessage
+                .SUBCMD_CONSIST_ATTACH));
+    }
+
+    @Test
+    public void testDetach() throws Exception {
+        ops.attach(LEAD, units(4, 0)).get(5, TimeUnit.SECONDS);
+        List<ConsistOperations.Member> result = ops.detach(LEAD, Arrays.asList(train(2),
+                train(4))).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(Arrays.asList(new ConsistOperations.Member(train(1), 0), new
+                ConsistOperations.Member(train(3), 0)), result);
+        synchronized (consists) {
+            Assert.assertTrue(consists.get(train(2)).isEmpty());
+        }
+    }
+
+    @Test
+    public void testFetchFailsWhenLeadSilent() throws Exception {
+        synchronized (consists) {
+            dead.add(LEAD);
+        }
+        ops.setMaxTries(1);
+        try {
+            ops.fetch(LEAD).get(5, TimeUnit.SECONDS);
+            Assert.fail("fetch should fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.openlcb.implementations.throttle;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openlcb.CommonIdentifiers;
+import org.openlcb.FakeOlcbInterface;
+import org.openlcb.NodeID;
+import org.openlcb.ProducerIdentifiedMessage;
+import org.openlcb.EventState;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+/**
+ * Tests the persistent FDI cache and the FDI prefetch of the train node cache.
+ */
+public class FdiCacheTest {
+    static final String FDI_A = "<?xml version=\"1.0\"?><fdi><segment space=\"249\"/></fdi>";
+    static final String FDI_B = "<?xml version=\"1.0\"?><fdi><segment space=\"249\" " +
+            "origin=\"0\"/></fdi>";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    NodeID n1 = new NodeID("06.01.00.00.00.01");
+    NodeID n2 = new NodeID("06.01.00.00.00.02");
+    NodeID n3 = new NodeID("06.01.00.00.00.03");
+    File dir;
+    FdiCache cache;
+
+    @Before
+    public void setUp() {
+        dir = new File(folder.getRoot(), "fdi");
+        cache = new FdiCache(dir);
+    }
+
+    @After
+    public void tearDown() {
+        cache.close();
+    }
+
+    void reopen() {
+        cache.close();
+        cache = new FdiCache(dir);
+    }
+
+    int files() {
+        return dir.list().length;
+    }
+
+    @Test
+    public void testDeduplicated() {
+        cache.put(n1, FDI_A);
+        cache.put(n2, FDI_A);
+        cache.put(n3, FDI_B);
+        Assert.assertEquals(3, cache.getNodeCount());
+        Assert.assertEquals(2, cache.getContentCount());
+        cache.flush();
+        // Two FDI files and the index.
+        Assert.assertEquals(3, files());
+
+        reopen();
+        Assert.assertEquals(FDI_A, cache.get(n1));
+        Assert.assertEquals(FDI_A, cache.get(n2));
+        Assert.assertEquals(FDI_B, cache.get(n3));
+        Assert.assertNull(cache.get(new NodeID("06.01.00.00.00.04")));
+    }
+
+    @Test
+    public void testRemove() {
+        cache.put(n1, FDI_A);
+        cache.put(n2, FDI_A);
+        cache.remove(n1);
+        cache.flush();
+        Assert.assertEquals(2, files());
+        cache.remove(n2);
+        cache.flush();
+        Assert.assertEquals(1, files());
+        reopen();
+        Assert.assertNull(cache.get(n2));
+
+        // Replacing the FDI of a node drops the old one.
+        cache.put(n1, FDI_A);
+        cache.put(n1, FDI_B);
+        Assert.assertEquals(1, cache.getContentCount());
+        Assert.assertEquals(FDI_B, cache.get(n1));
+    }
+
+    @Test
+    public void testCorruptFile() throws Exception {
+        cache.put(n1, FDI_A);
+        cache.put(n2, FDI_A);
+        reopen();
+        try (FileOutputStream f = new FileOutputStream(new File(dir, FdiCache.hash(FDI_A) +
+                ".xml"))) {
+            f.write("<fdi>".getBytes("UTF-8"));
+        }
+        Assert.assertNull(cache.get(n1));
+        Assert.assertNull(cache.get(n2));
+        Assert.assertEquals(0, cache.getNodeCount());
+    }
+
+    @Test
+    public void testFunctionTable() throws Exception {
+        String fdi = FunctionTableTest.testFile();
+        cache.put(n1, fdi);
+        cache.put(n2, fdi);
+        FunctionTable t = cache.getFunctionTable(n1);
+        Assert.assertEquals(6, t.size());
+        Assert.assertSame(t, cache.getFunctionTable(n2));
+        Assert.assertNull(cache.getFunctionTable(n3));
+        cache.flush();
+        Assert.assertTrue(new File(dir, FdiCache.hash(fdi) + ".fnt").exists());
+        cache.remove(n1);
+        cache.remove(n2);
+        cache.flush();
+        Assert.assertEquals(1, files());
+    }
+
+    @Test
+    public void testPrefetchFromCache() {
+        cache.put(n1, FDI_A);
+        cache.put(n2, FDI_B);
+        FakeOlcbInterface iface = new FakeOlcbInterface();
+        TrainNodeCache trains = new TrainNodeCache(iface);
+        trains.setFdiCache(cache);
+        for (NodeID n : new NodeID[]{n1, n2, n3}) {
+            trains.put(new ProducerIdentifiedMessage(n, CommonIdentifiers.IS_TRAIN, EventState
+                    .Valid), null);
+        }
+        Assert.assertSame(trains.getCache(1), trains.get(n2));
+        trains.startFdiPrefetch(2);
+        Assert.assertNotNull(trains.get(n1).getFdiXml());
+        Assert.assertEquals(0, trains.get(n1).getFunctionTable().size());
+        Assert.assertSame(trains.get(n1).getFunctionTable(), FunctionTable.forFdi(FDI_A));
+        Assert.assertEquals("fdi", trains.get(n2).getFdiXml().getName());
+        // The third train is loaded from the node, which does not answer here.
+        Assert.assertEquals(1, trains.getPrefetchPending());
+        trains.release();
+        iface.dispose();
+    }
+}
@@ -0,0 +1,89 @@
+package org.openlcb.implementations.throttle;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Tests compiling FDI into function tables.
+ */
+public class FunctionTableTest {
+    static String testFile() throws Exception {
+        return new String(Files.readAllBytes(Paths.get(
+                "test/org/openlcb/implementations/throttle/FdiTestFile.xml")), StandardCharsets
+                .UTF_8);
+    }
+
+    static void checkTestFile(FunctionTable t) {
+        Assert.assertEquals(6, t.size());
+        Assert.assertEquals(2, t.indexOf(2));
+        Assert.assertEquals(5, t.indexOf(6));
+        Assert.assertEquals(-1, t.indexOf(5));
+        Assert.assertEquals(-1, t.indexOf(7));
+        Assert.assertEquals(-1, t.indexOf(-1));
+        Assert.assertEquals("Horn", t.getNameOf(2));
+        Assert.assertNull(t.getNameOf(5));
+        Assert.assertEquals(FdiParser.FunctionType.MOMENTARY, t.getType(2));
+        Assert.assertEquals(FdiParser.FunctionType.TOGGLE, t.getType(3));
+        Assert.assertEquals(249, t.getSpace(0));
+        Assert.assertEquals(5, t.getOffset(5));
+        Assert.assertEquals(1, t.getSize(5));
+    }
+
+    @Test
+    public void testCompile() throws Exception {
+        FunctionTable t = FunctionTable.forFdi(testFile());
+        checkTestFile(t);
+        // Same FDI, same table; names are interned.
+        Assert.assertSame(t, FunctionTable.forFdi(new String(testFile())));
+        Assert.assertSame("Light", t.getName(0));
+        Assert.assertNull(FunctionTable.forFdi("<fdi>"));
+    }
+
+    @Test
+    public void testLargeNumbers() {
+        FunctionTable t = FunctionTable.forFdi("<fdi><segment space='249'><group>" +
+                "<function><name>A</name><number>100000</number></function>" +
+                "<function><name>B</name><number>3</number></function>" +
+                "<function><name>C</name><number>3</number></function>" +
+                "</group></segment></fdi>");
+        Assert.assertEquals(2, t.size());
+        Assert.assertEquals(3, t.getNumber(0));
+        // The first of two functions with the same number is kept.
+        Assert.assertEquals("B", t.getNameOf(3));
+        Assert.assertEquals(1, t.indexOf(100000));
+        Assert.assertEquals(-1, t.indexOf(4));
+    }
+
+    @Test
+    public void testWriteRead() throws Exception {
+        FunctionTable t = FunctionTable.forFdi(testFile());
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        t.write(new DataOutputStream(b));
+        byte[] data = b.toByteArray();
+        Assert.assertSame(t, FunctionTable.read(new DataInputStream(new ByteArrayInputStream(
+                data))));
+
+        // Under another hash the table is decoded instead of shared.
+        Arrays.fill(data, 10, 10 + 64, (byte) '0');
+        FunctionTable u = FunctionTable.read(new DataInputStream(new ByteArrayInputStream(data)));
+        Assert.assertNotSame(t, u);
+        checkTestFile(u);
+
+        data[0] = 0;
+        try {
+            FunctionTable.read(new DataInputStream(new ByteArrayInputStream(data)));
+            Assert.fail();
+        } catch (java.io.IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package org.openlcb.implementations.throttle;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openlcb.AbstractConnection;
+import org.openlcb.Connection;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.OlcbInterface;
+import org.openlcb.messages.TractionControlReplyMessage;
+import org.openlcb.messages.TractionControlRequestMessage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests running many throttles through one manager.
+ */
+public class TractionThrottleManagerTest {
+    static final NodeID HOST_ID = new NodeID(new byte[]{1, 2, 0, 0, 1, 1});
+
+    final Map<NodeID, Float> trainSpeeds = new HashMap<>();
+    /// Function queries seen on the bus, in order.
+    final List<TractionControlRequestMessage> fnQueries = new ArrayList<>();
+    volatile boolean answer = true;
+    /// Assign replies held back while true.
+    boolean holdAssign = false;
+    final List<Message> held = new ArrayList<>();
+    ExecutorService replies;
+    OlcbInterface iface;
+    TractionThrottleManager manager;
+
+    /// The train nodes; they answer on a separate thread, like a real link.
+    final Connection bus = new AbstractConnection() {
+        @Override
+        public void put(Message msg, Connection sender) {
+            if (!(msg instanceof TractionControlRequestMessage)) return;
+            TractionControlRequestMessage r = (TractionControlRequestMessage) msg;
+            NodeID train = r.getDestNodeID();
+            byte[] p = r.getPayload();
+            if (p[0] == TractionControlRequestMessage.CMD_GET_FN) {
+                synchronized (fnQueries) {
+                    fnQueries.add(r);
+                }
+            }
+            if (!answer) return;
+            if (p[0] == TractionControlRequestMessage.CMD_CONTROLLER && p[1] ==
+                    TractionControlRequestMessage.SUBCMD_CONTROLLER_ASSIGN) {
+                reply(train, new byte[]{p[0], p[1], 0});
+            } else if (p[0] == TractionControlRequestMessage.CMD_GET_SPEED) {
+                Float16 s = new Float16(trainSpeeds.get(train));
+                reply(train, new byte[]{p[0], s.getByte1(), s.getByte2(), 0, 0, 0, 0, 0});
+            } else if (p[0] == TractionControlRequestMessage.CMD_GET_FN) {
+                reply(train, new byte[]{p[0], p[1], p[2], p[3], 0, (byte) (p[3] & 1)});
+            }
+        }
+    };
+
+    void reply(NodeID train, byte[] payload) {
+        Message m = new TractionControlReplyMessage(train, HOST_ID, payload);
+        synchronized (held) {
+            if (holdAssign && payload[0] == TractionControlRequestMessage.CMD_CONTROLLER) {
+                held.add(m);
+                return;
+            }
+        }
+        send(m);
+    }
+
+    void releaseHeld() {
+        synchronized (held) {
+            holdAssign = false;
+            for (Message m : held) {
+                send(m);
+            }
+            held.clear();
+        }
+    }
+
+    void send(final Message m) {
+        replies.execute(new Runnable() {
+            @Override
+            public void run() {
+                iface.getInputConnection().put(m, null);
+            }
+        });
+    }
+
+    List<NodeID> addTrains(int count) {
+        List<NodeID> l = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            NodeID id = new NodeID(new byte[]{6, 1, 0, 0, (byte) (i >> 8), (byte) i});
+            trainSpeeds.put(id, (float) i);
+            l.add(id);
+        }
+        return l;
+    }
+
+    int fnQueryCount(NodeID train) {
+        int n = 0;
+        synchronized (fnQueries) {
+            for (TractionControlRequestMessage m : fnQueries) {
+                if (m.getDestNodeID().equals(train)) ++n;
+            }
+        }
+        return n;
+    }
+
+    static void waitFor(String what, Condition c) throws InterruptedException {
+        for (int i = 0; i < 500 && !c.done(); ++i) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(what, c.done());
+    }
+
+    interface Condition {
+        boolean done();
+    }
+
+    @Before
+    public void setUp() {
+        replies = Executors.newSingleThreadExecutor();
+        iface = new OlcbInterface(HOST_ID, bus);
+        manager = new TractionThrottleManager(iface);
+    }
+
+    @After
+    public void tearDown() {
+        manager.dispose();
+        iface.dispose();
+        replies.shutdownNow();
+    }
+
+    @Test
+    public void testManyThrottles() throws Exception {
+        List<NodeID> trains = addTrains(200);
+        final List<TractionThrottle> throttles = new ArrayList<>();
+        for (NodeID n : trains) {
+            TractionThrottle t = manager.createThrottle();
+            t.start(new RemoteTrainNode(n, iface));
+            throttles.add(t);
+        }
+        waitFor("all assigned", new Condition() {
+            @Override
+            public boolean done() {
+                for (TractionThrottle t : throttles) {
+                    if (!t.getEnabled()) return false;
+                }
+                return true;
+            }
+        });
+        Assert.assertEquals(200, manager.getSessionCount());
+        waitFor("speeds", new Condition() {
+            @Override
+            public boolean done() {
+                return manager.getLatency(TractionThrottleManager.RequestKind.SPEED).getCount()
+                        == 200;
+            }
+        });
+        // Each throttle got the speed of its own train.
+        for (int i = 0; i < 200; ++i) {
+            Assert.assertEquals((float) i, throttles.get(i).getSpeed().getLatestData(), 0.01);
+        }
+        TractionThrottleManager.Latency l = manager.getLatency(TractionThrottleManager
+                .RequestKind.ASSIGN);
+        Assert.assertEquals(200, l.getCount());
+        Assert.assertTrue(l.getMaxMsec() >= l.getMeanMsec());
+        Assert.assertTrue(l.getP95Msec() > 0);
+
+        throttles.get(7).release();
+        Assert.assertEquals(199, manager.getSessionCount());
+        Assert.assertFalse(throttles.get(7).getEnabled());
+    }
+
+    @Test
+    public void testLostReplyNotMeasured() throws Exception {
+        NodeID train = addTrains(1).get(0);
+        final TractionThrottle t = manager.createThrottle();
+        t.start(new RemoteTrainNode(train, iface));
+        waitFor("first speed", new Condition() {
+            @Override
+            public boolean done() {
+                return manager.getLatency(TractionThrottleManager.RequestKind.SPEED).getCount()
+                        == 1;
+            }
+        });
+        answer = false;
+        t.querySpeed();
+        Thread.sleep(300);
+        answer = true;
+        t.querySpeed();
+        waitFor("second speed", new Condition() {
+            @Override
+            public boolean done() {
+                return manager.getLatency(TractionThrottleManager.RequestKind.SPEED).getCount()
+                        == 2;
+            }
+        });
+        // Measured from the second query, not from the one that got no reply.
+        Assert.assertTrue(manager.getLatency(TractionThrottleManager.RequestKind.SPEED)
+                .getMaxMsec() < 250);
+        Assert.assertEquals(0, manager.getOutstandingCount());
+
+        answer = false;
+        t.querySpeed();
+        Assert.assertEquals(1, manager.getOutstandingCount());
+        t.release();
+        Assert.assertEquals(0, manager.getOutstandingCount());
+    }
+
+    @Test
+    public void testFunctionQueriesAfterAssign() throws Exception {
+        NodeID train = addTrains(1).get(0);
+        holdAssign = true;
+        final TractionThrottle t = manager.createThrottle();
+        t.start(new RemoteTrainNode(train, iface));
+        // The user interface creates the functions while the assignment is pending, some twice.
+        for (int i = 0; i < 30; ++i) {
+            t.getFunction(i);
+            t.getFunction(i / 2);
+        }
+        releaseHeld();
+        waitFor("function values", new Condition() {
+            @Override
+            public boolean done() {
+                return t.getFunction(29).getLatestData();
+            }
+        });
+        Thread.sleep(3 * TractionThrottleManager.FN_QUERY_TICK_MSEC);
+        // Every function queried once.
+        Assert.assertEquals(30, fnQueryCount(train));
+        Assert.assertTrue(t.getFunction(3).getLatestData());
+        Assert.assertFalse(t.getFunction(4).getLatestData());
+        Assert.assertEquals(30, manager.getLatency(TractionThrottleManager.RequestKind.FUNCTION)
+                .getCount());
+    }
+
+    @Test
+    public void testFunctionQueriesTakeTurns() throws Exception {
+        answer = false;
+        List<NodeID> trains = addTrains(3);
+        List<TractionThrottle> throttles = new ArrayList<>();
+        for (NodeID n : trains) {
+            TractionThrottle t = manager.createThrottle();
+            t.start(new RemoteTrainNode(n, iface));
+            throttles.add(t);
+        }
+        manager.queueFunctionQueries(throttles.get(0), Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8,
+                9));
+        manager.queueFunctionQueries(throttles.get(1), Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8,
+                9));
+        manager.queueFunctionQueries(throttles.get(2), Arrays.asList(0, 1));
+        waitFor("first batch", new Condition() {
+            @Override
+            public boolean done() {
+                synchronized (fnQueries) {
+                    return fnQueries.size() >= TractionThrottleManager.FN_QUERIES_PER_TICK;
+                }
+            }
+        });
+        synchronized (fnQueries) {
+            // The short list is not stuck behind the long ones.
+            Assert.assertEquals(trains.get(2), fnQueries.get(2).getDestNodeID());
+            Assert.assertEquals(trains.get(2), fnQueries.get(5).getDestNodeID());
+        }
+        waitFor("all queries", new Condition() {
+            @Override
+            public boolean done() {
+                synchronized (fnQueries) {
+                    return fnQueries.size() == 22;
+                }
+            }
+        });
+
+        // A released throttle drops its queries.
+        manager.queueFunctionQueries(throttles.get(1), Arrays.asList(20, 21));
+        throttles.get(1).start(new RemoteTrainNode(trains.get(0), iface));
+        Assert.assertEquals(3, manager.getSessionCount());
+        Thread.sleep(5 * TractionThrottleManager.FN_QUERY_TICK_MSEC);
+        Assert.assertEquals(10, fnQueryCount(trains.get(1)));
+    }
+}
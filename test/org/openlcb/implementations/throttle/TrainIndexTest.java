@@ -0,0 +1,52 @@
+package org.openlcb.implementations.throttle;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openlcb.NodeID;
+
+import java.util.Arrays;
+
+/**
+ * Tests searching trains by name and address.
+ */
+public class TrainIndexTest {
+    TrainIndex index = new TrainIndex();
+    RemoteTrainNode bigBoy = new RemoteTrainNode(new NodeID("06.01.00.00.C0.0F"), null);
+    RemoteTrainNode gp9 = new RemoteTrainNode(new NodeID("06.01.00.00.00.03"), null);
+    RemoteTrainNode gp38 = new RemoteTrainNode(new NodeID("05.01.01.01.22.01"), null);
+
+    @Test
+    public void testDccAddress() {
+        Assert.assertEquals(15, TrainIndex.dccAddress(bigBoy.getNodeId()));
+        Assert.assertEquals(3, TrainIndex.dccAddress(gp9.getNodeId()));
+        Assert.assertEquals(-1, TrainIndex.dccAddress(gp38.getNodeId()));
+    }
+
+    @Test
+    public void testSearch() {
+        index.put(bigBoy, "UP Big Boy 4014");
+        index.put(gp9, "GP9 #3");
+        index.put(gp38, null);
+        index.put(gp38, "GP38-2 Conrail");
+
+        Assert.assertEquals(Arrays.asList(bigBoy), index.search("big"));
+        Assert.assertEquals(Arrays.asList(bigBoy), index.search("boy BIG"));
+        Assert.assertEquals(Arrays.asList(gp38, gp9), index.search("gp"));
+        Assert.assertEquals(Arrays.asList(gp38), index.search("gp38"));
+        Assert.assertEquals(Arrays.asList(bigBoy), index.search("401"));
+        // By DCC address.
+        Assert.assertEquals(Arrays.asList(bigBoy), index.search("15"));
+        Assert.assertEquals(Arrays.asList(gp9), index.search("3"));
+        Assert.assertEquals(Arrays.asList(gp38, gp9, bigBoy), index.search(""));
+        Assert.assertTrue(index.search("big conrail").isEmpty());
+    }
+
+    @Test
+    public void testRename() {
+        index.put(gp9, "GP9 #3");
+        index.put(gp9, "SD40 #3");
+        Assert.assertTrue(index.search("gp9").isEmpty());
+        Assert.assertEquals(Arrays.asList(gp9), index.search("sd"));
+        Assert.assertEquals("SD40 #3", index.getName(gp9));
+    }
+}
@@ -0,0 +1,188 @@
+package org.openlcb.protocols;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openlcb.AbstractConnection;
+import org.openlcb.Connection;
+import org.openlcb.ConsumerRangeIdentifiedMessage;
+import org.openlcb.InterfaceTestBase;
+import org.openlcb.Message;
+import org.openlcb.MockPropertyChangeListener;
+import org.openlcb.NodeID;
+import org.openlcb.OlcbInterface;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+/**
+ * Tests following several clocks through one hub.
+ */
+public class TimeBroadcastConsumerHubTest extends InterfaceTestBase {
+    static final long T1730 = -513153000L * 1000L; // 1953-09-27 17:30 GMT
+    static final long MIDNIGHT = -513129600L * 1000; // 1953-09-28 00:00 GMT
+
+    TimeBroadcastConsumerHub hub;
+    TimeBroadcastConsumerHub.Clock fast;
+    TimeBroadcastConsumerHub.Clock rt;
+
+    @Before
+    public void hubSetUp() {
+        hub = new TimeBroadcastConsumerHub(iface);
+        fast = hub.addClock(TimeProtocol.ALT_CLOCK_1);
+        expectFrame(":X194A4333N010100000102FFFF;");
+        expectFrame(":X19524333N0101000001028000;");
+        expectFrame(":X195B4333N010100000102F000;");
+        rt = hub.addClock(TimeProtocol.DEFAULT_RT_CLOCK);
+        expectFrame(":X194A4333N0101000001010000;");
+        expectFrame(":X19524333N0101000001018000;");
+        expectFrame(":X195B4333N010100000101F000;");
+        expectNoFrames();
+        fast.setTimeZone(TimeZone.getTimeZone("GMT"));
+        rt.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+
+    @After
+    public void hubTearDown() {
+        hub.dispose();
+    }
+
+    @Test
+    public void testRouting() {
+        assertSame(fast, hub.addClock(TimeProtocol.ALT_CLOCK_1));
+        assertSame(rt, hub.getClock(TimeProtocol.DEFAULT_RT_CLOCK));
+        sendFrame(":X195B4444N010100000102F001;"); // stop fast clock
+        assertFalse(fast.isRunning());
+        assertTrue(rt.isRunning());
+        sendFrame(":X195B4444N010100000101F001;"); // stop real-time clock
+        assertFalse(rt.isRunning());
+        // Unknown clock.
+        sendFrame(":X195B4444N010100000103F002;");
+        assertFalse(fast.isRunning());
+        assertFalse(rt.isRunning());
+        hub.removeClock(TimeProtocol.ALT_CLOCK_1);
+        assertNull(hub.getClock(TimeProtocol.ALT_CLOCK_1));
+        sendFrame(":X195B4444N010100000102F002;");
+        assertFalse(fast.isRunning());
+        assertSame(rt, hub.getClock(TimeProtocol.DEFAULT_RT_CLOCK));
+
+        // Clocks removed before the connection comes up are not announced; one removed and
+        // added again is announced once.
+        final List<Connection.ConnectionListener> starts = new ArrayList<>();
+        final List<Message> sent = Collections.synchronizedList(new ArrayList<Message>());
+        OlcbInterface late = new OlcbInterface(new NodeID(new byte[]{2, 1, 0, 0, 0, 1}), new
+                AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+                sent.add(msg);
+            }
+
+            @Override
+            public void registerStartNotification(ConnectionListener c) {
+                starts.add(c);
+            }
+        });
+        TimeBroadcastConsumerHub lateHub = new TimeBroadcastConsumerHub(late);
+        lateHub.addClock(TimeProtocol.ALT_CLOCK_1);
+        lateHub.addClock(TimeProtocol.DEFAULT_RT_CLOCK);
+        lateHub.removeClock(TimeProtocol.DEFAULT_RT_CLOCK);
+        lateHub.removeClock(TimeProtocol.ALT_CLOCK_1);
+        lateHub.addClock(TimeProtocol.ALT_CLOCK_1);
+        for (Connection.ConnectionListener c : starts) {
+            c.connectionActive(null);
+        }
+        late.flushSendQueue();
+        int ranges = 0;
+        for (Message m : sent) {
+            if (m instanceof ConsumerRangeIdentifiedMessage) {
+                ++ranges;
+                assertEquals(TimeProtocol.ALT_CLOCK_1.toLong(), ((ConsumerRangeIdentifiedMessage)
+                        m).getEventID().toLong() >>> 16);
+            }
+        }
+        assertEquals(1, ranges);
+        lateHub.dispose();
+        late.dispose();
+    }
+
+    @Test
+    public void testSyncBlockPublishesOnce() {
+        sendFrame(":X195B4444N010100000102F001;"); // stop
+        MockPropertyChangeListener l = new MockPropertyChangeListener();
+        fast.addPropertyChangeListener(l);
+        sendFrame(":X19544444N010100000102F001;"); // stopped, no change
+        sendFrame(":X19544444N01010000010247F1;"); // rate = 508.25
+        sendFrame(":X19544444N01010000010237A1;"); // 1953
+        sendFrame(":X19544444N010100000102291B;"); // 09/27
+        sendFrame(":X19544444N010100000102111E;"); // 17:30
+        verify(l.m).onChange(TimeProtocol.PROP_RATE_UPDATE, 508.25);
+        verify(l.m).onChange(TimeProtocol.PROP_TIME_UPDATE, T1730);
+        verifyNoMoreInteractions(l.m);
+        assertEquals(T1730, fast.getTimeInMsec());
+        assertEquals(508.25, fast.getRate(), 0.001);
+        // The same block again changes nothing.
+        sendFrame(":X19544444N01010000010247F1;");
+        sendFrame(":X19544444N01010000010237A1;");
+        sendFrame(":X19544444N010100000102291B;");
+        sendFrame(":X19544444N010100000102111E;");
+        verifyNoMoreInteractions(l.m);
+    }
+
+    @Test
+    public void testSetSequencePublishesOnce() {
+        sendFrame(":X195B4444N010100000102F001;"); // stop
+        MockPropertyChangeListener l = new MockPropertyChangeListener();
+        fast.addPropertyChangeListener(l);
+        sendFrame(":X195B4444N01010000010237A1;"); // 1953
+        // The year is applied right away, published with the time.
+        assertEquals(1953, LocalDate.ofEpochDay(Math.floorDiv(fast.getTimeInMsec(),
+                86400000L)).getYear());
+        sendFrame(":X195B4444N010100000102291B;"); // 09/27
+        verifyNoMoreInteractions(l.m);
+        sendFrame(":X195B4444N010100000102111E;"); // 17:30
+        verify(l.m).onChange(TimeProtocol.PROP_TIME_UPDATE, T1730);
+        verifyNoMoreInteractions(l.m);
+        assertEquals(T1730, fast.getTimeInMsec());
+    }
+
+    @Test
+    public void testMidnightRollover() {
+        sendFrame(":X195B4444N010100000102F001;"); // stop
+        sendFrame(":X19544444N01010000010237A1;"); // 1953
+        sendFrame(":X19544444N010100000102291B;"); // 09/27
+        sendFrame(":X195B4444N010100000102173B;"); // 23:59
+        assertEquals(MIDNIGHT - 60000, fast.getTimeInMsec());
+        sendFrame(":X195B4444N010100000102F003;"); // date rollover
+        sendFrame(":X195B4444N0101000001020000;"); // 00:00
+        assertEquals(MIDNIGHT, fast.getTimeInMsec());
+    }
+
+    @Test
+    public void testRequestSetTime() {
+        rt.requestSetTime(T1730);
+        expectFrame(":X195B4333N010100000101B7A1;"); // set 1953
+        expectFrame(":X195B4333N010100000101A91B;"); // set 09/27
+        expectFrame(":X195B4333N010100000101911E;"); // set 17:30
+        expectNoFrames();
+    }
+
+    @Test
+    public void testCivilDates() {
+        for (long days = -800000; days < 800000; days += 37) {
+            LocalDate d = LocalDate.ofEpochDay(days);
+            long c = TimeBroadcastConsumerHub.civilFromDays(days);
+            assertEquals(d.getYear(), TimeBroadcastConsumerHub.yearOf(c));
+            assertEquals(d.getMonthValue(), TimeBroadcastConsumerHub.monthOf(c));
+            assertEquals(d.getDayOfMonth(), TimeBroadcastConsumerHub.dayOf(c));
+            assertEquals(days, TimeBroadcastConsumerHub.daysFromCivil(d.getYear(), d
+                    .getMonthValue(), d.getDayOfMonth()));
+        }
+    }
+}
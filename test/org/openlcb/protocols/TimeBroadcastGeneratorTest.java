@@ -287,6 +287,35 @@ public class TimeBroadcastGeneratorTest extends InterfaceTestBase {
         expectFrame(":X195B4333N010100000102F003;"); // start
     }
 
+    @Test
+    public void testMinuteReports() throws Exception {
+        tgmaster.setMinuteReports(true);
+        tgmaster.timeKeeper.setRate(2.0);
+        long noon = -513129600L * 1000 - 12 * 3600 * 1000;
+        tgmaster.requestSetTime(noon + 59 * 1000);
+        expectFrame(":X195B4333N01010000010237A1;"); // 1953
+        expectFrame(":X195B4333N010100000102291B;"); // 09/27
+        expectFrame(":X195B4333N0101000001020C00;"); // 12:00
+        // The next minute comes after one fast second, 500 msec.
+        Thread.sleep(1000);
+        expectFrame(":X195B4333N0101000001020C01;"); // 12:01
+        expectNoFrames();
+    }
+
+    @Test
+    public void testMinuteReportsBackwards() throws Exception {
+        tgmaster.setMinuteReports(true);
+        tgmaster.timeKeeper.setRate(-2.0);
+        long noon = -513129600L * 1000 - 12 * 3600 * 1000;
+        tgmaster.requestSetTime(noon + 1000);
+        expectFrame(":X195B4333N01010000010237A1;"); // 1953
+        expectFrame(":X195B4333N010100000102291B;"); // 09/27
+        expectFrame(":X195B4333N0101000001020C00;"); // 12:00
+        Thread.sleep(1000);
+        expectFrame(":X195B4333N0101000001020B3B;"); // 11:59
+        expectNoFrames();
+    }
+
     TimeBroadcastGenerator tgmaster;
 
 }
@@ -91,4 +91,22 @@ public class TimeKeeperTest {
         tk.overrideTime += 3600*1000; // now it is running;
         assertEquals(13000000 + 3600 * 1000, tk.getTime());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testTranslateFastToNanoTime() throws Exception {
+        FakeTimeKeeper tk = new FakeTimeKeeper();
+        tk.setTime(13000000);
+        tk.setRate(4.0);
+        long anchor = tk.realTimeAnchorNanos;
+        // Every minute is computed from the anchor, so the series does not drift.
+        for (int i = 1; i <= 1000; ++i) {
+            assertEquals(anchor + i * 15000L * 1000000, tk.translateFastToNanoTime(13000000 +
+                    i * 60000L));
+        }
+        tk.setRate(-2.0);
+        anchor = tk.realTimeAnchorNanos;
+        assertEquals(anchor + 30000L * 1000000, tk.translateFastToNanoTime(tk.getTime() - 60000));
+        tk.stop();
+        assertEquals(Long.MIN_VALUE, tk.translateFastToNanoTime(0));
+    }
+}
@@ -0,0 +1,73 @@
+package simulations;
+
+import org.openlcb.AbstractConnection;
+import org.openlcb.Connection;
+import org.openlcb.EventID;
+import org.openlcb.Message;
+import org.openlcb.MessageDecoder;
+import org.openlcb.NodeID;
+import org.openlcb.ProducerConsumerEventReportMessage;
+import org.openlcb.implementations.EventStatistics;
+
+/**
+ * Measures the per-message cost that the EventStatistics instrumentation adds to the dispatch
+ * path, by pushing the same pre-built messages through a typical listener with and without
+ * the statistics collector attached.
+ *
+ * Not prototype code.
+ */
+public class EventStatisticsBenchmark {
+    static final int NUM_MESSAGES = 1 << 16;
+    static final int ROUNDS = 50;
+
+    /// Stands in for the listeners a real interface dispatches to.
+    static class Sink extends MessageDecoder {
+        long seen;
+
+        @Override
+        public void handleProducerConsumerEventReport(ProducerConsumerEventReportMessage msg,
+                                                      Connection sender) {
+            seen += msg.getEventID().hashCode();
+        }
+    }
+
+    static double run(Message[] msgs, Connection[] listeners) {
+        long start = System.nanoTime();
+        for (int r = 0; r < ROUNDS; ++r) {
+            for (Message m : msgs) {
+                for (Connection c : listeners) {
+                    c.put(m, null);
+                }
+            }
+        }
+        return (System.nanoTime() - start) / (double) (ROUNDS * msgs.length);
+    }
+
+    public static void main(String[] args) {
+        Message[] msgs = new Message[NUM_MESSAGES];
+        NodeID layout = new NodeID(new byte[]{5, 1, 1, 1, 0x14, 0});
+        for (int i = 0; i < NUM_MESSAGES; ++i) {
+            NodeID src = new NodeID(new byte[]{5, 1, 1, 1, 0x14, (byte) (i % 50)});
+            // Skewed: a few events are very hot, most are rare.
+            int ev = (int) (Math.pow(Math.random(), 3) * 2000);
+            msgs[i] = new ProducerConsumerEventReportMessage(src, new EventID(layout, ev >> 8,
+                    ev));
+        }
+        Sink sink = new Sink();
+        EventStatistics stats = new EventStatistics(null, 4096);
+        Connection[] plain = new Connection[]{sink};
+        Connection[] instrumented = new Connection[]{sink, stats};
+        // warm-up
+        for (int i = 0; i < 5; ++i) {
+            run(msgs, plain);
+            run(msgs, instrumented);
+        }
+        double base = run(msgs, plain);
+        double withStats = run(msgs, instrumented);
+        System.out.printf("dispatch without statistics: %.1f ns/message%n", base);
+        System.out.printf("dispatch with statistics:    %.1f ns/message (+%.1f ns)%n",
+                withStats, withStats - base);
+        System.out.println("tracked events: " + stats.getTrackedEventCount() + ", overflow: "
+                + stats.getOverflowCount() + " " + sink.seen);
+    }
+}
@@ -0,0 +1,101 @@
+package simulations;
+
+import org.openlcb.HashedWheelTimer;
+
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Compares the hashed-wheel timer to java.util.Timer with 100k pending timeouts, the typical
+ * retry pattern of the stack: almost every timeout is cancelled because the reply arrives.
+ * Prints the cost of schedule and cancel, and the heap retained by the cancelled timeouts.
+ *
+ * Not prototype code.
+ */
+public class HashedWheelTimerBenchmark {
+    static final int NUM_TIMEOUTS = 100000;
+    static final int ROUNDS = 5;
+
+    static final Runnable NOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    static long usedHeap() {
+        Runtime r = Runtime.getRuntime();
+        for (int i = 0; i < 5; ++i) {
+            System.gc();
+        }
+        return r.totalMemory() - r.freeMemory();
+    }
+
+    static long[] delays() {
+        Random rnd = new Random(42);
+        long[] d = new long[NUM_TIMEOUTS];
+        for (int i = 0; i < NUM_TIMEOUTS; ++i) {
+            // Between 1 and 60 seconds, like datagram and memory config timeouts.
+            d[i] = 1000 + rnd.nextInt(59000);
+        }
+        return d;
+    }
+
+    static void wheel(long[] d) {
+        HashedWheelTimer timer = new HashedWheelTimer("benchmark");
+        HashedWheelTimer.Timeout[] t = new HashedWheelTimer.Timeout[NUM_TIMEOUTS];
+        long start = System.nanoTime();
+        for (int i = 0; i < NUM_TIMEOUTS; ++i) {
+            t[i] = timer.schedule(NOP, d[i]);
+        }
+        long scheduled = System.nanoTime();
+        long pendingHeap = usedHeap();
+        long cancelStart = System.nanoTime();
+        for (int i = 0; i < NUM_TIMEOUTS; ++i) {
+            t[i].cancel();
+        }
+        long end = System.nanoTime();
+        t = null;
+        long afterHeap = usedHeap();
+        System.out.printf("wheel: schedule %.0f ns, cancel %.0f ns, pending %d, freed by cancel " +
+                        "%d KB%n", (scheduled - start) / (double) NUM_TIMEOUTS, (end -
+                        cancelStart) / (double) NUM_TIMEOUTS, timer.getPendingCount(),
+                (pendingHeap - afterHeap) / 1024);
+        timer.stop();
+    }
+
+    static void utilTimer(long[] d) {
+        Timer timer = new Timer("benchmark", true);
+        TimerTask[] t = new TimerTask[NUM_TIMEOUTS];
+        long start = System.nanoTime();
+        for (int i = 0; i < NUM_TIMEOUTS; ++i) {
+            t[i] = new TimerTask() {
+                @Override
+                public void run() {
+                }
+            };
+            timer.schedule(t[i], d[i]);
+        }
+        long scheduled = System.nanoTime();
+        long pendingHeap = usedHeap();
+        long cancelStart = System.nanoTime();
+        for (int i = 0; i < NUM_TIMEOUTS; ++i) {
+            t[i].cancel();
+        }
+        long end = System.nanoTime();
+        t = null;
+        long afterHeap = usedHeap();
+        System.out.printf("java.util.Timer: schedule %.0f ns, cancel %.0f ns, freed by cancel " +
+                        "%d KB%n", (scheduled - start) / (double) NUM_TIMEOUTS, (end -
+                        cancelStart) / (double) NUM_TIMEOUTS, (pendingHeap - afterHeap) / 1024);
+        timer.cancel();
+    }
+
+    public static void main(String[] args) {
+        long[] d = delays();
+        for (int r = 0; r < ROUNDS; ++r) {
+            wheel(d);
+            utilTimer(d);
+        }
+    }
+}
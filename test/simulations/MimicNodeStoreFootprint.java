@@ -0,0 +1,73 @@
+package simulations;
+
+import org.openlcb.AbstractConnection;
+import org.openlcb.Connection;
+import org.openlcb.EventID;
+import org.openlcb.EventState;
+import org.openlcb.Message;
+import org.openlcb.MimicNodeStore;
+import org.openlcb.NodeID;
+import org.openlcb.ProducerIdentifiedMessage;
+
+/**
+ * Measures the heap footprint of a MimicNodeStore tracking a large layout, and the cost of
+ * pushing non-identification traffic through it.
+ *
+ * Not prototype code.
+ */
+public class MimicNodeStoreFootprint {
+    static final int NUM_NODES = 10000;
+    static final int ROUNDS = 50;
+
+    static long usedHeap() {
+        Runtime r = Runtime.getRuntime();
+        for (int i = 0; i < 5; ++i) {
+            System.gc();
+        }
+        return r.totalMemory() - r.freeMemory();
+    }
+
+    public static void main(String[] args) {
+        Connection sink = new AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+            }
+        };
+        Message[] msgs = new Message[NUM_NODES];
+        EventID ev = new EventID("05.01.01.01.14.00.00.01");
+        for (int i = 0; i < NUM_NODES; ++i) {
+            NodeID n = new NodeID(new byte[]{5, 1, 1, 1, (byte) (i >> 8), (byte) i});
+            msgs[i] = new ProducerIdentifiedMessage(n, ev, EventState.Unknown);
+        }
+
+        long before = usedHeap();
+        MimicNodeStore store = new MimicNodeStore(sink, new NodeID("05.01.01.01.14.FF"));
+        for (Message m : msgs) {
+            store.put(m, null);
+        }
+        long after = usedHeap();
+        System.out.printf("%d nodes: %d bytes total, %.0f bytes/node%n", store.size(), after -
+                before, (after - before) / (double) store.size());
+
+        long start = System.nanoTime();
+        for (int r = 0; r < ROUNDS; ++r) {
+            for (Message m : msgs) {
+                store.put(m, null);
+            }
+        }
+        System.out.printf("dispatch of known nodes: %.1f ns/message%n", (System.nanoTime() -
+                start) / (double) (ROUNDS * NUM_NODES));
+
+        // The first call after a change builds the snapshot; later ones share it.
+        start = System.nanoTime();
+        int n = store.getNodeMemos().size();
+        System.out.printf("snapshot build: %.1f usec%n", (System.nanoTime() - start) / 1000.0);
+        start = System.nanoTime();
+        for (int r = 0; r < ROUNDS; ++r) {
+            n += store.getNodeMemos().size();
+        }
+        System.out.printf("cached snapshot: %.1f ns/call (%d)%n", (System.nanoTime() - start) / (double)
+                ROUNDS, n);
+        store.dispose();
+    }
+}
@@ -0,0 +1,279 @@
+package simulations;
+
+import org.openlcb.AbstractConnection;
+import org.openlcb.ByteSlice;
+import org.openlcb.Connection;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.StreamDataCompleteMessage;
+import org.openlcb.StreamDataProceedMessage;
+import org.openlcb.StreamDataSendMessage;
+import org.openlcb.can.AliasMap;
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.MessageBuilder;
+import org.openlcb.can.OpenLcbCanFrame;
+import org.openlcb.implementations.StreamSender;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sends a firmware-sized stream over a simulated CAN segment and prints the throughput for
+ * several buffer sizes, gateway latencies and receivers.
+ * <p>
+ * The host reaches the segment through a gateway (USB or TCP) that delays every frame in both
+ * directions. The segment runs at 125 kbit/s and carries one frame at a time. The receiver
+ * writes the data into flash at a fixed rate and grants the next buffer when it has room for
+ * it: a receiver with one buffer only after the whole buffer was written, a receiver with two
+ * buffers while the other one is still being filled. The simulation runs on virtual time, so
+ * the numbers do not depend on the machine.
+ *
+ * Not prototype code.
+ */
+public class StreamThroughputBenchmark {
+    static final int IMAGE_SIZE = 32 * 1024;
+    static final int BITRATE = 125000;
+    /// Flash write speed of the receiver, microseconds per byte.
+    static final long WRITE_USEC_PER_BYTE = 10;
+
+    static final NodeID HOST = new NodeID(new byte[]{2, 1, 0, 0, 0, 1});
+    static final NodeID TARGET = new NodeID(new byte[]{2, 1, 0, 0, 0, 2});
+    static final byte SRC_STREAM_ID = 4;
+    static final byte DST_STREAM_ID = 7;
+
+    /// Events on virtual time, in microseconds.
+    static class Clock {
+        static class Event implements Comparable<Event> {
+            final long time;
+            final long seq;
+            final Runnable r;
+
+            Event(long time, long seq, Runnable r) {
+                this.time = time;
+                this.seq = seq;
+                this.r = r;
+            }
+
+            @Override
+            public int compareTo(Event o) {
+                if (time != o.time) return Long.compare(time, o.time);
+                return Long.compare(seq, o.seq);
+            }
+        }
+
+        final PriorityQueue<Event> events = new PriorityQueue<>();
+        long now = 0;
+        long seq = 0;
+
+        void at(long time, Runnable r) {
+            events.add(new Event(time, seq++, r));
+        }
+
+        void run() {
+            Event e;
+            while ((e = events.poll()) != null) {
+                now = e.time;
+                e.r.run();
+            }
+        }
+    }
+
+    /// The CAN segment with the host behind a gateway and the target on the bus.
+    static class Segment {
+        final Clock clock;
+        final long gatewayUsec;
+        final AliasMap map = new AliasMap();
+        final MessageBuilder hostBuilder;
+        final MessageBuilder targetBuilder;
+        final ArrayDeque<Object[]> queue = new ArrayDeque<>();
+        boolean busy = false;
+        long busyUsec = 0;
+        Connection host;
+        Connection target;
+
+        Segment(Clock clock, long gatewayUsec) {
+            this.clock = clock;
+            this.gatewayUsec = gatewayUsec;
+            map.insert(0x111, HOST);
+            map.insert(0x222, TARGET);
+            hostBuilder = new MessageBuilder(map);
+            targetBuilder = new MessageBuilder(map);
+        }
+
+        /// Bits on the wire of an extended frame, with an allowance for bit stuffing.
+        static long frameUsec(CanFrame f) {
+            long bits = 67 + 8 * f.getNumDataElements();
+            bits += bits / 10;
+            return bits * 1000000 / BITRATE;
+        }
+
+        /// The host sends a message; its frames reach the segment after the gateway delay.
+        void fromHost(Message m) {
+            for (final OpenLcbCanFrame f : hostBuilder.processMessage(m)) {
+                clock.at(clock.now + gatewayUsec, new Runnable() {
+                    @Override
+                    public void run() {
+                        enqueue(f, true);
+                    }
+                });
+            }
+        }
+
+        /// The target sends a message; its frames wait for the bus.
+        void fromTarget(Message m) {
+            for (OpenLcbCanFrame f : targetBuilder.processMessage(m)) {
+                enqueue(f, false);
+            }
+        }
+
+        void enqueue(OpenLcbCanFrame f, boolean toTarget) {
+            queue.add(new Object[]{f, toTarget});
+            if (!busy) next();
+        }
+
+        void next() {
+            final Object[] e = queue.poll();
+            if (e == null) {
+                busy = false;
+                return;
+            }
+            busy = true;
+            final OpenLcbCanFrame f = (OpenLcbCanFrame) e[0];
+            long t = frameUsec(f);
+            busyUsec += t;
+            clock.at(clock.now + t, new Runnable() {
+                @Override
+                public void run() {
+                    deliver(f, (Boolean) e[1]);
+                    next();
+                }
+            });
+        }
+
+        void deliver(OpenLcbCanFrame f, boolean toTarget) {
+            if (toTarget) {
+                List<Message> l = targetBuilder.processFrame(f);
+                if (l != null) for (Message m : l) target.put(m, null);
+            } else {
+                final List<Message> l = hostBuilder.processFrame(f);
+                if (l == null) return;
+                clock.at(clock.now + gatewayUsec, new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Message m : l) host.put(m, null);
+                    }
+                });
+            }
+        }
+    }
+
+    /// Writes the data into flash and grants buffers when it has room for them.
+    static class Receiver extends AbstractConnection {
+        final Clock clock;
+        final Segment segment;
+        final int bufferSize;
+        final int buffers;
+        /// Granted, but not arrived yet.
+        int outstanding;
+        /// Arrived, but not written yet.
+        int held = 0;
+        boolean writing = false;
+        long written = 0;
+        long doneUsec = 0;
+        boolean complete = false;
+
+        Receiver(Clock clock, Segment segment, int bufferSize, int buffers) {
+            this.clock = clock;
+            this.segment = segment;
+            this.bufferSize = bufferSize;
+            this.buffers = buffers;
+            // The first buffer is granted by the Stream Initiate Reply.
+            outstanding = bufferSize;
+        }
+
+        @Override
+        public void put(Message msg, Connection sender) {
+            if (msg instanceof StreamDataSendMessage) {
+                int n = ((StreamDataSendMessage) msg).getPayload().length();
+                outstanding -= n;
+                held += n;
+                write();
+                grant();
+            } else if (msg instanceof StreamDataCompleteMessage) {
+                complete = true;
+                write();
+            }
+        }
+
+        void write() {
+            if (writing) return;
+            if (held == 0) {
+                if (complete && doneUsec == 0) doneUsec = clock.now;
+                return;
+            }
+            final int n = Math.min(held, 64);
+            writing = true;
+            clock.at(clock.now + n * WRITE_USEC_PER_BYTE, new Runnable() {
+                @Override
+                public void run() {
+                    writing = false;
+                    held -= n;
+                    written += n;
+                    grant();
+                    write();
+                }
+            });
+        }
+
+        void grant() {
+            if (complete) return;
+            while (buffers * bufferSize - held - outstanding >= bufferSize) {
+                outstanding += bufferSize;
+                segment.fromTarget(new StreamDataProceedMessage(TARGET, HOST, SRC_STREAM_ID,
+                        DST_STREAM_ID));
+            }
+        }
+    }
+
+    static void run(int bufferSize, int buffers, long gatewayUsec) {
+        final Clock clock = new Clock();
+        final Segment segment = new Segment(clock, gatewayUsec);
+        Receiver receiver = new Receiver(clock, segment, bufferSize, buffers);
+        segment.target = receiver;
+        final StreamSender sender = new StreamSender(HOST, TARGET, SRC_STREAM_ID, ByteSlice.wrap(
+                new byte[IMAGE_SIZE]), new AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection s) {
+                segment.fromHost(msg);
+            }
+        }, null);
+        segment.host = new AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection s) {
+                if (msg instanceof StreamDataProceedMessage) sender.proceed();
+            }
+        };
+        sender.start(bufferSize, DST_STREAM_ID);
+        clock.run();
+        if (receiver.written != IMAGE_SIZE || receiver.doneUsec == 0) {
+            throw new IllegalStateException("stream did not complete: " + receiver.written);
+        }
+        double sec = receiver.doneUsec / 1e6;
+        System.out.printf("buffer %5d x%d, gateway %2d ms: %5.2f sec, %6.0f bytes/sec, bus " +
+                "busy %3.0f%%%n", bufferSize, buffers, gatewayUsec / 1000, sec, IMAGE_SIZE /
+                sec, 100.0 * segment.busyUsec / receiver.doneUsec);
+    }
+
+    public static void main(String[] args) {
+        System.out.println("Stream of " + IMAGE_SIZE + " bytes at " + BITRATE / 1000 +
+                " kbit/s:");
+        for (long gateway : new long[]{1000, 10000}) {
+            for (int bufferSize : new int[]{64, 256, 1024, 4096}) {
+                for (int buffers = 1; buffers <= 2; ++buffers) {
+                    run(bufferSize, buffers, gateway);
+                }
+            }
+        }
+    }
+}